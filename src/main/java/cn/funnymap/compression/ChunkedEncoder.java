@@ -0,0 +1,44 @@
+package cn.funnymap.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 分段输入的编码器
+ *
+ * <p>
+ * 一个条带或瓦片的数据可以分多次传入，编码器在各段之间保留状态，编码结果与一次性传入全部数据相同。
+ * 用于在编码器的输入阶段逐行完成Predictor等变换，不需要先生成整个条带的中间结果。
+ * 调用顺序为{@link #begin(ByteBuffer)}、任意次{@link #update(byte[], int, int)}、{@link #finish()}。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/27 09:30
+ */
+public interface ChunkedEncoder extends Encoder {
+    /**
+     * 开始编码一个条带或瓦片
+     *
+     * @param dst 编码结果，从position开始写入，剩余空间不足时超出的部分被丢弃，并在结果中标记
+     * @throws IOException 编码时发生的异常
+     */
+    void begin(ByteBuffer dst) throws IOException;
+
+    /**
+     * 传入一段数据，方法返回后数组可以被调用方复用
+     *
+     * @param bytes 数据
+     * @param offset 起始位置
+     * @param length 字节数
+     * @throws IOException 编码时发生的异常
+     */
+    void update(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * 结束当前条带或瓦片，写入剩余的编码结果
+     *
+     * @return 传入的字节数和写入的字节数
+     * @throws IOException 编码时发生的异常
+     */
+    CodecResult finish() throws IOException;
+}
@@ -0,0 +1,68 @@
+package cn.funnymap.compression;
+
+/**
+ * 压缩算法的提供者，通过{@link java.util.ServiceLoader}发现
+ *
+ * <p>
+ * 实现类需要在META-INF/services/cn.funnymap.compression.CodecProvider中注册，
+ * 并提供无参构造方法，{@link CodecRegistry}根据{@link #getCompressions()}返回的Compression值分发解码请求。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/22 09:15
+ */
+public interface CodecProvider {
+    /**
+     * 支持的Compression值，对应{@code TIFF.Compression}中的常量
+     */
+    int[] getCompressions();
+
+    /**
+     * 获取当前线程可以使用的解码器，实现类可以按线程复用解码器
+     */
+    Decoder getDecoder();
+
+    /**
+     * 获取当前线程可以使用的、使用IFD中共用的表的解码器，例如JPEGTables，默认与表无关
+     *
+     * @param tables IFD中共用的表的原始数据，没有时为null
+     */
+    default Decoder getDecoder(byte[] tables) {
+        return this.getDecoder();
+    }
+
+    /**
+     * 是否支持编码，为false时{@link #getEncoder()}抛出{@link UnsupportedOperationException}
+     */
+    default boolean canEncode() {
+        return false;
+    }
+
+    /**
+     * 获取当前线程可以使用的编码器，调用前需要通过{@link #canEncode()}检查
+     *
+     * <p>
+     * 编码器没有输出流，只能使用{@link Encoder#encode(java.nio.ByteBuffer, java.nio.ByteBuffer)}，
+     * 调用{@link Encoder#encode(java.nio.ByteBuffer)}时抛出{@link IllegalStateException}。
+     * </p>
+     */
+    default Encoder getEncoder() {
+        throw new UnsupportedOperationException("当前压缩方式不支持编码：" + this.getClass().getSimpleName());
+    }
+
+    /**
+     * 获取当前线程可以使用的、按照指定行宽编码的编码器，例如PackBits按照TIFF标准逐行独立编码，默认与行宽无关
+     *
+     * @param rowByteSize 条带或瓦片中每行未压缩时的字节数
+     */
+    default Encoder getEncoder(int rowByteSize) {
+        return this.getEncoder();
+    }
+
+    /**
+     * 数据是否按原样存储，为true时读取方可以跳过解码，直接将数据读取到目标Buffer中
+     */
+    default boolean isPassthrough() {
+        return false;
+    }
+}
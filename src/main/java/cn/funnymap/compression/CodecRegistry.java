@@ -0,0 +1,74 @@
+package cn.funnymap.compression;
+
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 压缩算法注册表，按照Compression值查找{@link CodecProvider}
+ *
+ * <p>
+ * 默认注册表在第一次使用时通过{@link ServiceLoader}加载类路径中的全部{@link CodecProvider}，
+ * 也可以通过{@link #register(CodecProvider)}手动注册，后注册的提供者会覆盖相同Compression值的提供者。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/22 09:30
+ */
+public final class CodecRegistry {
+    private final Map<Integer, CodecProvider> providers = new ConcurrentHashMap<>();
+
+    public CodecRegistry() {}
+
+    /**
+     * 获取通过{@link ServiceLoader}加载的默认注册表
+     */
+    public static CodecRegistry getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * 通过{@link ServiceLoader}加载指定类加载器中的全部提供者
+     *
+     * @param classLoader 类加载器
+     * @return 注册表
+     */
+    public static CodecRegistry load(ClassLoader classLoader) {
+        CodecRegistry codecRegistry = new CodecRegistry();
+        for (CodecProvider codecProvider : ServiceLoader.load(CodecProvider.class, classLoader)) {
+            codecRegistry.register(codecProvider);
+        }
+
+        return codecRegistry;
+    }
+
+    public void register(CodecProvider codecProvider) {
+        for (int compression : codecProvider.getCompressions()) {
+            this.providers.put(compression, codecProvider);
+        }
+    }
+
+    public boolean isSupported(int compression) {
+        return this.providers.containsKey(compression);
+    }
+
+    /**
+     * 获取Compression值对应的提供者
+     *
+     * @param compression Compression值
+     * @return 提供者
+     * @throws IllegalArgumentException 没有对应的提供者时抛出
+     */
+    public CodecProvider get(int compression) {
+        CodecProvider codecProvider = this.providers.get(compression);
+        if (codecProvider == null) {
+            throw new IllegalArgumentException("不支持的压缩方式：" + compression);
+        }
+
+        return codecProvider;
+    }
+
+    private static final class DefaultHolder {
+        private static final CodecRegistry INSTANCE = load(CodecRegistry.class.getClassLoader());
+    }
+}
@@ -0,0 +1,31 @@
+package cn.funnymap.compression;
+
+import lombok.Getter;
+
+/**
+ * 一次编码或解码的结果
+ *
+ * @author jiao xn
+ * @date 2024/1/21 09:40
+ */
+@Getter
+public final class CodecResult {
+    // 从源Buffer中读取的字节数
+    private final int consumed;
+    // 写入目标Buffer的字节数
+    private final int produced;
+    // 目标Buffer的剩余空间是否不足，为true时超出的部分被丢弃
+    private final boolean overflow;
+
+    public CodecResult(int consumed, int produced, boolean overflow) {
+        this.consumed = consumed;
+        this.produced = produced;
+        this.overflow = overflow;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CodecResult{consumed=%s, produced=%s, overflow=%s}", this.consumed, this.produced,
+                this.overflow);
+    }
+}
@@ -3,6 +3,7 @@ package cn.funnymap.compression;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * @author jiao xn
@@ -10,4 +11,20 @@ import java.io.OutputStream;
  */
 public interface Decoder {
     OutputStream decode(final InputStream inputStream) throws IOException;
+
+    /**
+     * 将src中position到limit之间的数据解码，结果从dst的position开始写入
+     *
+     * <p>
+     * dst可以是堆内存、直接内存或者内存映射的Buffer，例如栅格数组中某个条带对应的切片，解码结果直接写入其中。
+     * dst的剩余空间不足时，只写入能容纳的部分，并在结果中标记。解码结束后，src和dst的position分别移动到
+     * 已读取、已写入数据的末尾。
+     * </p>
+     *
+     * @param src 编码数据
+     * @param dst 解码结果
+     * @return 读取和写入的字节数
+     * @throws IOException 解码时发生的异常
+     */
+    CodecResult decode(ByteBuffer src, ByteBuffer dst) throws IOException;
 }
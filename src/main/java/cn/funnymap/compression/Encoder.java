@@ -15,4 +15,19 @@ public interface Encoder {
      * @throws IOException 输出流写入编码结果时发生的异常
      */
     void encode(final ByteBuffer byteBuffer) throws IOException;
+
+    /**
+     * 将src中position到limit之间的数据编码，结果从dst的position开始写入
+     *
+     * <p>
+     * dst的剩余空间不足时，超出的部分被丢弃，并在结果中标记，调用方需要使用更大的dst重新编码。
+     * 编码结束后，src和dst的position分别移动到已读取、已写入数据的末尾。
+     * </p>
+     *
+     * @param src 需要编码的数据
+     * @param dst 编码结果
+     * @return 读取和写入的字节数
+     * @throws IOException 编码时发生的异常
+     */
+    CodecResult encode(ByteBuffer src, ByteBuffer dst) throws IOException;
 }
@@ -0,0 +1,50 @@
+package cn.funnymap.compression.deflate;
+
+import cn.funnymap.compression.CodecProvider;
+import cn.funnymap.compression.Decoder;
+import cn.funnymap.compression.Encoder;
+import cn.funnymap.model.tiff.TIFF;
+
+import java.util.zip.Deflater;
+
+/**
+ * Compression为8（Adobe Deflate）和32946（Deflate）的提供者，Inflater和Deflater按线程复用
+ *
+ * @author jiao xn
+ * @date 2024/1/23 10:05
+ */
+public class DeflateCodecProvider implements CodecProvider {
+    private final ThreadLocal<DeflateDecoder> decoders = ThreadLocal.withInitial(DeflateDecoder::new);
+    private final ThreadLocal<DeflateEncoder> encoders;
+
+    public DeflateCodecProvider() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+    /**
+     * @param level 编码使用的压缩级别，0~9或者{@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public DeflateCodecProvider(int level) {
+        DeflateEncoder.validateLevel(level);
+        this.encoders = ThreadLocal.withInitial(() -> new DeflateEncoder(level));
+    }
+
+    @Override
+    public int[] getCompressions() {
+        return new int[]{TIFF.Compression.ADOBE_DEFLATE, TIFF.Compression.DEFLATE};
+    }
+
+    @Override
+    public Decoder getDecoder() {
+        return this.decoders.get();
+    }
+
+    @Override
+    public boolean canEncode() {
+        return true;
+    }
+
+    @Override
+    public Encoder getEncoder() {
+        return this.encoders.get();
+    }
+}
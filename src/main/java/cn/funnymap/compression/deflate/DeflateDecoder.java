@@ -0,0 +1,102 @@
+package cn.funnymap.compression.deflate;
+
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.Decoder;
+import org.springframework.util.FastByteArrayOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate 解码器
+ *
+ * <p>
+ * 基于{@link Inflater}实现，同一个实例在多次解码之间复用同一个Inflater，直接从源Buffer读取并写入目标Buffer，
+ * 解码过程中不创建任何对象。实例不是线程安全的，多线程使用时需要每个线程一个实例，
+ * 不再使用时调用{@link #close()}释放Inflater占用的本地内存。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/23 09:20
+ */
+public class DeflateDecoder implements Decoder, AutoCloseable {
+    private final Inflater inflater = new Inflater();
+    // 目标Buffer写满后用于判断是否还有解码结果
+    private final byte[] probe = new byte[1];
+
+    @Override
+    public OutputStream decode(InputStream inputStream) throws IOException {
+        this.inflater.reset();
+
+        try (FastByteArrayOutputStream byteArrayOutputStream = new FastByteArrayOutputStream()) {
+            byte[] buffer = new byte[8192];
+            InflaterInputStream inflaterInputStream = new InflaterInputStream(inputStream, this.inflater);
+            int read;
+            while ((read = inflaterInputStream.read(buffer)) > 0) {
+                byteArrayOutputStream.write(buffer, 0, read);
+            }
+
+            return byteArrayOutputStream;
+        } finally {
+            this.inflater.reset();
+        }
+    }
+
+    /**
+     * 将Deflate（zlib格式）数据解码到目标Buffer中，直到数据结束
+     *
+     * <p>
+     * 目标Buffer写满后仍有解码结果时标记为溢出，恰好写满、只剩下zlib校验和时不是溢出。
+     * </p>
+     *
+     * @throws IOException 数据格式错误，或者源Buffer中的数据在结束之前用完时抛出
+     */
+    @Override
+    public CodecResult decode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int srcStart = src.position();
+        int dstStart = dst.position();
+
+        this.inflater.reset();
+        this.inflater.setInput(src);
+        boolean overflow = false;
+        try {
+            while (!this.inflater.finished()) {
+                int inflated;
+                if (dst.hasRemaining()) {
+                    inflated = this.inflater.inflate(dst);
+                } else {
+                    // 目标已满，再解码一个字节判断是否还有数据
+                    inflated = this.inflater.inflate(this.probe);
+                    if (inflated > 0) {
+                        overflow = true;
+                        break;
+                    }
+                }
+
+                if (inflated == 0 && this.inflater.needsInput()) {
+                    throw new IOException("Deflate数据不完整");
+                }
+                if (inflated == 0 && this.inflater.needsDictionary()) {
+                    throw new IOException("Deflate数据需要预设字典");
+                }
+            }
+        } catch (DataFormatException exception) {
+            throw new IOException("Deflate数据格式错误：" + exception.getMessage(), exception);
+        } finally {
+            // 重置后Inflater不再持有源Buffer的引用
+            this.inflater.reset();
+        }
+
+        return new CodecResult(src.position() - srcStart, dst.position() - dstStart, overflow);
+    }
+
+    @Override
+    public void close() {
+        this.inflater.end();
+    }
+}
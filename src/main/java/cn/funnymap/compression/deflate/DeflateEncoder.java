@@ -0,0 +1,136 @@
+package cn.funnymap.compression.deflate;
+
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.ChunkedEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate 编码器，输出zlib格式的数据
+ *
+ * <p>
+ * 同一个实例在多次编码之间复用同一个Deflater，实例不是线程安全的，
+ * 不再使用时调用{@link #close()}释放Deflater占用的本地内存。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/23 09:45
+ */
+public class DeflateEncoder implements ChunkedEncoder, AutoCloseable {
+    private final OutputStream codeStream;
+    private final Deflater deflater;
+    // 分段编码时的状态
+    private ByteBuffer codeBuffer = null;
+    private int dstStart = 0;
+    private int consumed = 0;
+    private boolean overflow = false;
+
+    public DeflateEncoder() {
+        this(null, Deflater.DEFAULT_COMPRESSION);
+    }
+    public DeflateEncoder(int level) {
+        this(null, level);
+    }
+    /**
+     * @param codeStream 编码结果的输出流
+     * @param level 压缩级别，0~9或者{@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public DeflateEncoder(OutputStream codeStream, int level) {
+        validateLevel(level);
+
+        this.codeStream = codeStream;
+        this.deflater = new Deflater(level);
+    }
+
+    @Override
+    public void encode(ByteBuffer byteBuffer) throws IOException {
+        if (this.codeStream == null) {
+            throw new IllegalStateException("未指定编码结果的输出流，请使用encode(ByteBuffer, ByteBuffer)");
+        }
+
+        this.deflater.reset();
+        this.deflater.setInput(byteBuffer);
+        this.deflater.finish();
+
+        byte[] buffer = new byte[8192];
+        while (!this.deflater.finished()) {
+            int deflated = this.deflater.deflate(buffer);
+            this.codeStream.write(buffer, 0, deflated);
+        }
+        this.deflater.reset();
+    }
+
+    @Override
+    public CodecResult encode(ByteBuffer src, ByteBuffer dst) {
+        int srcStart = src.position();
+        int dstStart = dst.position();
+
+        this.deflater.reset();
+        this.deflater.setInput(src);
+        this.deflater.finish();
+        while (!this.deflater.finished()) {
+            if (this.deflater.deflate(dst) == 0 && !dst.hasRemaining()) {
+                break;
+            }
+        }
+
+        boolean overflow = !this.deflater.finished();
+        this.deflater.reset();
+
+        return new CodecResult(src.position() - srcStart, dst.position() - dstStart, overflow);
+    }
+
+    @Override
+    public void begin(ByteBuffer dst) {
+        this.deflater.reset();
+        this.codeBuffer = dst;
+        this.dstStart = dst.position();
+        this.consumed = 0;
+        this.overflow = false;
+    }
+
+    @Override
+    public void update(byte[] bytes, int offset, int length) {
+        if (length <= 0) return ;
+
+        // 数据全部进入Deflater后才返回，调用方可以复用数组
+        this.deflater.setInput(bytes, offset, length);
+        while (!this.overflow && !this.deflater.needsInput()) {
+            if (this.deflater.deflate(this.codeBuffer) == 0 && !this.codeBuffer.hasRemaining()) {
+                this.overflow = true;
+            }
+        }
+        this.consumed += length;
+    }
+
+    @Override
+    public CodecResult finish() {
+        this.deflater.finish();
+        while (!this.overflow && !this.deflater.finished()) {
+            if (this.deflater.deflate(this.codeBuffer) == 0 && !this.codeBuffer.hasRemaining()) {
+                this.overflow = true;
+            }
+        }
+        this.deflater.reset();
+
+        CodecResult codecResult = new CodecResult(this.consumed, this.codeBuffer.position() - this.dstStart,
+                this.overflow);
+        this.codeBuffer = null;
+
+        return codecResult;
+    }
+
+    static void validateLevel(int level) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("无效的压缩级别：" + level);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.deflater.end();
+    }
+}
@@ -0,0 +1,62 @@
+package cn.funnymap.compression.jpeg;
+
+import cn.funnymap.compression.CodecProvider;
+import cn.funnymap.compression.Decoder;
+import cn.funnymap.model.tiff.TIFF;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Compression为7（新式JPEG）和6（旧式JPEG）的提供者
+ *
+ * <p>
+ * 解码器按线程复用。每个IFD的JPEGTables只解析一次，解析结果以JPEGTables的值为键缓存，
+ * 随IFD的属性一起被回收。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/25 11:20
+ */
+public class JPEGCodecProvider implements CodecProvider {
+    private static final ThreadLocal<JPEGDecoder> DECODERS = ThreadLocal.withInitial(JPEGDecoder::new);
+
+    // 数组的equals、hashCode基于对象本身，因此每个IFD的JPEGTables对应一个缓存项
+    private final Map<byte[], JPEGTables> tablesCache = Collections.synchronizedMap(new WeakHashMap<>());
+
+    @Override
+    public int[] getCompressions() {
+        return new int[]{TIFF.Compression.NEW_JPEG, TIFF.Compression.JPEG};
+    }
+
+    @Override
+    public Decoder getDecoder() {
+        JPEGDecoder jpegDecoder = DECODERS.get();
+        jpegDecoder.setTables(null);
+
+        return jpegDecoder;
+    }
+
+    @Override
+    public Decoder getDecoder(byte[] tables) {
+        JPEGDecoder jpegDecoder = DECODERS.get();
+        jpegDecoder.setTables(this.getTables(tables));
+
+        return jpegDecoder;
+    }
+
+    /**
+     * 获取IFD的JPEGTables的解析结果，同一个IFD只解析一次
+     *
+     * @param jpegTables IFD中JPEGTables的值
+     * @return 解析结果，IFD中没有JPEGTables时返回null
+     */
+    public JPEGTables getTables(byte[] jpegTables) {
+        if (jpegTables == null) {
+            return null;
+        }
+
+        return this.tablesCache.computeIfAbsent(jpegTables, JPEGTables::parse);
+    }
+}
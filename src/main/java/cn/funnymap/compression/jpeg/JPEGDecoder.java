@@ -0,0 +1,174 @@
+package cn.funnymap.compression.jpeg;
+
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.Decoder;
+import org.springframework.util.FastByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.plugins.jpeg.JPEGImageReadParam;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * JPEG 解码器
+ *
+ * <p>
+ * 基于JDK内置的JPEG解码器实现，解码结果按像素交错存储，YCbCr数据会被转换为RGB。
+ * 同一个实例复用同一个{@link ImageReader}以及尺寸相同的解码目标图像；
+ * 通过{@link #setTables(JPEGTables)}设置的共用表在每次解码时直接提供给解码器，不需要重复解析。
+ * 实例不是线程安全的。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/25 10:30
+ */
+public class JPEGDecoder implements Decoder, AutoCloseable {
+    private final ImageReader imageReader;
+    private JPEGTables tables = null;
+    // 上一次解码的目标图像，尺寸和类型相同时复用
+    private BufferedImage destination = null;
+
+    public JPEGDecoder() {
+        Iterator<ImageReader> imageReaders = ImageIO.getImageReadersByFormatName("jpeg");
+        if (!imageReaders.hasNext()) {
+            throw new IllegalStateException("没有可用的JPEG解码器");
+        }
+
+        this.imageReader = imageReaders.next();
+    }
+
+    /**
+     * 设置条带或瓦片共用的JPEGTables，为null时只能解码包含完整表的JPEG数据
+     */
+    public void setTables(JPEGTables tables) {
+        this.tables = tables;
+    }
+
+    @Override
+    public OutputStream decode(InputStream inputStream) throws IOException {
+        byte[] bytes = inputStream.readAllBytes();
+        BufferedImage image = this.read(bytes, 0, bytes.length);
+
+        Raster raster = image.getRaster();
+        ByteBuffer target = ByteBuffer.allocate(raster.getWidth() * raster.getHeight() * raster.getNumBands());
+        copyPixels(raster, target);
+
+        FastByteArrayOutputStream byteArrayOutputStream = new FastByteArrayOutputStream(target.capacity());
+        byteArrayOutputStream.write(target.array());
+        return byteArrayOutputStream;
+    }
+
+    @Override
+    public CodecResult decode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int srcLength = src.remaining();
+        BufferedImage image;
+        if (src.hasArray()) {
+            image = this.read(src.array(), src.arrayOffset() + src.position(), srcLength);
+        } else {
+            byte[] bytes = new byte[srcLength];
+            src.get(src.position(), bytes);
+            image = this.read(bytes, 0, srcLength);
+        }
+        src.position(src.limit());
+
+        Raster raster = image.getRaster();
+        int dstStart = dst.position();
+        boolean overflow = copyPixels(raster, dst);
+
+        return new CodecResult(srcLength, dst.position() - dstStart, overflow);
+    }
+
+    @Override
+    public void close() {
+        this.imageReader.dispose();
+    }
+
+    private BufferedImage read(byte[] bytes, int offset, int length) throws IOException {
+        try (ImageInputStream imageInputStream =
+                     new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+            this.imageReader.setInput(imageInputStream, true, true);
+
+            JPEGImageReadParam readParam = (JPEGImageReadParam) this.imageReader.getDefaultReadParam();
+            if (this.tables != null) {
+                readParam.setDecodeTables(this.tables.getQTables(), this.tables.getDCHuffmanTables(),
+                        this.tables.getACHuffmanTables());
+            }
+
+            // 尺寸和类型相同时复用上一次的目标图像
+            int width = this.imageReader.getWidth(0);
+            int height = this.imageReader.getHeight(0);
+            ImageTypeSpecifier imageType = this.imageReader.getImageTypes(0).next();
+            if (this.destination != null && this.destination.getWidth() == width &&
+                    this.destination.getHeight() == height &&
+                    this.destination.getSampleModel().equals(imageType.getSampleModel(width, height))) {
+                readParam.setDestination(this.destination);
+            }
+
+            this.destination = this.imageReader.read(0, readParam);
+            return this.destination;
+        } finally {
+            this.imageReader.setInput(null);
+        }
+    }
+
+    /**
+     * 按照通道顺序把像素写入dst，dst的剩余空间不足时只写入能容纳的部分
+     *
+     * @return dst的剩余空间是否不足
+     */
+    private static boolean copyPixels(Raster raster, ByteBuffer dst) {
+        if (!(raster.getDataBuffer() instanceof DataBufferByte) ||
+                !(raster.getSampleModel() instanceof PixelInterleavedSampleModel)) {
+            throw new IllegalArgumentException("不支持的JPEG解码结果：" + raster.getSampleModel());
+        }
+
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        int bands = bandOffsets.length;
+        int pixelStride = sampleModel.getPixelStride();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+
+        long total = (long) width * height * bands;
+        int length = (int) Math.min(total, dst.remaining());
+
+        boolean isSequential = pixelStride == bands && scanlineStride == width * bands;
+        for (int i = 0; i < bands && isSequential; i++) {
+            isSequential = bandOffsets[i] == i;
+        }
+
+        int position = dst.position();
+        if (isSequential) {
+            dst.put(position, data, 0, length);
+        } else {
+            // 例如TYPE_3BYTE_BGR，按照RGB的顺序重新排列
+            int written = 0;
+            for (int y = 0; y < height && written < length; y++) {
+                int rowStart = y * scanlineStride;
+                for (int x = 0; x < width && written < length; x++) {
+                    int pixel = rowStart + x * pixelStride;
+                    for (int band = 0; band < bands && written < length; band++) {
+                        dst.put(position + written++, data[pixel + bandOffsets[band]]);
+                    }
+                }
+            }
+        }
+        dst.position(position + length);
+
+        return length < total;
+    }
+}
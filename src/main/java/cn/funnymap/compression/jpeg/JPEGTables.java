@@ -0,0 +1,184 @@
+package cn.funnymap.compression.jpeg;
+
+import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
+import javax.imageio.plugins.jpeg.JPEGQTable;
+import java.util.Arrays;
+
+/**
+ * JPEGTables中的量化表和哈夫曼表
+ *
+ * <p>
+ * 新式JPEG压缩的TIFF文件把各个条带或瓦片共用的DQT、DHT段存放在JPEGTables（TAG：347）中，
+ * 条带或瓦片中只保存省略了这些表的JPEG数据。本类只解析一次JPEGTables，解码时通过
+ * {@link javax.imageio.plugins.jpeg.JPEGImageReadParam#setDecodeTables}直接提供给解码器。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/25 09:40
+ */
+public final class JPEGTables {
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_DQT = 0xDB;
+    private static final int MARKER_DHT = 0xC4;
+
+    // Z字形顺序中第i个系数在自然顺序中的下标
+    private static final int[] NATURAL_ORDER = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private final JPEGQTable[] qTables;
+    private final JPEGHuffmanTable[] dcTables;
+    private final JPEGHuffmanTable[] acTables;
+
+    private JPEGTables(JPEGQTable[] qTables, JPEGHuffmanTable[] dcTables, JPEGHuffmanTable[] acTables) {
+        this.qTables = qTables;
+        this.dcTables = dcTables;
+        this.acTables = acTables;
+    }
+
+    /**
+     * 解析JPEGTables，缺少的表使用JPEG标准中的示例表填充
+     *
+     * @param bytes JPEGTables的值，以SOI开始、EOI结束
+     * @return 解析结果
+     */
+    public static JPEGTables parse(byte[] bytes) {
+        if (bytes.length < 4 || (bytes[0] & 0xFF) != 0xFF || (bytes[1] & 0xFF) != MARKER_SOI) {
+            throw new IllegalArgumentException("无效的JPEGTables，缺少SOI标记");
+        }
+
+        JPEGQTable[] qTables = new JPEGQTable[4];
+        JPEGHuffmanTable[] dcTables = new JPEGHuffmanTable[4];
+        JPEGHuffmanTable[] acTables = new JPEGHuffmanTable[4];
+
+        int position = 2;
+        while (position + 4 <= bytes.length) {
+            if ((bytes[position] & 0xFF) != 0xFF) {
+                throw new IllegalArgumentException("无效的JPEGTables，位置" + position + "处不是标记");
+            }
+            int marker = bytes[position + 1] & 0xFF;
+            if (marker == MARKER_EOI) {
+                break;
+            }
+            if (marker == 0xFF) {
+                // 填充字节
+                position++;
+                continue;
+            }
+
+            int length = ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
+            int start = position + 4;
+            int end = position + 2 + length;
+            if (length < 2 || end > bytes.length) {
+                throw new IllegalArgumentException("无效的JPEGTables，段的长度超出范围：" + length);
+            }
+
+            if (marker == MARKER_DQT) {
+                parseQTables(bytes, start, end, qTables);
+            } else if (marker == MARKER_DHT) {
+                parseHuffmanTables(bytes, start, end, dcTables, acTables);
+            }
+            position = end;
+        }
+
+        return new JPEGTables(fill(qTables, JPEGQTable.K1Luminance, JPEGQTable.K2Chrominance),
+                fill(dcTables, JPEGHuffmanTable.StdDCLuminance, JPEGHuffmanTable.StdDCChrominance),
+                fill(acTables, JPEGHuffmanTable.StdACLuminance, JPEGHuffmanTable.StdACChrominance));
+    }
+
+    public JPEGQTable[] getQTables() {
+        return this.qTables.clone();
+    }
+
+    public JPEGHuffmanTable[] getDCHuffmanTables() {
+        return this.dcTables.clone();
+    }
+
+    public JPEGHuffmanTable[] getACHuffmanTables() {
+        return this.acTables.clone();
+    }
+
+    private static void parseQTables(byte[] bytes, int start, int end, JPEGQTable[] qTables) {
+        int position = start;
+        while (position < end) {
+            int precision = (bytes[position] & 0xFF) >> 4;
+            int id = checkId(bytes[position] & 0x0F);
+            position++;
+
+            int[] table = new int[64];
+            for (int i = 0; i < 64; i++) {
+                if (precision == 0) {
+                    table[NATURAL_ORDER[i]] = bytes[position++] & 0xFF;
+                } else {
+                    table[NATURAL_ORDER[i]] = ((bytes[position] & 0xFF) << 8) | (bytes[position + 1] & 0xFF);
+                    position += 2;
+                }
+            }
+            qTables[id] = new JPEGQTable(table);
+        }
+    }
+
+    private static void parseHuffmanTables(byte[] bytes, int start, int end, JPEGHuffmanTable[] dcTables,
+                                           JPEGHuffmanTable[] acTables) {
+        int position = start;
+        while (position < end) {
+            int tableClass = (bytes[position] & 0xFF) >> 4;
+            int id = checkId(bytes[position] & 0x0F);
+            position++;
+
+            short[] lengths = new short[16];
+            int valueCount = 0;
+            for (int i = 0; i < 16; i++) {
+                lengths[i] = (short) (bytes[position++] & 0xFF);
+                valueCount += lengths[i];
+            }
+            short[] values = new short[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                values[i] = (short) (bytes[position++] & 0xFF);
+            }
+
+            JPEGHuffmanTable huffmanTable = new JPEGHuffmanTable(lengths, values);
+            if (tableClass == 0) {
+                dcTables[id] = huffmanTable;
+            } else {
+                acTables[id] = huffmanTable;
+            }
+        }
+    }
+
+    private static int checkId(int id) {
+        if (id > 3) {
+            throw new IllegalArgumentException("无效的JPEG表编号：" + id);
+        }
+        return id;
+    }
+
+    /**
+     * 去掉末尾未定义的表，中间缺少的表使用示例表填充
+     */
+    private static <T> T[] fill(T[] tables, T luminance, T chrominance) {
+        int count = 0;
+        for (int i = 0; i < tables.length; i++) {
+            if (tables[i] != null) {
+                count = i + 1;
+            }
+        }
+        if (count == 0) {
+            tables[0] = luminance;
+            tables[1] = chrominance;
+            count = 2;
+        }
+
+        T[] result = Arrays.copyOf(tables, count);
+        for (int i = 0; i < count; i++) {
+            if (result[i] == null) {
+                result[i] = i == 0 ? luminance : chrominance;
+            }
+        }
+        return result;
+    }
+}
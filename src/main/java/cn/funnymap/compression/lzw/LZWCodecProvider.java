@@ -0,0 +1,37 @@
+package cn.funnymap.compression.lzw;
+
+import cn.funnymap.compression.CodecProvider;
+import cn.funnymap.compression.Decoder;
+import cn.funnymap.compression.Encoder;
+import cn.funnymap.model.tiff.TIFF;
+
+/**
+ * Compression为5（LZW）的提供者，编解码器的字典较大，按线程复用
+ *
+ * @author jiao xn
+ * @date 2024/1/22 10:10
+ */
+public class LZWCodecProvider implements CodecProvider {
+    private static final ThreadLocal<LZWDecoder> DECODERS = ThreadLocal.withInitial(LZWDecoder::new);
+    private static final ThreadLocal<LZWEncoder> ENCODERS = ThreadLocal.withInitial(LZWEncoder::new);
+
+    @Override
+    public int[] getCompressions() {
+        return new int[]{TIFF.Compression.LZW};
+    }
+
+    @Override
+    public Decoder getDecoder() {
+        return DECODERS.get();
+    }
+
+    @Override
+    public boolean canEncode() {
+        return true;
+    }
+
+    @Override
+    public Encoder getEncoder() {
+        return ENCODERS.get();
+    }
+}
@@ -1,15 +1,26 @@
 package cn.funnymap.compression.lzw;
 
+import cn.funnymap.compression.CodecResult;
 import cn.funnymap.compression.Decoder;
 import org.springframework.util.FastByteArrayOutputStream;
 
-import java.io.*;
-import java.util.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * LZW 解码器
  *
  * <p>
+ * 字典使用前缀、后缀、长度三张定长的表表示，每个编码只占用一个表项，CLEAR_CODE时只需重置下一个编码的值，
+ * 解码过程中不创建任何对象。编码结果通过64位的位累加器读取，解码结果从后向前沿着前缀链直接写入目标Buffer。
+ * 字典最多包含4096个编码，字典已满时不再增加新的编码，直到遇到CLEAR_CODE。
+ * </p>
+ *
+ * <p>
  * 参考链接：
  * <p>
  * <a href="https://gingko.homeip.net/docs/file_formats/lzwgif.html#lbob">LZW compression used to encode/decode a GIF file</a>
@@ -36,177 +47,204 @@ public class LZWDecoder implements Decoder {
     private static final int CLEAR_CODE = 256;
     private static final int EOI_CODE = 257;
     private static final int MIN_BIT_SIZE = 9;
+    private static final int MAX_BIT_SIZE = 12;
+    private static final int MAX_TABLE_SIZE = 1 << MAX_BIT_SIZE;
+    // 输出流接口使用的窗口大小，不小于单个编码对应的最大字节数
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    // TIFF中的LZW提前一个编码增加位数（early change），GIF等格式不提前
+    private final int earlyChange;
+    // 字典：编码对应的前缀编码、最后一个字节、第一个字节以及长度
+    private final short[] prefixes = new short[MAX_TABLE_SIZE];
+    private final byte[] suffixes = new byte[MAX_TABLE_SIZE];
+    private final byte[] firstBytes = new byte[MAX_TABLE_SIZE];
+    private final int[] lengths = new int[MAX_TABLE_SIZE];
+
+    public LZWDecoder() {
+        this(true);
+    }
+    public LZWDecoder(boolean earlyChange) {
+        this.earlyChange = earlyChange ? 1 : 0;
+
+        for (int i = 0; i < 256; i++) {
+            this.prefixes[i] = -1;
+            this.suffixes[i] = (byte) i;
+            this.firstBytes[i] = (byte) i;
+            this.lengths[i] = 1;
+        }
+    }
 
-    // 初始化设置
-    // 以下配置在解码过程中会使用到
-    private int nextValidCode = EOI_CODE + 1;  // 字典中新增编码结果的值
-    private int bitsPerCode = MIN_BIT_SIZE;  // 表示每一个编码结果的Bit的长度，最小值为9，最大值为12
-    private int maxCode = this.maxValueOf(bitsPerCode);  // 当前Bit位数所能表示的最大值
-    private Map<Integer, List<Integer>> dictionary;  // 用于解码的字典表
-    // 以下配置在字节转编码结果时会使用到
-    private int bitsOfPreviousByte = 0;  // 前一个字节中需要放入当前编码的位的个数
-    private int remainValueOfPreviousByte;  // 前一个字节中需要放入当前编码的位对应的值
-
+    /**
+     * 解码全部数据，解码结果的大小未知，通过固定大小的窗口分段写入输出流，只解码一次
+     */
     public OutputStream decode(final InputStream inputStream) throws IOException {
-        try (FastByteArrayOutputStream byteArrayOutputStream = new FastByteArrayOutputStream()) {
-            // 初始化相关变量
-            this.initDictionary();
-            int previousCode = 0;
-
-            // 读取第1个编码结果，如果不是结束标识，则循环读取数据，直到遇到结束标识
-            int code = this.readLzwCode(inputStream);
-            while (code != EOI_CODE) {
-                if (code == CLEAR_CODE) {
-                    // 如果遇到CLEAR_CODE
-                    // 1. 重新初始化字典表及相关数据
-                    this.initDictionary();
-
-                    // 2. 读取后面的数据，直到遇到不是CLEAR_CODE和EOI_CODE的数据
-                    code = this.readLzwCode(inputStream);
-                    while (code == CLEAR_CODE) {
-                        code = this.readLzwCode(inputStream);
-                    }
-                    if (code == EOI_CODE) {
-                        break;
-                    }
+        ByteBuffer source = ByteBuffer.wrap(inputStream.readAllBytes());
 
-                    // 3. CLEAR_CODE后的第一个数据肯定在数据表中，直接写出
-                    List<Integer> value = this.dictionary.get(code);
-                    this.writeToOutput(value, byteArrayOutputStream);
-
-                    previousCode = code;
-                } else {
-                    // 如果在字典表中存在，则写出code对应的值，然后在字典表中按照<编码值：Ω+λ[0]>的方式增加新的值
-                    List<Integer> value = this.dictionary.get(code);
-                    if (value != null) {
-                        this.writeToOutput(value, byteArrayOutputStream);
-
-                        List<Integer> newValue = this.concat(this.dictionary.get(previousCode), value.get(0));
-                        this.addToDictionary(newValue);
-                        previousCode = code;
-                    } else {
-                        // 如果在字典表中不存在
-                        // 1. 创建新的值并写出
-                        List<Integer> previousValue = this.dictionary.get(previousCode);
-                        List<Integer> newValue = this.concat(previousValue, previousValue.get(0));
-                        this.writeToOutput(newValue, byteArrayOutputStream);
-
-                        // 2. 在字典表中增加新的编码
-                        this.addToDictionary(newValue);
-                        previousCode = code;
-                    }
-                }
+        FastByteArrayOutputStream byteArrayOutputStream = new FastByteArrayOutputStream(
+                Math.max(source.remaining() * 4, 1024));
+        this.decode(source, ByteBuffer.allocate(WINDOW_SIZE), byteArrayOutputStream);
 
-                code = this.readLzwCode(inputStream);
-            }
+        return byteArrayOutputStream;
+    }
 
-            return byteArrayOutputStream;
-        }
+    /**
+     * 将LZW编码数据解码到目标Buffer中
+     *
+     * <p>
+     * 从src的position开始读取，直到遇到EOI_CODE或者src中没有剩余数据。
+     * dst的剩余空间不足时，只写入能容纳的部分并结束解码，例如最后一个条带中超出图像范围的填充行。
+     * </p>
+     */
+    @Override
+    public CodecResult decode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        return this.decode(src, dst, null);
     }
 
     /**
-     * 初始化字典表及相关变量
+     * @param sink 不为null时dst作为窗口，剩余空间不足以写入下一个编码时，将窗口中的数据写入sink后从头复用
      */
-    private void initDictionary() {
-        this.dictionary = new HashMap<>();
-        for (int i = 0; i < 258; i++) {
-            this.dictionary.put(i, Collections.singletonList(i));
-        }
+    private CodecResult decode(ByteBuffer src, ByteBuffer dst, OutputStream sink) throws IOException {
+        final int srcStart = src.position();
+        final int srcLimit = src.limit();
+        final int dstStart = dst.position();
+        final int dstLimit = dst.limit();
+        byte[] dstArray = dst.hasArray() ? dst.array() : null;
+        int dstArrayOffset = dst.hasArray() ? dst.arrayOffset() : 0;
+
+        int srcPos = srcStart;
+        int dstPos = dstStart;
+        boolean overflow = false;
+        long flushed = 0L;
+        long bitBuffer = 0L;
+        int bitCount = 0;
+
+        int nextCode = EOI_CODE + 1;
+        int bitsPerCode = MIN_BIT_SIZE;
+        int previousCode = -1;
+
+        while (true) {
+            // 位累加器中的位数不足时，一次补充多个字节
+            if (bitCount < bitsPerCode) {
+                while (bitCount <= 56 && srcPos < srcLimit) {
+                    bitBuffer = (bitBuffer << 8) | (src.get(srcPos++) & 0xFF);
+                    bitCount += 8;
+                }
+                if (bitCount < bitsPerCode) {
+                    break;
+                }
+            }
+            bitCount -= bitsPerCode;
+            int code = (int) (bitBuffer >>> bitCount) & ((1 << bitsPerCode) - 1);
 
-        this.bitsPerCode = MIN_BIT_SIZE;
-        this.maxCode = this.maxValueOf(this.bitsPerCode);
-    }
+            if (code == EOI_CODE) {
+                break;
+            }
+            if (code == CLEAR_CODE) {
+                nextCode = EOI_CODE + 1;
+                bitsPerCode = MIN_BIT_SIZE;
+                previousCode = -1;
+                continue;
+            }
 
-    private void writeToOutput(List<Integer> value, FastByteArrayOutputStream byteArrayOutputStream) throws IOException {
-        for (Integer integer : value) {
-            byteArrayOutputStream.write(integer);
-        }
-    }
+            if (previousCode == -1) {
+                // CLEAR_CODE后的第一个编码肯定在字典中
+                if (code > 255) {
+                    throw new IllegalArgumentException("无效的LZW编码：" + code);
+                }
+            } else {
+                if (code > nextCode || (code == nextCode && nextCode == MAX_TABLE_SIZE)) {
+                    throw new IllegalArgumentException("无效的LZW编码：" + code);
+                }
 
-    private List<Integer> concat(List<Integer> integerList, Integer integer) {
-        List<Integer> newValue = new ArrayList<>(integerList);
-        newValue.add(integer);
+                // 在字典中增加Ω+λ[0]，编码不在字典中时（KwKwK），λ即为Ω+Ω[0]
+                if (nextCode < MAX_TABLE_SIZE) {
+                    this.prefixes[nextCode] = (short) previousCode;
+                    this.suffixes[nextCode] = code < nextCode ? this.firstBytes[code] : this.firstBytes[previousCode];
+                    this.firstBytes[nextCode] = this.firstBytes[previousCode];
+                    this.lengths[nextCode] = this.lengths[previousCode] + 1;
+                    nextCode++;
 
-        return newValue;
-    }
+                    if (nextCode + this.earlyChange >= (1 << bitsPerCode) && bitsPerCode < MAX_BIT_SIZE) {
+                        bitsPerCode++;
+                    }
+                }
+            }
+            previousCode = code;
+
+            if (sink != null && dstLimit - dstPos < this.lengths[code]) {
+                flushed += this.flush(dst, dstStart, dstPos, sink);
+                dstPos = dstStart;
+            }
+            int written = dstArray != null ?
+                    this.writeString(code, dstArray, dstArrayOffset + dstPos, dstArrayOffset + dstLimit) :
+                    this.writeString(code, dst, dstPos, dstLimit);
+            dstPos += written;
+            if (written < this.lengths[code]) {
+                overflow = true;
+                break;
+            }
+        }
 
-    private void addToDictionary(List<Integer> integerList) {
-        this.dictionary.put(this.nextValidCode, integerList);
-        this.nextValidCode += 1;
+        // 位累加器中尚未使用的完整字节视为未读取
+        src.position(srcPos - bitCount / 8);
+        if (sink != null) {
+            flushed += this.flush(dst, dstStart, dstPos, sink);
+            dstPos = dstStart;
+        }
+        dst.position(dstPos);
 
-        this.increaseBitsPerCodeOrRestIfNeeded();
+        return new CodecResult(src.position() - srcStart, (int) Math.min(flushed + dstPos - dstStart,
+                Integer.MAX_VALUE), overflow);
     }
 
-    private void increaseBitsPerCodeOrRestIfNeeded() {
-        if (this.nextValidCode >= this.maxCode) {
-            this.bitsPerCode += 1;
-            this.maxCode = this.maxValueOf(bitsPerCode);
+    private int flush(ByteBuffer window, int from, int to, OutputStream sink) throws IOException {
+        if (window.hasArray()) {
+            sink.write(window.array(), window.arrayOffset() + from, to - from);
+        } else {
+            byte[] bytes = new byte[to - from];
+            window.get(from, bytes);
+            sink.write(bytes);
         }
+
+        return to - from;
     }
 
     /**
-     * 将输入流依次转为LZW编码结果
+     * 沿着前缀链从后向前写入编码对应的字节，超出limit的部分被丢弃
      *
-     * @param inputStream 输入流
-     * @return LZW编码结果
-     * @throws IOException 输入流读取数据时的异常
+     * @return 写入的字节数
      */
-    private int readLzwCode(final InputStream inputStream) throws IOException {
-        int read = inputStream.read();
+    private int writeString(int code, byte[] dst, int position, int limit) {
+        int length = this.lengths[code];
+        int end = position + length;
 
-        // 如果当前输入流没有可读数据，直接返回EOI_CODE
-        if (read < 0) {
-            return EOI_CODE;
+        // 跳过超出limit的部分
+        for (int i = end; i > limit; i--) {
+            code = this.prefixes[code];
         }
-
-        // 将上一个字节遗留的结果左移8位并且与当前的值合并
-        int var1 = (this.remainValueOfPreviousByte << 8) | read;
-        // 已经读取的字节位数：上一个字节遗留的位数 + 当前字节的位数8
-        int var2 = this.bitsOfPreviousByte + 8;
-
-        // 如果已经读取的字节位数仍然小于编码结果对应的位数，则需要读取下一个值
-        // bitsPerCode最大值为12，下面的条件做多执行1次，所以不需要while循环
-        if (var2 < this.bitsPerCode) {
-            read = inputStream.read();
-            if (read < 0) {
-                return EOI_CODE;
-            }
-
-            // 已经读取的值左移8位并且与新读取的值合并
-            var1 = (var1 << 8) | read;
-            // 已经读取的字节位数+8
-            var2 += 8;
+        int last = Math.min(end, limit);
+        for (int i = last - 1; i >= position; i--) {
+            dst[i] = this.suffixes[code];
+            code = this.prefixes[code];
         }
 
-        // 读取的值需要排除的位的个数
-        int var3 = var2 - this.bitsPerCode;
-        int code = (var1 >> var3) & this.bitmaskFor(this.bitsPerCode);
-
-        // 通过掩码获取已读取的字节中需要放到下一次获取编码结果的值
-        this.remainValueOfPreviousByte = var1 & this.bitmaskFor(var3);
-        this.bitsOfPreviousByte = var3;
-
-        return code;
+        return Math.max(last - position, 0);
     }
 
-    /**
-     * 获取指定值对应的掩码
-     *
-     * @param value 具体的值
-     * @return 掩码
-     */
-    private int bitmaskFor(int value) {
-        return this.maxValueOf(value);
-    }
+    private int writeString(int code, ByteBuffer dst, int position, int limit) {
+        int length = this.lengths[code];
+        int end = position + length;
 
-    /**
-     * 返回指定Bit位数的最大值
-     *
-     * @param bitsLength bit的位数
-     * @return 当前Bit位数能表达的最大值
-     */
-    private int maxValueOf(int bitsLength) {
-        return (1 << bitsLength) - 1;
+        for (int i = end; i > limit; i--) {
+            code = this.prefixes[code];
+        }
+        int last = Math.min(end, limit);
+        for (int i = last - 1; i >= position; i--) {
+            dst.put(i, this.suffixes[code]);
+            code = this.prefixes[code];
+        }
+
+        return Math.max(last - position, 0);
     }
 
     public static void main(String[] args) throws IOException {
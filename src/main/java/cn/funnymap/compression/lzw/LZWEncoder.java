@@ -1,6 +1,7 @@
 package cn.funnymap.compression.lzw;
 
-import cn.funnymap.compression.Encoder;
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.ChunkedEncoder;
 import org.springframework.util.FastByteArrayOutputStream;
 
 import java.io.IOException;
@@ -33,92 +34,195 @@ import java.util.Arrays;
  * @author jiao xn
  * @date 2024/1/4 17:26
  */
-public class LZWEncoder implements Encoder {
+public class LZWEncoder implements ChunkedEncoder {
     // 常量初始化
     private static final int CLEAR_CODE = 256;
     private static final int EOI_CODE = 257;
     private static final int MIN_BIT_SIZE = 9;
     private static final int MAX_BIT_SIZE = 12;
-    private static final int MAX_TABLE_SIZE = 1 << MAX_BIT_SIZE;
+    // 散列表的大小，字典最多4094个编码，装载因子不超过0.5
+    private static final int HASH_BIT_SIZE = 13;
+    private static final int HASH_MASK = (1 << HASH_BIT_SIZE) - 1;
+    // 散列表的键：前缀编码（12位）<< 8 | 后缀（8位），高12位保存字典的版本
+    private static final int KEY_BIT_SIZE = 20;
+    private static final int MAX_GENERATION = (1 << (32 - KEY_BIT_SIZE)) - 1;
+    // 输出缓冲区的大小，写满后批量写入目标
+    private static final int CHUNK_SIZE = 16 * 1024;
 
     // 初始化设置
     private final OutputStream codeStream;
-    // 以下配置在编码过程中会使用到
-    private final short[] children = new short[MAX_TABLE_SIZE];  // 对应字典中存在的输入数据对应的键值
-    private final short[] suffixes = new short[MAX_TABLE_SIZE];  // Ω+λ的最后一个数值
-    private final short[] siblings = new short[MAX_TABLE_SIZE];  // Ω+λ的兄弟
+    // 使用Buffer接口编码时的目标Buffer
+    private ByteBuffer codeBuffer = null;
+    private boolean overflow = false;
+    // 分段编码时的状态：尚未输出的编码、已传入的字节数、dst的起始位置
+    private int pendingCode = -1;
+    private int consumed = 0;
+    private int dstStart = 0;
+    // 字典：开放寻址的散列表，键中带有版本号，重置字典时只需要增加版本号，不需要清空数组
+    private final int[] hashKeys = new int[1 << HASH_BIT_SIZE];
+    private final short[] hashCodes = new short[1 << HASH_BIT_SIZE];
+    private int generation = 0;
     private int bitsPerCode = MIN_BIT_SIZE;  // 表示每一个编码结果的Bit的长度，最小值为9，最大值为12
     private int nextValidCode = EOI_CODE + 1;  // 字典中新增编码结果的值
     private int maxCode = this.maxValueOf(bitsPerCode);  // 当前Bit位数所能表示的最大值
-    // 以下配置在编码结果转字节时会使用到
-    private int bitPosOfNextCode = 0;  // 下一个编码结果中开始写入到字节的位的位置
-    private int bitsFromPreviousCode = 0;  // 上一个编码结果中需要写入到字节的内容
+    // 64位的累加器，低bitCount位是尚未输出的编码
+    private long bitBuffer = 0L;
+    private int bitCount = 0;
+    // 输出缓冲区
+    private final byte[] chunk = new byte[CHUNK_SIZE + 4];
+    private int chunkPosition = 0;
+    // 直接内存中的输入数据分批复制到该数组中编码，第一次使用时创建
+    private byte[] inputChunk = null;
 
+    /**
+     * 创建只使用{@link #encode(ByteBuffer, ByteBuffer)}的编码器
+     */
+    public LZWEncoder() {
+        this(null);
+    }
     public LZWEncoder(final OutputStream codeStream) {
         this.codeStream = codeStream;
     }
 
+    @Override
+    public CodecResult encode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int srcStart = src.position();
+        int dstStart = dst.position();
+
+        this.codeBuffer = dst;
+        this.overflow = false;
+        try {
+            this.encode(src);
+        } finally {
+            this.codeBuffer = null;
+        }
+
+        return new CodecResult(src.position() - srcStart, dst.position() - dstStart, this.overflow);
+    }
+
     @Override
     public void encode(final ByteBuffer byteBuffer) throws IOException {
+        if (this.codeBuffer == null && this.codeStream == null) {
+            throw new IllegalStateException("未指定编码结果的输出流，请使用encode(ByteBuffer, ByteBuffer)");
+        }
         if (!byteBuffer.hasRemaining()) return ;
 
-        // 写入CLEAR_CODE
-        this.writeCode(CLEAR_CODE);
+        this.start();
 
         // 编码并写入输入数据
-        this.encodeBytes(byteBuffer);
-
-        // 写入EOI_CODE
-        this.writeCode(EOI_CODE);
+        if (byteBuffer.hasArray()) {
+            this.update(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+            byteBuffer.position(byteBuffer.limit());
+        } else {
+            if (this.inputChunk == null) {
+                this.inputChunk = new byte[CHUNK_SIZE];
+            }
 
-        // 如果最后剩余部分编码数据，通过写入0填充其他的位
-        if (this.bitPosOfNextCode > 0) {
-            this.writeCode(0);
+            while (byteBuffer.hasRemaining()) {
+                int length = Math.min(byteBuffer.remaining(), this.inputChunk.length);
+                byteBuffer.get(this.inputChunk, 0, length);
+                this.update(this.inputChunk, 0, length);
+            }
         }
+
+        this.end();
     }
 
-    @SuppressWarnings("java:S3776")
-    private void encodeBytes(final ByteBuffer byteBuffer) throws IOException {
-        // 编码过程
-        int parent = this.byte2int(byteBuffer.get());
-        while (byteBuffer.hasRemaining()) {
-            int current = this.byte2int(byteBuffer.get());
-            int child = this.children[parent];
+    @Override
+    public void begin(ByteBuffer dst) throws IOException {
+        this.codeBuffer = dst;
+        this.overflow = false;
+        this.dstStart = dst.position();
+        this.consumed = 0;
 
-            if (child > 0) {
-                if (this.suffixes[child] == current) {
-                    parent = child;
-                } else {
-                    int sibling = child;
+        this.start();
+    }
 
-                    while (true) {
-                        if (this.siblings[sibling] > 0) {
-                            sibling = this.siblings[sibling];
-                            if (this.suffixes[sibling] == current) {
-                                parent = sibling;
+    @Override
+    public void update(byte[] bytes, int offset, int length) throws IOException {
+        if (length <= 0) return ;
 
-                                break;
-                            }
-                        } else {
-                            this.siblings[sibling] = (short) this.nextValidCode;
-                            this.suffixes[this.nextValidCode] = (short) current;
+        this.pendingCode = this.encodeBytes(bytes, offset, offset + length, this.pendingCode);
+        this.consumed += length;
+    }
 
-                            this.writeCode(parent);
+    @Override
+    public CodecResult finish() throws IOException {
+        ByteBuffer dst = this.codeBuffer;
+        try {
+            this.end();
+        } finally {
+            this.codeBuffer = null;
+        }
 
-                            parent = current;
-                            this.nextValidCode++;
+        return new CodecResult(this.consumed, dst.position() - this.dstStart, this.overflow);
+    }
 
-                            this.increaseBitsPerCodeOrRestIfNeeded();
+    private void start() throws IOException {
+        // 每次编码都从新的字典开始，同一个编码器可以依次编码多个条带
+        this.initialize();
+        this.bitBuffer = 0L;
+        this.bitCount = 0;
+        this.chunkPosition = 0;
+        this.pendingCode = -1;
 
-                            break;
-                        }
-                    }
+        // 写入CLEAR_CODE
+        this.writeCode(CLEAR_CODE);
+    }
+
+    private void end() throws IOException {
+        // 对于最后一个数据
+        if (this.pendingCode >= 0) {
+            this.writeCode(this.pendingCode);
+        }
+
+        // 写入EOI_CODE
+        this.writeCode(EOI_CODE);
+
+        // 最后剩余的位通过0补齐为一个字节
+        this.flushBits();
+        this.flushChunk();
+    }
+
+    /**
+     * 编码一段输入数据
+     *
+     * @param bytes 输入数据
+     * @param from 起始位置
+     * @param to 结束位置（不包含）
+     * @param parent 上一段数据结束时尚未输出的编码，第一段数据传入-1
+     * @return 本段数据结束时尚未输出的编码
+     * @throws IOException 写入编码结果时抛出的异常
+     */
+    private int encodeBytes(final byte[] bytes, int from, int to, int parent) throws IOException {
+        int index = from;
+        if (parent < 0) {
+            parent = bytes[index++] & 0xFF;
+        }
+
+        for (; index < to; index++) {
+            int current = bytes[index] & 0xFF;
+            int key = (this.generation << KEY_BIT_SIZE) | (parent << 8) | current;
+
+            // 线性探测，遇到其他版本的键即为空位
+            int slot = hashOf(key);
+            int code = -1;
+            int entry;
+            while ((entry = this.hashKeys[slot]) >>> KEY_BIT_SIZE == this.generation) {
+                if (entry == key) {
+                    code = this.hashCodes[slot];
+                    break;
                 }
+                slot = (slot + 1) & HASH_MASK;
+            }
+
+            if (code >= 0) {
+                parent = code;
             } else {
-                this.children[parent] = (short) this.nextValidCode;
-                this.suffixes[this.nextValidCode] = (short) current;
+                this.hashKeys[slot] = key;
+                this.hashCodes[slot] = (short) this.nextValidCode;
 
-                writeCode(parent);
+                this.writeCode(parent);
 
                 parent = current;
                 this.nextValidCode++;
@@ -127,33 +231,35 @@ public class LZWEncoder implements Encoder {
             }
         }
 
-        // 对于最后一个数据
-        this.writeCode(parent);
+        return parent;
     }
 
-    private int byte2int(byte byteValue) {
-        return byteValue & 0xff;
+    private static int hashOf(int key) {
+        return ((key & ((1 << KEY_BIT_SIZE) - 1)) * 0x9E3779B1) >>> (32 - HASH_BIT_SIZE);
     }
 
     private void increaseBitsPerCodeOrRestIfNeeded() throws IOException {
-        if (this.nextValidCode >= this.maxCode) {
-            if (this.bitsPerCode == MAX_BIT_SIZE) {
-                // 输出流中添加 CLEAR_CODE 标志
-                this.writeCode(CLEAR_CODE);
-
-                // 重置 TABLE
-                this.initialize();
-            } else {
-                this.bitsPerCode += 1;
-                this.maxCode = this.maxValueOf(bitsPerCode);
-            }
+        // 与libtiff保持一致：字典中的编码达到4094时写入CLEAR_CODE；下一个编码超过当前位数的最大值时增加位数，
+        // 解码器会提前一个编码增加位数（early change），因此双方切换位数的位置相同
+        if (this.bitsPerCode == MAX_BIT_SIZE && this.nextValidCode >= this.maxCode - 1) {
+            // 输出流中添加 CLEAR_CODE 标志
+            this.writeCode(CLEAR_CODE);
+
+            // 重置 TABLE
+            this.initialize();
+        } else if (this.nextValidCode > this.maxCode) {
+            this.bitsPerCode += 1;
+            this.maxCode = this.maxValueOf(bitsPerCode);
         }
     }
 
     private void initialize() {
-        Arrays.fill(this.suffixes, (short) 0);
-        Arrays.fill(this.children, (short) 0);
-        Arrays.fill(this.siblings, (short) 0);
+        // 版本号用尽时才清空散列表
+        if (this.generation == MAX_GENERATION) {
+            Arrays.fill(this.hashKeys, 0);
+            this.generation = 0;
+        }
+        this.generation++;
 
         this.bitsPerCode = MIN_BIT_SIZE;
         this.maxCode = this.maxValueOf(this.bitsPerCode);
@@ -161,40 +267,60 @@ public class LZWEncoder implements Encoder {
     }
 
     /**
-     * 将编码结果写入输出流
+     * 将编码结果写入累加器，累加器中满32位时写入输出缓冲区
      *
      * @param code 编码结果
-     * @throws IOException 输出流写入编码结果时抛出的异常
+     * @throws IOException 写入编码结果时抛出的异常
      */
     private void writeCode(final int code) throws IOException {
-        // 中间变量，将上一个编码结果中遗留的位和当前值合并
-        int var1 = (this.bitsFromPreviousCode << this.bitsPerCode) | (code & this.maxCode);
-        // 中间变量，上一个编码结果遗留下来的位的长度和当前编码结果对应的位的长度的总和
-        int var2 = this.bitPosOfNextCode + this.bitsPerCode;
-
-        while (var2 >= 8) {
-            // 如果合并后的位的长度大于8，则通过右移操作裁剪前8位数据
-            // 0xff的作用主要有2个：一个是将负数转为整数，另一个是对于var2是8的倍数时，最后一次循坏时，截取最后8位数据
-            int var3 = (var1 >> (var2 - 8)) & 0xff;
-            // 输出流写入int时，会自动转为byte
-            this.codeStream.write(var3);
-
-            var2 -= 8;
+        this.bitBuffer = (this.bitBuffer << this.bitsPerCode) | code;
+        this.bitCount += this.bitsPerCode;
+
+        if (this.bitCount >= 32) {
+            this.bitCount -= 32;
+            int value = (int) (this.bitBuffer >>> this.bitCount);
+            this.chunk[this.chunkPosition] = (byte) (value >>> 24);
+            this.chunk[this.chunkPosition + 1] = (byte) (value >>> 16);
+            this.chunk[this.chunkPosition + 2] = (byte) (value >>> 8);
+            this.chunk[this.chunkPosition + 3] = (byte) value;
+            this.chunkPosition += 4;
+
+            if (this.chunkPosition >= CHUNK_SIZE) {
+                this.flushChunk();
+            }
         }
+    }
 
-        // 更新bitPosOfNextCode和bitsFromPreviousCode
-        this.bitPosOfNextCode = var2;
-        this.bitsFromPreviousCode = var1 & this.bitmaskFor(this.bitPosOfNextCode);
+    /**
+     * 将累加器中剩余的位写入输出缓冲区，不足一个字节的部分使用0补齐
+     */
+    private void flushBits() {
+        while (this.bitCount >= 8) {
+            this.bitCount -= 8;
+            this.chunk[this.chunkPosition++] = (byte) (this.bitBuffer >>> this.bitCount);
+        }
+        if (this.bitCount > 0) {
+            this.chunk[this.chunkPosition++] = (byte) (this.bitBuffer << (8 - this.bitCount));
+            this.bitCount = 0;
+        }
     }
 
     /**
-     * 获取指定值对应的掩码
-     *
-     * @param value 具体的值
-     * @return 掩码
+     * 将输出缓冲区中的数据批量写入目标，目标Buffer的剩余空间不足时只写入能容纳的部分
      */
-    private int bitmaskFor(int value) {
-        return this.maxValueOf(value);
+    private void flushChunk() throws IOException {
+        if (this.chunkPosition == 0) {
+            return;
+        }
+
+        if (this.codeBuffer == null) {
+            this.codeStream.write(this.chunk, 0, this.chunkPosition);
+        } else {
+            int length = Math.min(this.chunkPosition, this.codeBuffer.remaining());
+            this.codeBuffer.put(this.chunk, 0, length);
+            this.overflow |= length < this.chunkPosition;
+        }
+        this.chunkPosition = 0;
     }
 
     /**
@@ -217,9 +343,8 @@ public class LZWEncoder implements Encoder {
         for (int value : exampleValues) {
             lzwEncoder.writeCode(value);
         }
-        if (lzwEncoder.bitPosOfNextCode != 0) {
-            lzwEncoder.writeCode(0);
-        }
+        lzwEncoder.flushBits();
+        lzwEncoder.flushChunk();
         System.out.println(Arrays.toString(outputStream.toByteArray()));
 
         // 2. encode方法测试
@@ -0,0 +1,41 @@
+package cn.funnymap.compression.none;
+
+import cn.funnymap.compression.CodecProvider;
+import cn.funnymap.compression.Decoder;
+import cn.funnymap.compression.Encoder;
+import cn.funnymap.model.tiff.TIFF;
+
+/**
+ * Compression为1（不压缩）的提供者
+ *
+ * @author jiao xn
+ * @date 2024/1/22 10:05
+ */
+public class NoneCodecProvider implements CodecProvider {
+    private static final PassthroughCodec CODEC = new PassthroughCodec();
+
+    @Override
+    public int[] getCompressions() {
+        return new int[]{TIFF.Compression.NONE};
+    }
+
+    @Override
+    public Decoder getDecoder() {
+        return CODEC;
+    }
+
+    @Override
+    public boolean canEncode() {
+        return true;
+    }
+
+    @Override
+    public Encoder getEncoder() {
+        return CODEC;
+    }
+
+    @Override
+    public boolean isPassthrough() {
+        return true;
+    }
+}
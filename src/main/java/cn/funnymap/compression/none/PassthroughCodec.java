@@ -0,0 +1,68 @@
+package cn.funnymap.compression.none;
+
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.Decoder;
+import cn.funnymap.compression.Encoder;
+import org.springframework.util.FastByteArrayOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 未压缩数据的编解码器，只复制数据
+ *
+ * @author jiao xn
+ * @date 2024/1/22 09:50
+ */
+public class PassthroughCodec implements Decoder, Encoder {
+    private final OutputStream codeStream;
+
+    public PassthroughCodec() {
+        this(null);
+    }
+    public PassthroughCodec(OutputStream codeStream) {
+        this.codeStream = codeStream;
+    }
+
+    @Override
+    public OutputStream decode(InputStream inputStream) throws IOException {
+        FastByteArrayOutputStream byteArrayOutputStream = new FastByteArrayOutputStream();
+        byteArrayOutputStream.write(inputStream.readAllBytes());
+
+        return byteArrayOutputStream;
+    }
+
+    @Override
+    public CodecResult decode(ByteBuffer src, ByteBuffer dst) {
+        return copy(src, dst);
+    }
+
+    @Override
+    public void encode(ByteBuffer byteBuffer) throws IOException {
+        if (this.codeStream == null) {
+            throw new IllegalStateException("未指定编码结果的输出流，请使用encode(ByteBuffer, ByteBuffer)");
+        }
+
+        while (byteBuffer.hasRemaining()) {
+            this.codeStream.write(byteBuffer.get());
+        }
+    }
+
+    @Override
+    public CodecResult encode(ByteBuffer src, ByteBuffer dst) {
+        return copy(src, dst);
+    }
+
+    private static CodecResult copy(ByteBuffer src, ByteBuffer dst) {
+        int length = Math.min(src.remaining(), dst.remaining());
+        boolean overflow = length < src.remaining();
+
+        dst.put(dst.position(), src, src.position(), length);
+        src.position(src.position() + length);
+        dst.position(dst.position() + length);
+
+        return new CodecResult(length, length, overflow);
+    }
+}
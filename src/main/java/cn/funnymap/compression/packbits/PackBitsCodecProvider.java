@@ -0,0 +1,48 @@
+package cn.funnymap.compression.packbits;
+
+import cn.funnymap.compression.CodecProvider;
+import cn.funnymap.compression.Decoder;
+import cn.funnymap.compression.Encoder;
+import cn.funnymap.model.tiff.TIFF;
+
+/**
+ * Compression为32773（PackBits）的提供者
+ *
+ * @author jiao xn
+ * @date 2024/1/24 10:40
+ */
+public class PackBitsCodecProvider implements CodecProvider {
+    private static final ThreadLocal<PackBitsDecoder> DECODERS = ThreadLocal.withInitial(PackBitsDecoder::new);
+    private static final PackBitsEncoder ENCODER = new PackBitsEncoder();
+
+    @Override
+    public int[] getCompressions() {
+        return new int[]{TIFF.Compression.PACKBITS};
+    }
+
+    @Override
+    public Decoder getDecoder() {
+        return DECODERS.get();
+    }
+
+    /**
+     * 整个数据作为一行编码，写入TIFF文件时请使用{@link #getEncoder(int)}
+     */
+    @Override
+    public boolean canEncode() {
+        return true;
+    }
+
+    @Override
+    public Encoder getEncoder() {
+        return ENCODER;
+    }
+
+    /**
+     * 按照TIFF标准，条带或瓦片中的各行独立编码
+     */
+    @Override
+    public Encoder getEncoder(int rowByteSize) {
+        return new PackBitsEncoder(rowByteSize);
+    }
+}
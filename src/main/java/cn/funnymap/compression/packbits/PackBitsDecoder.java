@@ -0,0 +1,154 @@
+package cn.funnymap.compression.packbits;
+
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.Decoder;
+import org.springframework.util.FastByteArrayOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * PackBits 解码器
+ *
+ * <p>
+ * 每个游程以一个有符号的头字节开始：0~127表示随后的n+1个字节按原样复制，-1~-127表示随后的1个字节重复-n+1次，
+ * -128不表示任何数据。原样复制使用Buffer的批量复制，重复的字节使用{@link Arrays#fill(byte[], int, int, byte)}填充。
+ * </p>
+ *
+ * <p>
+ * {@link #decodeStreaming(ByteBuffer, ByteBuffer)}在源Buffer或目标Buffer耗尽时记录尚未完成的游程，
+ * 下一次调用时继续，因此编码数据可以分多次读取，解码结果也可以分多次写出；{@link #reset()}后开始新的数据流。
+ * 实例不是线程安全的。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/24 09:30
+ */
+public class PackBitsDecoder implements Decoder {
+    // 尚未完成的原样复制游程中剩余的字节数
+    private int pendingLiteral = 0;
+    // 尚未完成的重复游程中剩余的字节数，以及重复的字节，-1表示重复的字节尚未读取
+    private int pendingRepeat = 0;
+    private int repeatValue = -1;
+
+    @Override
+    public OutputStream decode(InputStream inputStream) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(inputStream.readAllBytes());
+
+        // 每个字节最多解码为128个字节
+        FastByteArrayOutputStream byteArrayOutputStream = new FastByteArrayOutputStream();
+        ByteBuffer target = ByteBuffer.allocate(8192);
+        this.reset();
+        do {
+            target.clear();
+            this.decodeStreaming(source, target);
+            byteArrayOutputStream.write(target.array(), 0, target.position());
+        } while (target.position() > 0);
+
+        return byteArrayOutputStream;
+    }
+
+    /**
+     * 从新的数据流开始解码，直到源Buffer中没有剩余数据或者目标Buffer已满
+     */
+    @Override
+    public CodecResult decode(ByteBuffer src, ByteBuffer dst) {
+        this.reset();
+        CodecResult codecResult = this.decodeStreaming(src, dst);
+
+        boolean overflow = codecResult.isOverflow() || (!dst.hasRemaining() && src.hasRemaining());
+        return new CodecResult(codecResult.getConsumed(), codecResult.getProduced(), overflow);
+    }
+
+    /**
+     * 只解码前rows行，TIFF中的PackBits按行独立编码，因此解码在行的边界结束
+     *
+     * @param src 编码数据
+     * @param dst 解码结果
+     * @param rowByteSize 每行的字节数
+     * @param rows 需要解码的行数
+     * @return 读取和写入的字节数
+     */
+    public CodecResult decodeRows(ByteBuffer src, ByteBuffer dst, int rowByteSize, int rows) {
+        ByteBuffer target = dst.duplicate();
+        target.limit((int) Math.min(dst.limit(), dst.position() + (long) rowByteSize * rows));
+
+        CodecResult codecResult = this.decode(src, target);
+        dst.position(target.position());
+
+        return codecResult;
+    }
+
+    /**
+     * 继续上一次调用未完成的游程进行解码
+     *
+     * @param src 编码数据
+     * @param dst 解码结果
+     * @return 读取和写入的字节数，目标Buffer已满且存在未完成的游程时标记为overflow
+     */
+    public CodecResult decodeStreaming(ByteBuffer src, ByteBuffer dst) {
+        int srcStart = src.position();
+        int dstStart = dst.position();
+
+        while (dst.hasRemaining()) {
+            if (this.pendingLiteral > 0) {
+                int length = Math.min(this.pendingLiteral, Math.min(src.remaining(), dst.remaining()));
+                if (length == 0) {
+                    break;
+                }
+                dst.put(dst.position(), src, src.position(), length);
+                src.position(src.position() + length);
+                dst.position(dst.position() + length);
+                this.pendingLiteral -= length;
+            } else if (this.pendingRepeat > 0) {
+                if (this.repeatValue < 0) {
+                    if (!src.hasRemaining()) {
+                        break;
+                    }
+                    this.repeatValue = src.get() & 0xFF;
+                }
+                int length = Math.min(this.pendingRepeat, dst.remaining());
+                fill(dst, length, (byte) this.repeatValue);
+                this.pendingRepeat -= length;
+                if (this.pendingRepeat == 0) {
+                    this.repeatValue = -1;
+                }
+            } else {
+                if (!src.hasRemaining()) {
+                    break;
+                }
+                int header = src.get();
+                if (header >= 0) {
+                    this.pendingLiteral = header + 1;
+                } else if (header != -128) {
+                    this.pendingRepeat = 1 - header;
+                }
+            }
+        }
+
+        boolean overflow = !dst.hasRemaining() && (this.pendingLiteral > 0 || this.pendingRepeat > 0);
+        return new CodecResult(src.position() - srcStart, dst.position() - dstStart, overflow);
+    }
+
+    public void reset() {
+        this.pendingLiteral = 0;
+        this.pendingRepeat = 0;
+        this.repeatValue = -1;
+    }
+
+    private static void fill(ByteBuffer dst, int length, byte value) {
+        int position = dst.position();
+        if (dst.hasArray()) {
+            int from = dst.arrayOffset() + position;
+            Arrays.fill(dst.array(), from, from + length, value);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dst.put(position + i, value);
+            }
+        }
+        dst.position(position + length);
+    }
+}
@@ -0,0 +1,135 @@
+package cn.funnymap.compression.packbits;
+
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.Encoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * PackBits 编码器
+ *
+ * <p>
+ * 3个及以上相同的字节编码为重复游程，其余的字节编码为原样复制游程，每个游程最多128个字节。
+ * 按照TIFF标准，指定每行的字节数后各行独立编码，游程不会跨越行的边界。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/24 10:15
+ */
+public class PackBitsEncoder implements Encoder {
+    private static final int MAX_RUN = 128;
+
+    private final OutputStream codeStream;
+    // 每行的字节数，为0时整个数据作为一行
+    private final int rowByteSize;
+
+    public PackBitsEncoder() {
+        this(null, 0);
+    }
+    public PackBitsEncoder(int rowByteSize) {
+        this(null, rowByteSize);
+    }
+    public PackBitsEncoder(OutputStream codeStream, int rowByteSize) {
+        if (rowByteSize < 0) {
+            throw new IllegalArgumentException("每行的字节数不能小于0");
+        }
+
+        this.codeStream = codeStream;
+        this.rowByteSize = rowByteSize;
+    }
+
+    /**
+     * 编码结果的最大字节数，每128个字节最多增加1个头字节
+     */
+    public static int maxEncodedSize(int byteSize) {
+        return byteSize + (byteSize + MAX_RUN - 1) / MAX_RUN;
+    }
+
+    @Override
+    public void encode(ByteBuffer byteBuffer) throws IOException {
+        if (this.codeStream == null) {
+            throw new IllegalStateException("未指定编码结果的输出流，请使用encode(ByteBuffer, ByteBuffer)");
+        }
+
+        int rows = this.rowByteSize == 0 ? 1 : (byteBuffer.remaining() + this.rowByteSize - 1) / this.rowByteSize;
+        ByteBuffer code = ByteBuffer.allocate(maxEncodedSize(byteBuffer.remaining()) + rows);
+        this.encode(byteBuffer, code);
+
+        this.codeStream.write(code.array(), 0, code.position());
+    }
+
+    @Override
+    public CodecResult encode(ByteBuffer src, ByteBuffer dst) {
+        int srcStart = src.position();
+        int dstStart = dst.position();
+        int end = src.limit();
+        int rowByteSize = this.rowByteSize == 0 ? Math.max(src.remaining(), 1) : this.rowByteSize;
+
+        boolean overflow = false;
+        int position = srcStart;
+        while (position < end && !overflow) {
+            int rowEnd = Math.min(end, position + rowByteSize);
+            int encoded = encodeRow(src, position, rowEnd, dst);
+            if (encoded < 0) {
+                overflow = true;
+            } else {
+                position = rowEnd;
+            }
+        }
+
+        src.position(position);
+        return new CodecResult(position - srcStart, dst.position() - dstStart, overflow);
+    }
+
+    /**
+     * 编码一行数据，dst剩余空间不足时不写入任何数据
+     *
+     * @return 写入的字节数，空间不足时返回-1
+     */
+    private static int encodeRow(ByteBuffer src, int from, int to, ByteBuffer dst) {
+        if (dst.remaining() < maxEncodedSize(to - from)) {
+            // 剩余空间可能仍然足够，先编码到临时位置再判断
+            ByteBuffer target = ByteBuffer.allocate(maxEncodedSize(to - from));
+            encodeRow(src, from, to, target);
+            if (target.position() > dst.remaining()) {
+                return -1;
+            }
+            dst.put(target.flip());
+            return target.limit();
+        }
+
+        int start = dst.position();
+        int position = from;
+        while (position < to) {
+            byte value = src.get(position);
+            int run = 1;
+            while (position + run < to && run < MAX_RUN && src.get(position + run) == value) {
+                run++;
+            }
+
+            if (run >= 3) {
+                dst.put((byte) (1 - run)).put(value);
+                position += run;
+                continue;
+            }
+
+            // 原样复制，直到遇到3个相同的字节
+            int literalStart = position;
+            while (position < to && position - literalStart < MAX_RUN) {
+                if (position + 2 < to && src.get(position) == src.get(position + 1) &&
+                        src.get(position) == src.get(position + 2)) {
+                    break;
+                }
+                position++;
+            }
+            int length = position - literalStart;
+            dst.put((byte) (length - 1));
+            dst.put(dst.position(), src, literalStart, length);
+            dst.position(dst.position() + length);
+        }
+
+        return dst.position() - start;
+    }
+}
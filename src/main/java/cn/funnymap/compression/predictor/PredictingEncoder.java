@@ -0,0 +1,117 @@
+package cn.funnymap.compression.predictor;
+
+import cn.funnymap.compression.ChunkedEncoder;
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.Encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 带有Predictor差分编码的编码器
+ *
+ * <p>
+ * 逐行计算差分，结果写入一行大小的复用数组后直接传给{@link ChunkedEncoder}，
+ * 不生成整个条带的差分副本，原始数据也不会被修改。条带末尾不完整的行原样传入。
+ * 多字节样本按照src的字节序处理。实例与其包装的编码器一样不是线程安全的。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/27 11:05
+ */
+public class PredictingEncoder implements Encoder {
+    private final ChunkedEncoder encoder;
+    private final int width;
+    private final int bitsPerSample;
+    private final int samples;
+    private final int predictor;
+    private final ByteBuffer row;
+
+    /**
+     * @param encoder 压缩数据使用的编码器
+     * @param width 条带或瓦片的宽度
+     * @param bitsPerSample 每个样本的位数，必须为8的整数倍
+     * @param samples 每个像素的样本个数，按通道分开存放时为1
+     * @param predictor Predictor TAG的值，2或3
+     */
+    public PredictingEncoder(ChunkedEncoder encoder, int width, int bitsPerSample, int samples, int predictor) {
+        if (predictor != 2 && predictor != 3) {
+            throw new IllegalArgumentException("不支持的predictor值：" + predictor);
+        }
+        if (bitsPerSample <= 0 || bitsPerSample % 8 != 0) {
+            throw new IllegalArgumentException("使用Predictor时，通道的位深必须为8的整数倍");
+        }
+        if (predictor == 3 && bitsPerSample != 16 && bitsPerSample != 32 && bitsPerSample != 64) {
+            throw new IllegalArgumentException("浮点差分只支持16、32、64位的样本：" + bitsPerSample);
+        }
+        long rowByteSize = (long) width * samples * (bitsPerSample / 8);
+        if (width <= 0 || samples <= 0 || rowByteSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("无效的行字节数：%s", rowByteSize));
+        }
+
+        this.encoder = encoder;
+        this.width = width;
+        this.bitsPerSample = bitsPerSample;
+        this.samples = samples;
+        this.predictor = predictor;
+        this.row = ByteBuffer.allocate((int) rowByteSize);
+    }
+
+    /**
+     * 差分后交给包装的编码器，由其写入输出流
+     *
+     * <p>
+     * 输出流接口需要先生成整个数据的差分副本，写入TIFF文件时请使用{@link #encode(ByteBuffer, ByteBuffer)}。
+     * 包装的编码器没有输出流时抛出{@link IllegalStateException}。
+     * </p>
+     */
+    @Override
+    public void encode(ByteBuffer byteBuffer) throws IOException {
+        int rowByteSize = this.row.capacity();
+        byte[] rowBytes = this.row.array();
+        this.row.order(byteBuffer.order());
+
+        int position = byteBuffer.position();
+        int limit = byteBuffer.limit();
+        byte[] differenced = new byte[limit - position];
+        for (int index = 0; limit - position >= rowByteSize; position += rowByteSize, index += rowByteSize) {
+            Predictor.encodeRow(byteBuffer, position, this.row, this.width, this.bitsPerSample, this.samples,
+                    this.predictor);
+            System.arraycopy(rowBytes, 0, differenced, index, rowByteSize);
+        }
+
+        // 不完整的行原样编码
+        if (position < limit) {
+            byteBuffer.get(position, differenced, differenced.length - (limit - position), limit - position);
+        }
+        byteBuffer.position(limit);
+
+        this.encoder.encode(ByteBuffer.wrap(differenced));
+    }
+
+    @Override
+    public CodecResult encode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int rowByteSize = this.row.capacity();
+        byte[] rowBytes = this.row.array();
+        this.row.order(src.order());
+
+        this.encoder.begin(dst);
+
+        int position = src.position();
+        int limit = src.limit();
+        for (; limit - position >= rowByteSize; position += rowByteSize) {
+            Predictor.encodeRow(src, position, this.row, this.width, this.bitsPerSample, this.samples,
+                    this.predictor);
+            this.encoder.update(rowBytes, 0, rowByteSize);
+        }
+
+        // 不完整的行原样编码
+        if (position < limit) {
+            src.get(position, rowBytes, 0, limit - position);
+            this.encoder.update(rowBytes, 0, limit - position);
+        }
+        src.position(limit);
+
+        return this.encoder.finish();
+    }
+}
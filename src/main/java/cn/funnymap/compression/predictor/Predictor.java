@@ -1,51 +1,171 @@
 package cn.funnymap.compression.predictor;
 
-import org.springframework.util.FastByteArrayOutputStream;
+import cn.funnymap.model.tiff.TIFF;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Objects;
 
 /**
+ * Predictor 差分解码和编码
+ *
+ * <p>
+ * 直接在解码后的条带或瓦片数据上撤销差分，不创建新的数组。
+ * 水平差分（Predictor为2）按照8、16、32、64位的样本分别处理，多字节样本按照数据的字节序读写，
+ * 单通道时前一个样本保存在局部变量中，每个样本只读写一次。
+ * 浮点差分（Predictor为3）参考<a href="http://chriscox.org/TIFFTN3d1.pdf">TIFF Technical Note 3</a>，
+ * 每一行的字节按照有效位从高到低分组存放，还原时需要一行大小的临时数组，该数组按线程复用。
+ * 按通道分开存放（PlanarConfiguration为2）的数据，每个条带或瓦片只有一个通道。
+ * 启动时添加了jdk.incubator.vector模块时，堆内存中的数据使用{@link VectorPredictor}处理。
+ * </p>
+ *
  * @author jiao xn
  * @date 2024/1/10 10:53
  */
 public class Predictor {
+    // 设置为false时不使用Vector API
+    public static final String VECTORIZED_PROPERTY = "cn.funnymap.predictor.vectorized";
+    private static final boolean VECTORIZED = isVectorAvailable();
+    private static final ThreadLocal<byte[]> ROW_BUFFERS = ThreadLocal.withInitial(() -> new byte[0]);
+
     private Predictor() {}
 
+    /**
+     * 是否使用基于Vector API的实现，需要在启动时添加--add-modules jdk.incubator.vector，否则使用标量实现
+     */
+    public static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    /**
+     * 在原数组上撤销差分，多字节样本按照大端字节序处理
+     *
+     * @return 传入的数组
+     */
     public static byte[] decode(byte[] stripCodeData, long width, long height, int[] bitsPerSample,
                                 int planarConfig, int predictor) {
+        return decode(stripCodeData, width, height, bitsPerSample, planarConfig, predictor, ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * 在原数组上撤销差分
+     *
+     * @param stripCodeData 解码后的条带或瓦片数据
+     * @param width 条带或瓦片的宽度
+     * @param height 条带或瓦片的行数
+     * @param bitsPerSample BitsPerSample TAG的值
+     * @param planarConfig PlanarConfiguration TAG的值
+     * @param predictor Predictor TAG的值
+     * @param byteOrder 数据的字节序
+     * @return 传入的数组
+     */
+    public static byte[] decode(byte[] stripCodeData, long width, long height, int[] bitsPerSample,
+                                int planarConfig, int predictor, ByteOrder byteOrder) {
         if (predictor == 1) return stripCodeData;
 
+        decode(ByteBuffer.wrap(stripCodeData).order(byteOrder), Math.toIntExact(width), Math.toIntExact(height),
+                bitsPerSample, planarConfig, predictor);
+
+        return stripCodeData;
+    }
+
+    /**
+     * 在原Buffer上撤销差分，参见{@link #decode(ByteBuffer, int, int, int, int, int)}
+     *
+     * @param data 解码后的条带或瓦片数据
+     * @param width 条带或瓦片的宽度
+     * @param rows 条带或瓦片的行数
+     * @param bitsPerSample BitsPerSample TAG的值，按通道分开存放时只需要一个通道的值
+     * @param planarConfig PlanarConfiguration TAG的值，没有该TAG时为{@link TIFF#UNDEFINED}
+     * @param predictor Predictor TAG的值
+     */
+    public static void decode(ByteBuffer data, int width, int rows, int[] bitsPerSample, int planarConfig,
+                              int predictor) {
+        if (predictor == 1) return ;
+
         validateBitsPerSample(bitsPerSample);
+        // 没有PlanarConfiguration TAG时按照默认值1（按像素交错）处理
+        int samples = planarConfig == TIFF.PlanarConfiguration.PLANAR ? 1 : bitsPerSample.length;
+        decode(data, width, rows, bitsPerSample[0], samples, predictor);
+    }
 
-        int bytesPerSample = bitsPerSample[0] / 8;
-        int samples = planarConfig == 1 ? bitsPerSample.length : 1;
+    /**
+     * 在原Buffer上撤销差分
+     *
+     * <p>
+     * 只处理[position, limit)中的完整行，最后一个条带被截断或者只解码了部分行时，不完整的行保持不变。
+     * 多字节样本按照Buffer的字节序处理，不修改Buffer的position和limit。
+     * </p>
+     *
+     * @param data 解码后的条带或瓦片数据
+     * @param width 条带或瓦片的宽度
+     * @param rows 条带或瓦片的行数
+     * @param bitsPerSample 每个样本的位数，必须为8的整数倍
+     * @param samples 每个像素的样本个数
+     * @param predictor Predictor TAG的值
+     */
+    public static void decode(ByteBuffer data, int width, int rows, int bitsPerSample, int samples, int predictor) {
+        if (predictor == 1) return ;
+
+        if (bitsPerSample <= 0 || bitsPerSample % 8 != 0) {
+            throw new IllegalArgumentException("使用Predictor时，通道的位深必须为8的整数倍");
+        }
+        int bytesPerSample = bitsPerSample / 8;
+        long rowByteSize = (long) width * samples * bytesPerSample;
+        if (rowByteSize == 0 || rowByteSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("无效的行字节数：%s", rowByteSize));
+        }
 
-        ByteBuffer stripCodeAsBuffer = ByteBuffer.wrap(stripCodeData);
+        int start = data.position();
+        int completeRows = (int) Math.min(rows, (data.limit() - start) / rowByteSize);
 
-        try (FastByteArrayOutputStream fastByteArrayOutputStream = new FastByteArrayOutputStream()) {
-            for (int row = 0; row < height; row++) {
-                // 最后一个条带，当 height % stripHeight != 0 时会被截断
-                if (row * width * samples * bytesPerSample >= stripCodeAsBuffer.capacity()) {
-                    break;
-                }
+        switch (predictor) {
+            case 2:
+                decodeHorizontal(data, start, completeRows, (int) rowByteSize, bytesPerSample, samples);
+                break;
+            case 3:
+                decodeFloatingPoint(data, start, completeRows, (int) rowByteSize, bytesPerSample, samples);
+                break;
+            default:
+                throw new IllegalArgumentException("不支持的predictor值：" + predictor);
+        }
+    }
 
-                switch (predictor) {
-                    case 2:
-                        decodeHorizontal(fastByteArrayOutputStream, stripCodeAsBuffer, width, bytesPerSample, samples);
-                        break;
-                    case 3:
-                        decodeFloatingPoint(fastByteArrayOutputStream, stripCodeAsBuffer, width, bytesPerSample, samples);
-                        break;
-                    default:
-                        throw new IllegalArgumentException("不支持的predictor值：" + predictor);
-                }
-            }
+    /**
+     * 对一行数据做差分编码，结果写入target，不修改src
+     *
+     * <p>
+     * 用于在编码器的输入阶段逐行差分，参见{@link PredictingEncoder}。多字节样本按照src的字节序读取，
+     * 按照target的字节序写入。
+     * </p>
+     *
+     * @param src 原始数据
+     * @param rowStart 行在src中的起始位置
+     * @param target 差分结果，从0开始写入，必须是堆内存中的Buffer
+     * @param width 行的宽度
+     * @param bitsPerSample 每个样本的位数，必须为8的整数倍
+     * @param samples 每个像素的样本个数
+     * @param predictor Predictor TAG的值，2或3
+     */
+    public static void encodeRow(ByteBuffer src, int rowStart, ByteBuffer target, int width, int bitsPerSample,
+                                 int samples, int predictor) {
+        int bytesPerSample = bitsPerSample / 8;
+        int rowByteSize = width * samples * bytesPerSample;
+        int stride = samples * bytesPerSample;
+        if (!target.hasArray() || target.capacity() < rowByteSize) {
+            throw new IllegalArgumentException("差分编码的目标必须是堆内存中不小于一行的Buffer");
+        }
 
-            return fastByteArrayOutputStream.toByteArray();
-        } catch (IOException exception) {
-            throw new RuntimeException("Predictor 解码出错了，" + exception.getMessage());
+        switch (predictor) {
+            case 2:
+                differenceHorizontal(src, rowStart, target, rowByteSize, bytesPerSample, stride);
+                break;
+            case 3:
+                differenceFloatingPoint(src, rowStart, target.array(), target.arrayOffset(), rowByteSize,
+                        bytesPerSample, samples, src.order() == ByteOrder.BIG_ENDIAN);
+                break;
+            default:
+                throw new IllegalArgumentException("不支持的predictor值：" + predictor);
         }
     }
 
@@ -62,12 +182,10 @@ public class Predictor {
         }
 
         // 校验每个通道的值是否相同
-        boolean isSameValue = true;
         for (int i = bitsPerSample.length - 1; i >= 1; i--) {
-            isSameValue = Objects.equals(bitsPerSample[i], bitsPerSample[i-1]);
-        }
-        if (!isSameValue) {
-            throw new IllegalArgumentException("使用Predictor时，每个通道的位深必须相同");
+            if (!Objects.equals(bitsPerSample[i], bitsPerSample[i - 1])) {
+                throw new IllegalArgumentException("使用Predictor时，每个通道的位深必须相同");
+            }
         }
 
         // 校验值是否为8的倍数
@@ -77,77 +195,256 @@ public class Predictor {
     }
 
     /**
-     * 水平差分解码
+     * 水平差分解码：每个样本加上同一行中前一个像素的同一通道的样本
      *
-     * @param byteArrayOutputStream 输出结果流
-     * @param stripData 条带数据
-     * @param width 图像宽度
-     * @param bytesPerSample 每个通道的字节个数
+     * @param data 条带数据
+     * @param start 第一行的位置
+     * @param rows 完整的行数
+     * @param rowByteSize 每一行的字节数
+     * @param bytesPerSample 每个样本的字节个数
      * @param samples 通道个数
-     * @throws IOException 输出结果流写入数据时抛出的异常
      */
-    private static void decodeHorizontal(FastByteArrayOutputStream byteArrayOutputStream, ByteBuffer stripData,
-                                         long width, int bytesPerSample, int samples) throws IOException {
-        int[] previous = new int[samples];
-
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < samples; j++) {
-                int temp = previous[j] + readValue(stripData, bytesPerSample);
-                previous[j] = temp;
-                byteArrayOutputStream.write(temp);
+    private static void decodeHorizontal(ByteBuffer data, int start, int rows, int rowByteSize, int bytesPerSample,
+                                         int samples) {
+        int stride = samples * bytesPerSample;
+        if (VECTORIZED && data.hasArray() && VectorPredictor.accumulate(data.array(), data.arrayOffset() + start,
+                rows, rowByteSize, bytesPerSample, stride, data.order())) {
+            return;
+        }
+
+        switch (bytesPerSample) {
+            case 1:
+                if (data.hasArray()) {
+                    accumulate8(data.array(), data.arrayOffset() + start, rows, rowByteSize, stride);
+                } else {
+                    accumulate8(data, start, rows, rowByteSize, stride);
+                }
+                break;
+            case 2:
+                accumulate16(data, start, rows, rowByteSize, stride);
+                break;
+            case 4:
+                accumulate32(data, start, rows, rowByteSize, stride);
+                break;
+            case 8:
+                accumulate64(data, start, rows, rowByteSize, stride);
+                break;
+            default:
+                throw new IllegalArgumentException("Predictor不支持当前输入的BytesPerSample值：" + bytesPerSample);
+        }
+    }
+
+    private static void accumulate8(byte[] bytes, int start, int rows, int rowByteSize, int stride) {
+        for (int row = 0; row < rows; row++) {
+            int rowStart = start + row * rowByteSize;
+            int rowEnd = rowStart + rowByteSize;
+            if (stride == 1) {
+                byte previous = bytes[rowStart];
+                for (int i = rowStart + 1; i < rowEnd; i++) {
+                    previous += bytes[i];
+                    bytes[i] = previous;
+                }
+                continue;
+            }
+            for (int i = rowStart + stride; i < rowEnd; i++) {
+                bytes[i] += bytes[i - stride];
+            }
+        }
+    }
+
+    private static void accumulate8(ByteBuffer data, int start, int rows, int rowByteSize, int stride) {
+        for (int row = 0; row < rows; row++) {
+            int rowStart = start + row * rowByteSize;
+            int rowEnd = rowStart + rowByteSize;
+            if (stride == 1) {
+                byte previous = data.get(rowStart);
+                for (int i = rowStart + 1; i < rowEnd; i++) {
+                    previous += data.get(i);
+                    data.put(i, previous);
+                }
+                continue;
+            }
+            for (int i = rowStart + stride; i < rowEnd; i++) {
+                data.put(i, (byte) (data.get(i) + data.get(i - stride)));
+            }
+        }
+    }
+
+    private static void accumulate16(ByteBuffer data, int start, int rows, int rowByteSize, int stride) {
+        for (int row = 0; row < rows; row++) {
+            int rowStart = start + row * rowByteSize;
+            int rowEnd = rowStart + rowByteSize;
+            if (stride == 2) {
+                short previous = data.getShort(rowStart);
+                for (int i = rowStart + 2; i < rowEnd; i += 2) {
+                    previous += data.getShort(i);
+                    data.putShort(i, previous);
+                }
+                continue;
+            }
+            for (int i = rowStart + stride; i < rowEnd; i += 2) {
+                data.putShort(i, (short) (data.getShort(i) + data.getShort(i - stride)));
+            }
+        }
+    }
+
+    private static void accumulate32(ByteBuffer data, int start, int rows, int rowByteSize, int stride) {
+        for (int row = 0; row < rows; row++) {
+            int rowStart = start + row * rowByteSize;
+            int rowEnd = rowStart + rowByteSize;
+            if (stride == 4) {
+                int previous = data.getInt(rowStart);
+                for (int i = rowStart + 4; i < rowEnd; i += 4) {
+                    previous += data.getInt(i);
+                    data.putInt(i, previous);
+                }
+                continue;
+            }
+            for (int i = rowStart + stride; i < rowEnd; i += 4) {
+                data.putInt(i, data.getInt(i) + data.getInt(i - stride));
+            }
+        }
+    }
+
+    private static void accumulate64(ByteBuffer data, int start, int rows, int rowByteSize, int stride) {
+        for (int row = 0; row < rows; row++) {
+            int rowStart = start + row * rowByteSize;
+            int rowEnd = rowStart + rowByteSize;
+            if (stride == 8) {
+                long previous = data.getLong(rowStart);
+                for (int i = rowStart + 8; i < rowEnd; i += 8) {
+                    previous += data.getLong(i);
+                    data.putLong(i, previous);
+                }
+                continue;
+            }
+            for (int i = rowStart + stride; i < rowEnd; i += 8) {
+                data.putLong(i, data.getLong(i) + data.getLong(i - stride));
             }
         }
     }
 
     /**
-     * 浮点水平差分解码
+     * 浮点差分解码：先以通道个数为步长对一行的字节做水平差分解码，再把按有效位分组的字节还原为样本，
+     * 样本的字节按照数据的字节序写回
      *
-     * @param byteArrayOutputStream 输出结果流
-     * @param stripData 条带数据
-     * @param width 图像宽度
-     * @param bytesPerSample 每个通道的字节个数
+     * @param data 条带数据
+     * @param start 第一行的位置
+     * @param rows 完整的行数
+     * @param rowByteSize 每一行的字节数
+     * @param bytesPerSample 每个样本的字节个数
      * @param samples 通道个数
-     * @throws IOException 输出结果流写入数据时抛出的异常
      */
-    private static void decodeFloatingPoint(FastByteArrayOutputStream byteArrayOutputStream, ByteBuffer stripData,
-                                            long width, int bytesPerSample, int samples) throws IOException {
-        long samplesWidth = width * samples;
-        byte[] bytes = new byte[(int) (samplesWidth * bytesPerSample)];
-        byte[] previous = new byte[samples];
-
-        for (int sampleByte = 0; sampleByte < width * bytesPerSample; sampleByte++) {
-            for (int sample = 0; sample < samples; sample++) {
-                byte value = (byte) (readValue(stripData, bytesPerSample) + previous[sample]);
-                bytes[sampleByte * samples + sample] = value;
-                previous[sample] = value;
-            }
+    private static void decodeFloatingPoint(ByteBuffer data, int start, int rows, int rowByteSize,
+                                            int bytesPerSample, int samples) {
+        // 前半部分保存一行的字节，后半部分保存向量化实现还原后的样本
+        byte[] row = ROW_BUFFERS.get();
+        if (row.length < rowByteSize * 2) {
+            row = new byte[rowByteSize * 2];
+            ROW_BUFFERS.set(row);
         }
 
-        for (int widthSample = 0; widthSample < samplesWidth; widthSample++) {
-            for (int sampleByte = 0; sampleByte < bytesPerSample; sampleByte++) {
-                int index = (int) (((bytesPerSample - sampleByte - 1) * samplesWidth) + widthSample);
-                byteArrayOutputStream.write(bytes[index]);
+        int sampleCount = rowByteSize / bytesPerSample;
+        boolean isBigEndian = data.order() == ByteOrder.BIG_ENDIAN;
+
+        for (int r = 0; r < rows; r++) {
+            int rowStart = start + r * rowByteSize;
+            data.get(rowStart, row, 0, rowByteSize);
+            if (!VECTORIZED || !VectorPredictor.accumulate(row, 0, 1, rowByteSize, 1, samples, data.order())) {
+                accumulate8(row, 0, 1, rowByteSize, samples);
+            }
+
+            if (VECTORIZED && bytesPerSample == 4 && VectorPredictor.restore32(row, row, rowByteSize, sampleCount,
+                    data.order())) {
+                data.put(rowStart, row, rowByteSize, rowByteSize);
+                continue;
+            }
+
+            // 第b组保存所有样本中有效位第b高的字节
+            for (int b = 0; b < bytesPerSample; b++) {
+                int target = isBigEndian ? b : bytesPerSample - 1 - b;
+                int groupStart = b * sampleCount;
+                for (int i = 0; i < sampleCount; i++) {
+                    data.put(rowStart + i * bytesPerSample + target, row[groupStart + i]);
+                }
             }
         }
     }
 
-    private static int readValue(ByteBuffer byteBuffer, int bytesPerSample) {
-        int value;
+    private static boolean isVectorAvailable() {
+        if ("false".equalsIgnoreCase(System.getProperty(VECTORIZED_PROPERTY)) ||
+                ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+
+        try {
+            return VectorPredictor.isSupported();
+        } catch (LinkageError error) {
+            return false;
+        }
+    }
+
+    /**
+     * 水平差分编码：每个样本减去同一行中前一个像素的同一通道的样本，第一个像素保持不变
+     */
+    private static void differenceHorizontal(ByteBuffer src, int rowStart, ByteBuffer target, int rowByteSize,
+                                             int bytesPerSample, int stride) {
+        int firstPixel = Math.min(stride, rowByteSize);
+        src.get(rowStart, target.array(), target.arrayOffset(), firstPixel);
 
         switch (bytesPerSample) {
             case 1:
-                value = byteBuffer.get();
+                if (src.hasArray()) {
+                    byte[] bytes = src.array();
+                    byte[] targetBytes = target.array();
+                    int offset = src.arrayOffset() + rowStart;
+                    int targetOffset = target.arrayOffset();
+                    for (int i = stride; i < rowByteSize; i++) {
+                        targetBytes[targetOffset + i] = (byte) (bytes[offset + i] - bytes[offset + i - stride]);
+                    }
+                } else {
+                    for (int i = stride; i < rowByteSize; i++) {
+                        target.put(i, (byte) (src.get(rowStart + i) - src.get(rowStart + i - stride)));
+                    }
+                }
                 break;
             case 2:
-                value = byteBuffer.getShort();
+                for (int i = stride; i < rowByteSize; i += 2) {
+                    target.putShort(i, (short) (src.getShort(rowStart + i) - src.getShort(rowStart + i - stride)));
+                }
                 break;
             case 4:
-                value = byteBuffer.getInt();
+                for (int i = stride; i < rowByteSize; i += 4) {
+                    target.putInt(i, src.getInt(rowStart + i) - src.getInt(rowStart + i - stride));
+                }
+                break;
+            case 8:
+                for (int i = stride; i < rowByteSize; i += 8) {
+                    target.putLong(i, src.getLong(rowStart + i) - src.getLong(rowStart + i - stride));
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Predictor不支持当前输入的BytesPerSample值：" + bytesPerSample);
         }
+    }
 
-        return value;
+    /**
+     * 浮点差分编码：把一行样本的字节按照有效位从高到低分组，再从行尾开始以通道个数为步长对字节做水平差分编码
+     */
+    private static void differenceFloatingPoint(ByteBuffer src, int rowStart, byte[] target, int targetOffset,
+                                                int rowByteSize, int bytesPerSample, int samples,
+                                                boolean isBigEndian) {
+        int sampleCount = rowByteSize / bytesPerSample;
+        for (int b = 0; b < bytesPerSample; b++) {
+            int source = rowStart + (isBigEndian ? b : bytesPerSample - 1 - b);
+            int groupStart = targetOffset + b * sampleCount;
+            for (int i = 0; i < sampleCount; i++) {
+                target[groupStart + i] = src.get(source + i * bytesPerSample);
+            }
+        }
+
+        for (int i = targetOffset + rowByteSize - 1; i >= targetOffset + samples; i--) {
+            target[i] -= target[i - samples];
+        }
     }
 }
@@ -0,0 +1,266 @@
+package cn.funnymap.compression.predictor;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 基于Vector API（jdk.incubator.vector）的Predictor解码
+ *
+ * <p>
+ * 水平差分解码是每个通道上的前缀和：向量内按照通道步长的1、2、4……倍依次错位相加，再加上前一个向量中
+ * 同一通道的最后一个样本。浮点差分中按有效位分组的字节通过零扩展、移位、按位或还原为样本。
+ * 只处理堆内存中的数组，多字节样本与本机字节序不同时先交换字节。本类只在模块存在时由{@link Predictor}加载。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/26 15:10
+ */
+final class VectorPredictor {
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> SHORTS = VectorSpecies.of(short.class, BYTES.vectorShape());
+    private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, BYTES.vectorShape());
+    private static final VectorSpecies<Long> LONGS = VectorSpecies.of(long.class, BYTES.vectorShape());
+    // 浮点差分中每组读取的字节，个数与INTS的通道数相同
+    private static final VectorSpecies<Byte> PLANE_BYTES = planeSpecies();
+    private static final boolean IS_NATIVE_LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private VectorPredictor() {}
+
+    /**
+     * 当前平台的向量长度是否足以使用向量化的实现
+     */
+    static boolean isSupported() {
+        return BYTES.vectorBitSize() >= 128;
+    }
+
+    /**
+     * 水平差分解码
+     *
+     * @return 是否已经处理，返回false时由调用方使用标量实现
+     */
+    static boolean accumulate(byte[] bytes, int start, int rows, int rowByteSize, int bytesPerSample, int stride,
+                              ByteOrder byteOrder) {
+        // 步长超过半个向量时向量内的错位相加没有意义；单通道的多字节样本使用标量实现，
+        // 前一个样本保存在寄存器中，比向量内的多次错位相加更快
+        if (stride > BYTES.length() / 2 || (bytesPerSample > 1 && stride == bytesPerSample)) {
+            return false;
+        }
+
+        VectorShuffle<Byte> swap = byteOrder == ByteOrder.nativeOrder() ? null : swapShuffle(bytesPerSample);
+        // 读写剩余不足一个向量的样本
+        ByteBuffer data = ByteBuffer.wrap(bytes).order(byteOrder);
+        switch (bytesPerSample) {
+            case 1:
+                accumulate8(bytes, start, rows, rowByteSize, stride);
+                return true;
+            case 2:
+                accumulate16(bytes, data, start, rows, rowByteSize, stride, swap);
+                return true;
+            case 4:
+                accumulate32(bytes, data, start, rows, rowByteSize, stride, swap);
+                return true;
+            case 8:
+                accumulate64(bytes, data, start, rows, rowByteSize, stride, swap);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 将按有效位分组的32位样本还原到target中
+     *
+     * @param row 水平差分解码后的一行，第b组保存所有样本中有效位第b高的字节
+     * @param target 目标数组
+     * @param targetOffset 写入目标数组的起始位置
+     * @param sampleCount 一行的样本个数
+     * @param byteOrder 样本的字节序
+     * @return 是否已经处理，当前平台不支持时返回false
+     */
+    static boolean restore32(byte[] row, byte[] target, int targetOffset, int sampleCount, ByteOrder byteOrder) {
+        if (PLANE_BYTES == null) {
+            return false;
+        }
+
+        int lanes = INTS.length();
+        int[] shifts = new int[4];
+        for (int b = 0; b < 4; b++) {
+            // 第b组的字节在样本中的位置，换算为本机字节序下的移位
+            int position = byteOrder == ByteOrder.BIG_ENDIAN ? b : 3 - b;
+            shifts[b] = 8 * (IS_NATIVE_LITTLE_ENDIAN ? position : 3 - position);
+        }
+
+        int i = 0;
+        for (; i <= sampleCount - lanes; i += lanes) {
+            IntVector sample = IntVector.zero(INTS);
+            for (int b = 0; b < 4; b++) {
+                IntVector plane = (IntVector) ByteVector.fromArray(PLANE_BYTES, row, b * sampleCount + i)
+                        .convertShape(VectorOperators.ZERO_EXTEND_B2I, INTS, 0);
+                sample = sample.or(plane.lanewise(VectorOperators.LSHL, shifts[b]));
+            }
+            sample.reinterpretAsBytes().intoArray(target, targetOffset + i * 4);
+        }
+
+        for (; i < sampleCount; i++) {
+            for (int b = 0; b < 4; b++) {
+                int position = byteOrder == ByteOrder.BIG_ENDIAN ? b : 3 - b;
+                target[targetOffset + i * 4 + position] = row[b * sampleCount + i];
+            }
+        }
+
+        return true;
+    }
+
+    private static void accumulate8(byte[] bytes, int start, int rows, int rowByteSize, int stride) {
+        int lanes = BYTES.length();
+        VectorShuffle<Byte> carryShuffle = carryShuffle(BYTES, stride);
+
+        for (int row = 0; row < rows; row++) {
+            int rowStart = start + row * rowByteSize;
+            int rowEnd = rowStart + rowByteSize;
+
+            ByteVector carry = ByteVector.zero(BYTES);
+            int i = rowStart;
+            for (; i <= rowEnd - lanes; i += lanes) {
+                ByteVector vector = ByteVector.fromArray(BYTES, bytes, i);
+                for (int shift = stride; shift < lanes; shift <<= 1) {
+                    vector = vector.add(vector.unslice(shift));
+                }
+                vector = vector.add(carry.rearrange(carryShuffle));
+                vector.intoArray(bytes, i);
+                carry = vector;
+            }
+
+            for (i = Math.max(i, rowStart + stride); i < rowEnd; i++) {
+                bytes[i] += bytes[i - stride];
+            }
+        }
+    }
+
+    private static void accumulate16(byte[] bytes, ByteBuffer data, int start, int rows, int rowByteSize,
+                                     int stride, VectorShuffle<Byte> swap) {
+        int lanes = SHORTS.length();
+        int vectorByteSize = BYTES.length();
+        VectorShuffle<Short> carryShuffle = carryShuffle(SHORTS, stride / 2);
+
+        for (int row = 0; row < rows; row++) {
+            int rowStart = start + row * rowByteSize;
+            int rowEnd = rowStart + rowByteSize;
+
+            ShortVector carry = ShortVector.zero(SHORTS);
+            int i = rowStart;
+            for (; i <= rowEnd - vectorByteSize; i += vectorByteSize) {
+                ShortVector vector = load(bytes, i, swap).reinterpretAsShorts();
+                for (int shift = stride / 2; shift < lanes; shift <<= 1) {
+                    vector = vector.add(vector.unslice(shift));
+                }
+                vector = vector.add(carry.rearrange(carryShuffle));
+                store(vector.reinterpretAsBytes(), bytes, i, swap);
+                carry = vector;
+            }
+
+            for (i = Math.max(i, rowStart + stride); i < rowEnd; i += 2) {
+                data.putShort(i, (short) (data.getShort(i) + data.getShort(i - stride)));
+            }
+        }
+    }
+
+    private static void accumulate32(byte[] bytes, ByteBuffer data, int start, int rows, int rowByteSize,
+                                     int stride, VectorShuffle<Byte> swap) {
+        int lanes = INTS.length();
+        int vectorByteSize = BYTES.length();
+        VectorShuffle<Integer> carryShuffle = carryShuffle(INTS, stride / 4);
+
+        for (int row = 0; row < rows; row++) {
+            int rowStart = start + row * rowByteSize;
+            int rowEnd = rowStart + rowByteSize;
+
+            IntVector carry = IntVector.zero(INTS);
+            int i = rowStart;
+            for (; i <= rowEnd - vectorByteSize; i += vectorByteSize) {
+                IntVector vector = load(bytes, i, swap).reinterpretAsInts();
+                for (int shift = stride / 4; shift < lanes; shift <<= 1) {
+                    vector = vector.add(vector.unslice(shift));
+                }
+                vector = vector.add(carry.rearrange(carryShuffle));
+                store(vector.reinterpretAsBytes(), bytes, i, swap);
+                carry = vector;
+            }
+
+            for (i = Math.max(i, rowStart + stride); i < rowEnd; i += 4) {
+                data.putInt(i, (data.getInt(i) + data.getInt(i - stride)));
+            }
+        }
+    }
+
+    private static void accumulate64(byte[] bytes, ByteBuffer data, int start, int rows, int rowByteSize,
+                                     int stride, VectorShuffle<Byte> swap) {
+        int lanes = LONGS.length();
+        int vectorByteSize = BYTES.length();
+        VectorShuffle<Long> carryShuffle = carryShuffle(LONGS, stride / 8);
+
+        for (int row = 0; row < rows; row++) {
+            int rowStart = start + row * rowByteSize;
+            int rowEnd = rowStart + rowByteSize;
+
+            LongVector carry = LongVector.zero(LONGS);
+            int i = rowStart;
+            for (; i <= rowEnd - vectorByteSize; i += vectorByteSize) {
+                LongVector vector = load(bytes, i, swap).reinterpretAsLongs();
+                for (int shift = stride / 8; shift < lanes; shift <<= 1) {
+                    vector = vector.add(vector.unslice(shift));
+                }
+                vector = vector.add(carry.rearrange(carryShuffle));
+                store(vector.reinterpretAsBytes(), bytes, i, swap);
+                carry = vector;
+            }
+
+            for (i = Math.max(i, rowStart + stride); i < rowEnd; i += 8) {
+                data.putLong(i, (data.getLong(i) + data.getLong(i - stride)));
+            }
+        }
+    }
+
+    private static ByteVector load(byte[] bytes, int index, VectorShuffle<Byte> swap) {
+        ByteVector vector = ByteVector.fromArray(BYTES, bytes, index);
+        return swap == null ? vector : vector.rearrange(swap);
+    }
+
+    private static void store(ByteVector vector, byte[] bytes, int index, VectorShuffle<Byte> swap) {
+        (swap == null ? vector : vector.rearrange(swap)).intoArray(bytes, index);
+    }
+
+    /**
+     * 第i个通道取前一个向量中同一通道的最后一个样本，即第(length - stride + i % stride)个通道
+     */
+    private static <E> VectorShuffle<E> carryShuffle(VectorSpecies<E> species, int stride) {
+        int lanes = species.length();
+        return VectorShuffle.fromOp(species, i -> lanes - stride + i % stride);
+    }
+
+    /**
+     * 交换每个样本中字节的顺序
+     */
+    private static VectorShuffle<Byte> swapShuffle(int bytesPerSample) {
+        return VectorShuffle.fromOp(BYTES, i -> i / bytesPerSample * bytesPerSample + bytesPerSample - 1 -
+                i % bytesPerSample);
+    }
+
+    private static VectorSpecies<Byte> planeSpecies() {
+        try {
+            return VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length() * 8));
+        } catch (IllegalArgumentException exception) {
+            // 向量长度为128位时，每组只有4个字节，没有对应的向量形状
+            return null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package cn.funnymap.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * TIFF文件数据源，提供按位置随机读取数据的能力
+ *
+ * @author jiao xn
+ * @date 2024/1/13 10:12
+ */
+public interface ByteSource {
+    /**
+     * 数据源的总字节数
+     *
+     * @return 总字节数
+     * @throws IOException 获取文件大小时发生的异常
+     */
+    long size() throws IOException;
+
+    /**
+     * 从指定位置读取指定长度的数据
+     *
+     * <p>
+     * 返回的Buffer的position为0，limit为实际读取到的字节数，当读取范围超出数据源末尾时，limit会小于length
+     * </p>
+     *
+     * @param position 读取的起始位置
+     * @param length 读取的字节数
+     * @param byteOrder 返回的Buffer使用的字节序
+     * @return 读取到的数据
+     * @throws IOException 读取数据时发生的异常
+     */
+    ByteBuffer read(long position, int length, ByteOrder byteOrder) throws IOException;
+
+    /**
+     * 从指定位置读取数据，直接写入dst的position到limit之间，读取完成后dst的position移动到已写入数据的末尾
+     *
+     * <p>
+     * 默认实现先调用{@link #read(long, int, ByteOrder)}再复制，实现类可以直接读取到dst中以避免复制
+     * </p>
+     *
+     * @param position 读取的起始位置
+     * @param dst 存放读取结果的Buffer
+     * @return 实际读取到的字节数，读取范围超出数据源末尾时小于dst的剩余空间
+     * @throws IOException 读取数据时发生的异常
+     */
+    default int readInto(long position, ByteBuffer dst) throws IOException {
+        ByteBuffer byteBuffer = this.read(position, dst.remaining(), ByteOrder.BIG_ENDIAN);
+        int length = byteBuffer.remaining();
+        dst.put(byteBuffer);
+
+        return length;
+    }
+}
@@ -0,0 +1,56 @@
+package cn.funnymap.io;
+
+import cn.funnymap.utils.FMIOUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * 基于{@link FileChannel}读取的数据源，每次读取都会将数据复制到新的堆内存Buffer中
+ *
+ * <p>
+ * 读取使用定位读取，不修改FileChannel的position，同一个实例可以被多个线程同时使用
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/13 10:20
+ */
+public class FileChannelSource implements ByteSource {
+    private final FileChannel fileChannel;
+
+    public FileChannelSource(FileChannel fileChannel) {
+        if (fileChannel == null) {
+            throw new IllegalArgumentException("FileChannel 不能为空");
+        }
+
+        this.fileChannel = fileChannel;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return this.fileChannel.size();
+    }
+
+    @Override
+    public ByteBuffer read(long position, int length, ByteOrder byteOrder) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(length).order(byteOrder);
+        FMIOUtil.readChannelToBuffer(this.fileChannel, byteBuffer, position);
+        return byteBuffer;
+    }
+
+    @Override
+    public int readInto(long position, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+
+        long readPosition = position;
+        int count = 0;
+        while (count >= 0 && dst.hasRemaining()) {
+            count = this.fileChannel.read(dst, readPosition);
+            readPosition += Math.max(count, 0);
+        }
+
+        return dst.position() - start;
+    }
+}
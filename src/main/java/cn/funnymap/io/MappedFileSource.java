@@ -0,0 +1,93 @@
+package cn.funnymap.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 基于内存映射的数据源
+ *
+ * <p>
+ * 文件按照固定大小的窗口映射到内存中，单个{@link MappedByteBuffer}最大只能映射2GB，
+ * 因此超过窗口大小的文件会被映射为多个窗口。读取范围位于同一个窗口内时，直接返回映射内存的切片，不发生数据复制；
+ * 跨越窗口边界时，才会将数据复制到新的Buffer中。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/13 10:35
+ */
+public class MappedFileSource implements ByteSource {
+    // 默认映射窗口大小：1GB
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+    private final long size;
+    private final int windowSize;
+    private final MappedByteBuffer[] windows;
+
+    public MappedFileSource(FileChannel fileChannel) throws IOException {
+        this(fileChannel, DEFAULT_WINDOW_SIZE);
+    }
+    public MappedFileSource(FileChannel fileChannel, int windowSize) throws IOException {
+        if (fileChannel == null) {
+            throw new IllegalArgumentException("FileChannel 不能为空");
+        }
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("映射窗口大小必须大于0");
+        }
+
+        this.size = fileChannel.size();
+        this.windowSize = windowSize;
+
+        // 映射只建立虚拟内存与文件的对应关系，并不读取数据，因此可以在打开时完成全部窗口的映射
+        int windowCount = (int) ((this.size + windowSize - 1) / windowSize);
+        this.windows = new MappedByteBuffer[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            long windowStart = (long) i * windowSize;
+            long windowLength = Math.min(windowSize, this.size - windowStart);
+            this.windows[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+        }
+    }
+
+    @Override
+    public long size() {
+        return this.size;
+    }
+
+    @Override
+    public ByteBuffer read(long position, int length, ByteOrder byteOrder) {
+        if (position < 0L) {
+            throw new IllegalArgumentException("文件读取位置不能小于0");
+        }
+
+        int readableLength = (int) Math.max(0L, Math.min(length, this.size - position));
+        if (readableLength == 0) {
+            return ByteBuffer.allocate(0).order(byteOrder);
+        }
+
+        int windowIndex = (int) (position / this.windowSize);
+        int windowOffset = (int) (position % this.windowSize);
+        MappedByteBuffer window = this.windows[windowIndex];
+
+        // 读取范围位于同一个窗口内，直接返回切片
+        if (windowOffset + readableLength <= window.capacity()) {
+            return window.slice(windowOffset, readableLength).order(byteOrder);
+        }
+
+        // 读取范围跨越了窗口边界，逐个窗口复制数据
+        byte[] bytes = new byte[readableLength];
+        int copied = 0;
+        while (copied < readableLength) {
+            window = this.windows[windowIndex];
+            int copyLength = Math.min(window.capacity() - windowOffset, readableLength - copied);
+            window.get(windowOffset, bytes, copied, copyLength);
+
+            copied += copyLength;
+            windowIndex += 1;
+            windowOffset = 0;
+        }
+
+        return ByteBuffer.wrap(bytes).order(byteOrder);
+    }
+}
@@ -0,0 +1,115 @@
+package cn.funnymap.model.tiff;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 检查TIFF文件是否符合Cloud-Optimized GeoTIFF（COG）的布局
+ *
+ * <p>
+ * 检查的内容包括：第一幅图像为全分辨率图像；宽或高超过512的图像按瓦片存储；全部IFD以及存放在偏移量处的DE值
+ * 位于图像数据之前；概视图的NewSubfileType为1且尺寸依次减小；较小的概视图的数据位于较大的图像之前；
+ * 同一幅图像的条带或瓦片按照行优先的顺序存放。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/29 14:10
+ */
+public final class COGValidator {
+    // 宽或高超过该值的图像必须按瓦片存储
+    private static final long MAX_UNTILED_SIZE = 512;
+
+    private COGValidator() {}
+
+    /**
+     * 检查文件的布局
+     *
+     * @param tiffReader 需要检查的文件
+     * @return 不符合COG要求的问题，为空时表示文件是有效的COG
+     * @throws IOException 读取IFD时发生的异常
+     */
+    public static List<String> validate(TIFFReader tiffReader) throws IOException {
+        List<String> problems = new ArrayList<>();
+        ImageFileDirectoryChain imageFileDirectoryChain = tiffReader.getIFDChain();
+        int pageCount = imageFileDirectoryChain.size();
+        if (pageCount == 0) {
+            problems.add("文件中没有图像");
+            return problems;
+        }
+
+        long ifdEnd = 0;
+        long firstDataOffset = Long.MAX_VALUE;
+        // 上一幅图像的尺寸以及数据的范围
+        TIFFTag previousTag = null;
+        long previousFirstOffset = Long.MAX_VALUE;
+
+        for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
+            ImageFileDirectory imageFileDirectory = imageFileDirectoryChain.get(pageIndex);
+            TIFFTag tiffTag = tiffReader.readAttribute(imageFileDirectory);
+            boolean isReduced = tiffTag.getSubfileType() > 0 && (tiffTag.getSubfileType() & 1) != 0;
+
+            // IFD以及存放在偏移量处的DE值的末尾
+            ifdEnd = Math.max(ifdEnd, imageFileDirectoryChain.offsetOf(pageIndex) +
+                    imageFileDirectory.getDirectoryByteSize());
+            for (DataEntry dataEntry : imageFileDirectory.getDataEntries()) {
+                if (!dataEntry.isValueInline()) {
+                    ifdEnd = Math.max(ifdEnd, dataEntry.getValueOffset() + dataEntry.getValueByteSize());
+                }
+            }
+
+            if (pageIndex == 0 && isReduced) {
+                problems.add("第一幅图像不能是概视图");
+            }
+            if (pageIndex > 0 && !isReduced) {
+                problems.add(String.format("第%s页不是概视图，NewSubfileType为%s", pageIndex,
+                        tiffTag.getSubfileType()));
+            }
+            if (!tiffTag.isTiled() && (tiffTag.getWidth() > MAX_UNTILED_SIZE ||
+                    tiffTag.getHeight() > MAX_UNTILED_SIZE)) {
+                problems.add(String.format("第%s页的尺寸为%s x %s，需要按瓦片存储", pageIndex, tiffTag.getWidth(),
+                        tiffTag.getHeight()));
+            }
+            if (previousTag != null && (tiffTag.getWidth() > previousTag.getWidth() ||
+                    tiffTag.getHeight() > previousTag.getHeight())) {
+                problems.add(String.format("第%s页的尺寸%s x %s大于上一页", pageIndex, tiffTag.getWidth(),
+                        tiffTag.getHeight()));
+            }
+
+            // 条带或瓦片的偏移量，忽略没有数据的条带或瓦片
+            long[] offsets = tiffTag.isTiled() ? tiffTag.getTileOffsets() : tiffTag.getStripOffsets();
+            long[] byteCounts = tiffTag.isTiled() ? tiffTag.getTileByteCounts() : tiffTag.getStripByteCounts();
+            long firstOffset = Long.MAX_VALUE;
+            long lastOffset = -1;
+            boolean isOrdered = true;
+            for (int i = 0; offsets != null && byteCounts != null && i < offsets.length; i++) {
+                if (byteCounts[i] == 0) {
+                    continue;
+                }
+                if (offsets[i] < lastOffset) {
+                    isOrdered = false;
+                }
+                firstOffset = Math.min(firstOffset, offsets[i]);
+                lastOffset = Math.max(lastOffset, offsets[i]);
+            }
+            if (!isOrdered) {
+                problems.add(String.format("第%s页的%s没有按照行优先的顺序存放", pageIndex,
+                        tiffTag.isTiled() ? "瓦片" : "条带"));
+            }
+            if (previousTag != null && lastOffset >= 0 && lastOffset > previousFirstOffset) {
+                problems.add(String.format("第%s页的数据需要位于第%s页的数据之前", pageIndex, pageIndex - 1));
+            }
+
+            firstDataOffset = Math.min(firstDataOffset, firstOffset);
+            previousTag = tiffTag;
+            previousFirstOffset = firstOffset;
+        }
+
+        if (firstDataOffset != Long.MAX_VALUE && ifdEnd > firstDataOffset) {
+            problems.add(String.format("IFD需要全部位于图像数据之前，IFD的末尾为%s，图像数据的起始位置为%s", ifdEnd,
+                    firstDataOffset));
+        }
+
+        return problems;
+    }
+}
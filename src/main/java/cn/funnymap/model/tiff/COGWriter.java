@@ -0,0 +1,261 @@
+package cn.funnymap.model.tiff;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 写入Cloud-Optimized GeoTIFF（COG）
+ *
+ * <p>
+ * 文件布局为：文件头、全部IFD（全分辨率图像在前，概视图按分辨率从高到低依次排列）、各级瓦片数据。
+ * 瓦片数据按照分辨率从低到高写入，即最小的概视图在前、全分辨率图像在最后，同一级内按照行优先的顺序排列。
+ * 客户端通过一次范围读取文件开头即可获得全部IFD以及瓦片的偏移量，之后每个瓦片只需要一次范围读取。
+ * </p>
+ *
+ * <p>
+ * 创建时根据各级图像的属性计算IFD的大小并在文件头之后预留空间，然后按照{@link #beginLevel(int)}、
+ * {@link #writeRows(ByteBuffer)}、{@link #endLevel()}的顺序从最小的概视图开始逐级写入瓦片，
+ * 写入全分辨率图像后在预留的位置写入全部IFD。全分辨率图像写入之前文件中没有可读的IFD。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/29 09:30
+ */
+public final class COGWriter implements Closeable {
+    private static final int DEFAULT_TILE_SIZE = 512;
+
+    private final TIFFWriter tiffWriter;
+    // 各级图像的属性，第0级为全分辨率图像
+    @Getter
+    private final List<TIFFImageSpec> levelSpecs;
+    private final long[] ifdOffsets;
+    private final long[] ifdByteSizes;
+    private final ImageFileDirectory[] imageFileDirectories;
+    // 下一个需要写入的级别，写入全部级别后为-1
+    private int nextLevel;
+    private boolean isWritingLevel = false;
+
+    /**
+     * 从文件起始位置写入，写入前清空文件
+     *
+     * @param fileChannel 可写的文件通道，关闭写入器时不会关闭该通道
+     * @param byteOrder 文件字节序
+     * @param isBigTIFF 是否写入BigTIFF
+     * @param levelSpecs 各级图像的属性，第一个为全分辨率图像，之后为尺寸依次减小的概视图，必须全部按瓦片存储
+     * @throws IOException 写入文件头时发生的异常
+     */
+    public COGWriter(FileChannel fileChannel, ByteOrder byteOrder, boolean isBigTIFF, List<TIFFImageSpec> levelSpecs)
+            throws IOException {
+        this(new TIFFWriter(fileChannel, byteOrder, isBigTIFF), levelSpecs);
+    }
+    private COGWriter(TIFFWriter tiffWriter, List<TIFFImageSpec> levelSpecs) {
+        checkLevelSpecs(levelSpecs);
+
+        this.tiffWriter = tiffWriter;
+        this.levelSpecs = Collections.unmodifiableList(new ArrayList<>(levelSpecs));
+        this.ifdOffsets = new long[levelSpecs.size()];
+        this.ifdByteSizes = new long[levelSpecs.size()];
+        this.imageFileDirectories = new ImageFileDirectory[levelSpecs.size()];
+        this.nextLevel = levelSpecs.size() - 1;
+
+        // IFD的大小只与DE的个数和类型有关，与瓦片的偏移量和字节数无关，因此可以预先确定
+        for (int level = 0; level < levelSpecs.size(); level++) {
+            TIFFImageSpec spec = levelSpecs.get(level);
+            long[] placeholder = new long[(int) spec.getChunkCount()];
+            this.ifdByteSizes[level] = TIFFWriter.createIFD(spec, placeholder, placeholder, tiffWriter.isBigTIFF())
+                    .getByteSize();
+            this.ifdOffsets[level] = tiffWriter.reserve(this.ifdByteSizes[level]);
+        }
+    }
+
+    /**
+     * 创建文件并预留IFD的空间，已存在的文件会被覆盖
+     *
+     * @param path 文件路径
+     * @param byteOrder 文件字节序
+     * @param isBigTIFF 是否写入BigTIFF
+     * @param levelSpecs 各级图像的属性，第一个为全分辨率图像
+     * @return 写入器，关闭时同时关闭文件
+     * @throws IOException 创建文件或者写入文件头时发生的异常
+     */
+    public static COGWriter create(Path path, ByteOrder byteOrder, boolean isBigTIFF, List<TIFFImageSpec> levelSpecs)
+            throws IOException {
+        TIFFWriter tiffWriter = TIFFWriter.create(path, byteOrder, isBigTIFF);
+        try {
+            return new COGWriter(tiffWriter, levelSpecs);
+        } catch (RuntimeException exception) {
+            tiffWriter.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * 将TIFF文件转换为COG，复制第一幅图像以及紧随其后的概视图（NewSubfileType为1的图像），
+     * 并保留第一幅图像的地理参考信息，字节序以及是否为BigTIFF与源文件相同
+     *
+     * @param tiffReader 源文件
+     * @param target 目标文件
+     * @param compression 压缩方式
+     * @param predictor Predictor，1为不使用
+     * @param tileSize 瓦片的宽度和高度，必须是16的倍数，小于等于0时使用512
+     * @throws IOException 读写文件时发生的异常
+     * @throws IllegalArgumentException 源文件的通道分开存储，或者位深不是8的倍数时抛出
+     */
+    public static void translate(TIFFReader tiffReader, Path target, int compression, int predictor, int tileSize)
+            throws IOException {
+        int effectiveTileSize = tileSize > 0 ? tileSize : DEFAULT_TILE_SIZE;
+
+        // 第一幅图像以及紧随其后的概视图
+        List<TIFFTag> tiffTags = new ArrayList<>();
+        int pageCount = tiffReader.getIFDChain().size();
+        for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
+            TIFFTag tiffTag = tiffReader.readAttribute(pageIndex);
+            if (pageIndex > 0 && (tiffTag.getSubfileType() <= 0 || (tiffTag.getSubfileType() & 1) == 0)) {
+                break;
+            }
+            if (tiffTag.getSamplesPerPixel() > 1 && tiffTag.getPlanarConfig() == TIFF.PlanarConfiguration.PLANAR) {
+                throw new IllegalArgumentException("不支持通道分开存储的图像：第" + pageIndex + "页");
+            }
+            tiffTags.add(tiffTag);
+        }
+
+        TIFFTag fullTag = tiffTags.get(0);
+        short[] sampleFormat = fullTag.getSampleFormat();
+        TIFFImageSpec fullSpec = new TIFFImageSpec(fullTag.getWidth(), fullTag.getHeight(), fullTag.getBitsPerSample())
+                .setCompression(compression).setPredictor(predictor)
+                .setPhotometric(fullTag.getPhotometric() >= 0 ? fullTag.getPhotometric() : TIFF.Photometric.BIZ)
+                .setSampleFormat(sampleFormat != null ? sampleFormat[0] : TIFF.SampleFormat.UNSIGNED)
+                .setTileSize(effectiveTileSize, effectiveTileSize)
+                .copyGeoTags(fullTag);
+        List<TIFFImageSpec> levelSpecs = new ArrayList<>();
+        levelSpecs.add(fullSpec);
+        for (int i = 1; i < tiffTags.size(); i++) {
+            levelSpecs.add(fullSpec.reduced(tiffTags.get(i).getWidth(), tiffTags.get(i).getHeight()));
+        }
+
+        ByteOrder byteOrder = tiffReader.getIFH().getByteOrder();
+        try (COGWriter cogWriter = create(target, byteOrder, tiffReader.isBigTIFF(), levelSpecs)) {
+            for (int level = levelSpecs.size() - 1; level >= 0; level--) {
+                TIFFTag tiffTag = tiffTags.get(level);
+                cogWriter.beginLevel(level);
+                // 每次读取一行瓦片对应的行
+                for (long y = 0; y < tiffTag.getHeight(); y += effectiveTileSize) {
+                    int rows = (int) Math.min(effectiveTileSize, tiffTag.getHeight() - y);
+                    byte[] window = tiffReader.readWindow(tiffTag, 0, y, (int) tiffTag.getWidth(), rows);
+                    cogWriter.writeRows(ByteBuffer.wrap(window).order(byteOrder));
+                }
+                cogWriter.endLevel();
+            }
+        }
+    }
+
+    /**
+     * 开始写入一级图像，必须从最小的概视图开始，依次写入到全分辨率图像
+     *
+     * @param level 级别，0为全分辨率图像
+     * @throws IllegalStateException 级别的顺序不正确时抛出
+     */
+    public void beginLevel(int level) {
+        if (this.isWritingLevel || level != this.nextLevel) {
+            throw new IllegalStateException(String.format("需要按照分辨率从低到高的顺序写入，当前应写入第%s级，实际为第%s级",
+                    this.nextLevel, level));
+        }
+
+        this.tiffWriter.beginImage(this.levelSpecs.get(level));
+        this.isWritingLevel = true;
+    }
+
+    /**
+     * 写入当前级别的像素数据，数据按行连续存放
+     *
+     * @param rows 像素数据
+     * @throws IOException 写入瓦片时发生的异常
+     * @see TIFFWriter#writeRows(ByteBuffer)
+     */
+    public void writeRows(ByteBuffer rows) throws IOException {
+        this.tiffWriter.writeRows(rows);
+    }
+
+    /**
+     * 结束当前级别，写入全分辨率图像后在预留的位置写入全部IFD
+     *
+     * @throws IOException 写入数据时发生的异常
+     */
+    public void endLevel() throws IOException {
+        if (!this.isWritingLevel) {
+            throw new IllegalStateException("没有正在写入的级别");
+        }
+
+        this.imageFileDirectories[this.nextLevel] = this.tiffWriter.finishImage();
+        this.isWritingLevel = false;
+        this.nextLevel--;
+
+        if (this.nextLevel < 0) {
+            this.writeIFDs();
+        }
+    }
+
+    /**
+     * 是否已经写入全部级别
+     */
+    public boolean isFinished() {
+        return this.nextLevel < 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.tiffWriter.close();
+    }
+
+    /**
+     * 按照全分辨率图像、概视图的顺序在预留的位置写入IFD，并依次链接
+     */
+    private void writeIFDs() throws IOException {
+        for (int level = 0; level < this.imageFileDirectories.length; level++) {
+            ImageFileDirectory imageFileDirectory = this.imageFileDirectories[level];
+            if (imageFileDirectory.getByteSize() != this.ifdByteSizes[level]) {
+                throw new IllegalStateException(String.format("第%s级的IFD大小与预留的空间不一致：%s，%s", level,
+                        imageFileDirectory.getByteSize(), this.ifdByteSizes[level]));
+            }
+            this.tiffWriter.writeIFD(imageFileDirectory, this.ifdOffsets[level]);
+        }
+    }
+
+    private static void checkLevelSpecs(List<TIFFImageSpec> levelSpecs) {
+        if (levelSpecs.isEmpty()) {
+            throw new IllegalArgumentException("至少需要一级图像");
+        }
+
+        for (int level = 0; level < levelSpecs.size(); level++) {
+            TIFFImageSpec spec = levelSpecs.get(level);
+            if (!spec.isTiled()) {
+                throw new IllegalArgumentException("COG的图像必须按瓦片存储：第" + level + "级");
+            }
+            if (level == 0) {
+                if ((spec.getSubfileType() & 1) != 0) {
+                    throw new IllegalArgumentException("第0级必须是全分辨率图像");
+                }
+                continue;
+            }
+
+            TIFFImageSpec previous = levelSpecs.get(level - 1);
+            if ((spec.getSubfileType() & 1) == 0) {
+                throw new IllegalArgumentException("概视图的NewSubfileType必须为1：第" + level + "级");
+            }
+            if (spec.getWidth() > previous.getWidth() || spec.getHeight() > previous.getHeight() ||
+                    spec.getWidth() * spec.getHeight() >= previous.getWidth() * previous.getHeight()) {
+                throw new IllegalArgumentException(String.format("概视图的尺寸必须依次减小：第%s级为%s x %s",
+                        level, spec.getWidth(), spec.getHeight()));
+            }
+        }
+    }
+}
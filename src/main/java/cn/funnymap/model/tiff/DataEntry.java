@@ -1,9 +1,12 @@
 package cn.funnymap.model.tiff;
 
-import cn.funnymap.utils.FMIOUtil;
+import cn.funnymap.io.ByteSource;
+import cn.funnymap.io.FileChannelSource;
+import cn.funnymap.utils.FMBinaryUtil;
 import lombok.Getter;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.*;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
@@ -28,8 +31,8 @@ public class DataEntry {
     @Getter
     private long count;  // 数据值个数
     private long valueOrOffset; // 数据值或者偏移量
-    @Getter
     private ByteBuffer data;
+    private DataEntryValueLoader valueLoader;  // 值延迟读取时使用的加载器
 
     public DataEntry(boolean isBigTIFF) {
         this.valueCountByteSize = isBigTIFF ? 8 : 4;
@@ -48,20 +51,129 @@ public class DataEntry {
         this.data = byteBuffer;
     }
 
+    /**
+     * 获取DE的原始数据
+     *
+     * <p>
+     * 返回的是共享数据的独立视图，调用方修改其position、limit不会影响其他调用方，因此可以在多线程中同时读取
+     * </p>
+     *
+     * @return 原始数据，值直接存放在DE中且只有一个值时返回null
+     */
+    public ByteBuffer getData() {
+        ByteBuffer payload = this.payload();
+        if (payload == null) {
+            return null;
+        }
+
+        return payload.duplicate().order(payload.order());
+    }
+
+    /**
+     * 获取SHORT类型值的只读视图，不复制数据，适用于只需要按下标访问的场景
+     *
+     * @return 只读视图，读取的值为有符号数，需要调用方通过 {@code & 0xFFFF} 转为无符号数
+     */
+    public ShortBuffer asShortBuffer() {
+        this.requireType(TIFF.Type.SHORT, TIFF.Type.SSHORT);
+        return this.readOnlyView().asShortBuffer();
+    }
+
+    /**
+     * 获取LONG类型值的只读视图，不复制数据
+     *
+     * @return 只读视图，读取的值为有符号数，需要调用方通过 {@code & 0xFFFFFFFFL} 转为无符号数
+     */
+    public IntBuffer asIntBuffer() {
+        this.requireType(TIFF.Type.LONG, TIFF.Type.SLONG, TIFF.Type.IFD);
+        return this.readOnlyView().asIntBuffer();
+    }
+
+    /**
+     * 获取LONG8类型值的只读视图，不复制数据
+     */
+    public LongBuffer asLongBuffer() {
+        this.requireType(TIFF.Type.LONG8, TIFF.Type.SLONG8, TIFF.Type.IFD8);
+        return this.readOnlyView().asLongBuffer();
+    }
+
+    /**
+     * 获取DOUBLE类型值的只读视图，不复制数据
+     */
+    public DoubleBuffer asDoubleBuffer() {
+        this.requireType(TIFF.Type.DOUBLE);
+        return this.readOnlyView().asDoubleBuffer();
+    }
+
+    private ByteBuffer readOnlyView() {
+        ByteBuffer payload = this.payload();
+        if (payload == null) {
+            // 值直接存放在DE中且只有一个值
+            ByteBuffer byteBuffer = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+            byteBuffer.putLong(0, this.valueOrOffset << (64 - typeByteSize(this.type) * 8));
+            return byteBuffer.limit(typeByteSize(this.type)).asReadOnlyBuffer();
+        }
+
+        return this.viewOf(payload).asReadOnlyBuffer().order(payload.order());
+    }
+
+    /**
+     * 获取从0开始、长度为值的字节数的独立视图，字节序与文件一致
+     */
+    private ByteBuffer viewOf(ByteBuffer payload) {
+        return payload.duplicate().position(0).order(payload.order());
+    }
+
+    private void requireType(int... types) {
+        for (int type : types) {
+            if (this.type == type) {
+                return;
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("当前数据类型%s不支持该视图", this.type));
+    }
+
+    /**
+     * 值是否已经读取，值直接存放在DE中时始终为true
+     */
+    public boolean isDataLoaded() {
+        return this.data != null || this.valueLoader == null;
+    }
+
+    /**
+     * 获取DE的原始数据，值延迟读取时通过加载器读取
+     */
+    private ByteBuffer payload() {
+        if (this.data != null || this.valueLoader == null) {
+            return this.data;
+        }
+
+        try {
+            return this.valueLoader.load(this.valueOrOffset, toArrayLength(this.getValueByteSize()));
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
     public short asShort() {
         if (this.type != TIFF.Type.SHORT) {
             throw new IllegalArgumentException("尝试将不是SHORT类型的数据转为SHORT");
         }
 
-        if (this.data == null) {
+        ByteBuffer payload = this.payload();
+        if (payload == null) {
             return (short) this.valueOrOffset;
         }
+        if (this.count == 1) {
+            return payload.getShort(0);
+        }
 
         throw new IllegalArgumentException("当前数值是一个数组");
     }
 
     public short[] asShorts() {
-        return this.asShorts((int) this.count);
+        return this.asShorts(toArrayLength(this.count));
     }
     public short[] asShorts(int number) {
         if (this.type != TIFF.Type.SHORT) {
@@ -75,10 +187,9 @@ public class DataEntry {
         if (number > 0) {
             short[] values = new short[number];
 
-            if (this.data != null) {
-                for (int i = 0; i < number; i++) {
-                    values[i] = FMIOUtil.getUnsignedShort(this.data, (long) i * 2, 2);
-                }
+            ByteBuffer payload = this.payload();
+            if (payload != null) {
+                this.viewOf(payload).asShortBuffer().get(values);
             } else {
                 Arrays.fill(values, (short) this.valueOrOffset);
             }
@@ -95,58 +206,66 @@ public class DataEntry {
         }
 
         if (this.count == 1) {
-            return new int[]{this.asShort()};
+            return new int[]{this.asShort() & 0xFFFF};
         }
 
-        int[] values = new int[(int) this.count];
+        int[] values = new int[toArrayLength(this.count)];
         short[] shortValues = this.asShorts();
-        for (int i = 0; i < shortValues.length; i++) values[i] = shortValues[i];
+        for (int i = 0; i < shortValues.length; i++) values[i] = shortValues[i] & 0xFFFF;
         return values;
     }
 
     public long asLong() {
-        if (this.type != TIFF.Type.SHORT && this.type != TIFF.Type.LONG) {
-            throw new IllegalArgumentException("尝试将不是SHORT也不是LONG类型的值转为LONG");
+        if (!isIntegralType(this.type)) {
+            throw new IllegalArgumentException("尝试将不是SHORT、LONG也不是LONG8类型的值转为LONG");
         }
 
-        if (this.data == null) {
+        ByteBuffer payload = this.payload();
+        if (payload == null) {
             return this.valueOrOffset;
-        } else {
-            return FMIOUtil.getUnsignedLong(this.data);
         }
+
+        return FMBinaryUtil.getUnsigned(payload, 0, typeByteSize(this.type));
     }
 
     public long[] asLongs() {
-        if (this.type != TIFF.Type.SHORT && this.type != TIFF.Type.LONG) {
-            throw new IllegalArgumentException("尝试将不是SHORT也不是LONG类型的值转为LONG");
+        if (!isIntegralType(this.type)) {
+            throw new IllegalArgumentException("尝试将不是SHORT、LONG也不是LONG8类型的值转为LONG");
         }
 
-        if (this.type == TIFF.Type.SHORT) {
-            short[] shorts = this.asShorts();
-            long[] values = new long[shorts.length];
-
-            for (int i = 0; i < shorts.length; i++) {
-                values[i] = shorts[i];
-            }
-
-            return values;
-        }
-
-        if (this.count == 1) {
+        if (this.count == 1 && this.payload() == null) {
             return new long[]{this.valueOrOffset};
         }
 
-        if (this.count > 0 && this.data != null) {
-            long[] values = new long[(int) this.count];
+        ByteBuffer payload = this.payload();
+        if (this.count <= 0 || payload == null) {
+            throw new IllegalArgumentException("超出索引大小");
+        }
 
-            for (int i = 0; i < this.count; i++) {
-                values[i] = FMIOUtil.getUnsignedLong(this.data, (long) i * 4, 4);
+        // 通过对应位宽的视图批量解码，视图的字节序与文件一致
+        long[] values = new long[toArrayLength(this.count)];
+        ByteBuffer view = this.viewOf(payload);
+        switch (typeByteSize(this.type)) {
+            case 2: {
+                ShortBuffer shortBuffer = view.asShortBuffer();
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = shortBuffer.get(i) & 0xFFFFL;
+                }
+                break;
             }
-
-            return values;
+            case 4: {
+                IntBuffer intBuffer = view.asIntBuffer();
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = intBuffer.get(i) & 0xFFFFFFFFL;
+                }
+                break;
+            }
+            default:
+                view.asLongBuffer().get(values);
+                break;
         }
 
-        throw new IllegalArgumentException("超出索引大小");
+        return values;
     }
 
     public String getAsString() {
@@ -154,11 +273,12 @@ public class DataEntry {
             throw new IllegalArgumentException("仅支持ASCII类型");
         }
 
-        if (this.count != 1 && this.data == null) {
+        ByteBuffer payload = this.getData();
+        if (payload == null) {
             return null;
         }
 
-        return StandardCharsets.UTF_8.decode(this.data).toString();
+        return StandardCharsets.UTF_8.decode(payload).toString();
     }
 
     public double getAsDouble() {
@@ -171,6 +291,7 @@ public class DataEntry {
                 break;
             case TIFF.Type.LONG:
             case TIFF.Type.SLONG:
+            case TIFF.Type.LONG8:
                 value = this.asLong();
                 break;
             case TIFF.Type.FLOAT: {
@@ -197,18 +318,14 @@ public class DataEntry {
             throw new IllegalArgumentException("仅支持DOUBLE类型");
         }
 
-        if (this.count == 0 || null == this.data)
+        ByteBuffer payload = this.getData();
+        if (this.count == 0 || null == payload)
             return new double[0];
 
-        DoubleBuffer db = ((ByteBuffer) this.data.rewind()).asDoubleBuffer();
-        this.data.rewind();
+        DoubleBuffer db = this.viewOf(payload).asDoubleBuffer();
 
-        int size = Math.max(db.limit(), (int) this.count);
-        double[] array = new double[size];
-        int i = 0;
-        while (db.hasRemaining()) {
-            array[i++] = db.get();
-        }
+        double[] array = new double[Math.min(db.limit(), toArrayLength(this.count))];
+        db.get(array);
         return array;
     }
 
@@ -225,18 +342,14 @@ public class DataEntry {
             return new float[]{Float.intBitsToFloat(num)};
         }
 
-        if (null == this.data)
+        ByteBuffer payload = this.getData();
+        if (null == payload)
             return new float[0];
 
-        FloatBuffer db = ((ByteBuffer) this.data.rewind()).asFloatBuffer();
-        this.data.rewind();
+        FloatBuffer db = this.viewOf(payload).asFloatBuffer();
 
-        int size = Math.max(db.limit(), (int) this.count);
-        float[] array = new float[size];
-        int i = 0;
-        while (db.hasRemaining()) {
-            array[i++] = db.get();
-        }
+        float[] array = new float[Math.min(db.limit(), toArrayLength(this.count))];
+        db.get(array);
         return array;
     }
 
@@ -246,67 +359,261 @@ public class DataEntry {
         }
 
         // 分子
-        this.data.position(0);
-        this.data.limit(4);
-        ByteBuffer numeratorByteBuffer = this.data.slice();
-        numeratorByteBuffer.order(this.data.order());
-
+        ByteBuffer payload = this.payload();
+        long numerator = FMBinaryUtil.getUnsignedInt(payload, 0);
         // 分母
-        this.data.position(4);
-        this.data.limit(8);
-        ByteBuffer denominatorByteBuffer = this.data.slice();
-        denominatorByteBuffer.order(this.data.order());
+        long denominator = FMBinaryUtil.getUnsignedInt(payload, 4);
 
-        return (double) FMIOUtil.getUnsignedLong(numeratorByteBuffer) / FMIOUtil.getUnsignedLong(denominatorByteBuffer);
+        return (double) numerator / denominator;
+    }
+
+    /**
+     * 创建整数类型的DE，用于写入TIFF文件
+     *
+     * @param tag TAG
+     * @param type 数据类型，支持BYTE、SHORT、LONG、IFD、LONG8、IFD8及对应的有符号类型
+     * @param values 数据值，超出数据类型长度的高位被丢弃
+     * @return DE，写入时按照文件的字节序重新编码
+     */
+    public static DataEntry ofIntegers(int tag, int type, long... values) {
+        int byteSize = typeByteSize(type);
+        if (type == TIFF.Type.ASCII || type == TIFF.Type.UNDEFINED || type == TIFF.Type.FLOAT ||
+                type == TIFF.Type.DOUBLE || type == TIFF.Type.RATIONAL || type == TIFF.Type.SRATIONAL) {
+            throw new IllegalArgumentException("不是整数类型：" + type);
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(byteSize * values.length);
+        for (int i = 0; i < values.length; i++) {
+            FMBinaryUtil.putUnsigned(byteBuffer, i * byteSize, byteSize, values[i]);
+        }
+
+        return ofValue(tag, type, values.length, byteBuffer);
+    }
+    public static DataEntry ofDoubles(int tag, double... values) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(8 * values.length);
+        byteBuffer.asDoubleBuffer().put(values);
+
+        return ofValue(tag, TIFF.Type.DOUBLE, values.length, byteBuffer);
+    }
+    public static DataEntry ofAscii(int tag, String value) {
+        // ASCII类型的值以NUL结尾，与读取时一致按照UTF-8编码
+        byte[] bytes = (value + '\0').getBytes(StandardCharsets.UTF_8);
+
+        return ofValue(tag, TIFF.Type.ASCII, bytes.length, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 根据原始数据创建DE，用于写入TIFF文件
+     *
+     * @param tag TAG
+     * @param type 数据类型
+     * @param count 数据值个数
+     * @param value 原始数据，position到limit之间的字节数须与数据类型、个数一致，多字节的值按照其字节序解释
+     * @return DE
+     */
+    public static DataEntry ofValue(int tag, int type, long count, ByteBuffer value) {
+        if (tag < 0 || tag > 0xFFFF || calcValueByteSize(type, count) <= 0) {
+            throw new IllegalArgumentException(String.format("无效的DE：TAG=%s，类型=%s，数据值个数=%s", tag, type,
+                    count));
+        }
+        if (value.remaining() != calcValueByteSize(type, count)) {
+            throw new IllegalArgumentException(String.format("DE的数据长度与类型不一致，TAG：%s", tag));
+        }
+
+        return new DataEntry(tag, type, count, 0L, value.slice().order(value.order()), false);
     }
 
     public static DataEntry fromFileChannel(FileChannel fileChannel, ByteOrder byteOrder, long position,
                                             boolean isBigTIFF) throws IOException {
+        return fromSource(new FileChannelSource(fileChannel), byteOrder, position, isBigTIFF);
+    }
+    public static DataEntry fromSource(ByteSource byteSource, ByteOrder byteOrder, long position,
+                                       boolean isBigTIFF) throws IOException {
+        // 一次性读取DE的全部字段
+        ByteBuffer deByteBuffer = byteSource.read(position, byteSizeOf(isBigTIFF), byteOrder);
+        DataEntry dataEntry = fromByteBuffer(deByteBuffer, 0, isBigTIFF);
+
+        // 如果DE的值超出了值字段的长度，则从偏移量处读取
+        if (!dataEntry.isValueInline()) {
+            dataEntry.data = byteSource.read(dataEntry.valueOrOffset, toArrayLength(dataEntry.getValueByteSize()),
+                    byteOrder);
+        }
+
+        return dataEntry;
+    }
+
+    /**
+     * 从内存中解析DE，值存放在偏移量处时不会读取，需要调用方通过{@link #setData(ByteBuffer)}设置
+     *
+     * @param byteBuffer DE所在的数据，字节序须与文件一致
+     * @param index DE在数据中的起始位置
+     * @param isBigTIFF 是否为BigTIFF
+     * @return DE
+     */
+    static DataEntry fromByteBuffer(ByteBuffer byteBuffer, int index, boolean isBigTIFF) {
         DataEntry dataEntry = new DataEntry(isBigTIFF);
+        dataEntry.parseFields(byteBuffer, index);
+        return dataEntry;
+    }
+
+    /**
+     * DE对应的字节大小，标准TIFF为12个字节，BigTIFF为20个字节
+     */
+    static int byteSizeOf(boolean isBigTIFF) {
+        return isBigTIFF ? 20 : 12;
+    }
 
+    /**
+     * 值是否直接存放在DE中
+     */
+    boolean isValueInline() {
+        return this.getValueByteSize() <= this.valueOrOffsetByteSize;
+    }
+
+    /**
+     * 值对应的字节数
+     */
+    long getValueByteSize() {
+        return calcValueByteSize(this.type, this.count);
+    }
+
+    /**
+     * 值存放在偏移量处时，对应的偏移量
+     */
+    long getValueOffset() {
+        return this.valueOrOffset;
+    }
+
+    /**
+     * 将值按照target的字节序写入target的指定位置，用于写入IFD
+     *
+     * @param target 目标数据
+     * @param index 写入的起始位置
+     */
+    void writeValue(ByteBuffer target, int index) {
+        // RATIONAL的分子、分母分别按照32位整数转换字节序
+        int elementByteSize = this.type == TIFF.Type.RATIONAL || this.type == TIFF.Type.SRATIONAL ? 4 :
+                typeByteSize(this.type);
+
+        ByteBuffer payload = this.payload();
+        if (payload == null) {
+            // 值直接存放在DE中且只有一个值
+            FMBinaryUtil.putUnsigned(target, index, elementByteSize, this.valueOrOffset);
+            return;
+        }
+
+        int valueByteSize = toArrayLength(this.getValueByteSize());
+        if (payload.remaining() < valueByteSize) {
+            throw new IllegalArgumentException(String.format("DE的数据不完整，TAG：%s", this.tag));
+        }
+
+        int position = payload.position();
+        if (elementByteSize == 1 || payload.order() == target.order()) {
+            target.put(index, payload, position, valueByteSize);
+            return;
+        }
+
+        for (int i = 0; i < valueByteSize; i += elementByteSize) {
+            for (int b = 0; b < elementByteSize; b++) {
+                target.put(index + i + b, payload.get(position + i + elementByteSize - 1 - b));
+            }
+        }
+    }
+
+    void setData(ByteBuffer data) {
+        this.data = data;
+    }
+
+    /**
+     * 设置延迟读取值时使用的加载器，值会在第一次访问时读取
+     */
+    void setValueLoader(DataEntryValueLoader valueLoader) {
+        this.valueLoader = valueLoader;
+    }
+
+    /**
+     * 从内存中解析DE的TAG、类型、数值个数以及数据值或者偏移量
+     *
+     * @param byteBuffer DE所在的数据，字节序须与文件一致
+     * @param index DE在数据中的起始位置
+     */
+    private void parseFields(ByteBuffer byteBuffer, int index) {
         // 读取TAG
-        dataEntry.tag = FMIOUtil.readAsUnsignedInt(fileChannel, byteOrder, position, 2);
+        this.tag = FMBinaryUtil.getUnsignedShort(byteBuffer, index);
 
         // 读取类型
-        dataEntry.type = FMIOUtil.readAsUnsignedInt(fileChannel, byteOrder, position + 2, 2);
+        this.type = FMBinaryUtil.getUnsignedShort(byteBuffer, index + 2);
 
         // 读取数值个数
-        dataEntry.count =
-                FMIOUtil.readAsUnsignedInt(fileChannel, byteOrder, position + 4, dataEntry.valueCountByteSize);
+        this.count = FMBinaryUtil.getUnsigned(byteBuffer, index + 4, this.valueCountByteSize);
 
         // 读取DE的值
-        long valueByteSize = calcValueByteSize(dataEntry.type, dataEntry.count);
+        long valueByteSize = calcValueByteSize(this.type, this.count);
         if (valueByteSize <= 0) {
             throw new IllegalArgumentException(String.format("无效的 DE 值：%s", valueByteSize));
-        } else {
-            dataEntry.valueOrOffset = FMIOUtil.readAsUnsignedLong(fileChannel, byteOrder,
-                    position + 2 + 2 + dataEntry.valueCountByteSize, dataEntry.valueOrOffsetByteSize);
+        }
 
-            if (valueByteSize > dataEntry.valueOrOffsetByteSize) {
-                dataEntry.data = FMIOUtil.readAsByteBuffer(fileChannel, byteOrder, dataEntry.valueOrOffset, valueByteSize);
-            }
+        int valueIndex = index + 4 + this.valueCountByteSize;
+        if (valueByteSize > this.valueOrOffsetByteSize) {
+            this.valueOrOffset = FMBinaryUtil.getUnsigned(byteBuffer, valueIndex, this.valueOrOffsetByteSize);
+            return;
         }
 
-        return dataEntry;
+        // 值直接存放在DE中时，按照数据类型的长度读取第一个值，多个值或者非整数类型时保留原始数据
+        this.valueOrOffset = FMBinaryUtil.getUnsigned(byteBuffer, valueIndex, typeByteSize(this.type));
+        if (this.count > 1 || !isIntegralType(this.type) && this.type != TIFF.Type.FLOAT) {
+            byte[] valueBytes = new byte[(int) valueByteSize];
+            byteBuffer.get(valueIndex, valueBytes);
+            this.data = ByteBuffer.wrap(valueBytes).order(byteBuffer.order());
+        }
+    }
+    /**
+     * 校验数值个数能否存放在Java数组中
+     */
+    private static int toArrayLength(long count) {
+        if (count < 0 || count > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(String.format("数据量超出单个数组的容量：%s", count));
+        }
+
+        return (int) count;
+    }
+    private static boolean isIntegralType(int type) {
+        switch (type) {
+            case TIFF.Type.SHORT:
+            case TIFF.Type.LONG:
+            case TIFF.Type.IFD:
+            case TIFF.Type.LONG8:
+            case TIFF.Type.IFD8:
+                return true;
+            default:
+                return false;
+        }
     }
     private static long calcValueByteSize(int type, long count) {
+        return typeByteSize(type) * count;
+    }
+    static int typeByteSize(int type) {
         switch (type) {
             case TIFF.Type.BYTE:
             case TIFF.Type.SBYTE:
             case TIFF.Type.ASCII:
-                return count;
+            case TIFF.Type.UNDEFINED:
+                return 1;
             case TIFF.Type.SHORT:
             case TIFF.Type.SSHORT:
-                return count * 2L;
+                return 2;
             case TIFF.Type.LONG:
             case TIFF.Type.SLONG:
             case TIFF.Type.FLOAT:
-                return count * 4L;
+            case TIFF.Type.IFD:
+                return 4;
             case TIFF.Type.DOUBLE:
             case TIFF.Type.RATIONAL:
             case TIFF.Type.SRATIONAL:
-            case TIFF.Type.UNDEFINED:
-                return count * 8L;
+            case TIFF.Type.LONG8:
+            case TIFF.Type.SLONG8:
+            case TIFF.Type.IFD8:
+                return 8;
             default:
                 return 0;
         }
@@ -0,0 +1,138 @@
+package cn.funnymap.model.tiff;
+
+import cn.funnymap.io.ByteSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DE值加载器
+ *
+ * <p>
+ * 解析IFD时，字节数不超过{@link #getEagerLoadThreshold()}的DE值会被立即读取，
+ * 超过阈值的值（例如大型的STRIP_OFFSETS、XMP、JPEG_TABLES）只记录偏移量，在第一次访问时才读取。
+ * 延迟读取的结果保存在一个按字节数限制大小的LRU缓存中，同一个TIFFReader重复解析IFD时可以复用，
+ * DE本身不持有延迟读取的数据，因此不会因为长期持有IFD而占用大量内存。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/16 09:48
+ */
+public final class DataEntryValueLoader {
+    // 默认立即读取的阈值：16KB
+    public static final int DEFAULT_EAGER_LOAD_THRESHOLD = 16 * 1024;
+    // 默认缓存容量：8MB
+    public static final long DEFAULT_CACHE_CAPACITY = 8L * 1024 * 1024;
+
+    private final ByteSource byteSource;
+    private final ByteOrder byteOrder;
+    private volatile int eagerLoadThreshold;
+    private volatile long cacheCapacity;
+
+    // 缓存：值的偏移量 -> 值的数据
+    private final LinkedHashMap<Long, ByteBuffer> cache = new LinkedHashMap<>(16, 0.75F, true);
+    private long cachedByteSize = 0L;
+
+    public DataEntryValueLoader(ByteSource byteSource, ByteOrder byteOrder) {
+        this(byteSource, byteOrder, DEFAULT_EAGER_LOAD_THRESHOLD, DEFAULT_CACHE_CAPACITY);
+    }
+    public DataEntryValueLoader(ByteSource byteSource, ByteOrder byteOrder, int eagerLoadThreshold,
+                                long cacheCapacity) {
+        this.byteSource = byteSource;
+        this.byteOrder = byteOrder;
+        this.setEagerLoadThreshold(eagerLoadThreshold);
+        this.setCacheCapacity(cacheCapacity);
+    }
+
+    /**
+     * 创建一个立即读取全部DE值、且不缓存的加载器
+     */
+    static DataEntryValueLoader eager(ByteSource byteSource, ByteOrder byteOrder) {
+        return new DataEntryValueLoader(byteSource, byteOrder, Integer.MAX_VALUE, 0L);
+    }
+
+    public int getEagerLoadThreshold() {
+        return this.eagerLoadThreshold;
+    }
+
+    public void setEagerLoadThreshold(int eagerLoadThreshold) {
+        if (eagerLoadThreshold < 0) {
+            throw new IllegalArgumentException("立即读取的阈值不能小于0");
+        }
+
+        this.eagerLoadThreshold = eagerLoadThreshold;
+    }
+
+    public long getCacheCapacity() {
+        return this.cacheCapacity;
+    }
+
+    public synchronized void setCacheCapacity(long cacheCapacity) {
+        if (cacheCapacity < 0) {
+            throw new IllegalArgumentException("缓存容量不能小于0");
+        }
+
+        this.cacheCapacity = cacheCapacity;
+        this.evictIfNeeded();
+    }
+
+    ByteSource getByteSource() {
+        return this.byteSource;
+    }
+
+    ByteOrder getByteOrder() {
+        return this.byteOrder;
+    }
+
+    /**
+     * DE值是否需要在解析IFD时立即读取
+     */
+    boolean shouldLoadEagerly(long valueByteSize) {
+        return valueByteSize <= this.eagerLoadThreshold;
+    }
+
+    /**
+     * 读取DE存放在偏移量处的值
+     *
+     * @param offset 值的偏移量
+     * @param byteSize 值的字节数
+     * @return 值的数据，调用方不可修改其position、limit
+     * @throws IOException 读取数据时发生的异常
+     */
+    ByteBuffer load(long offset, int byteSize) throws IOException {
+        synchronized (this) {
+            ByteBuffer cached = this.cache.get(offset);
+            if (cached != null && cached.limit() == byteSize) {
+                return cached;
+            }
+        }
+
+        ByteBuffer value = this.byteSource.read(offset, byteSize, this.byteOrder);
+
+        synchronized (this) {
+            // 超出文件末尾时读取到的数据不完整，不缓存，否则永远不会命中
+            if (value.limit() == byteSize && byteSize <= this.cacheCapacity) {
+                ByteBuffer previous = this.cache.put(offset, value);
+                if (previous != null) {
+                    this.cachedByteSize -= previous.limit();
+                }
+                this.cachedByteSize += value.limit();
+                this.evictIfNeeded();
+            }
+        }
+
+        return value;
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<Long, ByteBuffer>> iterator = this.cache.entrySet().iterator();
+        while (this.cachedByteSize > this.cacheCapacity && iterator.hasNext()) {
+            this.cachedByteSize -= iterator.next().getValue().limit();
+            iterator.remove();
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package cn.funnymap.model.tiff;
 
-import cn.funnymap.utils.FMIOUtil;
+import cn.funnymap.utils.FMBinaryUtil;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author jiao xn
  * @date 2024/1/11 14:52
@@ -25,10 +27,13 @@ public final class GeoKey {
     }
 
     public static GeoKey fromDataEntry(DataEntry dataEntry, long offset) {
-        short keyId = FMIOUtil.getUnsignedShort(dataEntry.getData(), offset, 2);
-        int tiffTagLocation = FMIOUtil.getUnsignedShortAsInt(dataEntry.getData(), offset + 2, 2);
-        short count = FMIOUtil.getUnsignedShort(dataEntry.getData(), offset + 4, 2);
-        short valeOrOffset = FMIOUtil.getUnsignedShort(dataEntry.getData(), offset + 4, 2);
+        ByteBuffer data = dataEntry.getData();
+        int index = (int) offset;
+
+        short keyId = (short) FMBinaryUtil.getUnsignedShort(data, index);
+        int tiffTagLocation = FMBinaryUtil.getUnsignedShort(data, index + 2);
+        short count = (short) FMBinaryUtil.getUnsignedShort(data, index + 4);
+        short valeOrOffset = (short) FMBinaryUtil.getUnsignedShort(data, index + 6);
         return new GeoKey(keyId, tiffTagLocation, count, valeOrOffset);
     }
 }
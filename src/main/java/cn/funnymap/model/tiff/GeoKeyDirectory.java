@@ -22,7 +22,6 @@ public final class GeoKeyDirectory {
         GeoKeyDirectory geoKeyDirectory = new GeoKeyDirectory();
 
         // 读取基本信息
-        dataEntry.getData().rewind();
         short[] baseInfo = dataEntry.asShorts(4);
         geoKeyDirectory.keyDirectoryVersion = baseInfo[0];
         geoKeyDirectory.revision = String.format("%s.%s", baseInfo[1], baseInfo[2]);
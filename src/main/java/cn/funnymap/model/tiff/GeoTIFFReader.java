@@ -1,5 +1,6 @@
 package cn.funnymap.model.tiff;
 
+import cn.funnymap.io.ByteSource;
 import lombok.Getter;
 
 import java.io.IOException;
@@ -19,8 +20,11 @@ public class GeoTIFFReader extends TIFFReader {
     public GeoTIFFReader(FileChannel fileChannel) throws IOException {
         super(fileChannel);
     }
+    public GeoTIFFReader(ByteSource byteSource) throws IOException {
+        super(byteSource);
+    }
 
-    public void readAttributeFromGeoKeyDirectory() {
+    public synchronized void readAttributeFromGeoKeyDirectory() {
         this.readRelatedDataEntryList();
 
         this.geoKeyDirectory = GeoKeyDirectory.fromDataEntry(this.geoKeyDirectoryDataEntry);
@@ -31,12 +35,10 @@ public class GeoTIFFReader extends TIFFReader {
                     geoKey.setActualValue(geoKey.getValueOffset());
                     break;
                 case TIFF.Tag.GEO_DOUBLE_PARAMS:
-                    this.geoDoubleParamsDataEntry.getData().rewind();
                     double[] doubleValues = this.geoDoubleParamsDataEntry.getDoubles();
                     geoKey.setActualValue(doubleValues[geoKey.getValueOffset()]);
                     break;
                 case TIFF.Tag.GEO_ASCII_PARAMS:
-                    this.geoAsciiParamsDataEntry.getData().rewind();
                     String strValue = this.geoAsciiParamsDataEntry.getAsString();
                     StringBuilder stringBuilder = new StringBuilder();
                     for (int i = geoKey.getValueOffset(); i < strValue.length() - 1; i++) {
@@ -1,6 +1,8 @@
 package cn.funnymap.model.tiff;
 
-import cn.funnymap.utils.FMIOUtil;
+import cn.funnymap.io.ByteSource;
+import cn.funnymap.io.FileChannelSource;
+import cn.funnymap.utils.FMBinaryUtil;
 import lombok.Getter;
 
 import java.io.IOException;
@@ -8,7 +10,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * TIFF Image File Directory，TIFF图像文件目录
@@ -17,6 +22,11 @@ import java.util.List;
  * @date 2023/12/23 13:17
  */
 public final class ImageFileDirectory {
+    // 读取IFD时预读的字节数
+    private static final int SPECULATIVE_READ_SIZE = 4096;
+    // 合并读取DE值时，允许的最大间隔字节数
+    private static final int MAX_COALESCE_GAP = 4096;
+
     // IFD结构对应的字节大小
     private final int deCountByteSize;  // DataEntry总数对应的字节大小
     private final int deByteSize;  // 每个DataEntry对应的字节大小
@@ -38,30 +48,333 @@ public final class ImageFileDirectory {
 
     public static ImageFileDirectory fromFileChannel(FileChannel fileChannel, ByteOrder byteOrder, long offset,
                                                      boolean isBigTIFF) throws IOException {
+        return fromSource(new FileChannelSource(fileChannel), byteOrder, offset, isBigTIFF);
+    }
+    public static ImageFileDirectory fromSource(ByteSource byteSource, ByteOrder byteOrder, long offset,
+                                                boolean isBigTIFF) throws IOException {
+        return fromSource(DataEntryValueLoader.eager(byteSource, byteOrder), offset, isBigTIFF);
+    }
+
+    /**
+     * 读取IFD，存放在偏移量处的DE值按照加载器的阈值决定立即读取还是延迟读取
+     *
+     * @param valueLoader DE值加载器
+     * @param offset IFD的偏移量
+     * @param isBigTIFF 是否为BigTIFF
+     * @return IFD
+     * @throws IOException 读取数据时发生的异常
+     */
+    public static ImageFileDirectory fromSource(DataEntryValueLoader valueLoader, long offset,
+                                                boolean isBigTIFF) throws IOException {
+        ByteSource byteSource = valueLoader.getByteSource();
+        ByteOrder byteOrder = valueLoader.getByteOrder();
         ImageFileDirectory imageFileDirectory = new ImageFileDirectory(isBigTIFF);
 
-        // 读取DE的总数
-        long deCount = FMIOUtil.readAsUnsignedLong(fileChannel, byteOrder, offset, imageFileDirectory.deCountByteSize);
+        // 一次性读取整个IFD：DE的总数 + DE列表 + 下一个IFD的偏移量
+        ByteBuffer ifdByteBuffer = imageFileDirectory.readIfdBlock(byteSource, byteOrder, offset);
+        long deCount = FMBinaryUtil.getUnsigned(ifdByteBuffer, 0, imageFileDirectory.deCountByteSize);
 
-        // 读取DE列表
+        // 从内存中解析DE列表
         for (int i = 0; i < deCount; i++) {
-            long deOffset = offset + 2 + (long) imageFileDirectory.deByteSize * i;
-            DataEntry dataEntry = readDE(fileChannel, byteOrder, deOffset, isBigTIFF);
-            imageFileDirectory.dataEntries.add(dataEntry);
+            int deIndex = imageFileDirectory.deCountByteSize + imageFileDirectory.deByteSize * i;
+            imageFileDirectory.dataEntries.add(DataEntry.fromByteBuffer(ifdByteBuffer, deIndex, isBigTIFF));
         }
 
         // 读取下一个IFD的偏移量
-        imageFileDirectory.nextIFDOffset = readNextIfdOffset(fileChannel, offset + 12L * deCount + 2, byteOrder);
+        int nextIfdOffsetIndex = imageFileDirectory.deCountByteSize + imageFileDirectory.deByteSize * (int) deCount;
+        imageFileDirectory.nextIFDOffset =
+                FMBinaryUtil.getUnsigned(ifdByteBuffer, nextIfdOffsetIndex, imageFileDirectory.nextIfdOffsetByteSize);
+
+        // 读取存放在偏移量处的DE值
+        readOutOfLineValues(valueLoader, offset, ifdByteBuffer, imageFileDirectory.dataEntries);
 
         return imageFileDirectory;
     }
 
-    private static DataEntry readDE(FileChannel fileChannel, ByteOrder byteOrder, long offset, boolean isBigTIFF) throws IOException {
-        return DataEntry.fromFileChannel(fileChannel, byteOrder, offset, isBigTIFF);
+    /**
+     * 只读取IFD中下一个IFD的偏移量，不解析DE
+     *
+     * @param byteSource 数据源
+     * @param byteOrder 文件字节序
+     * @param offset IFD的偏移量
+     * @param isBigTIFF 是否为BigTIFF
+     * @return 下一个IFD的偏移量，为0时表示没有下一个IFD
+     * @throws IOException 读取数据时发生的异常
+     */
+    public static long readNextIFDOffset(ByteSource byteSource, ByteOrder byteOrder, long offset,
+                                         boolean isBigTIFF) throws IOException {
+        ImageFileDirectory imageFileDirectory = new ImageFileDirectory(isBigTIFF);
+
+        ByteBuffer deCountByteBuffer = byteSource.read(offset, imageFileDirectory.deCountByteSize, byteOrder);
+        if (deCountByteBuffer.limit() < imageFileDirectory.deCountByteSize) {
+            throw new IllegalArgumentException(String.format("无效的IFD偏移量：%s", offset));
+        }
+        long deCount = FMBinaryUtil.getUnsigned(deCountByteBuffer, 0, imageFileDirectory.deCountByteSize);
+
+        long nextIfdOffsetPosition =
+                offset + imageFileDirectory.deCountByteSize + (long) imageFileDirectory.deByteSize * deCount;
+        ByteBuffer nextIfdOffsetByteBuffer =
+                byteSource.read(nextIfdOffsetPosition, imageFileDirectory.nextIfdOffsetByteSize, byteOrder);
+        if (nextIfdOffsetByteBuffer.limit() < imageFileDirectory.nextIfdOffsetByteSize) {
+            throw new IllegalArgumentException(String.format("IFD数据不完整，偏移量：%s", offset));
+        }
+
+        return FMBinaryUtil.getUnsigned(nextIfdOffsetByteBuffer, 0, imageFileDirectory.nextIfdOffsetByteSize);
+    }
+
+    public void setNextIFDOffset(long nextIFDOffset) {
+        this.nextIFDOffset = nextIFDOffset;
+    }
+
+    /**
+     * DE的总数、DE列表以及下一个IFD的偏移量对应的字节数，不包含存放在偏移量处的DE值
+     */
+    public long getDirectoryByteSize() {
+        return this.deCountByteSize + (long) this.deByteSize * this.dataEntries.size() + this.nextIfdOffsetByteSize;
+    }
+
+    /**
+     * IFD写入文件时占用的字节数，包含存放在偏移量处的DE值，每个值补齐到偶数个字节
+     */
+    public long getByteSize() {
+        return this.getByteSize(Collections.emptySet());
+    }
+
+    /**
+     * IFD写入文件时占用的字节数，referencedEntries中存放在偏移量处的值已经在文件中，不占用空间
+     */
+    long getByteSize(Set<DataEntry> referencedEntries) {
+        long byteSize = this.getDirectoryByteSize();
+        for (DataEntry dataEntry : this.dataEntries) {
+            long valueByteSize = dataEntry.getValueByteSize();
+            if (!this.isValueInline(valueByteSize) && !referencedEntries.contains(dataEntry)) {
+                byteSize += valueByteSize + (valueByteSize & 1);
+            }
+        }
+
+        return byteSize;
+    }
+
+    /**
+     * 下一个IFD的偏移量在文件中的位置，用于写入后续IFD时回填
+     *
+     * @param offset 当前IFD的偏移量
+     * @return 位置
+     */
+    public long nextIFDOffsetPosition(long offset) {
+        return offset + this.getDirectoryByteSize() - this.nextIfdOffsetByteSize;
+    }
+
+    /**
+     * 将IFD编码为写入文件的数据
+     *
+     * <p>
+     * DE按照TAG升序排列，超出值字段长度的DE值依次存放在IFD之后，每个值从偶数位置开始。
+     * DE值的字节序与文件不同时按照数据类型转换。调用方需要保证offset为偶数。
+     * </p>
+     *
+     * @param offset IFD在文件中的偏移量
+     * @param byteOrder 文件字节序
+     * @return 编码结果，长度为{@link #getByteSize()}
+     */
+    public ByteBuffer encode(long offset, ByteOrder byteOrder) {
+        return this.encode(offset, byteOrder, Collections.emptySet());
+    }
+
+    /**
+     * 将IFD编码为写入文件的数据，referencedEntries中存放在偏移量处的值已经在文件中，DE直接引用原来的偏移量，
+     * 例如只修改部分DE后重写IFD时，条带偏移量等较大的值不需要再次写入
+     *
+     * @param offset IFD在文件中的偏移量
+     * @param byteOrder 文件字节序
+     * @param referencedEntries 引用文件中已有值的DE，按照对象比较
+     * @return 编码结果，长度为{@link #getByteSize(Set)}
+     */
+    ByteBuffer encode(long offset, ByteOrder byteOrder, Set<DataEntry> referencedEntries) {
+        long byteSize = this.getByteSize(referencedEntries);
+        if (byteSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("IFD数据过大：%s", byteSize));
+        }
+        if (this.nextIfdOffsetByteSize == 4 && offset + byteSize > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("标准TIFF的偏移量不能超过4GB，需要使用BigTIFF");
+        }
+
+        List<DataEntry> sortedEntries = new ArrayList<>(this.dataEntries);
+        sortedEntries.sort(Comparator.comparingInt(DataEntry::getTag));
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate((int) byteSize).order(byteOrder);
+        FMBinaryUtil.putUnsigned(byteBuffer, 0, this.deCountByteSize, sortedEntries.size());
+
+        int valueIndex = (int) this.getDirectoryByteSize();
+        for (int i = 0; i < sortedEntries.size(); i++) {
+            DataEntry dataEntry = sortedEntries.get(i);
+            if (i > 0 && sortedEntries.get(i - 1).getTag() == dataEntry.getTag()) {
+                throw new IllegalArgumentException(String.format("IFD中存在重复的TAG：%s", dataEntry.getTag()));
+            }
+
+            int deIndex = this.deCountByteSize + this.deByteSize * i;
+            long valueByteSize = dataEntry.getValueByteSize();
+            if (this.isValueInline(valueByteSize)) {
+                this.putEntry(byteBuffer, deIndex, dataEntry, 0L);
+            } else if (referencedEntries.contains(dataEntry)) {
+                this.putEntry(byteBuffer, deIndex, dataEntry, dataEntry.getValueOffset());
+            } else {
+                this.putEntry(byteBuffer, deIndex, dataEntry, offset + valueIndex);
+                dataEntry.writeValue(byteBuffer, valueIndex);
+                valueIndex += (int) (valueByteSize + (valueByteSize & 1));
+            }
+        }
+
+        FMBinaryUtil.putUnsigned(byteBuffer, (int) this.getDirectoryByteSize() - this.nextIfdOffsetByteSize,
+                this.nextIfdOffsetByteSize, this.nextIFDOffset);
+
+        return byteBuffer;
+    }
+
+    /**
+     * 编码单个DE，用于原地修改IFD中的DE
+     *
+     * @param dataEntry DE
+     * @param valueOffset 值存放在偏移量处时，值的偏移量
+     * @param byteOrder 文件字节序
+     * @return 编码结果，长度为DE的字节大小
+     */
+    ByteBuffer encodeEntry(DataEntry dataEntry, long valueOffset, ByteOrder byteOrder) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(this.deByteSize).order(byteOrder);
+        this.putEntry(byteBuffer, 0, dataEntry, valueOffset);
+
+        return byteBuffer;
+    }
+
+    /**
+     * 第index个DE在文件中的位置
+     *
+     * @param offset IFD的偏移量
+     * @param index DE在IFD中的下标
+     * @return 位置
+     */
+    long entryPosition(long offset, int index) {
+        return offset + this.deCountByteSize + (long) this.deByteSize * index;
+    }
+
+    /**
+     * 值字段是否能够直接存放该DE的值，与DE创建时指定的文件类型无关
+     */
+    boolean isValueInline(DataEntry dataEntry) {
+        return this.isValueInline(dataEntry.getValueByteSize());
+    }
+
+    private void putEntry(ByteBuffer byteBuffer, int deIndex, DataEntry dataEntry, long valueOffset) {
+        int valueFieldIndex = deIndex + 4 + this.nextIfdOffsetByteSize;
+        byteBuffer.putShort(deIndex, (short) dataEntry.getTag());
+        byteBuffer.putShort(deIndex + 2, (short) dataEntry.getType());
+        FMBinaryUtil.putUnsigned(byteBuffer, deIndex + 4, this.nextIfdOffsetByteSize, dataEntry.getCount());
+
+        if (this.isValueInline(dataEntry.getValueByteSize())) {
+            dataEntry.writeValue(byteBuffer, valueFieldIndex);
+        } else {
+            FMBinaryUtil.putUnsigned(byteBuffer, valueFieldIndex, this.nextIfdOffsetByteSize, valueOffset);
+        }
+    }
+
+    /**
+     * DE中值字段的长度与偏移量相同，标准TIFF为4个字节，BigTIFF为8个字节
+     */
+    private boolean isValueInline(long valueByteSize) {
+        return valueByteSize <= this.nextIfdOffsetByteSize;
     }
-    private static long readNextIfdOffset(FileChannel fileChannel, long offset, ByteOrder byteOrder) throws IOException {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(4).order(byteOrder);
-        FMIOUtil.readChannelToBuffer(fileChannel, byteBuffer, offset);
-        return FMIOUtil.getUnsignedLong(byteBuffer);
+
+    /**
+     * 读取IFD对应的数据块
+     *
+     * <p>
+     * 先按照{@link #SPECULATIVE_READ_SIZE}预读，大部分IFD都能在这一次读取中完整获取；
+     * 只有预读的数据不足以容纳全部DE时，才会再读取一次完整的IFD。
+     * </p>
+     */
+    private ByteBuffer readIfdBlock(ByteSource byteSource, ByteOrder byteOrder, long offset) throws IOException {
+        ByteBuffer byteBuffer = byteSource.read(offset, SPECULATIVE_READ_SIZE, byteOrder);
+        if (byteBuffer.limit() < this.deCountByteSize) {
+            throw new IllegalArgumentException(String.format("无效的IFD偏移量：%s", offset));
+        }
+
+        long deCount = FMBinaryUtil.getUnsigned(byteBuffer, 0, this.deCountByteSize);
+        long ifdByteSize = this.deCountByteSize + this.deByteSize * deCount + this.nextIfdOffsetByteSize;
+        if (ifdByteSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("无效的DE数量：%s", deCount));
+        }
+
+        if (byteBuffer.limit() < ifdByteSize) {
+            byteBuffer = byteSource.read(offset, (int) ifdByteSize, byteOrder);
+            if (byteBuffer.limit() < ifdByteSize) {
+                throw new IllegalArgumentException(String.format("IFD数据不完整，偏移量：%s", offset));
+            }
+        }
+
+        return byteBuffer;
+    }
+
+    /**
+     * 读取存放在偏移量处的DE值
+     *
+     * <p>
+     * 位于已读取的IFD数据块中的值直接切片获取；超过加载器阈值的值延迟到第一次访问时读取；其余的值按照偏移量排序，
+     * 相邻间隔不超过{@link #MAX_COALESCE_GAP}的值合并为一次读取，再切片分配给各个DE。
+     * </p>
+     */
+    private static void readOutOfLineValues(DataEntryValueLoader valueLoader, long ifdOffset,
+                                            ByteBuffer ifdByteBuffer, List<DataEntry> dataEntries)
+            throws IOException {
+        ByteSource byteSource = valueLoader.getByteSource();
+        ByteOrder byteOrder = valueLoader.getByteOrder();
+
+        List<DataEntry> pendingEntries = new ArrayList<>();
+        for (DataEntry dataEntry : dataEntries) {
+            if (dataEntry.isValueInline()) continue;
+
+            long relativeOffset = dataEntry.getValueOffset() - ifdOffset;
+            if (relativeOffset >= 0 && relativeOffset + dataEntry.getValueByteSize() <= ifdByteBuffer.limit()) {
+                dataEntry.setData(slice(ifdByteBuffer, relativeOffset, dataEntry.getValueByteSize(), byteOrder));
+            } else if (!valueLoader.shouldLoadEagerly(dataEntry.getValueByteSize())) {
+                dataEntry.setValueLoader(valueLoader);
+            } else {
+                pendingEntries.add(dataEntry);
+            }
+        }
+
+        pendingEntries.sort(Comparator.comparingLong(DataEntry::getValueOffset));
+
+        int groupStart = 0;
+        while (groupStart < pendingEntries.size()) {
+            long rangeStart = pendingEntries.get(groupStart).getValueOffset();
+            long rangeEnd = rangeStart + pendingEntries.get(groupStart).getValueByteSize();
+
+            // 合并相邻的值
+            int groupEnd = groupStart + 1;
+            while (groupEnd < pendingEntries.size()) {
+                DataEntry next = pendingEntries.get(groupEnd);
+                long nextEnd = Math.max(rangeEnd, next.getValueOffset() + next.getValueByteSize());
+                if (next.getValueOffset() - rangeEnd > MAX_COALESCE_GAP || nextEnd - rangeStart > Integer.MAX_VALUE) {
+                    break;
+                }
+
+                rangeEnd = nextEnd;
+                groupEnd++;
+            }
+
+            ByteBuffer rangeByteBuffer = byteSource.read(rangeStart, (int) (rangeEnd - rangeStart), byteOrder);
+            for (int i = groupStart; i < groupEnd; i++) {
+                DataEntry dataEntry = pendingEntries.get(i);
+                dataEntry.setData(slice(rangeByteBuffer, dataEntry.getValueOffset() - rangeStart,
+                        dataEntry.getValueByteSize(), byteOrder));
+            }
+
+            groupStart = groupEnd;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer byteBuffer, long index, long length, ByteOrder byteOrder) {
+        int sliceLength = (int) Math.min(length, Math.max(0L, byteBuffer.limit() - index));
+        return byteBuffer.slice((int) index, sliceLength).order(byteOrder);
     }
 }
@@ -0,0 +1,198 @@
+package cn.funnymap.model.tiff;
+
+import cn.funnymap.io.ByteSource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * TIFF文件中的IFD链
+ *
+ * <p>
+ * IFD按照nextIFDOffset依次链接，本类按需沿着链路发现IFD，只记录每一页IFD的偏移量，
+ * 不缓存已解析的IFD，因此内存占用只与已发现的页数成正比（每页一个偏移量）。
+ * 已发现的页可以按页码随机访问；访问尚未发现的页时，只读取中间各个IFD的DE数量和下一个IFD的偏移量，不解析DE。
+ * 链路中出现重复的偏移量时，视为循环链路并抛出异常。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/15 10:22
+ */
+public final class ImageFileDirectoryChain implements Iterable<ImageFileDirectory> {
+    // 下一个IFD的偏移量尚未读取
+    private static final long UNRESOLVED = -1L;
+
+    private final DataEntryValueLoader valueLoader;
+    private final boolean isBigTIFF;
+    private final long firstIFDOffset;
+
+    // 已发现的IFD偏移量，下标即页码
+    private final List<Long> offsets = new ArrayList<>();
+    private final Set<Long> visitedOffsets = new HashSet<>();
+    // 最后一个已发现的IFD中记录的下一个IFD的偏移量
+    private long lastNextIFDOffset = UNRESOLVED;
+
+    public ImageFileDirectoryChain(ByteSource byteSource, ByteOrder byteOrder, long firstIFDOffset,
+                                   boolean isBigTIFF) {
+        this(DataEntryValueLoader.eager(byteSource, byteOrder), firstIFDOffset, isBigTIFF);
+    }
+    public ImageFileDirectoryChain(DataEntryValueLoader valueLoader, long firstIFDOffset, boolean isBigTIFF) {
+        this.valueLoader = valueLoader;
+        this.firstIFDOffset = firstIFDOffset;
+        this.isBigTIFF = isBigTIFF;
+    }
+
+    /**
+     * 读取指定页的IFD
+     *
+     * @param pageIndex 页码，从0开始
+     * @return IFD
+     * @throws IOException 读取数据时发生的异常
+     */
+    public ImageFileDirectory get(int pageIndex) throws IOException {
+        long offset = this.offsetOf(pageIndex);
+
+        ImageFileDirectory imageFileDirectory =
+                ImageFileDirectory.fromSource(this.valueLoader, offset, this.isBigTIFF);
+
+        // 顺序遍历时，记录下一个IFD的偏移量，避免发现下一页时重复读取
+        synchronized (this) {
+            if (pageIndex == this.offsets.size() - 1 && this.lastNextIFDOffset == UNRESOLVED) {
+                this.lastNextIFDOffset = imageFileDirectory.getNextIFDOffset();
+            }
+        }
+
+        return imageFileDirectory;
+    }
+
+    /**
+     * 获取指定页的IFD的偏移量
+     *
+     * @param pageIndex 页码，从0开始
+     * @return IFD的偏移量
+     * @throws IOException 读取数据时发生的异常
+     */
+    public synchronized long offsetOf(int pageIndex) throws IOException {
+        if (!this.hasPage(pageIndex)) {
+            throw new IndexOutOfBoundsException(String.format("页码超出范围：%s，总页数：%s", pageIndex,
+                    this.offsets.size()));
+        }
+
+        return this.offsets.get(pageIndex);
+    }
+
+    /**
+     * 指定的页是否存在，必要时会沿着链路继续发现IFD
+     *
+     * @param pageIndex 页码，从0开始
+     * @return 是否存在
+     * @throws IOException 读取数据时发生的异常
+     */
+    public synchronized boolean hasPage(int pageIndex) throws IOException {
+        if (pageIndex < 0) {
+            return false;
+        }
+
+        while (this.offsets.size() <= pageIndex) {
+            if (!this.discoverNext()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 遍历整个链路获取总页数，只读取各个IFD的DE数量和下一个IFD的偏移量
+     *
+     * @return 总页数
+     * @throws IOException 读取数据时发生的异常
+     */
+    public synchronized int size() throws IOException {
+        while (this.discoverNext()) {
+            // 持续发现，直到链路结束
+        }
+
+        return this.offsets.size();
+    }
+
+    /**
+     * 已经发现的页数
+     */
+    public synchronized int discoveredSize() {
+        return this.offsets.size();
+    }
+
+    @Override
+    public Iterator<ImageFileDirectory> iterator() {
+        return new Iterator<ImageFileDirectory>() {
+            private int pageIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    return hasPage(this.pageIndex);
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            }
+
+            @Override
+            public ImageFileDirectory next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                try {
+                    return get(this.pageIndex++);
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Spliterator<ImageFileDirectory> spliterator() {
+        return Spliterators.spliteratorUnknownSize(this.iterator(),
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+    }
+
+    public Stream<ImageFileDirectory> stream() {
+        return StreamSupport.stream(this.spliterator(), false);
+    }
+
+    private boolean discoverNext() throws IOException {
+        long nextOffset;
+        if (this.offsets.isEmpty()) {
+            nextOffset = this.firstIFDOffset;
+        } else if (this.lastNextIFDOffset != UNRESOLVED) {
+            nextOffset = this.lastNextIFDOffset;
+        } else {
+            long lastOffset = this.offsets.get(this.offsets.size() - 1);
+            nextOffset = ImageFileDirectory.readNextIFDOffset(this.valueLoader.getByteSource(),
+                    this.valueLoader.getByteOrder(), lastOffset, this.isBigTIFF);
+            this.lastNextIFDOffset = nextOffset;
+        }
+
+        if (nextOffset == 0L) {
+            return false;
+        }
+
+        if (nextOffset < 0L || nextOffset >= this.valueLoader.getByteSource().size()) {
+            throw new IllegalArgumentException(String.format("无效的IFD偏移量：%s", nextOffset));
+        }
+        if (!this.visitedOffsets.add(nextOffset)) {
+            throw new IllegalStateException(String.format("IFD链路中存在循环，重复的偏移量：%s", nextOffset));
+        }
+
+        this.offsets.add(nextOffset);
+        this.lastNextIFDOffset = UNRESOLVED;
+
+        return true;
+    }
+}
@@ -1,6 +1,8 @@
 package cn.funnymap.model.tiff;
 
-import cn.funnymap.utils.FMIOUtil;
+import cn.funnymap.io.ByteSource;
+import cn.funnymap.io.FileChannelSource;
+import cn.funnymap.utils.FMBinaryUtil;
 import lombok.Getter;
 
 import java.io.IOException;
@@ -29,43 +31,55 @@ public final class ImageFileHeader {
     }
 
     public static ImageFileHeader readFromFileChannel(FileChannel tiffFileChannel) throws IOException {
-        tiffFileChannel.position(0L);
+        return readFromSource(new FileChannelSource(tiffFileChannel));
+    }
+    public static ImageFileHeader readFromSource(ByteSource byteSource) throws IOException {
+        // 一次性读取文件头，标准TIFF为8个字节，BigTIFF为16个字节
+        ByteBuffer byteBuffer = byteSource.read(0L, TIFF.IFH.BIG_TIFF_BYTE_SIZE, ByteOrder.BIG_ENDIAN);
+
+        return fromByteBuffer(byteBuffer);
+    }
+
+    /**
+     * 从文件起始位置的数据中解析文件头
+     *
+     * @param byteBuffer 文件起始位置的数据，至少包含8个字节
+     * @return 文件头
+     */
+    public static ImageFileHeader fromByteBuffer(ByteBuffer byteBuffer) {
+        if (byteBuffer.limit() < TIFF.IFH.BYTE_SIZE) {
+            throw new IllegalArgumentException("无效的TIFF文件：文件头长度不足");
+        }
 
         // 读取文件字节序
-        ByteOrder byteOrder = readByteOrder(tiffFileChannel);
+        ByteOrder byteOrder = readByteOrder(byteBuffer);
+        byteBuffer.order(byteOrder);
         // 读取文件标识
-        int identifier = readIdentifier(tiffFileChannel, byteOrder);
+        int identifier = readIdentifier(byteBuffer);
 
         // 如果是BigTIFF，校验其IFH中特有的属性
         if (TIFF.BIG_TIFF_IDENTIFIER == identifier) {
-            validBigTIFFAttribute(tiffFileChannel, byteOrder);
+            validBigTIFFAttribute(byteBuffer);
         }
 
         // 读取第一个IFD的偏移量
-        long firstIfdOffset = readFirstIfdOffset(tiffFileChannel, byteOrder, identifier);
+        long firstIfdOffset = readFirstIfdOffset(byteBuffer, identifier);
 
         return new ImageFileHeader(byteOrder, identifier, firstIfdOffset);
     }
-    private static ByteOrder readByteOrder(FileChannel tiffFileChannel) throws IOException {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(2);
-        FMIOUtil.readChannelToBuffer(tiffFileChannel, byteBuffer, 0);
-        String endian = FMIOUtil.byte2Hex(byteBuffer);
-        return byteOrderFromEndian(endian);
-    }
-    private static ByteOrder byteOrderFromEndian(String endian) {
-        if (TIFF.IFH.LITTLE_ENDIAN_HEX.equals(endian)) {
+    private static ByteOrder readByteOrder(ByteBuffer byteBuffer) {
+        int endian = FMBinaryUtil.getUnsignedByte(byteBuffer, 0) << 8 | FMBinaryUtil.getUnsignedByte(byteBuffer, 1);
+
+        if (TIFF.IFH.LITTLE_ENDIAN_MARK == endian) {
             return ByteOrder.LITTLE_ENDIAN;
-        } else if (TIFF.IFH.BIG_ENDIAN_HEX.equalsIgnoreCase(endian)) {
+        } else if (TIFF.IFH.BIG_ENDIAN_MARK == endian) {
             return ByteOrder.BIG_ENDIAN;
         }
 
-        throw new IllegalArgumentException(String.format("无效的TIFF文件字节序：%s", endian));
+        throw new IllegalArgumentException(String.format("无效的TIFF文件字节序：%04X", endian));
     }
-    private static int readIdentifier(FileChannel tiffFileChannel, ByteOrder byteOrder) throws IOException {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(2).order(byteOrder);
-        FMIOUtil.readChannelToBuffer(tiffFileChannel, byteBuffer, 2);
-
-        int identifier = FMIOUtil.getUnsignedShort(byteBuffer);
+    private static int readIdentifier(ByteBuffer byteBuffer) {
+        int identifier = FMBinaryUtil.getUnsignedShort(byteBuffer, 2);
 
         // 标准TIFF文件标识为42，BigTIFF文件标识为43
         // 详细描述：http://www.awaresystems.be/imaging/tiff/bigtiff.html
@@ -76,35 +90,28 @@ public final class ImageFileHeader {
 
         return identifier;
     }
-    private static void validBigTIFFAttribute(FileChannel tiffFileChannel, ByteOrder byteOrder) throws IOException {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(4).order(byteOrder);
-        FMIOUtil.readChannelToBuffer(tiffFileChannel, byteBuffer, 4);
-
-        int offset = FMIOUtil.getUnsignedShort(byteBuffer);
-        if (offset != 8) {
-            throw new IllegalArgumentException(String.format("无效的BigTIFF Offset：%s", offset));
+    private static void validBigTIFFAttribute(ByteBuffer byteBuffer) {
+        if (byteBuffer.limit() < TIFF.IFH.BIG_TIFF_BYTE_SIZE) {
+            throw new IllegalArgumentException("无效的BigTIFF文件：文件头长度不足");
         }
 
-        byteBuffer = ByteBuffer.allocate(2).order(byteOrder);
-        FMIOUtil.readChannelToBuffer(tiffFileChannel, byteBuffer, 4);
+        // 偏移量的字节大小，固定为8
+        int offsetByteSize = FMBinaryUtil.getUnsignedShort(byteBuffer, 4);
+        if (offsetByteSize != 8) {
+            throw new IllegalArgumentException(String.format("无效的BigTIFF Offset：%s", offsetByteSize));
+        }
 
-        int padding = FMIOUtil.getUnsignedShort(byteBuffer);
+        // 保留字段，固定为0
+        int padding = FMBinaryUtil.getUnsignedShort(byteBuffer, 6);
         if (padding != 0) {
-            throw new IllegalArgumentException(String.format("无效的BigTIFF Padding：%s", offset));
+            throw new IllegalArgumentException(String.format("无效的BigTIFF Padding：%s", padding));
         }
     }
-    private static long readFirstIfdOffset(FileChannel tiffFileChannel, ByteOrder byteOrder, int identifier)
-            throws IOException {
-        ByteBuffer byteBuffer;
-
+    private static long readFirstIfdOffset(ByteBuffer byteBuffer, int identifier) {
         if (TIFF.TIFF_IDENTIFIER == identifier) {
-            byteBuffer = ByteBuffer.allocate(4).order(byteOrder);
-            FMIOUtil.readChannelToBuffer(tiffFileChannel, byteBuffer, 4);
-        } else {
-            byteBuffer = ByteBuffer.allocate(8).order(byteOrder);
-            FMIOUtil.readChannelToBuffer(tiffFileChannel, byteBuffer, 8);
+            return FMBinaryUtil.getUnsignedInt(byteBuffer, 4);
         }
 
-        return FMIOUtil.getUnsignedLong(byteBuffer);
+        return FMBinaryUtil.getUnsignedLong(byteBuffer, 8);
     }
 }
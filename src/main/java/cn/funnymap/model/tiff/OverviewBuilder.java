@@ -0,0 +1,532 @@
+package cn.funnymap.model.tiff;
+
+import cn.funnymap.compression.CodecRegistry;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 生成概视图（金字塔），只遍历一次全分辨率图像即可同时生成全部级别
+ *
+ * <p>
+ * 每一级的宽高为上一级的一半（向上取整），由上一级的2 x 2个像素重采样得到。全分辨率图像的行依次进入第1级的缓冲区，
+ * 缓冲区满后生成的行一方面写入第1级的图像，另一方面进入第2级的缓冲区，依此类推，因此内存占用只与缓冲区大小有关。
+ * 各级图像通过{@link TIFFWriter#openImage(TIFFImageSpec)}同时写入，条带或瓦片在文件中交错存放，
+ * 结束后按照级别顺序追加NewSubfileType为1的IFD。
+ * </p>
+ *
+ * <p>
+ * 设置线程池后，每个缓冲区按照通道和输出行切分为多个任务并行重采样。实例不是线程安全的。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/30 10:20
+ */
+public final class OverviewBuilder {
+    // 每一级缓冲的输入数据的字节数
+    private static final int BUFFER_BYTE_SIZE = 4 * 1024 * 1024;
+    // 每个并行任务处理的输出行数
+    private static final int ROWS_PER_TASK = 16;
+    // 默认生成概视图直到宽和高都不超过该值
+    private static final long DEFAULT_MIN_SIZE = 256;
+
+    /**
+     * 重采样方式
+     */
+    public enum Resampling {
+        // 取左上角的像素
+        NEAREST,
+        // 取平均值，整数四舍五入
+        AVERAGE,
+        // 取出现次数最多的值，次数相同时取左上角的像素，适用于分类数据
+        MODE
+    }
+
+    private final TIFFImageSpec spec;
+    @Getter
+    private final Resampling resampling;
+    // 各级概视图的属性，第0个为第1级
+    @Getter
+    private final List<TIFFImageSpec> levelSpecs;
+    private final int samples;
+    private final int bytesPerSample;
+    private ExecutorService executor;
+
+    private Level[] levels;
+    private ByteOrder byteOrder;
+
+    /**
+     * @param spec 全分辨率图像的属性，概视图使用相同的压缩方式、Predictor和条带或瓦片大小
+     * @param levelCount 概视图的级数，小于等于0时生成到宽和高都不超过256
+     * @param resampling 重采样方式
+     * @throws IllegalArgumentException 位深不是8的倍数，或者对64位整数、16位浮点数取平均值时抛出
+     */
+    public OverviewBuilder(TIFFImageSpec spec, int levelCount, Resampling resampling) {
+        int bits = spec.getBitsPerSample()[0];
+        if (bits % 8 != 0) {
+            throw new IllegalArgumentException("生成概视图时位深必须是8的倍数：" + bits);
+        }
+        if (resampling == Resampling.AVERAGE && bits == 64 && spec.getSampleFormat() != TIFF.SampleFormat.IEEEFLOAT) {
+            throw new IllegalArgumentException("64位整数不支持取平均值");
+        }
+        if (resampling == Resampling.AVERAGE && bits == 16 && spec.getSampleFormat() == TIFF.SampleFormat.IEEEFLOAT) {
+            throw new IllegalArgumentException("16位浮点数不支持取平均值");
+        }
+
+        int effectiveLevelCount = levelCount > 0 ? levelCount :
+                defaultLevelCount(spec.getWidth(), spec.getHeight(), DEFAULT_MIN_SIZE);
+        List<TIFFImageSpec> specs = new ArrayList<>();
+        long width = spec.getWidth();
+        long height = spec.getHeight();
+        for (int level = 1; level <= effectiveLevelCount; level++) {
+            if (width == 1 && height == 1) {
+                break;
+            }
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            specs.add(spec.reduced(width, height));
+        }
+
+        this.spec = spec;
+        this.resampling = resampling;
+        this.levelSpecs = Collections.unmodifiableList(specs);
+        this.samples = spec.getSamplesPerPixel();
+        this.bytesPerSample = bits / 8;
+    }
+
+    /**
+     * 概视图的级数，每一级的宽高为上一级的一半，直到宽和高都不超过minSize
+     */
+    public static int defaultLevelCount(long width, long height, long minSize) {
+        int levelCount = 0;
+        while (width > minSize || height > minSize) {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            levelCount++;
+        }
+
+        return levelCount;
+    }
+
+    /**
+     * 为已有文件的第一幅图像生成概视图，追加到文件末尾，只读取一次全分辨率图像
+     *
+     * @param path 文件路径
+     * @param levelCount 概视图的级数，小于等于0时生成到宽和高都不超过256
+     * @param resampling 重采样方式
+     * @param executor 解码、重采样以及压缩时使用的线程池，为null时在调用线程中重采样和压缩
+     * @return 生成的概视图级数
+     * @throws IOException 读写文件时发生的异常
+     * @throws IllegalArgumentException 通道分开存储、YCbCr数据未使用JPEG压缩，或者压缩方式不支持编码时抛出，此时文件未被修改
+     */
+    public static int addOverviews(Path path, int levelCount, Resampling resampling, ExecutorService executor)
+            throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            TIFFReader tiffReader = new TIFFReader(fileChannel);
+            TIFFTag tiffTag = tiffReader.readAttribute(0);
+            TIFFImageSpec spec = overviewSpecOf(tiffTag);
+            OverviewBuilder overviewBuilder = new OverviewBuilder(spec, levelCount, resampling);
+
+            try (TIFFWriter tiffWriter = TIFFWriter.openForAppend(path)) {
+                return overviewBuilder.addOverviews(tiffReader, tiffTag, tiffWriter, executor);
+            }
+        }
+    }
+
+    /**
+     * 根据全分辨率图像的属性生成概视图使用的属性，并检查压缩方式能否编码
+     */
+    private static TIFFImageSpec overviewSpecOf(TIFFTag tiffTag) {
+        if (tiffTag.getSamplesPerPixel() > 1 && tiffTag.getPlanarConfig() == TIFF.PlanarConfiguration.PLANAR) {
+            throw new IllegalArgumentException("不支持通道分开存储的图像");
+        }
+
+        // JPEG压缩的YCbCr数据读取后为RGB
+        int compression = tiffTag.getCompression();
+        int photometric = tiffTag.getPhotometric() >= 0 ? tiffTag.getPhotometric() : TIFF.Photometric.BIZ;
+        if (photometric == TIFF.Photometric.YCBCR) {
+            if (compression != TIFF.Compression.JPEG && compression != TIFF.Compression.NEW_JPEG) {
+                throw new IllegalArgumentException("不支持未使用JPEG压缩的YCbCr图像");
+            }
+            photometric = TIFF.Photometric.RGB;
+        }
+
+        short[] sampleFormat = tiffTag.getSampleFormat();
+        TIFFImageSpec spec = new TIFFImageSpec(tiffTag.getWidth(), tiffTag.getHeight(), tiffTag.getBitsPerSample())
+                .setCompression(compression).setPredictor(tiffTag.getPredictor()).setPhotometric(photometric)
+                .setSampleFormat(sampleFormat != null ? sampleFormat[0] : TIFF.SampleFormat.UNSIGNED);
+        if (tiffTag.isTiled()) {
+            spec.setTileSize(tiffTag.getTileWidth(), tiffTag.getTileLength());
+        }
+
+        if (!CodecRegistry.getDefault().get(compression).canEncode()) {
+            throw new IllegalArgumentException("生成概视图时压缩方式不支持编码：" + compression);
+        }
+
+        return spec;
+    }
+
+    /**
+     * 读取全分辨率图像并写入各级概视图
+     */
+    private int addOverviews(TIFFReader tiffReader, TIFFTag tiffTag, TIFFWriter tiffWriter, ExecutorService executor)
+            throws IOException {
+        if (executor != null) {
+            tiffReader.setDecodeExecutor(executor);
+            tiffWriter.setEncodeExecutor(executor, 4);
+            this.setExecutor(executor);
+        }
+
+        // 按照条带或一行瓦片依次读取全分辨率图像
+        long step = tiffTag.isTiled() ? tiffTag.getTileLength() :
+                tiffTag.getRowsPerStrip() > 0 ? tiffTag.getRowsPerStrip() : tiffTag.getHeight();
+        step = Math.max(1, Math.min(step, BUFFER_BYTE_SIZE / this.spec.getRowByteSize()));
+        this.begin(tiffWriter);
+        for (long y = 0; y < tiffTag.getHeight(); y += step) {
+            int rows = (int) Math.min(step, tiffTag.getHeight() - y);
+            byte[] window = tiffReader.readWindow(tiffTag, 0, y, (int) tiffTag.getWidth(), rows);
+            this.addRows(ByteBuffer.wrap(window).order(tiffWriter.getByteOrder()));
+        }
+        for (ImageFileDirectory imageFileDirectory : this.finish()) {
+            tiffWriter.writeIFD(imageFileDirectory);
+        }
+
+        return this.levelSpecs.size();
+    }
+
+    /**
+     * 设置并行重采样时使用的线程池，线程池由调用方负责关闭
+     *
+     * @param executor 线程池，为null时在调用线程中重采样
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 开始生成概视图，在写入器中同时打开各级概视图
+     *
+     * @param tiffWriter 写入器，可以同时写入全分辨率图像
+     */
+    public void begin(TIFFWriter tiffWriter) {
+        if (this.levels != null) {
+            throw new IllegalStateException("已经开始生成概视图");
+        }
+
+        this.byteOrder = tiffWriter.getByteOrder();
+        this.levels = new Level[this.levelSpecs.size()];
+        TIFFImageSpec source = this.spec;
+        for (int i = 0; i < this.levels.length; i++) {
+            TIFFImageSpec target = this.levelSpecs.get(i);
+            this.levels[i] = new Level(i, source, target, tiffWriter.openImage(target));
+            source = target;
+        }
+    }
+
+    /**
+     * 输入全分辨率图像的像素数据，数据按行连续存放，可以在行的中间分割
+     *
+     * <p>
+     * 多字节样本按照rows的字节序解释，与文件字节序不同时转换，此时每次输入的字节数必须是样本字节数的整数倍。
+     * 输入后rows的position移动到limit。
+     * </p>
+     *
+     * @param rows 像素数据
+     * @throws IOException 写入概视图时发生的异常
+     */
+    public void addRows(ByteBuffer rows) throws IOException {
+        if (this.levels == null) {
+            throw new IllegalStateException("需要先调用begin");
+        }
+        if (rows.remaining() % this.bytesPerSample != 0) {
+            throw new IllegalArgumentException("输入的字节数必须是样本字节数的整数倍");
+        }
+
+        if (this.levels.length == 0) {
+            rows.position(rows.limit());
+            return;
+        }
+        this.levels[0].addInput(rows, this.bytesPerSample > 1 && rows.order() != this.byteOrder);
+    }
+
+    /**
+     * 结束生成，写入各级剩余的行，返回尚未写入文件的IFD，由调用方依次写入
+     *
+     * @return 各级概视图的IFD，第0个为第1级
+     * @throws IOException 写入概视图时发生的异常
+     * @throws IllegalStateException 全分辨率图像的像素数据不完整时抛出
+     */
+    public List<ImageFileDirectory> finish() throws IOException {
+        if (this.levels == null) {
+            throw new IllegalStateException("需要先调用begin");
+        }
+
+        List<ImageFileDirectory> imageFileDirectories = new ArrayList<>();
+        for (Level level : this.levels) {
+            level.flush();
+            imageFileDirectories.add(level.imageStream.finish());
+        }
+        this.levels = null;
+
+        return imageFileDirectories;
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks) throws IOException {
+        try {
+            for (Future<Void> future : this.executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("生成概视图时线程被中断");
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("生成概视图时发生异常", cause);
+        }
+    }
+
+    /**
+     * 读取一个样本的原始位，按无符号整数返回
+     */
+    private long readRaw(ByteBuffer byteBuffer, int index) {
+        switch (this.bytesPerSample) {
+            case 1:
+                return byteBuffer.get(index) & 0xFFL;
+            case 2:
+                return byteBuffer.getShort(index) & 0xFFFFL;
+            case 4:
+                return byteBuffer.getInt(index) & 0xFFFFFFFFL;
+            case 8:
+                return byteBuffer.getLong(index);
+            default:
+                // 3个字节等非常见的位深按照字节序逐字节组合
+                long value = 0;
+                for (int i = 0; i < this.bytesPerSample; i++) {
+                    int b = byteBuffer.get(index + i) & 0xFF;
+                    value |= (long) b << (byteBuffer.order() == ByteOrder.BIG_ENDIAN ?
+                            8 * (this.bytesPerSample - 1 - i) : 8 * i);
+                }
+                return value;
+        }
+    }
+
+    private void writeRaw(ByteBuffer byteBuffer, int index, long value) {
+        switch (this.bytesPerSample) {
+            case 1:
+                byteBuffer.put(index, (byte) value);
+                break;
+            case 2:
+                byteBuffer.putShort(index, (short) value);
+                break;
+            case 4:
+                byteBuffer.putInt(index, (int) value);
+                break;
+            case 8:
+                byteBuffer.putLong(index, value);
+                break;
+            default:
+                for (int i = 0; i < this.bytesPerSample; i++) {
+                    int shift = byteBuffer.order() == ByteOrder.BIG_ENDIAN ? 8 * (this.bytesPerSample - 1 - i) : 8 * i;
+                    byteBuffer.put(index + i, (byte) (value >>> shift));
+                }
+        }
+    }
+
+    /**
+     * 将窗口中的n个样本合并为一个样本
+     */
+    private long combine(long[] window, int n) {
+        switch (this.resampling) {
+            case NEAREST:
+                return window[0];
+            case MODE:
+                long mode = window[0];
+                int modeCount = 0;
+                for (int i = 0; i < n; i++) {
+                    int count = 0;
+                    for (int j = 0; j < n; j++) {
+                        if (window[j] == window[i]) {
+                            count++;
+                        }
+                    }
+                    if (count > modeCount) {
+                        mode = window[i];
+                        modeCount = count;
+                    }
+                }
+                return mode;
+            default:
+                return this.average(window, n);
+        }
+    }
+
+    private long average(long[] window, int n) {
+        int bits = this.bytesPerSample * 8;
+        if (this.spec.getSampleFormat() == TIFF.SampleFormat.IEEEFLOAT) {
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += bits == 32 ? Float.intBitsToFloat((int) window[i]) : Double.longBitsToDouble(window[i]);
+            }
+            return bits == 32 ? Float.floatToRawIntBits((float) (sum / n)) & 0xFFFFFFFFL :
+                    Double.doubleToRawLongBits(sum / n);
+        }
+
+        boolean isSigned = this.spec.getSampleFormat() == TIFF.SampleFormat.SIGNED;
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += isSigned ? window[i] << (64 - bits) >> (64 - bits) : window[i];
+        }
+
+        // 四舍五入
+        return Math.floorDiv(2 * sum + n, 2L * n);
+    }
+
+    /**
+     * 一级概视图，缓冲上一级的行，每满偶数行生成一半的行
+     */
+    private final class Level {
+        // 在levels中的位置，0为第1级
+        private final int index;
+        private final long sourceWidth;
+        private final long sourceHeight;
+        private final int sourceRowByteSize;
+        private final int width;
+        private final int rowByteSize;
+        private final TIFFWriter.ImageStream imageStream;
+        // 上一级的行，行数为偶数
+        private final ByteBuffer input;
+        private final ByteBuffer output;
+        private long receivedRows = 0;
+
+        private Level(int index, TIFFImageSpec source, TIFFImageSpec target, TIFFWriter.ImageStream imageStream) {
+            this.index = index;
+            this.sourceWidth = source.getWidth();
+            this.sourceHeight = source.getHeight();
+            this.sourceRowByteSize = source.getRowByteSize();
+            this.width = (int) target.getWidth();
+            this.rowByteSize = target.getRowByteSize();
+            this.imageStream = imageStream;
+
+            long inputRows = Math.max(2, BUFFER_BYTE_SIZE / this.sourceRowByteSize) & ~1L;
+            inputRows = Math.min(inputRows, this.sourceHeight + (this.sourceHeight & 1));
+            this.input = ByteBuffer.allocate((int) (inputRows * this.sourceRowByteSize)).order(byteOrder);
+            this.output = ByteBuffer.allocate((int) (inputRows / 2 * this.rowByteSize)).order(byteOrder);
+        }
+
+        private void addInput(ByteBuffer rows, boolean isSwapped) throws IOException {
+            if (this.receivedRows * this.sourceRowByteSize + this.input.position() + rows.remaining() >
+                    this.sourceHeight * this.sourceRowByteSize) {
+                throw new IllegalArgumentException("输入的数据超出图像大小");
+            }
+
+            while (rows.hasRemaining()) {
+                int length = Math.min(rows.remaining(), this.input.remaining());
+                int bufferPosition = this.input.position();
+                this.input.put(bufferPosition, rows, rows.position(), length);
+                if (isSwapped) {
+                    TIFFWriter.swapBytes(this.input, bufferPosition, length, bytesPerSample);
+                }
+                rows.position(rows.position() + length);
+                this.input.position(bufferPosition + length);
+
+                if (!this.input.hasRemaining()) {
+                    this.reduce();
+                }
+            }
+        }
+
+        /**
+         * 输入结束后处理剩余的行，最后一行没有相邻行时只使用该行
+         */
+        private void flush() throws IOException {
+            if (this.input.position() % this.sourceRowByteSize != 0 ||
+                    this.receivedRows + this.input.position() / this.sourceRowByteSize != this.sourceHeight) {
+                throw new IllegalStateException("图像的像素数据不完整");
+            }
+            if (this.input.position() > 0) {
+                this.reduce();
+            }
+        }
+
+        /**
+         * 重采样缓冲的行，写入当前级别并输入下一级
+         */
+        private void reduce() throws IOException {
+            int inputRows = this.input.position() / this.sourceRowByteSize;
+            int outputRows = (inputRows + 1) / 2;
+
+            if (executor == null || outputRows * (long) this.width < 4096) {
+                this.reduceRows(inputRows, 0, outputRows, 0, samples);
+            } else {
+                // 按照通道和输出行切分任务
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (int band = 0; band < samples; band++) {
+                    for (int fromRow = 0; fromRow < outputRows; fromRow += ROWS_PER_TASK) {
+                        int taskBand = band;
+                        int taskFromRow = fromRow;
+                        int taskToRow = Math.min(fromRow + ROWS_PER_TASK, outputRows);
+                        tasks.add(() -> {
+                            this.reduceRows(inputRows, taskFromRow, taskToRow, taskBand, taskBand + 1);
+                            return null;
+                        });
+                    }
+                }
+                invokeAll(tasks);
+            }
+
+            this.receivedRows += inputRows;
+            this.input.clear();
+
+            ByteBuffer result = this.output.duplicate().order(byteOrder).limit(outputRows * this.rowByteSize);
+            this.imageStream.writeRows(result.duplicate().order(byteOrder));
+            if (this.index + 1 < levels.length) {
+                levels[this.index + 1].addInput(result, false);
+            }
+        }
+
+        private void reduceRows(int inputRows, int fromRow, int toRow, int fromBand, int toBand) {
+            long[] window = new long[4];
+            int pixelByteSize = samples * bytesPerSample;
+            for (int y = fromRow; y < toRow; y++) {
+                int top = 2 * y * this.sourceRowByteSize;
+                boolean hasBottom = 2 * y + 1 < inputRows;
+                for (int x = 0; x < this.width; x++) {
+                    int left = 2 * x * pixelByteSize;
+                    boolean hasRight = 2L * x + 1 < this.sourceWidth;
+                    for (int band = fromBand; band < toBand; band++) {
+                        int index = top + left + band * bytesPerSample;
+                        int n = 0;
+                        window[n++] = readRaw(this.input, index);
+                        if (hasRight) {
+                            window[n++] = readRaw(this.input, index + pixelByteSize);
+                        }
+                        if (hasBottom) {
+                            window[n++] = readRaw(this.input, index + this.sourceRowByteSize);
+                            if (hasRight) {
+                                window[n++] = readRaw(this.input, index + this.sourceRowByteSize + pixelByteSize);
+                            }
+                        }
+                        writeRaw(this.output, y * this.rowByteSize + x * pixelByteSize + band * bytesPerSample,
+                                combine(window, n));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package cn.funnymap.model.tiff;
+
+import lombok.Getter;
+
+/**
+ * 条带在栅格中的布局
+ *
+ * <p>
+ * 根据图像的宽高、RowsPerStrip、BitsPerSample以及PlanarConfiguration计算每个条带解码后的字节数，
+ * 以及条带在预分配的栅格数组中的起始位置。栅格按行存储，PlanarConfiguration为2时各个通道依次存放。
+ * 当图像高度不是RowsPerStrip的整数倍时，每个通道的最后一个条带只包含剩余的行。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/18 09:30
+ */
+@Getter
+final class StripLayout {
+    private final long width;
+    private final long height;
+    private final long rowsPerStrip;
+    private final int planeCount;
+    private final int stripsPerPlane;
+    // 每行解码后的字节数
+    private final long rowByteSize;
+    // 每个通道解码后的字节数
+    private final long planeByteSize;
+
+    private StripLayout(long width, long height, long rowsPerStrip, int planeCount, long rowByteSize) {
+        this.width = width;
+        this.height = height;
+        this.rowsPerStrip = rowsPerStrip;
+        this.planeCount = planeCount;
+        this.stripsPerPlane = (int) ((height + rowsPerStrip - 1) / rowsPerStrip);
+        this.rowByteSize = rowByteSize;
+        this.planeByteSize = rowByteSize * height;
+    }
+
+    static StripLayout of(TIFFTag tiffTag) {
+        long width = tiffTag.getWidth();
+        long height = tiffTag.getHeight();
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(String.format("无效的图像尺寸：%s x %s", width, height));
+        }
+
+        int[] bitsPerSample = tiffTag.getBitsPerSample();
+        int bits = bitsPerSample == null || bitsPerSample.length == 0 ? 1 : bitsPerSample[0];
+        int samplesPerPixel = tiffTag.getSamplesPerPixel() > 0 ? tiffTag.getSamplesPerPixel() :
+                (bitsPerSample == null ? 1 : bitsPerSample.length);
+
+        boolean isPlanar = tiffTag.getPlanarConfig() == TIFF.PlanarConfiguration.PLANAR;
+        int planeCount = isPlanar ? samplesPerPixel : 1;
+        int samplesPerRow = isPlanar ? 1 : samplesPerPixel;
+
+        // RowsPerStrip缺省时，整幅图像为一个条带
+        long rowsPerStrip = tiffTag.getRowsPerStrip() > 0 ? Math.min(tiffTag.getRowsPerStrip(), height) : height;
+        long rowByteSize = (width * samplesPerRow * bits + 7) / 8;
+
+        StripLayout stripLayout = new StripLayout(width, height, rowsPerStrip, planeCount, rowByteSize);
+        if (stripLayout.getRasterByteSize() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("栅格数据过大，无法读取到一个数组中：%s字节",
+                    stripLayout.getRasterByteSize()));
+        }
+
+        return stripLayout;
+    }
+
+    int getStripCount() {
+        return this.stripsPerPlane * this.planeCount;
+    }
+
+    long getRasterByteSize() {
+        return this.planeByteSize * this.planeCount;
+    }
+
+    /**
+     * 条带包含的行数，每个通道最后一个条带的行数可能少于RowsPerStrip
+     */
+    long rowsOf(int stripIndex) {
+        long firstRow = (stripIndex % this.stripsPerPlane) * this.rowsPerStrip;
+        return Math.min(this.rowsPerStrip, this.height - firstRow);
+    }
+
+    /**
+     * 条带解码后的字节数
+     */
+    int byteSizeOf(int stripIndex) {
+        return (int) (this.rowsOf(stripIndex) * this.rowByteSize);
+    }
+
+    /**
+     * 条带在栅格数组中的起始位置
+     */
+    int rasterOffsetOf(int stripIndex) {
+        int plane = stripIndex / this.stripsPerPlane;
+        long firstRow = (stripIndex % this.stripsPerPlane) * this.rowsPerStrip;
+        return (int) (plane * this.planeByteSize + firstRow * this.rowByteSize);
+    }
+}
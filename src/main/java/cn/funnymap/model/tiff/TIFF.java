@@ -18,6 +18,18 @@ public interface TIFF {
 
         // 小端字节序
         String LITTLE_ENDIAN_HEX = "4949";
+
+        // 大端字节序对应的数值："MM"
+        int BIG_ENDIAN_MARK = 0x4D4D;
+
+        // 小端字节序对应的数值："II"
+        int LITTLE_ENDIAN_MARK = 0x4949;
+
+        // 标准TIFF文件头的字节大小
+        int BYTE_SIZE = 8;
+
+        // BigTIFF文件头的字节大小
+        int BIG_TIFF_BYTE_SIZE = 16;
     }
 
     /**
@@ -48,6 +60,14 @@ public interface TIFF {
         int FLOAT = 11;
         // 单精度（8个字节）IEEE 格式
         int DOUBLE = 12;
+        // 32位无符号整数，表示子IFD的偏移量
+        int IFD = 13;
+        // BigTIFF：64位无符号整数，8个字节
+        int LONG8 = 16;
+        // BigTIFF：64位有符号（二进制补码）整数
+        int SLONG8 = 17;
+        // BigTIFF：64位无符号整数，表示子IFD的偏移量
+        int IFD8 = 18;
     }
 
     /**
@@ -155,6 +175,8 @@ public interface TIFF {
         int GEO_KEY_DIRECTORY = 34735;
         int GEO_DOUBLE_PARAMS = 34736;
         int GEO_ASCII_PARAMS = 34737;
+        int GDAL_METADATA = 42112;
+        int GDAL_NODATA = 42113; // GDAL的NoData值，以ASCII存储
     }
 
     /**
@@ -218,8 +240,13 @@ public interface TIFF {
     interface Compression {
         int NONE = 1;
         int LZW = 5;
+        // 旧式JPEG，只支持每个条带或瓦片都是完整JPEG数据的文件
         int JPEG = 6;
-        int PACKBITS = 37773;
+        // 新式JPEG，TIFF技术说明2
+        int NEW_JPEG = 7;
+        int ADOBE_DEFLATE = 8;
+        int DEFLATE = 32946;
+        int PACKBITS = 32773;
     }
 
     /**
@@ -0,0 +1,319 @@
+package cn.funnymap.model.tiff;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * 写入TIFF文件时一幅图像的属性
+ *
+ * <p>
+ * 图像的尺寸和每个通道的位深在创建时指定，其余属性通过setter设置，setter返回当前对象以便链式调用。
+ * 设置瓦片大小时按瓦片存储，否则按条带存储。条带或瓦片的偏移量、字节数等由{@link TIFFWriter}在写入时生成；
+ * GeoTIFF相关的TAG以及其他需要原样写入的DE通过{@link #addDataEntry(DataEntry)}或对应的setter设置。
+ * 像素数据只支持按像素交错存放（PlanarConfiguration为1）。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/28 10:15
+ */
+@Getter
+public final class TIFFImageSpec {
+    // 未指定RowsPerStrip时，每个条带解码后的目标字节数
+    private static final int DEFAULT_STRIP_BYTE_SIZE = 256 * 1024;
+    // 由TIFFWriter生成的TAG，不能通过addDataEntry设置
+    private static final Set<Integer> RESERVED_TAGS = new HashSet<>(Arrays.asList(TIFF.Tag.NEW_SUBFILE_TYPE,
+            TIFF.Tag.IMAGE_WIDTH, TIFF.Tag.IMAGE_LENGTH, TIFF.Tag.BITS_PER_SAMPLE, TIFF.Tag.COMPRESSION,
+            TIFF.Tag.PHOTO_INTERPRETATION, TIFF.Tag.STRIP_OFFSETS, TIFF.Tag.SAMPLES_PER_PIXEL,
+            TIFF.Tag.ROWS_PER_STRIP, TIFF.Tag.STRIP_BYTE_COUNTS, TIFF.Tag.PLANAR_CONFIGURATION,
+            TIFF.Tag.TIFF_PREDICTOR, TIFF.Tag.TILE_WIDTH, TIFF.Tag.TILE_LENGTH, TIFF.Tag.TILE_OFFSETS,
+            TIFF.Tag.TILE_COUNTS, TIFF.Tag.SAMPLE_FORMAT));
+
+    private final long width;
+    private final long height;
+    private final int[] bitsPerSample;
+    private int compression = TIFF.Compression.NONE;
+    private int predictor = 1;
+    private int photometric = TIFF.Photometric.BIZ;
+    private int sampleFormat = TIFF.SampleFormat.UNSIGNED;
+    private long rowsPerStrip = TIFF.UNDEFINED;
+    private long tileWidth = TIFF.UNDEFINED;
+    private long tileLength = TIFF.UNDEFINED;
+    private long subfileType = 0;
+    @Getter(AccessLevel.NONE)
+    private final Map<Integer, DataEntry> dataEntries = new TreeMap<>();
+
+    /**
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @param bitsPerSample 每个通道的位深，个数即SamplesPerPixel，各个通道的位深必须相同
+     */
+    public TIFFImageSpec(long width, long height, int... bitsPerSample) {
+        if (width <= 0 || height <= 0 || width > 0xFFFFFFFFL || height > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException(String.format("无效的图像尺寸：%s x %s", width, height));
+        }
+        if (bitsPerSample.length == 0 || bitsPerSample.length > 0xFFFF) {
+            throw new IllegalArgumentException("无效的通道个数：" + bitsPerSample.length);
+        }
+        for (int bits : bitsPerSample) {
+            if (bits != bitsPerSample[0] || bits <= 0 || bits > 64) {
+                throw new IllegalArgumentException("各个通道的位深必须相同且不超过64位：" + Arrays.toString(bitsPerSample));
+            }
+        }
+        if ((width * bitsPerSample.length * bitsPerSample[0] + 7) / 8 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("图像的行字节数超出范围：" + width);
+        }
+
+        this.width = width;
+        this.height = height;
+        this.bitsPerSample = bitsPerSample.clone();
+    }
+
+    public TIFFImageSpec setCompression(int compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @param predictor Predictor TAG的值，1为不使用，2为水平差分，3为浮点差分
+     */
+    public TIFFImageSpec setPredictor(int predictor) {
+        if (predictor < 1 || predictor > 3) {
+            throw new IllegalArgumentException("不支持的predictor值：" + predictor);
+        }
+
+        this.predictor = predictor;
+        return this;
+    }
+
+    public TIFFImageSpec setPhotometric(int photometric) {
+        this.photometric = photometric;
+        return this;
+    }
+
+    public TIFFImageSpec setSampleFormat(int sampleFormat) {
+        this.sampleFormat = sampleFormat;
+        return this;
+    }
+
+    /**
+     * @param rowsPerStrip 每个条带的行数，超过图像高度时整幅图像为一个条带
+     */
+    public TIFFImageSpec setRowsPerStrip(long rowsPerStrip) {
+        if (rowsPerStrip <= 0) {
+            throw new IllegalArgumentException("无效的RowsPerStrip：" + rowsPerStrip);
+        }
+
+        this.rowsPerStrip = rowsPerStrip;
+        return this;
+    }
+
+    /**
+     * 按瓦片存储，瓦片的宽高必须是16的整数倍，位于图像边缘的瓦片以0填充
+     *
+     * @param tileWidth 瓦片宽度
+     * @param tileLength 瓦片高度
+     */
+    public TIFFImageSpec setTileSize(long tileWidth, long tileLength) {
+        if (tileWidth <= 0 || tileLength <= 0 || tileWidth % 16 != 0 || tileLength % 16 != 0) {
+            throw new IllegalArgumentException(String.format("瓦片的宽高必须是16的整数倍：%s x %s", tileWidth,
+                    tileLength));
+        }
+        if (this.bitsPerSample[0] % 8 != 0) {
+            throw new IllegalArgumentException("按瓦片存储时，通道的位深必须为8的整数倍：" + this.bitsPerSample[0]);
+        }
+        if (tileWidth * tileLength * this.bitsPerSample.length * (this.bitsPerSample[0] / 8) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("瓦片过大：%s x %s", tileWidth, tileLength));
+        }
+
+        this.tileWidth = tileWidth;
+        this.tileLength = tileLength;
+        return this;
+    }
+
+    /**
+     * @param subfileType NewSubfileType TAG的值，1表示缩略图或者金字塔中的低分辨率图像
+     */
+    public TIFFImageSpec setSubfileType(long subfileType) {
+        this.subfileType = subfileType;
+        return this;
+    }
+
+    public TIFFImageSpec setImageDescription(String imageDescription) {
+        return this.putDataEntry(DataEntry.ofAscii(TIFF.Tag.IMAGE_DESCRIPTION, imageDescription));
+    }
+
+    public TIFFImageSpec setModelPixelScale(double... modelPixelScale) {
+        return this.putDataEntry(DataEntry.ofDoubles(TIFF.Tag.MODEL_PIXEL_SCALE, modelPixelScale));
+    }
+
+    public TIFFImageSpec setModelTiepoints(double... modelTiepoints) {
+        return this.putDataEntry(DataEntry.ofDoubles(TIFF.Tag.MODEL_TIEPOINT, modelTiepoints));
+    }
+
+    public TIFFImageSpec setModelTransformation(double... modelTransformation) {
+        return this.putDataEntry(DataEntry.ofDoubles(TIFF.Tag.MODEL_TRANSFORMATION, modelTransformation));
+    }
+
+    /**
+     * @param geoKeyDirectory GeoKeyDirectory TAG的全部值：4个头部值加上每个GeoKey的4个值
+     */
+    public TIFFImageSpec setGeoKeyDirectory(short... geoKeyDirectory) {
+        long[] values = new long[geoKeyDirectory.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = geoKeyDirectory[i] & 0xFFFF;
+        }
+
+        return this.putDataEntry(DataEntry.ofIntegers(TIFF.Tag.GEO_KEY_DIRECTORY, TIFF.Type.SHORT, values));
+    }
+
+    public TIFFImageSpec setGeoDoubleParams(double... geoDoubleParams) {
+        return this.putDataEntry(DataEntry.ofDoubles(TIFF.Tag.GEO_DOUBLE_PARAMS, geoDoubleParams));
+    }
+
+    public TIFFImageSpec setGeoAsciiParams(String geoAsciiParams) {
+        return this.putDataEntry(DataEntry.ofAscii(TIFF.Tag.GEO_ASCII_PARAMS, geoAsciiParams));
+    }
+
+    /**
+     * 复制源图像中的地理参考信息：ModelPixelScale、ModelTiepoint、ModelTransformation以及GeoKey相关的TAG
+     *
+     * @param tiffTag 源图像的属性
+     * @return 当前对象
+     */
+    public TIFFImageSpec copyGeoTags(TIFFTag tiffTag) {
+        if (tiffTag.getModelPixelScale() != null) {
+            this.setModelPixelScale(tiffTag.getModelPixelScale());
+        }
+        if (tiffTag.getModelTiepoints() != null) {
+            this.setModelTiepoints(tiffTag.getModelTiepoints());
+        }
+        if (tiffTag.getModelTransformation() != null) {
+            this.setModelTransformation(tiffTag.getModelTransformation());
+        }
+        if (tiffTag.getGeoKeyDirectory() != null) {
+            this.setGeoKeyDirectory(tiffTag.getGeoKeyDirectory());
+        }
+        if (tiffTag.getGeoDoubleParams() != null) {
+            this.setGeoDoubleParams(tiffTag.getGeoDoubleParams());
+        }
+        if (tiffTag.getGeoAsciiParams() != null) {
+            this.setGeoAsciiParams(tiffTag.getGeoAsciiParams());
+        }
+
+        return this;
+    }
+
+    /**
+     * 创建同一幅图像的低分辨率版本的属性，压缩方式、Predictor、瓦片大小等与当前图像相同，
+     * NewSubfileType为1，不包含原样写入的DE
+     *
+     * @param reducedWidth 低分辨率图像的宽度
+     * @param reducedHeight 低分辨率图像的高度
+     * @return 低分辨率图像的属性
+     */
+    public TIFFImageSpec reduced(long reducedWidth, long reducedHeight) {
+        TIFFImageSpec reducedSpec = new TIFFImageSpec(reducedWidth, reducedHeight, this.bitsPerSample);
+        reducedSpec.compression = this.compression;
+        reducedSpec.predictor = this.predictor;
+        reducedSpec.photometric = this.photometric;
+        reducedSpec.sampleFormat = this.sampleFormat;
+        reducedSpec.rowsPerStrip = this.rowsPerStrip;
+        reducedSpec.tileWidth = this.tileWidth;
+        reducedSpec.tileLength = this.tileLength;
+        reducedSpec.subfileType = 1;
+
+        return reducedSpec;
+    }
+
+    /**
+     * 添加原样写入的DE，相同TAG的DE会被覆盖，DE值可以来自其他文件，写入时按照目标文件的字节序转换
+     *
+     * @param dataEntry DE，值必须已经读取或者可以延迟读取
+     * @return 当前对象
+     * @throws IllegalArgumentException DE的TAG由{@link TIFFWriter}生成时抛出
+     */
+    public TIFFImageSpec addDataEntry(DataEntry dataEntry) {
+        if (RESERVED_TAGS.contains(dataEntry.getTag())) {
+            throw new IllegalArgumentException("该TAG由TIFFWriter生成，不能直接设置：" + dataEntry.getTag());
+        }
+
+        return this.putDataEntry(dataEntry);
+    }
+
+    /**
+     * 原样写入的DE，按照TAG升序排列
+     */
+    public Collection<DataEntry> getDataEntries() {
+        return Collections.unmodifiableCollection(this.dataEntries.values());
+    }
+
+    public int getSamplesPerPixel() {
+        return this.bitsPerSample.length;
+    }
+
+    /**
+     * 每行像素数据的字节数
+     */
+    public int getRowByteSize() {
+        return (int) ((this.width * this.bitsPerSample.length * this.bitsPerSample[0] + 7) / 8);
+    }
+
+    public boolean isTiled() {
+        return this.tileWidth > 0 && this.tileLength > 0;
+    }
+
+    /**
+     * 每个条带或瓦片的宽度，按条带存储时为图像宽度
+     */
+    public long getChunkWidth() {
+        return this.isTiled() ? this.tileWidth : this.width;
+    }
+
+    /**
+     * 每个条带或瓦片包含的行数
+     */
+    public long getChunkLength() {
+        return this.isTiled() ? this.tileLength : this.getEffectiveRowsPerStrip();
+    }
+
+    /**
+     * 条带或瓦片的个数，瓦片按行优先的顺序排列
+     */
+    public long getChunkCount() {
+        long chunksAcross = (this.width + this.getChunkWidth() - 1) / this.getChunkWidth();
+        long chunksDown = (this.height + this.getChunkLength() - 1) / this.getChunkLength();
+
+        return chunksAcross * chunksDown;
+    }
+
+    /**
+     * 条带或瓦片中每行未压缩时的字节数，按条带存储时与{@link #getRowByteSize()}相同
+     */
+    public int getChunkRowByteSize() {
+        return (int) ((this.getChunkWidth() * this.bitsPerSample.length * this.bitsPerSample[0] + 7) / 8);
+    }
+
+    /**
+     * 完整的条带或瓦片未压缩时的字节数
+     */
+    public long getChunkByteSize() {
+        return (long) this.getChunkRowByteSize() * this.getChunkLength();
+    }
+
+    /**
+     * 实际使用的RowsPerStrip，未指定时每个条带约为{@link #DEFAULT_STRIP_BYTE_SIZE}个字节
+     */
+    public long getEffectiveRowsPerStrip() {
+        long rows = this.rowsPerStrip > 0 ? this.rowsPerStrip :
+                Math.max(1, DEFAULT_STRIP_BYTE_SIZE / this.getRowByteSize());
+
+        return Math.min(rows, this.height);
+    }
+
+    private TIFFImageSpec putDataEntry(DataEntry dataEntry) {
+        this.dataEntries.put(dataEntry.getTag(), dataEntry);
+        return this;
+    }
+}
@@ -0,0 +1,300 @@
+package cn.funnymap.model.tiff;
+
+import cn.funnymap.utils.FMBinaryUtil;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * 原地修改TIFF文件的元数据，不重写像素数据
+ *
+ * <p>
+ * 修改先在内存中累积，调用{@link #commit()}时逐页写入文件：
+ * 只修改已有的DE、且新值能够放入原来的位置时（值字段中，或者不超过原来存放在偏移量处的值的字节数），直接覆盖原来的DE和值；
+ * 否则在文件末尾追加重写后的IFD，未修改的较大DE值（例如条带偏移量）仍然引用原来的位置，
+ * 最后修改文件头中第一个IFD的偏移量或者上一个IFD中下一个IFD的偏移量指向新的IFD。
+ * 新的IFD在修改指针之前已经完整写入并刷新到磁盘，指针的修改是单次4或8个字节的写入，
+ * 因此中断时文件仍然指向旧的或者新的IFD。原来的IFD不再被引用，其占用的空间不会回收。
+ * </p>
+ *
+ * <p>
+ * 原地覆盖较大的DE值时，DE与值分两次写入，中断时该DE可能不完整。实例不是线程安全的。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/31 10:10
+ */
+public final class TIFFMetadataEditor implements Closeable {
+    // 条带或瓦片的位置由像素数据决定，不能通过编辑器修改
+    private static final Set<Integer> CHUNK_TAGS = new HashSet<>(Arrays.asList(TIFF.Tag.STRIP_OFFSETS,
+            TIFF.Tag.STRIP_BYTE_COUNTS, TIFF.Tag.TILE_OFFSETS, TIFF.Tag.TILE_COUNTS));
+
+    private final FileChannel fileChannel;
+    private final boolean isChannelOwner;
+    @Getter
+    private final ByteOrder byteOrder;
+    @Getter
+    private final boolean isBigTIFF;
+    private TIFFReader tiffReader;
+    // 各页待写入的修改，值为null时表示删除该TAG
+    private final SortedMap<Integer, Map<Integer, DataEntry>> changes = new TreeMap<>();
+
+    /**
+     * @param fileChannel 可读写的文件通道，关闭编辑器时不会关闭该通道
+     * @throws IOException 读取文件头时发生的异常
+     */
+    public TIFFMetadataEditor(FileChannel fileChannel) throws IOException {
+        this(fileChannel, false);
+    }
+    private TIFFMetadataEditor(FileChannel fileChannel, boolean isChannelOwner) throws IOException {
+        this.fileChannel = fileChannel;
+        this.isChannelOwner = isChannelOwner;
+        this.tiffReader = new TIFFReader(fileChannel);
+        this.byteOrder = this.tiffReader.getIFH().getByteOrder();
+        this.isBigTIFF = this.tiffReader.isBigTIFF();
+    }
+
+    /**
+     * 打开文件
+     *
+     * @param path 文件路径
+     * @return 编辑器，关闭时同时关闭文件
+     * @throws IOException 打开文件或者读取文件头时发生的异常
+     */
+    public static TIFFMetadataEditor open(Path path) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new TIFFMetadataEditor(fileChannel, true);
+        } catch (IOException | RuntimeException exception) {
+            fileChannel.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * 读取指定页的属性，反映最近一次提交后的文件内容
+     */
+    public TIFFTag readAttribute(int pageIndex) throws IOException {
+        return this.tiffReader.readAttribute(pageIndex);
+    }
+
+    /**
+     * 添加或者替换一个DE
+     *
+     * @param pageIndex 页码，从0开始
+     * @param dataEntry DE，值必须已经读取，例如通过{@link DataEntry#ofAscii(int, String)}创建
+     * @return 当前对象
+     * @throws IOException 读取IFD链时发生的异常
+     * @throws IllegalArgumentException 页码超出范围，或者修改条带、瓦片的位置时抛出
+     */
+    public TIFFMetadataEditor setDataEntry(int pageIndex, DataEntry dataEntry) throws IOException {
+        this.pageChanges(pageIndex, dataEntry.getTag()).put(dataEntry.getTag(), dataEntry);
+        return this;
+    }
+
+    /**
+     * 删除一个DE，不存在时忽略
+     *
+     * @param pageIndex 页码，从0开始
+     * @param tag TAG
+     * @return 当前对象
+     * @throws IOException 读取IFD链时发生的异常
+     */
+    public TIFFMetadataEditor removeDataEntry(int pageIndex, int tag) throws IOException {
+        this.pageChanges(pageIndex, tag).put(tag, null);
+        return this;
+    }
+
+    public TIFFMetadataEditor setImageDescription(int pageIndex, String imageDescription) throws IOException {
+        return this.setDataEntry(pageIndex, DataEntry.ofAscii(TIFF.Tag.IMAGE_DESCRIPTION, imageDescription));
+    }
+
+    /**
+     * 设置GDAL使用的NoData值
+     *
+     * @param pageIndex 页码，从0开始
+     * @param noData NoData值，例如"-9999"、"nan"
+     */
+    public TIFFMetadataEditor setNoData(int pageIndex, String noData) throws IOException {
+        return this.setDataEntry(pageIndex, DataEntry.ofAscii(TIFF.Tag.GDAL_NODATA, noData));
+    }
+
+    /**
+     * @param geoKeyDirectory 完整的GeoKeyDirectory，包括头部的4个值
+     */
+    public TIFFMetadataEditor setGeoKeyDirectory(int pageIndex, short... geoKeyDirectory) throws IOException {
+        long[] values = new long[geoKeyDirectory.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = geoKeyDirectory[i] & 0xFFFF;
+        }
+
+        return this.setDataEntry(pageIndex, DataEntry.ofIntegers(TIFF.Tag.GEO_KEY_DIRECTORY, TIFF.Type.SHORT, values));
+    }
+
+    /**
+     * 将累积的修改写入文件
+     *
+     * @return 追加重写的IFD个数，为0时表示全部修改都是原地写入的
+     * @throws IOException 读写文件时发生的异常
+     */
+    public int commit() throws IOException {
+        if (this.changes.isEmpty()) {
+            return 0;
+        }
+
+        ImageFileDirectoryChain imageFileDirectoryChain = this.tiffReader.getIFDChain();
+        int rewrittenCount = 0;
+        // 指向当前IFD的偏移量所在的位置，第一页为文件头中第一个IFD的偏移量
+        long pointerPosition = this.isBigTIFF ? 8 : 4;
+        for (int pageIndex = 0; pageIndex <= this.changes.lastKey(); pageIndex++) {
+            ImageFileDirectory imageFileDirectory = imageFileDirectoryChain.get(pageIndex);
+            long ifdOffset = imageFileDirectoryChain.offsetOf(pageIndex);
+
+            Map<Integer, DataEntry> pageChanges = this.changes.get(pageIndex);
+            if (pageChanges != null && !this.updateInPlace(imageFileDirectory, ifdOffset, pageChanges)) {
+                imageFileDirectory = this.rewrite(imageFileDirectory, pageChanges, pointerPosition);
+                ifdOffset = this.readPointer(pointerPosition);
+                rewrittenCount++;
+            }
+
+            pointerPosition = imageFileDirectory.nextIFDOffsetPosition(ifdOffset);
+        }
+
+        // 重新读取IFD链
+        this.changes.clear();
+        this.tiffReader = new TIFFReader(this.fileChannel);
+
+        return rewrittenCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.isChannelOwner) {
+            this.fileChannel.close();
+        }
+    }
+
+    private Map<Integer, DataEntry> pageChanges(int pageIndex, int tag) throws IOException {
+        if (pageIndex < 0 || !this.tiffReader.getIFDChain().hasPage(pageIndex)) {
+            throw new IllegalArgumentException("页码超出范围：" + pageIndex);
+        }
+        if (CHUNK_TAGS.contains(tag)) {
+            throw new IllegalArgumentException("不能修改条带或瓦片的位置：" + tag);
+        }
+
+        return this.changes.computeIfAbsent(pageIndex, key -> new LinkedHashMap<>());
+    }
+
+    /**
+     * 只修改已有的DE且新值都能放入原来的位置时，直接覆盖原来的DE和值
+     *
+     * @return 是否已经原地写入
+     */
+    private boolean updateInPlace(ImageFileDirectory imageFileDirectory, long ifdOffset,
+                                  Map<Integer, DataEntry> pageChanges) throws IOException {
+        List<DataEntry> dataEntries = imageFileDirectory.getDataEntries();
+        Map<Integer, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < dataEntries.size(); i++) {
+            indexes.putIfAbsent(dataEntries.get(i).getTag(), i);
+        }
+
+        // 先检查全部修改，任意一个不能原地写入时整体重写IFD
+        for (Map.Entry<Integer, DataEntry> change : pageChanges.entrySet()) {
+            Integer index = indexes.get(change.getKey());
+            DataEntry dataEntry = change.getValue();
+            if (dataEntry == null || index == null) {
+                return false;
+            }
+
+            DataEntry original = dataEntries.get(index);
+            if (!imageFileDirectory.isValueInline(dataEntry) && (imageFileDirectory.isValueInline(original) ||
+                    dataEntry.getValueByteSize() > original.getValueByteSize())) {
+                return false;
+            }
+        }
+
+        for (Map.Entry<Integer, DataEntry> change : pageChanges.entrySet()) {
+            int index = indexes.get(change.getKey());
+            DataEntry dataEntry = change.getValue();
+
+            // 先写入值，再写入指向值的DE
+            long valueOffset = 0;
+            if (!imageFileDirectory.isValueInline(dataEntry)) {
+                valueOffset = dataEntries.get(index).getValueOffset();
+                ByteBuffer value = ByteBuffer.allocate((int) dataEntry.getValueByteSize()).order(this.byteOrder);
+                dataEntry.writeValue(value, 0);
+                this.write(value, valueOffset);
+            }
+            this.write(imageFileDirectory.encodeEntry(dataEntry, valueOffset, this.byteOrder),
+                    imageFileDirectory.entryPosition(ifdOffset, index));
+        }
+        this.fileChannel.force(false);
+
+        return true;
+    }
+
+    /**
+     * 在文件末尾追加重写后的IFD，刷新到磁盘后再修改指向该IFD的偏移量
+     *
+     * @return 重写后的IFD
+     */
+    private ImageFileDirectory rewrite(ImageFileDirectory imageFileDirectory, Map<Integer, DataEntry> pageChanges,
+                                       long pointerPosition) throws IOException {
+        ImageFileDirectory rewritten = new ImageFileDirectory(this.isBigTIFF);
+        // 未修改的、存放在偏移量处的值继续引用原来的位置
+        Set<DataEntry> referencedEntries = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (DataEntry dataEntry : imageFileDirectory.getDataEntries()) {
+            if (pageChanges.containsKey(dataEntry.getTag())) {
+                continue;
+            }
+            rewritten.getDataEntries().add(dataEntry);
+            if (!imageFileDirectory.isValueInline(dataEntry)) {
+                referencedEntries.add(dataEntry);
+            }
+        }
+        for (DataEntry dataEntry : pageChanges.values()) {
+            if (dataEntry != null) {
+                rewritten.getDataEntries().add(dataEntry);
+            }
+        }
+        rewritten.setNextIFDOffset(imageFileDirectory.getNextIFDOffset());
+
+        long fileSize = this.fileChannel.size();
+        long ifdOffset = fileSize + (fileSize & 1);
+        this.write(rewritten.encode(ifdOffset, this.byteOrder, referencedEntries), ifdOffset);
+        this.fileChannel.force(false);
+
+        int pointerByteSize = this.isBigTIFF ? 8 : 4;
+        ByteBuffer pointer = ByteBuffer.allocate(pointerByteSize).order(this.byteOrder);
+        FMBinaryUtil.putUnsigned(pointer, 0, pointerByteSize, ifdOffset);
+        this.write(pointer, pointerPosition);
+        this.fileChannel.force(false);
+
+        return rewritten;
+    }
+
+    private long readPointer(long pointerPosition) throws IOException {
+        int pointerByteSize = this.isBigTIFF ? 8 : 4;
+        ByteBuffer pointer = ByteBuffer.allocate(pointerByteSize).order(this.byteOrder);
+        long readPosition = pointerPosition;
+        while (pointer.hasRemaining() && this.fileChannel.read(pointer, readPosition) > 0) {
+            readPosition = pointerPosition + pointer.position();
+        }
+
+        return FMBinaryUtil.getUnsigned(pointer, 0, pointerByteSize);
+    }
+
+    private void write(ByteBuffer data, long offset) throws IOException {
+        long writePosition = offset;
+        while (data.hasRemaining()) {
+            writePosition += this.fileChannel.write(data, writePosition);
+        }
+    }
+}
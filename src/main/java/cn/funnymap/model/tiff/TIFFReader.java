@@ -1,19 +1,27 @@
 package cn.funnymap.model.tiff;
 
 
-import cn.funnymap.compression.lzw.LZWDecoder;
+import cn.funnymap.compression.CodecProvider;
+import cn.funnymap.compression.CodecRegistry;
+import cn.funnymap.compression.CodecResult;
 import cn.funnymap.compression.predictor.Predictor;
-import cn.funnymap.utils.FMIOUtil;
+import cn.funnymap.io.ByteSource;
+import cn.funnymap.io.FileChannelSource;
+
 import org.springframework.util.FastByteArrayOutputStream;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
 
 /**
  * TIFF文件读取抽象类
@@ -22,38 +30,106 @@ import java.util.List;
  * @date 2023/12/4 21:58
  */
 public class TIFFReader {
-    private final FileChannel fileChannel;
+    private final ByteSource byteSource;
     private final ImageFileHeader imageFileHeader;
     private final ByteOrder byteOrder;
     private final boolean isBigTIFF;
-    protected List<DataEntry> dataEntryList = new ArrayList<>();
+    private final DataEntryValueLoader valueLoader;
+    private final ImageFileDirectoryChain imageFileDirectoryChain;
+    protected volatile List<DataEntry> dataEntryList = new ArrayList<>();
+    // 并行解码条带时使用的线程池
+    private volatile ExecutorService decodeExecutor = ForkJoinPool.commonPool();
+    // 按照Compression值查找解码器
+    private volatile CodecRegistry codecRegistry = CodecRegistry.getDefault();
 
     public TIFFReader(FileChannel fileChannel) throws IOException {
-        this.fileChannel = fileChannel;
+        this(new FileChannelSource(fileChannel));
+    }
+
+    /**
+     * 使用指定的数据源读取TIFF文件，例如使用{@link cn.funnymap.io.MappedFileSource}以内存映射的方式读取
+     *
+     * @param byteSource 数据源
+     * @throws IOException 读取文件头时发生的异常
+     */
+    public TIFFReader(ByteSource byteSource) throws IOException {
+        this.byteSource = byteSource;
 
-        this.imageFileHeader = ImageFileHeader.readFromFileChannel(fileChannel);
+        this.imageFileHeader = ImageFileHeader.readFromSource(byteSource);
         this.byteOrder = this.imageFileHeader.getByteOrder();
-        this.isBigTIFF = this.imageFileHeader.getIdentifier() == 43;
+        this.isBigTIFF = this.imageFileHeader.getIdentifier() == TIFF.BIG_TIFF_IDENTIFIER;
+        this.valueLoader = new DataEntryValueLoader(byteSource, this.byteOrder);
+        this.imageFileDirectoryChain = new ImageFileDirectoryChain(this.valueLoader,
+                this.imageFileHeader.getFirstIFDOffset(), this.isBigTIFF);
     }
 
     public ImageFileHeader getIFH() {
         return this.imageFileHeader;
     }
 
+    public boolean isBigTIFF() {
+        return this.isBigTIFF;
+    }
+
+    /**
+     * 设置解析IFD时立即读取DE值的阈值，超过该字节数的值在第一次访问时才读取
+     *
+     * @param eagerLoadThreshold 阈值，单位为字节
+     */
+    public void setEagerLoadThreshold(int eagerLoadThreshold) {
+        this.valueLoader.setEagerLoadThreshold(eagerLoadThreshold);
+    }
+
+    /**
+     * 设置延迟读取的DE值的缓存容量
+     *
+     * @param cacheCapacity 缓存容量，单位为字节，为0时不缓存
+     */
+    public void setValueCacheCapacity(long cacheCapacity) {
+        this.valueLoader.setCacheCapacity(cacheCapacity);
+    }
+
+    /**
+     * 设置并行解码条带时使用的线程池，默认使用{@link ForkJoinPool#commonPool()}，
+     * 也可以使用指定并行度的{@link ForkJoinPool}或{@link Executors#newVirtualThreadPerTaskExecutor()}。
+     * 线程池由调用方负责关闭。
+     *
+     * @param decodeExecutor 线程池
+     */
+    public void setDecodeExecutor(ExecutorService decodeExecutor) {
+        this.decodeExecutor = Objects.requireNonNull(decodeExecutor, "线程池不能为空");
+    }
+
+    /**
+     * 设置查找解码器使用的注册表，默认使用通过{@link java.util.ServiceLoader}加载的注册表
+     *
+     * @param codecRegistry 注册表
+     */
+    public void setCodecRegistry(CodecRegistry codecRegistry) {
+        this.codecRegistry = Objects.requireNonNull(codecRegistry, "注册表不能为空");
+    }
+
+    /**
+     * 获取IFD链，按需读取IFD，适用于多页TIFF文件
+     *
+     * @return IFD链
+     */
+    public ImageFileDirectoryChain getIFDChain() {
+        return this.imageFileDirectoryChain;
+    }
+
     public List<ImageFileDirectory> readIFD() throws IOException {
         List<ImageFileDirectory> imageFileDirectories = new ArrayList<>();
+        List<DataEntry> dataEntries = new ArrayList<>();
 
-        ImageFileDirectory imageFileDirectory;
-        do {
-            imageFileDirectory =
-                    ImageFileDirectory.fromFileChannel(
-                            this.fileChannel,
-                            this.byteOrder,
-                            this.imageFileHeader.getFirstIFDOffset(),
-                            this.isBigTIFF);
+        for (int pageIndex = 0; this.imageFileDirectoryChain.hasPage(pageIndex); pageIndex++) {
+            ImageFileDirectory imageFileDirectory = this.imageFileDirectoryChain.get(pageIndex);
             imageFileDirectories.add(imageFileDirectory);
-            this.dataEntryList.addAll(imageFileDirectory.getDataEntries());
-        } while (imageFileDirectory.getNextIFDOffset() != 0);
+            dataEntries.addAll(imageFileDirectory.getDataEntries());
+        }
+
+        // 解析完成后整体替换，避免多线程同时读取时相互影响
+        this.dataEntryList = dataEntries;
 
         return imageFileDirectories;
     }
@@ -69,18 +145,356 @@ public class TIFFReader {
         return TIFFTag.extract(dataEntryList);
     }
 
+    /**
+     * 读取单个IFD的属性
+     *
+     * @param imageFileDirectory IFD
+     * @return IFD对应的属性
+     */
+    public TIFFTag readAttribute(ImageFileDirectory imageFileDirectory) {
+        return TIFFTag.extract(imageFileDirectory.getDataEntries());
+    }
+
+    /**
+     * 读取指定页的属性
+     *
+     * @param pageIndex 页码，从0开始
+     * @return 页对应的属性
+     * @throws IOException 读取数据时发生的异常
+     */
+    public TIFFTag readAttribute(int pageIndex) throws IOException {
+        return this.readAttribute(this.imageFileDirectoryChain.get(pageIndex));
+    }
+
+    /**
+     * 读取指定页的完整栅格数据
+     *
+     * @param pageIndex 页码，从0开始
+     * @return 栅格数据
+     * @throws IOException 读取数据时发生的异常
+     * @see #readRaster(TIFFTag)
+     */
+    public byte[] readImage(int pageIndex) throws IOException {
+        return this.readRaster(this.readAttribute(pageIndex));
+    }
+
+    /**
+     * 使用{@link #setDecodeExecutor(ExecutorService)}设置的线程池并行解码全部条带
+     *
+     * @param tiffTag IFD对应的属性
+     * @return 栅格数据，按行存储，PlanarConfiguration为2时各个通道依次存放
+     * @throws IOException 读取数据时发生的异常
+     */
+    public byte[] readRaster(TIFFTag tiffTag) throws IOException {
+        return this.readRaster(tiffTag, this.decodeExecutor);
+    }
+
+    /**
+     * 在指定的线程池上并行解码全部条带，每个条带解码后写入预分配栅格中对应的位置
+     *
+     * @param tiffTag IFD对应的属性
+     * @param executor 线程池
+     * @return 栅格数据，按行存储，PlanarConfiguration为2时各个通道依次存放
+     * @throws IOException 读取数据时发生的异常
+     */
+    public byte[] readRaster(TIFFTag tiffTag, ExecutorService executor) throws IOException {
+        StripLayout stripLayout = StripLayout.of(tiffTag);
+        long[] stripOffsets = tiffTag.getStripOffsets();
+        long[] stripByteCounts = tiffTag.getStripByteCounts();
+        if (stripOffsets == null || stripByteCounts == null) {
+            throw new IllegalArgumentException("缺少StripOffsets或StripByteCounts，无法读取条带数据");
+        }
+        if (stripOffsets.length < stripLayout.getStripCount() || stripByteCounts.length < stripLayout.getStripCount()) {
+            throw new IllegalArgumentException(String.format("条带数量不足，需要%s个，StripOffsets：%s个，" +
+                    "StripByteCounts：%s个", stripLayout.getStripCount(), stripOffsets.length, stripByteCounts.length));
+        }
+
+        byte[] raster = new byte[(int) stripLayout.getRasterByteSize()];
+
+        List<Callable<Void>> tasks = new ArrayList<>(stripLayout.getStripCount());
+        for (int i = 0; i < stripLayout.getStripCount(); i++) {
+            int stripIndex = i;
+            tasks.add(() -> {
+                this.readStripInto(tiffTag, stripLayout, stripIndex, stripOffsets[stripIndex],
+                        stripByteCounts[stripIndex], raster);
+                return null;
+            });
+        }
+
+        this.invokeAll(tasks, executor);
+
+        return raster;
+    }
+
+    /**
+     * 读取并解码单个瓦片，位于图像边缘的瓦片同样返回完整大小的数据
+     *
+     * @param tiffTag IFD对应的属性
+     * @param col 瓦片所在的列
+     * @param row 瓦片所在的行
+     * @param band 通道，PlanarConfiguration为1时只能为0
+     * @return 瓦片数据，按行存储
+     * @throws IOException 读取数据时发生的异常
+     */
+    public byte[] readTile(TIFFTag tiffTag, int col, int row, int band) throws IOException {
+        TileIndex tileIndex = TileIndex.of(tiffTag);
+        int index = tileIndex.indexOf(col, row, band);
+
+        return this.decodeChunk(tiffTag, tileIndex.getTileOffset(index), tileIndex.getTileByteCount(index),
+                tileIndex.getTileWidth(), tileIndex.rowsOf(row));
+    }
+
+    /**
+     * 读取图像中的一个矩形窗口，只读取和解码与窗口相交的瓦片（或条带），多个瓦片时并行解码，
+     * 每个瓦片只解码到窗口的最后一行
+     *
+     * @param tiffTag IFD对应的属性
+     * @param x 窗口左上角的列
+     * @param y 窗口左上角的行
+     * @param width 窗口宽度
+     * @param height 窗口高度
+     * @return 窗口的栅格数据，按行存储，PlanarConfiguration为2时各个通道依次存放
+     * @throws IOException 读取数据时发生的异常
+     */
+    public byte[] readWindow(TIFFTag tiffTag, long x, long y, int width, int height) throws IOException {
+        TileIndex tileIndex = TileIndex.of(tiffTag);
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > tileIndex.getImageWidth() ||
+                y + height > tileIndex.getImageHeight()) {
+            throw new IllegalArgumentException(String.format("窗口超出图像范围：(%s, %s, %s, %s)，图像尺寸：%s x %s",
+                    x, y, width, height, tileIndex.getImageWidth(), tileIndex.getImageHeight()));
+        }
+
+        int pixelByteSize = tileIndex.getPixelByteSize();
+        long windowRowByteSize = (long) width * pixelByteSize;
+        long planeByteSize = windowRowByteSize * height;
+        if (planeByteSize * tileIndex.getPlaneCount() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("窗口过大，无法读取到一个数组中");
+        }
+        byte[] window = new byte[(int) (planeByteSize * tileIndex.getPlaneCount())];
+
+        int firstCol = (int) (x / tileIndex.getTileWidth());
+        int lastCol = (int) ((x + width - 1) / tileIndex.getTileWidth());
+        int firstRow = (int) (y / tileIndex.getTileLength());
+        int lastRow = (int) ((y + height - 1) / tileIndex.getTileLength());
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int band = 0; band < tileIndex.getPlaneCount(); band++) {
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int col = firstCol; col <= lastCol; col++) {
+                    int tileBand = band;
+                    int tileRow = row;
+                    int tileCol = col;
+                    tasks.add(() -> {
+                        // 瓦片与窗口相交的范围
+                        long tileX = tileCol * tileIndex.getTileWidth();
+                        long tileY = tileRow * tileIndex.getTileLength();
+                        long fromX = Math.max(x, tileX);
+                        long toX = Math.min(x + width, tileX + tileIndex.getTileWidth());
+                        long fromY = Math.max(y, tileY);
+                        long toY = Math.min(y + height, tileY + tileIndex.getTileLength());
+                        int length = (int) ((toX - fromX) * pixelByteSize);
+
+                        // 只解码到窗口的最后一行，之后的数据不再解码
+                        int index = tileIndex.indexOf(tileCol, tileRow, tileBand);
+                        byte[] tile = new byte[(int) ((toY - tileY) * tileIndex.getTileRowByteSize())];
+                        this.decodeChunkInto(tiffTag, tileIndex.getTileOffset(index),
+                                tileIndex.getTileByteCount(index), tileIndex.getTileWidth(), tileIndex.rowsOf(tileRow),
+                                ByteBuffer.wrap(tile));
+
+                        for (long imageY = fromY; imageY < toY; imageY++) {
+                            int sourceOffset = (int) ((imageY - tileY) * tileIndex.getTileRowByteSize() +
+                                    (fromX - tileX) * pixelByteSize);
+                            if (sourceOffset + length > tile.length) {
+                                break;
+                            }
+                            int targetOffset = (int) (tileBand * planeByteSize + (imageY - y) * windowRowByteSize +
+                                    (fromX - x) * pixelByteSize);
+                            System.arraycopy(tile, sourceOffset, window, targetOffset, length);
+                        }
+                        return null;
+                    });
+                }
+            }
+        }
+
+        // 只涉及一个瓦片时直接在当前线程解码，避免线程切换的延迟
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (IOException | RuntimeException exception) {
+                throw exception;
+            } catch (Exception exception) {
+                throw new IOException("解码瓦片时发生异常", exception);
+            }
+        } else {
+            this.invokeAll(tasks, this.decodeExecutor);
+        }
+
+        return window;
+    }
+
+    private void readStripInto(TIFFTag tiffTag, StripLayout stripLayout, int stripIndex, long stripOffset,
+                               long stripByteSize, byte[] raster) throws IOException {
+        // 解码结果直接写入栅格中该条带对应的切片，最后一个条带中超出图像范围的填充行被丢弃
+        ByteBuffer slot = ByteBuffer.wrap(raster, stripLayout.rasterOffsetOf(stripIndex),
+                stripLayout.byteSizeOf(stripIndex)).slice();
+        this.decodeChunkInto(tiffTag, stripOffset, stripByteSize, stripLayout.getWidth(),
+                stripLayout.rowsOf(stripIndex), slot);
+    }
+
+    /**
+     * 读取并解码一个条带或瓦片
+     *
+     * @param tiffTag IFD对应的属性
+     * @param offset 数据的偏移量
+     * @param byteCount 压缩后的字节数
+     * @param width 条带或瓦片的宽度
+     * @param rows 条带或瓦片的行数
+     * @return 解码后的数据
+     * @throws IOException 读取数据时发生的异常
+     */
+    private byte[] decodeChunk(TIFFTag tiffTag, long offset, long byteCount, long width, long rows)
+            throws IOException {
+        long decodedByteSize = decodedByteSizeOf(width, rows, tiffTag.getBitsPerSample(), tiffTag.getPlanarConfig());
+        byte[] decoded = new byte[(int) decodedByteSize];
+        this.decodeChunkInto(tiffTag, offset, byteCount, width, rows, ByteBuffer.wrap(decoded));
+
+        return decoded;
+    }
+
+    /**
+     * 读取一个条带或瓦片，解码结果从dst的position开始写入，超出dst剩余空间的部分被丢弃
+     */
+    private CodecResult decodeChunkInto(TIFFTag tiffTag, long offset, long byteCount, long width, long rows,
+                                        ByteBuffer dst) throws IOException {
+        int[] bitsPerSample = tiffTag.getBitsPerSample();
+        if (tiffTag.getPlanarConfig() == TIFF.PlanarConfiguration.PLANAR && bitsPerSample != null) {
+            bitsPerSample = new int[]{bitsPerSample[0]};
+        }
+
+        return this.decodeInto(tiffTag, tiffTag.getCompression(), offset, byteCount, width, rows, bitsPerSample,
+                tiffTag.getPlanarConfig(), tiffTag.getPredictor(), dst);
+    }
+
+    /**
+     * 按照压缩方式解码，并在dst中写入的数据上进行Predictor差分解码
+     */
+    private CodecResult decodeInto(TIFFTag tiffTag, int compression, long offset, long byteCount, long width,
+                                   long rows, int[] bitsPerSample, int planarConfig, int predictor, ByteBuffer dst)
+            throws IOException {
+        if (byteCount < 0 || byteCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("无效的条带字节数：%s", byteCount));
+        }
+        CodecProvider codecProvider = this.codecRegistry.get(compression);
+        int start = dst.position();
+
+        CodecResult codecResult;
+        if (codecProvider.isPassthrough()) {
+            // 未压缩的数据直接从数据源读取到目标Buffer中
+            int length = (int) Math.min(byteCount, dst.remaining());
+            ByteBuffer target = dst.duplicate();
+            target.limit(start + length);
+            int read = this.byteSource.readInto(offset, target);
+            dst.position(start + read);
+            codecResult = new CodecResult(read, read, length < byteCount);
+        } else {
+            ByteBuffer src = this.byteSource.read(offset, (int) byteCount, this.byteOrder);
+            codecResult = codecProvider.getDecoder(tiffTag == null ? null : tiffTag.getJpegTables())
+                    .decode(src, dst);
+        }
+
+        if (predictor != 1 && codecResult.getProduced() > 0) {
+            // 直接在dst中撤销差分
+            ByteBuffer decoded = dst.duplicate().position(start).limit(start + codecResult.getProduced())
+                    .slice().order(this.byteOrder);
+            Predictor.decode(decoded, Math.toIntExact(width), Math.toIntExact(rows), bitsPerSample, planarConfig,
+                    predictor);
+        }
+
+        return codecResult;
+    }
+
+    /**
+     * 条带或瓦片解码后的字节数
+     */
+    private static long decodedByteSizeOf(long width, long rows, int[] bitsPerSample, int planarConfig) {
+        int samples = planarConfig == TIFF.PlanarConfiguration.PLANAR || bitsPerSample == null ? 1 :
+                bitsPerSample.length;
+        int bits = bitsPerSample == null || bitsPerSample.length == 0 ? 8 : bitsPerSample[0];
+        long decodedByteSize = (width * samples * bits + 7) / 8 * rows;
+        if (decodedByteSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("条带解码后的数据过大：%s字节", decodedByteSize));
+        }
+
+        return decodedByteSize;
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks, ExecutorService executor) throws IOException {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("解码图像数据时线程被中断");
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("解码图像数据时发生异常", cause);
+        }
+    }
+
+    /**
+     * 按照LZW解码一个条带，其他压缩方式请使用{@link #readData(long, long, int[], long, long, int, int, int)}
+     */
     public byte[] readData(long imageWidth, long imageHeight, int[] bitsPerSample, long stripByteSize,
                            long stripOffset, int planarConfig, int predictor) throws IOException {
-        ByteBuffer byteBuffer = ByteBuffer.allocate((int) stripByteSize).order(this.byteOrder);
-        FMIOUtil.readChannelToBuffer(this.fileChannel, byteBuffer, stripOffset);
+        return this.readData(imageWidth, imageHeight, bitsPerSample, stripByteSize, stripOffset, planarConfig,
+                predictor, TIFF.Compression.LZW);
+    }
 
-        // LZW 解压
-        LZWDecoder lzwDecoder = new LZWDecoder();
-        OutputStream outputStream = lzwDecoder.decode(new ByteArrayInputStream(byteBuffer.array()));
+    /**
+     * 按照指定的压缩方式解码一个条带
+     *
+     * <p>
+     * 调用方传入的是图像的高度，条带的实际行数未知，因此通过解码器的输出流接口一次解码全部数据，
+     * 再在解码结果上撤销差分。
+     * </p>
+     *
+     * @param compression Compression值，由{@link CodecRegistry}查找对应的解码器
+     * @return 解码后的数据
+     * @throws IOException 读取数据时发生的异常
+     */
+    public byte[] readData(long imageWidth, long imageHeight, int[] bitsPerSample, long stripByteSize,
+                           long stripOffset, int planarConfig, int predictor, int compression) throws IOException {
+        if (stripByteSize < 0 || stripByteSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("无效的条带字节数：%s", stripByteSize));
+        }
+        CodecProvider codecProvider = this.codecRegistry.get(compression);
+        ByteBuffer src = this.byteSource.read(stripOffset, (int) stripByteSize, this.byteOrder);
+        byte[] code = new byte[src.remaining()];
+        src.get(src.position(), code);
+
+        byte[] decoded = code;
+        if (!codecProvider.isPassthrough()) {
+            OutputStream outputStream = codecProvider.getDecoder().decode(new ByteArrayInputStream(code));
+            if (outputStream instanceof FastByteArrayOutputStream) {
+                decoded = ((FastByteArrayOutputStream) outputStream).toByteArrayUnsafe();
+            } else if (outputStream instanceof ByteArrayOutputStream) {
+                decoded = ((ByteArrayOutputStream) outputStream).toByteArray();
+            } else {
+                throw new IllegalArgumentException("不支持的解码结果：" + outputStream.getClass().getName());
+            }
+        }
 
-        // Predictor差分解压
-        byte[] lzwCode = ((FastByteArrayOutputStream) outputStream).toByteArray();
+        Predictor.decode(ByteBuffer.wrap(decoded).order(this.byteOrder), Math.toIntExact(imageWidth),
+                (int) Math.min(imageHeight, Integer.MAX_VALUE), bitsPerSample, planarConfig, predictor);
 
-        return Predictor.decode(lzwCode, imageWidth, imageHeight, bitsPerSample, planarConfig, predictor);
+        return decoded;
     }
 }
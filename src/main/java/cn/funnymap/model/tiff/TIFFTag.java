@@ -1,7 +1,9 @@
 package cn.funnymap.model.tiff;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -36,16 +38,22 @@ public class TIFFTag {
     private String make = null;
     // TAG：272
     private String model = null;
-    // TAG：273
+    // TAG：273，首次访问时才解析
+    @Getter(AccessLevel.NONE)
     private long[] stripOffsets = null;
+    @Getter(AccessLevel.NONE)
+    private DataEntry stripOffsetsEntry = null;
     // TAG：274
     private int orientation = TIFF.UNDEFINED;
     // TAG：277
     private int samplesPerPixel = TIFF.UNDEFINED;
     // TAG：278
     private long rowsPerStrip = TIFF.UNDEFINED;
-    // TAG：279
+    // TAG：279，首次访问时才解析
+    @Getter(AccessLevel.NONE)
     private long[] stripByteCounts = null;
+    @Getter(AccessLevel.NONE)
+    private DataEntry stripByteCountsEntry = null;
     // TAG：280
     private int minSampleValue;
     // TAG：281
@@ -78,10 +86,26 @@ public class TIFFTag {
     private short predictor = 1;
     // TAG：320
     private int colorMap = TIFF.UNDEFINED;
+    // TAG：322
+    private long tileWidth = TIFF.UNDEFINED;
+    // TAG：323
+    private long tileLength = TIFF.UNDEFINED;
+    // TAG：324，首次访问时才解析
+    @Getter(AccessLevel.NONE)
+    private long[] tileOffsets = null;
+    @Getter(AccessLevel.NONE)
+    private DataEntry tileOffsetsEntry = null;
+    // TAG：325，首次访问时才解析
+    @Getter(AccessLevel.NONE)
+    private long[] tileByteCounts = null;
+    @Getter(AccessLevel.NONE)
+    private DataEntry tileByteCountsEntry = null;
     // TAG：338
     private short[] extraSamples = null;
     // TAG：339
     private short[] sampleFormat = null;
+    // TAG：347，JPEG压缩时各个条带或瓦片共用的量化表和哈夫曼表
+    private byte[] jpegTables = null;
     // TAG: 33550
     private double[] modelPixelScale;
     // TAG：34264
@@ -96,9 +120,62 @@ public class TIFFTag {
     private String geoAsciiParams;
     // TAG：33922
     private double[] modelTiepoints;
+    // TAG：42113
+    private String noData;
 
     private TIFFTag() {}
 
+    /**
+     * 条带偏移量，大型文件中的条带偏移量可能有数百万个，因此只在第一次访问时解析
+     */
+    public long[] getStripOffsets() {
+        if (this.stripOffsets == null && this.stripOffsetsEntry != null) {
+            this.stripOffsets = this.stripOffsetsEntry.asLongs();
+        }
+
+        return this.stripOffsets;
+    }
+
+    /**
+     * 条带字节数，只在第一次访问时解析
+     */
+    public long[] getStripByteCounts() {
+        if (this.stripByteCounts == null && this.stripByteCountsEntry != null) {
+            this.stripByteCounts = this.stripByteCountsEntry.asLongs();
+        }
+
+        return this.stripByteCounts;
+    }
+
+    /**
+     * 瓦片偏移量，只在第一次访问时解析
+     */
+    public long[] getTileOffsets() {
+        if (this.tileOffsets == null && this.tileOffsetsEntry != null) {
+            this.tileOffsets = this.tileOffsetsEntry.asLongs();
+        }
+
+        return this.tileOffsets;
+    }
+
+    /**
+     * 瓦片字节数，只在第一次访问时解析
+     */
+    public long[] getTileByteCounts() {
+        if (this.tileByteCounts == null && this.tileByteCountsEntry != null) {
+            this.tileByteCounts = this.tileByteCountsEntry.asLongs();
+        }
+
+        return this.tileByteCounts;
+    }
+
+    /**
+     * 图像数据是否按瓦片存储
+     */
+    public boolean isTiled() {
+        return this.tileWidth > 0 && this.tileLength > 0;
+    }
+
     public static TIFFTag extract(List<DataEntry> dataEntries) {
         TIFFTag tiffBaseAttribute = new TIFFTag();
 
@@ -118,7 +195,7 @@ public class TIFFTag {
                         tiffBaseAttribute.bitsPerSample = dataEntry.getShortsAsInts();
                         break;
                     case TIFF.Tag.COMPRESSION:
-                        tiffBaseAttribute.compression = dataEntry.asShort();
+                        tiffBaseAttribute.compression = dataEntry.asShort() & 0xFFFF;
                         break;
                     case TIFF.Tag.PHOTO_INTERPRETATION:
                         tiffBaseAttribute.photometric = dataEntry.asShort();
@@ -145,7 +222,7 @@ public class TIFFTag {
                         tiffBaseAttribute.model = dataEntry.getAsString();
                         break;
                     case TIFF.Tag.STRIP_OFFSETS:
-                        tiffBaseAttribute.stripOffsets = dataEntry.asLongs();
+                        tiffBaseAttribute.stripOffsetsEntry = dataEntry;
                         break;
                     case TIFF.Tag.ORIENTATION:
                         tiffBaseAttribute.orientation = dataEntry.asShort();
@@ -157,7 +234,7 @@ public class TIFFTag {
                         tiffBaseAttribute.rowsPerStrip = dataEntry.asLong();
                         break;
                     case TIFF.Tag.STRIP_BYTE_COUNTS:
-                        tiffBaseAttribute.stripByteCounts = dataEntry.asLongs();
+                        tiffBaseAttribute.stripByteCountsEntry = dataEntry;
                         break;
                     case TIFF.Tag.MIN_SAMPLE_VALUE:
                         tiffBaseAttribute.minSampleValue = dataEntry.asShort();
@@ -207,12 +284,29 @@ public class TIFFTag {
                     case TIFF.Tag.COLORMAP:
                         tiffBaseAttribute.colorMap = dataEntry.asShort();
                         break;
+                    case TIFF.Tag.TILE_WIDTH:
+                        tiffBaseAttribute.tileWidth = dataEntry.asLong();
+                        break;
+                    case TIFF.Tag.TILE_LENGTH:
+                        tiffBaseAttribute.tileLength = dataEntry.asLong();
+                        break;
+                    case TIFF.Tag.TILE_OFFSETS:
+                        tiffBaseAttribute.tileOffsetsEntry = dataEntry;
+                        break;
+                    case TIFF.Tag.TILE_COUNTS:
+                        tiffBaseAttribute.tileByteCountsEntry = dataEntry;
+                        break;
                     case TIFF.Tag.EXTRA_SAMPLES:
                         tiffBaseAttribute.extraSamples = dataEntry.asShorts();
                         break;
                     case TIFF.Tag.SAMPLE_FORMAT:
                         tiffBaseAttribute.sampleFormat = dataEntry.asShorts();
                         break;
+                    case TIFF.Tag.JPEG_TABLES:
+                        ByteBuffer jpegTables = dataEntry.getData();
+                        tiffBaseAttribute.jpegTables = new byte[jpegTables.remaining()];
+                        jpegTables.get(tiffBaseAttribute.jpegTables);
+                        break;
                     case TIFF.Tag.MODEL_PIXEL_SCALE:
                         tiffBaseAttribute.modelPixelScale = dataEntry.getDoubles();
                         break;
@@ -223,7 +317,7 @@ public class TIFFTag {
                         tiffBaseAttribute.copyright = dataEntry.getAsString();
                         break;
                     case TIFF.Tag.GEO_KEY_DIRECTORY:
-                        tiffBaseAttribute.geoKeyDirectory = dataEntry.asShorts(4);
+                        tiffBaseAttribute.geoKeyDirectory = dataEntry.asShorts();
                         break;
                     case TIFF.Tag.GEO_DOUBLE_PARAMS:
                         tiffBaseAttribute.geoDoubleParams = dataEntry.getDoubles();
@@ -231,6 +325,9 @@ public class TIFFTag {
                     case TIFF.Tag.GEO_ASCII_PARAMS:
                         tiffBaseAttribute.geoAsciiParams = dataEntry.getAsString();
                         break;
+                    case TIFF.Tag.GDAL_NODATA:
+                        tiffBaseAttribute.noData = dataEntry.getAsString();
+                        break;
                     case TIFF.Tag.MODEL_TIEPOINT:
                         tiffBaseAttribute.modelTiepoints = dataEntry.getDoubles();
                         break;
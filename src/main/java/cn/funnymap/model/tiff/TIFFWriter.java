@@ -0,0 +1,795 @@
+package cn.funnymap.model.tiff;
+
+import cn.funnymap.compression.ChunkedEncoder;
+import cn.funnymap.compression.CodecProvider;
+import cn.funnymap.compression.CodecRegistry;
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.Encoder;
+import cn.funnymap.compression.predictor.PredictingEncoder;
+import cn.funnymap.utils.FMBinaryUtil;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 流式写入TIFF、BigTIFF文件
+ *
+ * <p>
+ * 写入顺序为：文件头、第一幅图像的条带、第一幅图像的IFD、第二幅图像的条带……每幅图像的像素数据通过
+ * {@link #writeRows(ByteBuffer)}按行依次写入，凑满一个条带（按瓦片存储时为一行瓦片）后立即压缩并写入文件，
+ * 因此内存占用只与条带或瓦片的大小有关，与图像大小无关（每个条带或瓦片另外占用16个字节记录偏移量和字节数）。
+ * 每幅图像结束时在条带之后写入IFD，再回填文件头中第一个IFD的偏移量或者上一个IFD中下一个IFD的偏移量，
+ * 已经结束的图像在文件中总是完整可读的。
+ * </p>
+ *
+ * <p>
+ * 需要同时生成多幅图像时（例如在一次遍历中生成各级概视图），可以通过{@link #openImage(TIFFImageSpec)}
+ * 同时打开多个{@link ImageStream}，各幅图像的条带或瓦片交错写入文件，结束后由调用方写入IFD。
+ * </p>
+ *
+ * <p>
+ * 通过{@link #setEncodeExecutor(ExecutorService, int)}设置线程池后，条带或瓦片在线程池中并行压缩，
+ * 调用线程只负责填充数据，并按照顺序将压缩结果合并为聚集写入，同时处于压缩中的条带或瓦片个数有上限。
+ * 实例不是线程安全的。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/28 10:40
+ */
+public final class TIFFWriter implements Closeable {
+    // 一次聚集写入最多合并的条带或瓦片个数
+    private static final int MAX_GATHER_CHUNKS = 64;
+
+    private final FileChannel fileChannel;
+    private final boolean isChannelOwner;
+    @Getter
+    private final ByteOrder byteOrder;
+    @Getter
+    private final boolean isBigTIFF;
+    private CodecRegistry codecRegistry = CodecRegistry.getDefault();
+    // 并行压缩时使用的线程池，为null时在调用线程中压缩
+    private ExecutorService encodeExecutor;
+    // 并行压缩时，每幅图像已提交但尚未写入文件的最大条带或瓦片个数
+    private int maxPendingChunks;
+
+    // 已写入数据的末尾
+    @Getter
+    private long position;
+    // 需要回填的IFD偏移量所在的位置，初始为文件头中第一个IFD的偏移量
+    private long ifdOffsetPosition;
+
+    // 通过beginImage开始的图像，为null时表示没有正在写入的图像
+    private ImageStream currentImage;
+    // 全部尚未结束的图像
+    private final List<ImageStream> openImages = new ArrayList<>();
+
+    /**
+     * 从文件起始位置写入，写入前清空文件
+     *
+     * @param fileChannel 可写的文件通道，关闭写入器时不会关闭该通道
+     * @param byteOrder 文件字节序
+     * @param isBigTIFF 是否写入BigTIFF
+     * @throws IOException 写入文件头时发生的异常
+     */
+    public TIFFWriter(FileChannel fileChannel, ByteOrder byteOrder, boolean isBigTIFF) throws IOException {
+        this(fileChannel, false, byteOrder, isBigTIFF);
+        this.fileChannel.truncate(0L);
+        this.writeHeader();
+    }
+    private TIFFWriter(FileChannel fileChannel, boolean isChannelOwner, ByteOrder byteOrder, boolean isBigTIFF) {
+        this.fileChannel = fileChannel;
+        this.isChannelOwner = isChannelOwner;
+        this.byteOrder = byteOrder;
+        this.isBigTIFF = isBigTIFF;
+    }
+
+    /**
+     * 创建文件并写入文件头，已存在的文件会被覆盖
+     *
+     * @param path 文件路径
+     * @param byteOrder 文件字节序
+     * @param isBigTIFF 是否写入BigTIFF
+     * @return 写入器，关闭时同时关闭文件
+     * @throws IOException 创建文件或者写入文件头时发生的异常
+     */
+    public static TIFFWriter create(Path path, ByteOrder byteOrder, boolean isBigTIFF) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            TIFFWriter tiffWriter = new TIFFWriter(fileChannel, true, byteOrder, isBigTIFF);
+            tiffWriter.writeHeader();
+            return tiffWriter;
+        } catch (IOException | RuntimeException exception) {
+            fileChannel.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * 打开已有的文件，在文件末尾追加图像，新的IFD链接到已有IFD链的末尾，字节序以及是否为BigTIFF与文件相同
+     *
+     * @param path 文件路径
+     * @return 写入器，关闭时同时关闭文件
+     * @throws IOException 读取文件头和IFD链时发生的异常
+     */
+    public static TIFFWriter openForAppend(Path path) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            TIFFReader tiffReader = new TIFFReader(fileChannel);
+            TIFFWriter tiffWriter = new TIFFWriter(fileChannel, true, tiffReader.getIFH().getByteOrder(),
+                    tiffReader.isBigTIFF());
+
+            // 最后一个IFD中下一个IFD的偏移量，没有IFD时为文件头中第一个IFD的偏移量
+            ImageFileDirectoryChain imageFileDirectoryChain = tiffReader.getIFDChain();
+            int pageCount = imageFileDirectoryChain.size();
+            if (pageCount == 0) {
+                tiffWriter.ifdOffsetPosition = tiffWriter.isBigTIFF ? 8 : 4;
+            } else {
+                tiffWriter.ifdOffsetPosition = imageFileDirectoryChain.get(pageCount - 1)
+                        .nextIFDOffsetPosition(imageFileDirectoryChain.offsetOf(pageCount - 1));
+            }
+            tiffWriter.position = fileChannel.size();
+
+            return tiffWriter;
+        } catch (IOException | RuntimeException exception) {
+            fileChannel.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * 设置压缩时使用的注册表，默认使用{@link CodecRegistry#getDefault()}
+     */
+    public void setCodecRegistry(CodecRegistry codecRegistry) {
+        this.codecRegistry = Objects.requireNonNull(codecRegistry, "注册表不能为空");
+    }
+
+    /**
+     * 设置并行压缩条带或瓦片时使用的线程池
+     *
+     * <p>
+     * 调用线程填满一个条带或瓦片后将其提交到线程池压缩，不等待压缩完成。已提交但尚未写入的个数达到maxPendingChunks时，
+     * 调用线程等待最早的一个压缩完成，再将其与之后已经完成的连续条带或瓦片通过一次聚集写入提交到文件，
+     * 因此每幅图像的条带（瓦片）缓冲区与编码缓冲区合计不超过(2 * maxPendingChunks + 1)个。不压缩时不使用线程池。
+     * 线程池由调用方负责关闭。
+     * </p>
+     *
+     * @param encodeExecutor 线程池，为null时在调用线程中压缩
+     * @param maxPendingChunks 已提交但尚未写入文件的最大条带或瓦片个数，通常为线程数的2倍左右
+     */
+    public void setEncodeExecutor(ExecutorService encodeExecutor, int maxPendingChunks) {
+        if (!this.openImages.isEmpty()) {
+            throw new IllegalStateException("写入图像的过程中不能修改线程池");
+        }
+        if (encodeExecutor != null && maxPendingChunks <= 0) {
+            throw new IllegalArgumentException("无效的最大条带或瓦片个数：" + maxPendingChunks);
+        }
+
+        this.encodeExecutor = encodeExecutor;
+        this.maxPendingChunks = maxPendingChunks;
+    }
+
+    /**
+     * 开始写入一幅图像
+     *
+     * @param spec 图像的属性
+     * @throws IllegalStateException 上一幅图像还没有结束时抛出
+     * @throws IllegalArgumentException 压缩方式不支持编码，或者Predictor与压缩方式不匹配时抛出
+     */
+    public void beginImage(TIFFImageSpec spec) {
+        if (this.currentImage != null) {
+            throw new IllegalStateException("上一幅图像还没有结束");
+        }
+
+        this.currentImage = this.openImage(spec);
+    }
+
+    /**
+     * 打开一幅图像，可以与其他图像同时写入，各幅图像的条带或瓦片交错写入文件
+     *
+     * @param spec 图像的属性
+     * @return 图像的写入流，结束时返回尚未写入文件的IFD
+     * @throws IllegalArgumentException 压缩方式不支持编码，或者Predictor与压缩方式不匹配时抛出
+     */
+    public ImageStream openImage(TIFFImageSpec spec) {
+        ImageStream imageStream = new ImageStream(spec);
+        this.openImages.add(imageStream);
+
+        return imageStream;
+    }
+
+    /**
+     * 写入像素数据，数据按行连续存放，可以包含任意行，也可以在行的中间分割
+     *
+     * @param rows 像素数据
+     * @throws IOException 写入条带或瓦片时发生的异常
+     * @see ImageStream#writeRows(ByteBuffer)
+     */
+    public void writeRows(ByteBuffer rows) throws IOException {
+        if (this.currentImage == null) {
+            throw new IllegalStateException("没有正在写入的图像，需要先调用beginImage");
+        }
+
+        this.currentImage.writeRows(rows);
+    }
+
+    /**
+     * 结束当前图像，写入剩余的条带或瓦片以及IFD，并回填指向该IFD的偏移量
+     *
+     * @return IFD在文件中的偏移量
+     * @throws IOException 写入数据时发生的异常
+     * @throws IllegalStateException 图像的像素数据不完整时抛出
+     */
+    public long endImage() throws IOException {
+        return this.writeIFD(this.finishImage());
+    }
+
+    /**
+     * 结束当前图像，写入剩余的条带或瓦片，返回尚未写入文件的IFD，由调用方决定IFD的位置
+     *
+     * @return IFD，包含全部条带或瓦片的偏移量和字节数
+     * @throws IOException 写入数据时发生的异常
+     * @throws IllegalStateException 图像的像素数据不完整时抛出
+     * @see #writeIFD(ImageFileDirectory, long)
+     */
+    public ImageFileDirectory finishImage() throws IOException {
+        if (this.currentImage == null) {
+            throw new IllegalStateException("没有正在写入的图像");
+        }
+
+        ImageFileDirectory imageFileDirectory = this.currentImage.finish();
+        this.currentImage = null;
+
+        return imageFileDirectory;
+    }
+
+    /**
+     * 在已写入数据的末尾写入一个IFD，并将其链接到IFD链的末尾，IFD中的条带、瓦片数据需要由调用方预先写入
+     *
+     * @param imageFileDirectory IFD，其中下一个IFD的偏移量会被重置为0
+     * @return IFD在文件中的偏移量
+     * @throws IOException 写入数据时发生的异常
+     */
+    public long writeIFD(ImageFileDirectory imageFileDirectory) throws IOException {
+        long ifdOffset = this.reserve(imageFileDirectory.getByteSize());
+        this.writeIFD(imageFileDirectory, ifdOffset);
+
+        return ifdOffset;
+    }
+
+    /**
+     * 在通过{@link #reserve(long)}预留的位置写入一个IFD，并将其链接到IFD链的末尾
+     *
+     * @param imageFileDirectory IFD，其中下一个IFD的偏移量会被重置为0
+     * @param ifdOffset IFD的偏移量，必须为偶数，预留的空间不小于{@link ImageFileDirectory#getByteSize()}
+     * @throws IOException 写入数据时发生的异常
+     */
+    public void writeIFD(ImageFileDirectory imageFileDirectory, long ifdOffset) throws IOException {
+        if ((ifdOffset & 1) != 0 || ifdOffset + imageFileDirectory.getByteSize() > this.position) {
+            throw new IllegalArgumentException(String.format("IFD的偏移量不是偶数或者超出预留的空间：%s", ifdOffset));
+        }
+
+        imageFileDirectory.setNextIFDOffset(0L);
+        this.write(imageFileDirectory.encode(ifdOffset, this.byteOrder), ifdOffset);
+
+        ByteBuffer offsetByteBuffer = ByteBuffer.allocate(this.offsetByteSize()).order(this.byteOrder);
+        FMBinaryUtil.putUnsigned(offsetByteBuffer, 0, this.offsetByteSize(), ifdOffset);
+        this.write(offsetByteBuffer, this.ifdOffsetPosition);
+        this.ifdOffsetPosition = imageFileDirectory.nextIFDOffsetPosition(ifdOffset);
+    }
+
+    /**
+     * 在已写入数据的末尾预留空间，例如在图像数据之前为IFD预留位置，预留的空间从偶数位置开始
+     *
+     * @param byteSize 预留的字节数
+     * @return 预留空间的偏移量
+     */
+    public long reserve(long byteSize) {
+        long offset = this.position + (this.position & 1);
+        if (!this.isBigTIFF && offset + byteSize > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("标准TIFF的偏移量不能超过4GB，需要使用BigTIFF");
+        }
+
+        this.position = offset + byteSize;
+        return offset;
+    }
+
+    /**
+     * 在已写入数据的末尾追加数据，例如条带、瓦片或者较大的DE值
+     *
+     * @param data 需要写入的数据，写入后position移动到limit
+     * @return 数据在文件中的偏移量
+     * @throws IOException 写入数据时发生的异常
+     */
+    public long append(ByteBuffer data) throws IOException {
+        long offset = this.position;
+        if (!this.isBigTIFF && offset + data.remaining() > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("标准TIFF的偏移量不能超过4GB，需要使用BigTIFF");
+        }
+
+        this.position += data.remaining();
+        this.write(data, offset);
+
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // 未结束的图像不会被链接到IFD链中，已结束的图像仍然可读
+        for (ImageStream imageStream : this.openImages) {
+            imageStream.cancelPendingChunks();
+        }
+        this.openImages.clear();
+        this.currentImage = null;
+        if (this.isChannelOwner) {
+            this.fileChannel.close();
+        }
+    }
+
+    /**
+     * 根据图像的属性以及条带或瓦片的偏移量、字节数创建IFD
+     *
+     * @param spec 图像的属性
+     * @param chunkOffsets 条带或瓦片的偏移量
+     * @param chunkByteCounts 条带或瓦片的字节数
+     * @param isBigTIFF 是否为BigTIFF，决定偏移量的类型
+     * @return IFD
+     */
+    static ImageFileDirectory createIFD(TIFFImageSpec spec, long[] chunkOffsets, long[] chunkByteCounts,
+                                        boolean isBigTIFF) {
+        int offsetType = isBigTIFF ? TIFF.Type.LONG8 : TIFF.Type.LONG;
+        long[] bitsPerSample = new long[spec.getSamplesPerPixel()];
+        long[] sampleFormat = new long[spec.getSamplesPerPixel()];
+        for (int i = 0; i < bitsPerSample.length; i++) {
+            bitsPerSample[i] = spec.getBitsPerSample()[i];
+            sampleFormat[i] = spec.getSampleFormat();
+        }
+
+        ImageFileDirectory imageFileDirectory = new ImageFileDirectory(isBigTIFF);
+        List<DataEntry> dataEntries = imageFileDirectory.getDataEntries();
+        if (spec.getSubfileType() != 0) {
+            dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.NEW_SUBFILE_TYPE, TIFF.Type.LONG, spec.getSubfileType()));
+        }
+        dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.IMAGE_WIDTH, TIFF.Type.LONG, spec.getWidth()));
+        dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.IMAGE_LENGTH, TIFF.Type.LONG, spec.getHeight()));
+        dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.BITS_PER_SAMPLE, TIFF.Type.SHORT, bitsPerSample));
+        dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.COMPRESSION, TIFF.Type.SHORT, spec.getCompression()));
+        dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.PHOTO_INTERPRETATION, TIFF.Type.SHORT, spec.getPhotometric()));
+        dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.SAMPLES_PER_PIXEL, TIFF.Type.SHORT,
+                spec.getSamplesPerPixel()));
+        dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.PLANAR_CONFIGURATION, TIFF.Type.SHORT,
+                TIFF.PlanarConfiguration.CHUNKY));
+        if (spec.getPredictor() != 1) {
+            dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.TIFF_PREDICTOR, TIFF.Type.SHORT, spec.getPredictor()));
+        }
+        dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.SAMPLE_FORMAT, TIFF.Type.SHORT, sampleFormat));
+
+        if (spec.isTiled()) {
+            dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.TILE_WIDTH, TIFF.Type.LONG, spec.getTileWidth()));
+            dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.TILE_LENGTH, TIFF.Type.LONG, spec.getTileLength()));
+            dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.TILE_OFFSETS, offsetType, chunkOffsets));
+            dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.TILE_COUNTS, offsetType, chunkByteCounts));
+        } else {
+            dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.ROWS_PER_STRIP, TIFF.Type.LONG,
+                    spec.getEffectiveRowsPerStrip()));
+            dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.STRIP_OFFSETS, offsetType, chunkOffsets));
+            dataEntries.add(DataEntry.ofIntegers(TIFF.Tag.STRIP_BYTE_COUNTS, offsetType, chunkByteCounts));
+        }
+        dataEntries.addAll(spec.getDataEntries());
+
+        return imageFileDirectory;
+    }
+
+    /**
+     * 转换多字节样本的字节序
+     */
+    static void swapBytes(ByteBuffer byteBuffer, int start, int length, int bytesPerSample) {
+        for (int i = start; i < start + length; i += bytesPerSample) {
+            for (int low = i, high = i + bytesPerSample - 1; low < high; low++, high--) {
+                byte value = byteBuffer.get(low);
+                byteBuffer.put(low, byteBuffer.get(high));
+                byteBuffer.put(high, value);
+            }
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        int headerByteSize = this.isBigTIFF ? TIFF.IFH.BIG_TIFF_BYTE_SIZE : TIFF.IFH.BYTE_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(headerByteSize).order(this.byteOrder);
+
+        header.putShort(0, (short) (this.byteOrder == ByteOrder.LITTLE_ENDIAN ? TIFF.IFH.LITTLE_ENDIAN_MARK :
+                TIFF.IFH.BIG_ENDIAN_MARK));
+        if (this.isBigTIFF) {
+            header.putShort(2, (short) TIFF.BIG_TIFF_IDENTIFIER);
+            // 偏移量的字节大小固定为8，保留字段固定为0
+            header.putShort(4, (short) 8);
+            header.putShort(6, (short) 0);
+            this.ifdOffsetPosition = 8;
+        } else {
+            header.putShort(2, (short) TIFF.TIFF_IDENTIFIER);
+            this.ifdOffsetPosition = 4;
+        }
+
+        // 第一个IFD的偏移量在第一幅图像结束时回填
+        this.write(header, 0L);
+        this.position = headerByteSize;
+    }
+
+    private Encoder createEncoder(TIFFImageSpec spec) {
+        CodecProvider codecProvider = this.codecRegistry.get(spec.getCompression());
+        if (!codecProvider.canEncode()) {
+            throw new IllegalArgumentException("当前压缩方式不支持编码：" + spec.getCompression());
+        }
+        if (codecProvider.isPassthrough()) {
+            if (spec.getPredictor() != 1) {
+                throw new IllegalArgumentException("不压缩时不能使用Predictor");
+            }
+            return null;
+        }
+
+        Encoder codecEncoder = codecProvider.getEncoder(spec.getChunkRowByteSize());
+        if (spec.getPredictor() == 1) {
+            return codecEncoder;
+        }
+        if (!(codecEncoder instanceof ChunkedEncoder)) {
+            throw new IllegalArgumentException("当前压缩方式不支持Predictor：" + spec.getCompression());
+        }
+
+        return new PredictingEncoder((ChunkedEncoder) codecEncoder, (int) spec.getChunkWidth(),
+                spec.getBitsPerSample()[0], spec.getSamplesPerPixel(), spec.getPredictor());
+    }
+
+    private ByteBuffer await(Future<ByteBuffer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("压缩图像数据时线程被中断");
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("压缩图像数据时发生异常", cause);
+        }
+    }
+
+    /**
+     * 压缩一个条带或瓦片，压缩结果超出编码缓冲区时扩容后重新压缩
+     *
+     * @return 压缩结果，可能是扩容后的缓冲区，调用方需要使用返回值复用缓冲区
+     */
+    private ByteBuffer compress(Encoder codecEncoder, ByteBuffer chunk, ByteBuffer code) throws IOException {
+        ByteBuffer target = code;
+        while (true) {
+            target.clear();
+            CodecResult codecResult = codecEncoder.encode(chunk.duplicate().order(this.byteOrder), target);
+            if (!codecResult.isOverflow()) {
+                return target.flip();
+            }
+
+            int capacity = target.capacity();
+            if (capacity >= Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("条带或瓦片压缩后的数据过大");
+            }
+            target = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8L, capacity * 2L));
+        }
+    }
+
+    private int offsetByteSize() {
+        return this.isBigTIFF ? 8 : 4;
+    }
+
+    private void write(ByteBuffer data, long offset) throws IOException {
+        long writePosition = offset;
+        while (data.hasRemaining()) {
+            writePosition += this.fileChannel.write(data, writePosition);
+        }
+    }
+
+    /**
+     * 聚集写入，FileChannel不支持指定位置的聚集写入，因此先移动通道的位置
+     */
+    private void write(ByteBuffer[] data, long offset) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer byteBuffer : data) {
+            remaining += byteBuffer.remaining();
+        }
+
+        this.fileChannel.position(offset);
+        while (remaining > 0) {
+            remaining -= this.fileChannel.write(data);
+        }
+    }
+
+    /**
+     * 一幅图像的写入流，按行接收像素数据，凑满一个条带或一行瓦片后压缩并追加到文件末尾
+     */
+    public final class ImageStream {
+        @Getter
+        private final TIFFImageSpec spec;
+        // 在调用线程中压缩时使用的编码器，不压缩或者并行压缩时为null
+        private final Encoder encoder;
+        // 并行压缩时每个工作线程各自的编码器，LZW、Deflate等编码器在同一线程的条带或瓦片之间复用
+        private final ThreadLocal<Encoder> workerEncoders;
+        // 按条带存储时保存一个条带的行，按瓦片存储时保存一行瓦片对应的行
+        private ByteBuffer rowBuffer;
+        // 在调用线程中压缩时复用的瓦片缓冲区和编码缓冲区
+        private ByteBuffer tileBuffer;
+        private ByteBuffer codeBuffer;
+        private final long[] chunkOffsets;
+        private final long[] chunkByteCounts;
+        private int chunkIndex = 0;
+        private long remainingBytes;
+        private boolean isFinished = false;
+
+        // 已提交压缩但尚未写入文件的条带或瓦片，按照顺序排列
+        private final Deque<PendingChunk> pendingChunks = new ArrayDeque<>();
+        // 已写入文件、可以复用的条带或瓦片缓冲区和编码缓冲区
+        private final Deque<ByteBuffer> freeChunkBuffers = new ArrayDeque<>();
+        private final Deque<ByteBuffer> freeCodeBuffers = new ArrayDeque<>();
+
+        private ImageStream(TIFFImageSpec spec) {
+            long rowBufferByteSize = spec.getChunkLength() * spec.getRowByteSize();
+            long chunkCount = spec.getChunkCount();
+            if (rowBufferByteSize > Integer.MAX_VALUE - 1024 || chunkCount > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException(String.format("条带过大或者条带、瓦片个数过多：%s行/条带，%s个",
+                        spec.getChunkLength(), chunkCount));
+            }
+
+            // 在打开图像时创建一次编码器，检查压缩方式和Predictor是否可用
+            Encoder encoder = createEncoder(spec);
+            if (encoder != null && encodeExecutor != null) {
+                this.encoder = null;
+                this.workerEncoders = ThreadLocal.withInitial(() -> createEncoder(spec));
+            } else {
+                this.encoder = encoder;
+                this.workerEncoders = null;
+            }
+            this.rowBuffer = ByteBuffer.allocate((int) rowBufferByteSize).order(byteOrder);
+            this.chunkOffsets = new long[(int) chunkCount];
+            this.chunkByteCounts = new long[(int) chunkCount];
+            this.remainingBytes = spec.getHeight() * spec.getRowByteSize();
+            this.spec = spec;
+        }
+
+        /**
+         * 写入像素数据，数据按行连续存放，可以包含任意行，也可以在行的中间分割
+         *
+         * <p>
+         * 多字节样本按照rows的字节序解释，与文件字节序不同时写入时转换，此时每次写入的字节数必须是样本字节数的整数倍。
+         * 写入后rows的position移动到limit。
+         * </p>
+         *
+         * @param rows 像素数据
+         * @throws IOException 写入条带或瓦片时发生的异常
+         */
+        public void writeRows(ByteBuffer rows) throws IOException {
+            if (this.isFinished) {
+                throw new IllegalStateException("图像已经结束");
+            }
+            if (rows.remaining() > this.remainingBytes) {
+                throw new IllegalArgumentException(String.format("写入的数据超出图像大小：剩余%s字节，写入%s字节",
+                        this.remainingBytes, rows.remaining()));
+            }
+
+            int bits = this.spec.getBitsPerSample()[0];
+            int swapByteSize = bits > 8 && bits % 8 == 0 && rows.order() != byteOrder ? bits / 8 : 1;
+            if (rows.remaining() % swapByteSize != 0) {
+                throw new IllegalArgumentException("需要转换字节序时，写入的字节数必须是样本字节数的整数倍");
+            }
+
+            while (rows.hasRemaining()) {
+                int length = Math.min(rows.remaining(), this.rowBuffer.remaining());
+                int bufferPosition = this.rowBuffer.position();
+                this.rowBuffer.put(bufferPosition, rows, rows.position(), length);
+                if (swapByteSize > 1) {
+                    swapBytes(this.rowBuffer, bufferPosition, length, swapByteSize);
+                }
+                rows.position(rows.position() + length);
+                this.rowBuffer.position(bufferPosition + length);
+                this.remainingBytes -= length;
+
+                if (!this.rowBuffer.hasRemaining()) {
+                    this.flushRows();
+                }
+            }
+        }
+
+        /**
+         * 结束图像，写入剩余的条带或瓦片，返回尚未写入文件的IFD
+         *
+         * @return IFD，包含全部条带或瓦片的偏移量和字节数
+         * @throws IOException 写入数据时发生的异常
+         * @throws IllegalStateException 图像的像素数据不完整时抛出
+         */
+        public ImageFileDirectory finish() throws IOException {
+            if (this.isFinished) {
+                throw new IllegalStateException("图像已经结束");
+            }
+            if (this.remainingBytes > 0) {
+                throw new IllegalStateException(String.format("图像的像素数据不完整，还差%s字节", this.remainingBytes));
+            }
+
+            // 最后一个条带或一行瓦片只包含剩余的行
+            if (this.rowBuffer.position() > 0) {
+                this.flushRows();
+            }
+            this.commitChunks(0);
+
+            this.isFinished = true;
+            this.rowBuffer = null;
+            this.tileBuffer = null;
+            this.codeBuffer = null;
+            this.freeChunkBuffers.clear();
+            this.freeCodeBuffers.clear();
+            openImages.remove(this);
+
+            return createIFD(this.spec, this.chunkOffsets, this.chunkByteCounts, isBigTIFF);
+        }
+
+        private boolean isParallel() {
+            return this.workerEncoders != null;
+        }
+
+        /**
+         * 将缓冲的行作为一个条带写入，或者切分为一行瓦片写入
+         */
+        private void flushRows() throws IOException {
+            this.rowBuffer.flip();
+
+            if (!this.spec.isTiled()) {
+                ByteBuffer strip = this.rowBuffer;
+                this.writeChunk(strip);
+                // 并行压缩时条带缓冲区交给线程池，换用一个空闲的缓冲区
+                this.rowBuffer = this.isParallel() ? this.takeChunkBuffer(strip.capacity()) : strip;
+                this.rowBuffer.clear();
+                return;
+            }
+
+            int rowByteSize = this.spec.getRowByteSize();
+            int rows = this.rowBuffer.limit() / rowByteSize;
+            int tileRowByteSize = (int) (this.spec.getTileWidth() * rowByteSize / this.spec.getWidth());
+            int tileByteSize = (int) this.spec.getChunkByteSize();
+
+            for (int tileStart = 0; tileStart < rowByteSize; tileStart += tileRowByteSize) {
+                ByteBuffer tile;
+                if (this.isParallel()) {
+                    tile = this.takeChunkBuffer(tileByteSize);
+                } else {
+                    if (this.tileBuffer == null) {
+                        this.tileBuffer = ByteBuffer.allocate(tileByteSize).order(byteOrder);
+                    }
+                    tile = this.tileBuffer;
+                }
+
+                // 位于图像右侧或者底部的瓦片，超出图像的部分以0填充
+                int length = Math.min(tileRowByteSize, rowByteSize - tileStart);
+                if (length < tileRowByteSize || rows < this.spec.getTileLength()) {
+                    Arrays.fill(tile.array(), (byte) 0);
+                }
+                for (int row = 0; row < rows; row++) {
+                    tile.put(row * tileRowByteSize, this.rowBuffer, row * rowByteSize + tileStart, length);
+                }
+
+                this.writeChunk(tile.clear());
+            }
+
+            this.rowBuffer.clear();
+        }
+
+        /**
+         * 压缩并写入一个条带或瓦片，并行压缩时只提交到线程池
+         */
+        private void writeChunk(ByteBuffer chunk) throws IOException {
+            if (this.isParallel()) {
+                // 编码器在工作线程中获取
+                ThreadLocal<Encoder> workerEncoders = this.workerEncoders;
+                ByteBuffer code = this.freeCodeBuffers.isEmpty() ? ByteBuffer.allocate(chunk.capacity() + 1024) :
+                        this.freeCodeBuffers.pop();
+                Future<ByteBuffer> future = encodeExecutor.submit(() ->
+                        compress(workerEncoders.get(), chunk, code));
+                this.pendingChunks.add(new PendingChunk(this.chunkIndex++, chunk, future));
+                return;
+            }
+
+            ByteBuffer code = chunk;
+            if (this.encoder != null) {
+                if (this.codeBuffer == null) {
+                    this.codeBuffer = ByteBuffer.allocate(chunk.capacity() + 1024);
+                }
+                code = this.codeBuffer = compress(this.encoder, chunk, this.codeBuffer);
+            }
+
+            this.chunkByteCounts[this.chunkIndex] = code.remaining();
+            this.chunkOffsets[this.chunkIndex] = append(code);
+            this.chunkIndex++;
+        }
+
+        /**
+         * 获取一个空闲的条带或瓦片缓冲区，已提交的个数达到上限时先写入最早的条带或瓦片，空出缓冲区
+         */
+        private ByteBuffer takeChunkBuffer(int capacity) throws IOException {
+            this.commitChunks(maxPendingChunks - 1);
+
+            return this.freeChunkBuffers.isEmpty() ? ByteBuffer.allocate(capacity).order(byteOrder) :
+                    this.freeChunkBuffers.pop();
+        }
+
+        /**
+         * 按照顺序写入已提交的条带或瓦片，直到尚未写入的个数不超过maxRemaining
+         *
+         * <p>
+         * 先等待最早的一个压缩完成，再合并其后已经完成的连续条带或瓦片，通过一次聚集写入提交到文件，并记录偏移量和字节数。
+         * </p>
+         */
+        private void commitChunks(int maxRemaining) throws IOException {
+            while (this.pendingChunks.size() > maxRemaining) {
+                List<PendingChunk> batch = new ArrayList<>();
+                do {
+                    batch.add(this.pendingChunks.poll());
+                } while (!this.pendingChunks.isEmpty() && this.pendingChunks.peek().code.isDone() &&
+                        batch.size() < MAX_GATHER_CHUNKS);
+
+                ByteBuffer[] codes = new ByteBuffer[batch.size()];
+                long offset = position;
+                for (int i = 0; i < codes.length; i++) {
+                    PendingChunk pendingChunk = batch.get(i);
+                    try {
+                        codes[i] = await(pendingChunk.code);
+                    } catch (IOException | RuntimeException exception) {
+                        this.cancelPendingChunks();
+                        throw exception;
+                    }
+                    this.chunkOffsets[pendingChunk.index] = offset;
+                    this.chunkByteCounts[pendingChunk.index] = codes[i].remaining();
+                    offset += codes[i].remaining();
+                }
+                if (!isBigTIFF && offset > 0xFFFFFFFFL) {
+                    throw new IllegalArgumentException("标准TIFF的偏移量不能超过4GB，需要使用BigTIFF");
+                }
+
+                write(codes, position);
+                position = offset;
+
+                for (int i = 0; i < codes.length; i++) {
+                    this.freeChunkBuffers.push(batch.get(i).chunk.clear());
+                    this.freeCodeBuffers.push(codes[i]);
+                }
+            }
+        }
+
+        private void cancelPendingChunks() {
+            for (PendingChunk pendingChunk : this.pendingChunks) {
+                pendingChunk.code.cancel(false);
+            }
+            this.pendingChunks.clear();
+        }
+    }
+
+    private static final class PendingChunk {
+        private final int index;
+        private final ByteBuffer chunk;
+        private final Future<ByteBuffer> code;
+
+        private PendingChunk(int index, ByteBuffer chunk, Future<ByteBuffer> code) {
+            this.index = index;
+            this.chunk = chunk;
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package cn.funnymap.model.tiff;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * 瓦片索引
+ *
+ * <p>
+ * 根据IFD中的TileWidth、TileLength、TileOffsets、TileByteCounts计算瓦片的行列数，
+ * 以及指定列、行、通道的瓦片在TileOffsets中的下标。按条带存储的图像被视为宽度等于图像宽度、
+ * 高度等于RowsPerStrip的瓦片，因此窗口读取对两种存储方式都适用。
+ * 瓦片按行优先的顺序排列，PlanarConfiguration为2时各个通道的瓦片依次存放。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/19 10:15
+ */
+@Getter
+public final class TileIndex {
+    private final long imageWidth;
+    private final long imageHeight;
+    private final long tileWidth;
+    private final long tileLength;
+    private final int tilesAcross;
+    private final int tilesDown;
+    private final int planeCount;
+    // 瓦片中每个像素的通道个数，PlanarConfiguration为2时为1
+    private final int samplesPerTilePixel;
+    private final int bytesPerSample;
+    private final boolean tiled;
+    @Getter(AccessLevel.NONE)
+    private final long[] offsets;
+    @Getter(AccessLevel.NONE)
+    private final long[] byteCounts;
+
+    private TileIndex(TIFFTag tiffTag, long tileWidth, long tileLength, int samplesPerPixel, int bytesPerSample,
+                      long[] offsets, long[] byteCounts) {
+        this.imageWidth = tiffTag.getWidth();
+        this.imageHeight = tiffTag.getHeight();
+        this.tileWidth = tileWidth;
+        this.tileLength = tileLength;
+        this.tilesAcross = (int) ((this.imageWidth + tileWidth - 1) / tileWidth);
+        this.tilesDown = (int) ((this.imageHeight + tileLength - 1) / tileLength);
+
+        boolean isPlanar = tiffTag.getPlanarConfig() == TIFF.PlanarConfiguration.PLANAR;
+        this.planeCount = isPlanar ? samplesPerPixel : 1;
+        this.samplesPerTilePixel = isPlanar ? 1 : samplesPerPixel;
+        this.bytesPerSample = bytesPerSample;
+        this.tiled = tiffTag.isTiled();
+        this.offsets = offsets;
+        this.byteCounts = byteCounts;
+    }
+
+    /**
+     * 根据IFD的属性创建瓦片索引
+     *
+     * @param tiffTag IFD对应的属性
+     * @return 瓦片索引
+     */
+    public static TileIndex of(TIFFTag tiffTag) {
+        if (tiffTag.getWidth() <= 0 || tiffTag.getHeight() <= 0) {
+            throw new IllegalArgumentException(String.format("无效的图像尺寸：%s x %s", tiffTag.getWidth(),
+                    tiffTag.getHeight()));
+        }
+
+        int[] bitsPerSample = tiffTag.getBitsPerSample();
+        int bits = bitsPerSample == null || bitsPerSample.length == 0 ? 8 : bitsPerSample[0];
+        if (bits % 8 != 0) {
+            throw new IllegalArgumentException("按瓦片读取时，通道的位深必须为8的整数倍：" + bits);
+        }
+        int samplesPerPixel = tiffTag.getSamplesPerPixel() > 0 ? tiffTag.getSamplesPerPixel() :
+                (bitsPerSample == null ? 1 : bitsPerSample.length);
+
+        long tileWidth;
+        long tileLength;
+        long[] offsets;
+        long[] byteCounts;
+        if (tiffTag.isTiled()) {
+            tileWidth = tiffTag.getTileWidth();
+            tileLength = tiffTag.getTileLength();
+            offsets = tiffTag.getTileOffsets();
+            byteCounts = tiffTag.getTileByteCounts();
+        } else {
+            tileWidth = tiffTag.getWidth();
+            tileLength = tiffTag.getRowsPerStrip() > 0 ? Math.min(tiffTag.getRowsPerStrip(), tiffTag.getHeight()) :
+                    tiffTag.getHeight();
+            offsets = tiffTag.getStripOffsets();
+            byteCounts = tiffTag.getStripByteCounts();
+        }
+
+        if (offsets == null || byteCounts == null) {
+            throw new IllegalArgumentException("缺少瓦片或条带的偏移量、字节数，无法读取图像数据");
+        }
+
+        TileIndex tileIndex = new TileIndex(tiffTag, tileWidth, tileLength, samplesPerPixel, bits / 8, offsets,
+                byteCounts);
+        if (offsets.length < tileIndex.getTileCount() || byteCounts.length < tileIndex.getTileCount()) {
+            throw new IllegalArgumentException(String.format("瓦片数量不足，需要%s个，偏移量：%s个，字节数：%s个",
+                    tileIndex.getTileCount(), offsets.length, byteCounts.length));
+        }
+        if ((long) tileIndex.getTileByteSize() != tileWidth * tileLength * tileIndex.getPixelByteSize()) {
+            throw new IllegalArgumentException(String.format("瓦片过大：%s x %s", tileWidth, tileLength));
+        }
+
+        return tileIndex;
+    }
+
+    public int getTileCount() {
+        return this.tilesAcross * this.tilesDown * this.planeCount;
+    }
+
+    /**
+     * 瓦片中每个像素的字节数
+     */
+    public int getPixelByteSize() {
+        return this.samplesPerTilePixel * this.bytesPerSample;
+    }
+
+    /**
+     * 瓦片中每行的字节数
+     */
+    public int getTileRowByteSize() {
+        return (int) (this.tileWidth * this.getPixelByteSize());
+    }
+
+    /**
+     * 完整瓦片解码后的字节数，位于图像边缘的瓦片同样按完整的大小存储
+     */
+    public int getTileByteSize() {
+        return (int) Math.min(Integer.MAX_VALUE, this.tileLength * this.getTileRowByteSize());
+    }
+
+    /**
+     * 获取瓦片的下标
+     *
+     * @param col 瓦片所在的列
+     * @param row 瓦片所在的行
+     * @param band 通道，PlanarConfiguration为1时只能为0
+     * @return 瓦片在TileOffsets中的下标
+     */
+    public int indexOf(int col, int row, int band) {
+        if (col < 0 || col >= this.tilesAcross || row < 0 || row >= this.tilesDown) {
+            throw new IndexOutOfBoundsException(String.format("瓦片超出范围：列%s，行%s，瓦片行列数：%s x %s",
+                    col, row, this.tilesAcross, this.tilesDown));
+        }
+        if (band < 0 || band >= this.planeCount) {
+            throw new IndexOutOfBoundsException(String.format("通道超出范围：%s，通道分开存放的个数：%s", band,
+                    this.planeCount));
+        }
+
+        return (band * this.tilesDown + row) * this.tilesAcross + col;
+    }
+
+    public long getTileOffset(int tileIndex) {
+        return this.offsets[tileIndex];
+    }
+
+    public long getTileByteCount(int tileIndex) {
+        return this.byteCounts[tileIndex];
+    }
+
+    /**
+     * 瓦片实际包含的图像行数，条带存储时最后一个条带的行数可能少于RowsPerStrip
+     */
+    long rowsOf(int row) {
+        return this.tiled ? this.tileLength : Math.min(this.tileLength, this.imageHeight - row * this.tileLength);
+    }
+}
@@ -0,0 +1,111 @@
+package cn.funnymap.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 二进制基础类型编解码工具
+ *
+ * <p>
+ * 所有方法均使用 {@link ByteBuffer} 的绝对位置读写，按照 Buffer 自身的字节序编解码，
+ * 不修改 Buffer 的 position，也不创建任何中间对象。
+ * </p>
+ *
+ * @author jiao xn
+ * @date 2024/1/12 09:20
+ */
+public class FMBinaryUtil {
+    private FMBinaryUtil() {}
+
+    public static int getUnsignedByte(ByteBuffer byteBuffer, int index) {
+        return byteBuffer.get(index) & 0xFF;
+    }
+
+    public static int getUnsignedShort(ByteBuffer byteBuffer, int index) {
+        return byteBuffer.getShort(index) & 0xFFFF;
+    }
+
+    public static long getUnsignedInt(ByteBuffer byteBuffer, int index) {
+        return byteBuffer.getInt(index) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 读取64位无符号整数，超过 {@link Long#MAX_VALUE} 的值会以负数表示，调用方需要自行处理
+     */
+    public static long getUnsignedLong(ByteBuffer byteBuffer, int index) {
+        return byteBuffer.getLong(index);
+    }
+
+    public static byte getByte(ByteBuffer byteBuffer, int index) {
+        return byteBuffer.get(index);
+    }
+
+    public static short getShort(ByteBuffer byteBuffer, int index) {
+        return byteBuffer.getShort(index);
+    }
+
+    public static int getInt(ByteBuffer byteBuffer, int index) {
+        return byteBuffer.getInt(index);
+    }
+
+    public static long getLong(ByteBuffer byteBuffer, int index) {
+        return byteBuffer.getLong(index);
+    }
+
+    public static float getFloat(ByteBuffer byteBuffer, int index) {
+        return byteBuffer.getFloat(index);
+    }
+
+    public static double getDouble(ByteBuffer byteBuffer, int index) {
+        return byteBuffer.getDouble(index);
+    }
+
+    /**
+     * 按照字节长度读取无符号整数
+     *
+     * @param byteBuffer 数据
+     * @param index 起始位置
+     * @param byteSize 字节长度，仅支持1、2、4、8
+     * @return 无符号整数值
+     */
+    public static long getUnsigned(ByteBuffer byteBuffer, int index, int byteSize) {
+        switch (byteSize) {
+            case 1:
+                return getUnsignedByte(byteBuffer, index);
+            case 2:
+                return getUnsignedShort(byteBuffer, index);
+            case 4:
+                return getUnsignedInt(byteBuffer, index);
+            case 8:
+                return getUnsignedLong(byteBuffer, index);
+            default:
+                throw new IllegalArgumentException("不支持的字节长度：" + byteSize);
+        }
+    }
+
+    /**
+     * 按照字节长度写入无符号整数，超出字节长度的高位被丢弃
+     *
+     * @param byteBuffer 数据
+     * @param index 起始位置
+     * @param byteSize 字节长度，仅支持1、2、4、8
+     * @param value 无符号整数值
+     */
+    public static void putUnsigned(ByteBuffer byteBuffer, int index, int byteSize, long value) {
+        switch (byteSize) {
+            case 1:
+                byteBuffer.put(index, (byte) value);
+                break;
+            case 2:
+                byteBuffer.putShort(index, (short) value);
+                break;
+            case 4:
+                byteBuffer.putInt(index, (int) value);
+                break;
+            case 8:
+                byteBuffer.putLong(index, value);
+                break;
+            default:
+                throw new IllegalArgumentException("不支持的字节长度：" + byteSize);
+        }
+    }
+}
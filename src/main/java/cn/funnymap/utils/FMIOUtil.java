@@ -65,45 +65,52 @@ public class FMIOUtil {
                                           int byteLength) throws IOException {
         ByteBuffer byteBuffer = ByteBuffer.allocate(byteLength).order(byteOrder);
         FMIOUtil.readChannelToBuffer(fileChannel, byteBuffer, startOffset);
-        return FMIOUtil.getUnsignedLong(byteBuffer);
+        return FMBinaryUtil.getUnsigned(byteBuffer, 0, byteLength);
     }
     public static long getUnsignedLong(ByteBuffer byteBuffer) {
-        String hexStr = byte2Hex(byteBuffer);
-        return Long.parseLong(hexStr, 16);
+        return FMBinaryUtil.getUnsigned(byteBuffer, byteBuffer.position(), byteBuffer.remaining());
     }
 
     public static long getUnsignedLong(ByteBuffer byteBuffer, long offset, long size) {
-        String hexStr = byte2Hex(byteBuffer, offset, size);
-        return Long.parseLong(hexStr, 16);
+        return FMBinaryUtil.getUnsigned(byteBuffer, (int) offset, (int) size);
     }
 
     public static int getUnsignedShortAsInt(ByteBuffer byteBuffer, long offset, long size) {
-        String hexStr = byte2Hex(byteBuffer, offset, size);
-        return Integer.parseInt(hexStr, 16);
+        return (int) FMBinaryUtil.getUnsigned(byteBuffer, (int) offset, (int) size);
     }
     public static int readAsUnsignedInt(FileChannel fileChannel, ByteOrder byteOrder, long startOffset, int byteLength) throws IOException {
         ByteBuffer byteBuffer = ByteBuffer.allocate(byteLength).order(byteOrder);
         FMIOUtil.readChannelToBuffer(fileChannel, byteBuffer, startOffset);
-        return FMIOUtil.getUnsignedShort(byteBuffer);
+        return (int) FMBinaryUtil.getUnsigned(byteBuffer, 0, byteLength);
     }
     public static int getUnsignedShort(ByteBuffer byteBuffer) {
-        String hexStr = byte2Hex(byteBuffer);
-        return Integer.parseInt(hexStr, 16);
+        return (int) FMBinaryUtil.getUnsigned(byteBuffer, byteBuffer.position(), byteBuffer.remaining());
     }
     public static short getUnsignedShort(ByteBuffer byteBuffer, long offset, long size) {
-        String hexStr = byte2Hex(byteBuffer, offset, size);
-        return Short.parseShort(hexStr, 16);
+        return (short) FMBinaryUtil.getUnsigned(byteBuffer, (int) offset, (int) size);
     }
 
     public static ByteBuffer readAsByteBuffer(FileChannel fileChannel, ByteOrder byteOrder, long offset,
                                               long valueByteSize) throws IOException {
         ByteBuffer valueByteBuffer = ByteBuffer.allocate((int) valueByteSize).order(byteOrder);
-        long tempPosition = fileChannel.position();
         FMIOUtil.readChannelToBuffer(fileChannel, valueByteBuffer, offset);
-        fileChannel.position(tempPosition);
         return valueByteBuffer;
     }
 
+    /**
+     * 将Buffer中position到limit之间的数据转为字节数组，如果是完整的堆内存Buffer，则直接返回其底层数组
+     */
+    public static byte[] toByteArray(ByteBuffer byteBuffer) {
+        if (byteBuffer.hasArray() && byteBuffer.arrayOffset() == 0 && byteBuffer.position() == 0
+                && byteBuffer.remaining() == byteBuffer.array().length) {
+            return byteBuffer.array();
+        }
+
+        byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.get(byteBuffer.position(), bytes);
+        return bytes;
+    }
+
     public static Object getFileOrResourceAsStream(String path, Class<?> c)
     {
         if (path == null) {
@@ -196,14 +203,42 @@ public class FMIOUtil {
 
         buffer.flip();
     }
+    /**
+     * 从指定位置读取数据到Buffer中
+     *
+     * <p>
+     * 使用{@link FileChannel#read(ByteBuffer, long)}进行定位读取，不会修改FileChannel的position，
+     * 因此多个线程可以同时使用同一个FileChannel读取数据
+     * </p>
+     *
+     * @param fileChannel 文件通道
+     * @param byteBuffer 存放读取结果的Buffer，读取完成后会被flip
+     * @param position 读取的起始位置
+     * @throws IOException 读取数据时发生的异常
+     */
     public static void readChannelToBuffer(FileChannel fileChannel, ByteBuffer byteBuffer, long position) throws IOException {
         if (position < 0L) {
             System.out.println("文件读取位置不能小于0");
             throw new IllegalArgumentException("文件读取位置不能小于0");
         }
 
-        fileChannel.position(position);
+        if (fileChannel == null) {
+            System.out.println("Channel 不能为空");
+            throw new IllegalArgumentException("Channel 不能为空");
+        }
+
+        if (byteBuffer == null) {
+            System.out.println("Buffer 不能为空");
+            throw new IllegalArgumentException("Buffer 不能为空");
+        }
+
+        long readPosition = position;
+        int count = 0;
+        while (count >= 0 && byteBuffer.hasRemaining()) {
+            count = fileChannel.read(byteBuffer, readPosition);
+            readPosition += Math.max(count, 0);
+        }
 
-        readChannelToBuffer(fileChannel, byteBuffer);
+        byteBuffer.flip();
     }
 }
@@ -0,0 +1,165 @@
+package cn.funnymap;
+
+import cn.funnymap.model.tiff.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/29 16:00
+ */
+class COGWriterTest {
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 700;
+
+    @Test
+    void testWriteAndValidate() throws IOException {
+        // 16位单通道，全分辨率图像以及两级概视图
+        ByteBuffer image = ByteBuffer.allocate(WIDTH * HEIGHT * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            image.putShort((short) (i % WIDTH + i / WIDTH * 3));
+        }
+        TIFFImageSpec fullSpec = new TIFFImageSpec(WIDTH, HEIGHT, 16).setCompression(TIFF.Compression.LZW)
+                .setPredictor(2).setTileSize(256, 256).setModelPixelScale(10, 10, 0)
+                .setModelTiepoints(0, 0, 0, 500000, 4400000, 0);
+        List<TIFFImageSpec> levelSpecs = Arrays.asList(fullSpec, fullSpec.reduced(WIDTH / 2, HEIGHT / 2),
+                fullSpec.reduced(WIDTH / 4, HEIGHT / 4));
+
+        Path stripPath = Files.createTempFile("cog-writer", ".tif");
+        Path cogPath = Files.createTempFile("cog-writer", ".tif");
+        Path translatedPath = Files.createTempFile("cog-writer", ".tif");
+        try {
+            try (COGWriter cogWriter = COGWriter.create(cogPath, ByteOrder.LITTLE_ENDIAN, false, levelSpecs)) {
+                // 概视图取左上角的像素
+                for (int level = levelSpecs.size() - 1; level >= 0; level--) {
+                    cogWriter.beginLevel(level);
+                    cogWriter.writeRows(ByteBuffer.wrap(downsample(image, level)).order(ByteOrder.LITTLE_ENDIAN));
+                    cogWriter.endLevel();
+                }
+                assert cogWriter.isFinished();
+            }
+
+            try (FileChannel fileChannel = FileChannel.open(cogPath, StandardOpenOption.READ)) {
+                TIFFReader tiffReader = new TIFFReader(fileChannel);
+                List<String> problems = COGValidator.validate(tiffReader);
+                assert problems.isEmpty() : problems;
+                assert tiffReader.getIFDChain().size() == 3;
+
+                TIFFTag fullTag = tiffReader.readAttribute(0);
+                assert fullTag.isTiled() && fullTag.getTileOffsets().length == 4 * 3;
+                assert Arrays.equals(fullTag.getModelPixelScale(), new double[]{10, 10, 0});
+                assert Arrays.equals(readAll(tiffReader, 0), image.array());
+                byte[] window = tiffReader.readWindow(fullTag, 300, 250, 10, 2);
+                assert ByteBuffer.wrap(window).order(ByteOrder.LITTLE_ENDIAN).getShort() == 300 + 250 * 3;
+                for (int level = 1; level < 3; level++) {
+                    assert Arrays.equals(readAll(tiffReader, level), downsample(image, level));
+                }
+            }
+
+            // 按条带存储的普通TIFF不是COG
+            try (TIFFWriter tiffWriter = TIFFWriter.create(stripPath, ByteOrder.LITTLE_ENDIAN, false)) {
+                tiffWriter.beginImage(new TIFFImageSpec(WIDTH, HEIGHT, 16).setRowsPerStrip(64));
+                tiffWriter.writeRows(image.duplicate().order(ByteOrder.LITTLE_ENDIAN).flip());
+                tiffWriter.endImage();
+                tiffWriter.beginImage(fullSpec.reduced(WIDTH / 2, HEIGHT / 2));
+                tiffWriter.writeRows(ByteBuffer.wrap(downsample(image, 1)).order(ByteOrder.LITTLE_ENDIAN));
+                tiffWriter.endImage();
+            }
+            try (FileChannel fileChannel = FileChannel.open(stripPath, StandardOpenOption.READ)) {
+                TIFFReader tiffReader = new TIFFReader(fileChannel);
+                List<String> problems = COGValidator.validate(tiffReader);
+                System.out.println("普通TIFF的检查结果：" + problems);
+                assert problems.size() == 3;
+
+                // 转换为COG
+                long start = System.nanoTime();
+                COGWriter.translate(tiffReader, translatedPath, TIFF.Compression.ADOBE_DEFLATE, 2, 0);
+                System.out.printf("转换为COG耗时：%.2fms%n", (System.nanoTime() - start) / 1e6);
+            }
+            try (FileChannel fileChannel = FileChannel.open(translatedPath, StandardOpenOption.READ)) {
+                TIFFReader tiffReader = new TIFFReader(fileChannel);
+                assert COGValidator.validate(tiffReader).isEmpty();
+                assert tiffReader.readAttribute(0).getTileWidth() == 512;
+                assert Arrays.equals(readAll(tiffReader, 0), image.array());
+                assert Arrays.equals(readAll(tiffReader, 1), downsample(image, 1));
+            }
+        } finally {
+            Files.delete(stripPath);
+            Files.delete(cogPath);
+            Files.delete(translatedPath);
+        }
+    }
+
+    @Test
+    void testInvalidLevels() throws IOException {
+        TIFFImageSpec fullSpec = new TIFFImageSpec(64, 64, 8).setTileSize(16, 16);
+        List<List<TIFFImageSpec>> invalidLevels = Arrays.asList(
+                // 没有按瓦片存储
+                Arrays.asList(new TIFFImageSpec(64, 64, 8)),
+                // 概视图的尺寸没有减小
+                Arrays.asList(fullSpec, fullSpec.reduced(64, 64)),
+                // 概视图的NewSubfileType不为1
+                Arrays.asList(fullSpec, new TIFFImageSpec(32, 32, 8).setTileSize(16, 16)));
+
+        Path path = Files.createTempFile("cog-writer", ".tif");
+        try {
+            for (List<TIFFImageSpec> levelSpecs : invalidLevels) {
+                boolean isRejected = false;
+                try (COGWriter ignored = COGWriter.create(path, ByteOrder.BIG_ENDIAN, true, levelSpecs)) {
+                    assert ignored.getLevelSpecs().isEmpty();
+                } catch (IllegalArgumentException exception) {
+                    isRejected = true;
+                }
+                assert isRejected;
+            }
+
+            // 需要从最小的概视图开始写入
+            try (COGWriter cogWriter = COGWriter.create(path, ByteOrder.BIG_ENDIAN, true,
+                    Arrays.asList(fullSpec, fullSpec.reduced(32, 32)))) {
+                boolean isRejected = false;
+                try {
+                    cogWriter.beginLevel(0);
+                } catch (IllegalStateException exception) {
+                    isRejected = true;
+                }
+                assert isRejected;
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * 按瓦片存储的图像通过窗口读取整幅图像
+     */
+    private static byte[] readAll(TIFFReader tiffReader, int pageIndex) throws IOException {
+        TIFFTag tiffTag = tiffReader.readAttribute(pageIndex);
+        return tiffReader.readWindow(tiffTag, 0, 0, (int) tiffTag.getWidth(), (int) tiffTag.getHeight());
+    }
+
+    /**
+     * 每隔2^level个像素取一个像素
+     */
+    private static byte[] downsample(ByteBuffer image, int level) {
+        int step = 1 << level;
+        int width = WIDTH / step;
+        int height = HEIGHT / step;
+        ByteBuffer reduced = ByteBuffer.allocate(width * height * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                reduced.putShort(image.getShort((y * step * WIDTH + x * step) * 2));
+            }
+        }
+
+        return reduced.array();
+    }
+}
@@ -0,0 +1,103 @@
+package cn.funnymap;
+
+import cn.funnymap.compression.*;
+import cn.funnymap.model.tiff.TIFF;
+import cn.funnymap.model.tiff.TIFFReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/22 14:20
+ */
+class CodecRegistryTest {
+    private static final int INVERTED = 32_999;
+
+    @Test
+    void testDefaultRegistry() throws IOException {
+        CodecRegistry codecRegistry = CodecRegistry.getDefault();
+
+        assert codecRegistry.isSupported(TIFF.Compression.NONE);
+        assert codecRegistry.isSupported(TIFF.Compression.LZW);
+        assert codecRegistry.get(TIFF.Compression.NONE).isPassthrough();
+        assert codecRegistry.get(TIFF.Compression.LZW).canEncode();
+        assert !codecRegistry.get(TIFF.Compression.NEW_JPEG).canEncode();
+        assert !codecRegistry.isSupported(INVERTED);
+
+        try {
+            codecRegistry.get(INVERTED);
+            assert false : "未注册的压缩方式应该抛出异常";
+        } catch (IllegalArgumentException exception) {
+            System.out.println(exception.getMessage());
+        }
+
+        // 提供者返回的编码器没有输出流，只能使用Buffer接口
+        for (int compression : new int[]{TIFF.Compression.NONE, TIFF.Compression.LZW,
+                TIFF.Compression.ADOBE_DEFLATE}) {
+            try {
+                codecRegistry.get(compression).getEncoder().encode(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+                assert false : "没有输出流的编码器应该抛出异常";
+            } catch (IllegalStateException exception) {
+                System.out.println(exception.getMessage());
+            }
+        }
+    }
+
+    @Test
+    void testCustomCodec() throws IOException {
+        // 文件头之后是4个字节的图像数据
+        byte[] bytes = new byte[]{'I', 'I', 42, 0, 0, 0, 0, 0, 1, 2, 3, 4};
+        TIFFReader tiffReader = new TIFFReader(
+                ImageFileDirectoryChainTest.bytesSource(bytes, new AtomicInteger()));
+
+        byte[] raw = tiffReader.readData(2, 2, new int[]{8}, 4, 8, 1, 1, TIFF.Compression.NONE);
+        assert Arrays.equals(raw, new byte[]{1, 2, 3, 4});
+        // 传入的是图像高度，解码后的大小按照条带估算，不随图像大小分配
+        raw = tiffReader.readData(2, 3_000_000_000L, new int[]{8}, 4, 8, 1, 1, TIFF.Compression.NONE);
+        assert Arrays.equals(raw, new byte[]{1, 2, 3, 4});
+
+        CodecRegistry codecRegistry = CodecRegistry.load(getClass().getClassLoader());
+        codecRegistry.register(new InvertedCodecProvider());
+        tiffReader.setCodecRegistry(codecRegistry);
+
+        byte[] inverted = tiffReader.readData(2, 2, new int[]{8}, 4, 8, 1, 1, INVERTED);
+        assert Arrays.equals(inverted, new byte[]{-2, -3, -4, -5});
+    }
+
+    static class InvertedCodecProvider implements CodecProvider, Decoder {
+        @Override
+        public int[] getCompressions() {
+            return new int[]{INVERTED};
+        }
+
+        @Override
+        public Decoder getDecoder() {
+            return this;
+        }
+
+        @Override
+        public OutputStream decode(InputStream inputStream) throws IOException {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            for (byte value : inputStream.readAllBytes()) {
+                outputStream.write(~value);
+            }
+            return outputStream;
+        }
+
+        @Override
+        public CodecResult decode(ByteBuffer src, ByteBuffer dst) {
+            int length = Math.min(src.remaining(), dst.remaining());
+            for (int i = 0; i < length; i++) {
+                dst.put((byte) ~src.get());
+            }
+            return new CodecResult(length, length, src.hasRemaining());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cn.funnymap;
+
+import cn.funnymap.model.tiff.DataEntry;
+import cn.funnymap.model.tiff.TIFF;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/17 11:30
+ */
+class DataEntryTest {
+    private static final int STRIP_COUNT = 1_000_000;
+
+    @Test
+    void testBulkDecode() {
+        for (ByteOrder byteOrder : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            ByteBuffer longData = ByteBuffer.allocate(STRIP_COUNT * 4).order(byteOrder);
+            for (int i = 0; i < STRIP_COUNT; i++) {
+                longData.putInt(i * 4, 0x80000000 + i);
+            }
+            DataEntry longEntry = new DataEntry(TIFF.Tag.STRIP_OFFSETS, TIFF.Type.LONG, STRIP_COUNT, 0L, longData, false);
+
+            long start = System.nanoTime();
+            long[] stripOffsets = longEntry.asLongs();
+            System.out.printf("解码%s个LONG耗时：%.2fms%n", STRIP_COUNT, (System.nanoTime() - start) / 1e6);
+
+            assert stripOffsets.length == STRIP_COUNT;
+            assert stripOffsets[0] == 0x80000000L;
+            assert stripOffsets[STRIP_COUNT - 1] == 0x80000000L + STRIP_COUNT - 1;
+
+            // 只读视图与批量解码的结果一致
+            IntBuffer view = longEntry.asIntBuffer();
+            assert view.isReadOnly();
+            assert (view.get(12345) & 0xFFFFFFFFL) == stripOffsets[12345];
+
+            ByteBuffer shortData = ByteBuffer.allocate(6).order(byteOrder);
+            shortData.putShort(0, (short) 8).putShort(2, (short) 40000).putShort(4, (short) 65535);
+            DataEntry shortEntry = new DataEntry(TIFF.Tag.STRIP_BYTE_COUNTS, TIFF.Type.SHORT, 3, 0L, shortData, false);
+
+            // SHORT为无符号数
+            long[] byteCounts = shortEntry.asLongs();
+            assert byteCounts[1] == 40000 && byteCounts[2] == 65535;
+            assert shortEntry.getShortsAsInts()[2] == 65535;
+            assert DataEntry.ofIntegers(TIFF.Tag.STRIP_BYTE_COUNTS, TIFF.Type.SHORT, 40000).getShortsAsInts()[0] == 40000;
+
+            ShortBuffer shortView = shortEntry.asShortBuffer();
+            assert (shortView.get(1) & 0xFFFF) == 40000;
+
+            ByteBuffer long8Data = ByteBuffer.allocate(16).order(byteOrder);
+            long8Data.putLong(0, 5_000_000_000L).putLong(8, 80_000_000_000L);
+            DataEntry long8Entry = new DataEntry(TIFF.Tag.STRIP_OFFSETS, TIFF.Type.LONG8, 2, 0L, long8Data, true);
+            assert long8Entry.asLongs()[1] == 80_000_000_000L;
+            assert long8Entry.asLongBuffer().get(0) == 5_000_000_000L;
+
+            ByteBuffer doubleData = ByteBuffer.allocate(24).order(byteOrder);
+            doubleData.putDouble(0, 0.5).putDouble(8, 1.5).putDouble(16, -2.5);
+            DataEntry doubleEntry = new DataEntry(TIFF.Tag.MODEL_PIXEL_SCALE, TIFF.Type.DOUBLE, 3, 0L, doubleData, false);
+            double[] doubles = doubleEntry.getDoubles();
+            assert doubles.length == 3 && doubles[2] == -2.5;
+            assert doubleEntry.asDoubleBuffer().get(1) == 1.5;
+        }
+    }
+
+    @Test
+    void testInlineView() {
+        DataEntry dataEntry = new DataEntry(TIFF.Tag.IMAGE_WIDTH, TIFF.Type.LONG, 1, 4000000000L, false);
+        assert (dataEntry.asIntBuffer().get(0) & 0xFFFFFFFFL) == 4000000000L;
+        assert dataEntry.asLongs()[0] == 4000000000L;
+    }
+}
@@ -0,0 +1,135 @@
+package cn.funnymap;
+
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.CodecRegistry;
+import cn.funnymap.compression.Decoder;
+import cn.funnymap.compression.deflate.DeflateDecoder;
+import cn.funnymap.compression.deflate.DeflateEncoder;
+import cn.funnymap.model.tiff.TIFF;
+import cn.funnymap.model.tiff.TIFFReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/23 14:10
+ */
+class DeflateCodecTest {
+    private static final int STRIP_SIZE = 64 * 1024;
+    private static final int STRIP_COUNT = 200;
+
+    @Test
+    void testRoundTrip() throws IOException {
+        byte[] data = stripData(0);
+
+        // 与JDK的DeflaterOutputStream兼容
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream)) {
+            deflaterOutputStream.write(data);
+        }
+        byte[] expectedCode = outputStream.toByteArray();
+
+        try (DeflateDecoder deflateDecoder = new DeflateDecoder();
+             DeflateEncoder deflateEncoder = new DeflateEncoder(Deflater.BEST_SPEED)) {
+            ByteBuffer target = ByteBuffer.allocateDirect(STRIP_SIZE);
+            CodecResult codecResult = deflateDecoder.decode(ByteBuffer.wrap(expectedCode), target);
+            assert codecResult.getConsumed() == expectedCode.length && codecResult.getProduced() == STRIP_SIZE;
+            assert !codecResult.isOverflow();
+            assert target.flip().equals(ByteBuffer.wrap(data));
+
+            ByteBuffer code = ByteBuffer.allocate(STRIP_SIZE);
+            codecResult = deflateEncoder.encode(ByteBuffer.wrap(data), code);
+            assert codecResult.getConsumed() == STRIP_SIZE && !codecResult.isOverflow();
+
+            byte[] decoded = new byte[STRIP_SIZE];
+            deflateDecoder.decode(code.flip(), ByteBuffer.wrap(decoded));
+            assert Arrays.equals(decoded, data);
+
+            // 目标Buffer不足时只写入能容纳的部分
+            ByteBuffer shortTarget = ByteBuffer.allocate(100);
+            codecResult = deflateDecoder.decode(ByteBuffer.wrap(expectedCode), shortTarget);
+            assert codecResult.getProduced() == 100 && codecResult.isOverflow();
+
+            // 数据被截断时抛出异常，不返回部分结果
+            boolean isRejected = false;
+            try {
+                deflateDecoder.decode(ByteBuffer.wrap(expectedCode, 0, expectedCode.length / 2),
+                        ByteBuffer.allocate(STRIP_SIZE));
+            } catch (IOException exception) {
+                System.out.println(exception.getMessage());
+                isRejected = true;
+            }
+            assert isRejected;
+
+            // 只缺少zlib校验和时同样不完整
+            isRejected = false;
+            try {
+                deflateDecoder.decode(ByteBuffer.wrap(expectedCode, 0, expectedCode.length - 2),
+                        ByteBuffer.allocate(STRIP_SIZE));
+            } catch (IOException exception) {
+                isRejected = true;
+            }
+            assert isRejected;
+        }
+    }
+
+    @Test
+    void testReuseAcrossStrips() throws IOException {
+        Decoder decoder = CodecRegistry.getDefault().get(TIFF.Compression.ADOBE_DEFLATE).getDecoder();
+        assert decoder == CodecRegistry.getDefault().get(TIFF.Compression.DEFLATE).getDecoder();
+
+        byte[][] codes = new byte[STRIP_COUNT][];
+        try (DeflateEncoder deflateEncoder = new DeflateEncoder()) {
+            for (int i = 0; i < STRIP_COUNT; i++) {
+                ByteBuffer code = ByteBuffer.allocate(STRIP_SIZE);
+                deflateEncoder.encode(ByteBuffer.wrap(stripData(i)), code);
+                codes[i] = Arrays.copyOf(code.array(), code.position());
+            }
+        }
+
+        byte[] target = new byte[STRIP_SIZE];
+        long start = System.nanoTime();
+        for (int i = 0; i < STRIP_COUNT; i++) {
+            decoder.decode(ByteBuffer.wrap(codes[i]), ByteBuffer.wrap(target));
+            assert target[STRIP_SIZE - 1] == stripData(i)[STRIP_SIZE - 1];
+        }
+        System.out.printf("Deflate解码%s个条带耗时：%.2fms%n", STRIP_COUNT, (System.nanoTime() - start) / 1e6);
+    }
+
+    @Test
+    void testReadData() throws IOException {
+        byte[] data = new byte[]{10, 20, 30, 40, 50, 60};
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream)) {
+            deflaterOutputStream.write(data);
+        }
+        byte[] code = outputStream.toByteArray();
+
+        byte[] bytes = new byte[8 + code.length];
+        bytes[0] = 'I';
+        bytes[1] = 'I';
+        bytes[2] = 42;
+        System.arraycopy(code, 0, bytes, 8, code.length);
+
+        TIFFReader tiffReader = new TIFFReader(ImageFileDirectoryChainTest.bytesSource(bytes, new AtomicInteger()));
+        for (int compression : new int[]{TIFF.Compression.ADOBE_DEFLATE, TIFF.Compression.DEFLATE}) {
+            byte[] decoded = tiffReader.readData(3, 2, new int[]{8}, code.length, 8, 1, 1, compression);
+            assert Arrays.equals(decoded, data);
+        }
+    }
+
+    private static byte[] stripData(int seed) {
+        byte[] data = new byte[STRIP_SIZE];
+        for (int i = 0; i < STRIP_SIZE; i++) {
+            data[i] = (byte) ((i / 64 + seed) * 7);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,90 @@
+package cn.funnymap;
+
+import cn.funnymap.utils.FMBinaryUtil;
+import cn.funnymap.utils.FMIOUtil;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/12 10:05
+ */
+class FMBinaryUtilTest {
+    private static final int ROUNDS = 50;
+
+    @Test
+    void testDecode() {
+        for (ByteOrder byteOrder : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(32).order(byteOrder);
+            byteBuffer.put(0, (byte) 0xFE);
+            byteBuffer.putShort(2, (short) 0xFFFE);
+            byteBuffer.putInt(4, 0xFFFFFFFE);
+            byteBuffer.putLong(8, 0x0102030405060708L);
+            byteBuffer.putFloat(16, 1.5F);
+            byteBuffer.putDouble(24, -2.25D);
+
+            assert FMBinaryUtil.getUnsignedByte(byteBuffer, 0) == 0xFE;
+            assert FMBinaryUtil.getByte(byteBuffer, 0) == (byte) -2;
+            assert FMBinaryUtil.getUnsignedShort(byteBuffer, 2) == 0xFFFE;
+            assert FMBinaryUtil.getShort(byteBuffer, 2) == -2;
+            assert FMBinaryUtil.getUnsignedInt(byteBuffer, 4) == 0xFFFFFFFEL;
+            assert FMBinaryUtil.getInt(byteBuffer, 4) == -2;
+            assert FMBinaryUtil.getUnsignedLong(byteBuffer, 8) == 0x0102030405060708L;
+            assert FMBinaryUtil.getFloat(byteBuffer, 16) == 1.5F;
+            assert FMBinaryUtil.getDouble(byteBuffer, 24) == -2.25D;
+
+            // 读取过程不修改Buffer的位置
+            assert byteBuffer.position() == 0;
+
+            // 与原十六进制字符串解析的结果保持一致
+            assert FMBinaryUtil.getUnsigned(byteBuffer, 4, 4) == Long.parseLong(FMIOUtil.byte2Hex(byteBuffer, 4, 4), 16);
+        }
+    }
+
+    @Test
+    void testBenchmark() {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < byteBuffer.capacity() / 4; i++) {
+            byteBuffer.putInt(i * 4, i * 31);
+        }
+        int valueCount = byteBuffer.capacity() / 4;
+
+        // 预热
+        long expected = sumByHex(byteBuffer, valueCount, ROUNDS);
+        long actual = sumByBinary(byteBuffer, valueCount, ROUNDS);
+        assert expected == actual;
+
+        long start = System.nanoTime();
+        sumByHex(byteBuffer, valueCount, ROUNDS);
+        long hexCost = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        sumByBinary(byteBuffer, valueCount, ROUNDS);
+        long binaryCost = System.nanoTime() - start;
+
+        System.out.printf("十六进制字符串解析耗时：%.2fms，二进制直接解码耗时：%.2fms，加速比：%.1f%n",
+                hexCost / 1e6, binaryCost / 1e6, (double) hexCost / Math.max(binaryCost, 1));
+    }
+
+    private long sumByHex(ByteBuffer byteBuffer, int valueCount, int rounds) {
+        long sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < valueCount; i++) {
+                sum += Long.parseLong(FMIOUtil.byte2Hex(byteBuffer, i * 4L, 4), 16);
+            }
+        }
+        return sum;
+    }
+
+    private long sumByBinary(ByteBuffer byteBuffer, int valueCount, int rounds) {
+        long sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < valueCount; i++) {
+                sum += FMBinaryUtil.getUnsignedInt(byteBuffer, i * 4);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,110 @@
+package cn.funnymap;
+
+import cn.funnymap.io.ByteSource;
+import cn.funnymap.model.tiff.ImageFileDirectory;
+import cn.funnymap.model.tiff.ImageFileDirectoryChain;
+import cn.funnymap.model.tiff.TIFF;
+import cn.funnymap.model.tiff.TIFFReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/15 14:08
+ */
+class ImageFileDirectoryChainTest {
+    private static final int PAGE_COUNT = 5000;
+
+    @Test
+    void testLazyIteration() throws IOException {
+        AtomicInteger readCount = new AtomicInteger();
+        TIFFReader tiffReader = new TIFFReader(bytesSource(buildMultiPageTIFF(PAGE_COUNT, false), readCount));
+        ImageFileDirectoryChain chain = tiffReader.getIFDChain();
+
+        // 创建时不读取任何IFD
+        assert chain.discoveredSize() == 0;
+
+        Iterator<ImageFileDirectory> iterator = chain.iterator();
+        ImageFileDirectory first = iterator.next();
+        assert tiffReader.readAttribute(first).getWidth() == 1;
+        assert chain.discoveredSize() == 1;
+
+        // 每一页都有独立的属性
+        int pageIndex = 0;
+        for (ImageFileDirectory imageFileDirectory : chain) {
+            assert tiffReader.readAttribute(imageFileDirectory).getWidth() == pageIndex + 1;
+            pageIndex++;
+        }
+        assert pageIndex == PAGE_COUNT;
+        assert chain.stream().limit(10).count() == 10;
+    }
+
+    @Test
+    void testRandomAccess() throws IOException {
+        TIFFReader tiffReader = new TIFFReader(bytesSource(buildMultiPageTIFF(PAGE_COUNT, false), new AtomicInteger()));
+        ImageFileDirectoryChain chain = tiffReader.getIFDChain();
+
+        assert tiffReader.readAttribute(PAGE_COUNT - 1).getWidth() == PAGE_COUNT;
+        assert chain.discoveredSize() == PAGE_COUNT;
+        assert tiffReader.readAttribute(42).getHeight() == 43;
+        assert chain.size() == PAGE_COUNT;
+        assert !chain.hasPage(PAGE_COUNT);
+    }
+
+    @Test
+    void testCycleDetection() throws IOException {
+        TIFFReader tiffReader = new TIFFReader(bytesSource(buildMultiPageTIFF(3, true), new AtomicInteger()));
+
+        try {
+            tiffReader.readIFD();
+            assert false : "循环的IFD链路应该抛出异常";
+        } catch (IllegalStateException exception) {
+            System.out.println(exception.getMessage());
+        }
+    }
+
+    /**
+     * 构造一个多页的TIFF文件，第i页的宽度为i+1，高度为i+1
+     *
+     * @param pageCount 页数
+     * @param cyclic 最后一页是否指向第一页
+     * @return 文件内容
+     */
+    static byte[] buildMultiPageTIFF(int pageCount, boolean cyclic) {
+        int ifdByteSize = 2 + 12 * 2 + 4;
+        ByteBuffer byteBuffer = ByteBuffer.allocate(8 + ifdByteSize * pageCount).order(ByteOrder.LITTLE_ENDIAN);
+        byteBuffer.put((byte) 'I').put((byte) 'I').putShort((short) TIFF.TIFF_IDENTIFIER).putInt(8);
+
+        for (int i = 0; i < pageCount; i++) {
+            byteBuffer.putShort((short) 2);
+            byteBuffer.putShort((short) TIFF.Tag.IMAGE_WIDTH).putShort((short) TIFF.Type.LONG).putInt(1).putInt(i + 1);
+            byteBuffer.putShort((short) TIFF.Tag.IMAGE_LENGTH).putShort((short) TIFF.Type.LONG).putInt(1).putInt(i + 1);
+
+            boolean isLast = i == pageCount - 1;
+            byteBuffer.putInt(isLast ? (cyclic ? 8 : 0) : 8 + ifdByteSize * (i + 1));
+        }
+
+        return byteBuffer.array();
+    }
+
+    static ByteSource bytesSource(byte[] bytes, AtomicInteger readCount) {
+        return new ByteSource() {
+            @Override
+            public long size() {
+                return bytes.length;
+            }
+
+            @Override
+            public ByteBuffer read(long position, int length, ByteOrder byteOrder) {
+                readCount.incrementAndGet();
+                int readableLength = (int) Math.max(0, Math.min(length, bytes.length - position));
+                return ByteBuffer.wrap(bytes, (int) position, readableLength).slice().order(byteOrder);
+            }
+        };
+    }
+}
@@ -0,0 +1,221 @@
+package cn.funnymap;
+
+import cn.funnymap.compression.CodecRegistry;
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.jpeg.JPEGCodecProvider;
+import cn.funnymap.compression.jpeg.JPEGDecoder;
+import cn.funnymap.compression.jpeg.JPEGTables;
+import cn.funnymap.model.tiff.TIFF;
+import cn.funnymap.model.tiff.TIFFReader;
+import cn.funnymap.model.tiff.TIFFTag;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/25 14:30
+ */
+class JPEGCodecTest {
+    private static final int TILE_SIZE = 64;
+    private static final int TILES_ACROSS = 4;
+    private static final int TILES_DOWN = 3;
+    // JPEG有损压缩允许的最大误差
+    private static final int TOLERANCE = 12;
+    private static final int ROUNDS = 20;
+
+    @Test
+    void testSelfContainedStream() throws IOException {
+        byte[] jpeg = encode(tileImage(0, 0));
+
+        JPEGDecoder jpegDecoder = new JPEGDecoder();
+        ByteBuffer target = ByteBuffer.allocate(TILE_SIZE * TILE_SIZE * 3);
+        CodecResult codecResult = jpegDecoder.decode(ByteBuffer.wrap(jpeg), target);
+        assert codecResult.getConsumed() == jpeg.length && !codecResult.isOverflow();
+        assert codecResult.getProduced() == target.capacity();
+        assertPixels(target.array(), 0, 0, TILE_SIZE, TILE_SIZE);
+
+        // 目标Buffer不足时只写入能容纳的部分
+        ByteBuffer shortTarget = ByteBuffer.allocate(100);
+        codecResult = jpegDecoder.decode(ByteBuffer.wrap(jpeg), shortTarget);
+        assert codecResult.getProduced() == 100 && codecResult.isOverflow();
+        jpegDecoder.close();
+    }
+
+    @Test
+    void testTiledImageWithSharedTables() throws IOException {
+        int width = TILE_SIZE * TILES_ACROSS;
+        int height = TILE_SIZE * TILES_DOWN;
+        TIFFReader tiffReader = new TIFFReader(
+                ImageFileDirectoryChainTest.bytesSource(buildTiledJPEGTIFF(), new AtomicInteger()));
+        TIFFTag tiffTag = tiffReader.readAttribute(0);
+        assert tiffTag.getJpegTables() != null;
+
+        // 条带、瓦片共用的表只解析一次
+        JPEGCodecProvider jpegCodecProvider = (JPEGCodecProvider) CodecRegistry.getDefault()
+                .get(TIFF.Compression.NEW_JPEG);
+        JPEGTables jpegTables = jpegCodecProvider.getTables(tiffTag.getJpegTables());
+        assert jpegTables != null && jpegCodecProvider.getTables(tiffTag.getJpegTables()) == jpegTables;
+        assert jpegTables.getQTables().length == 2 && jpegTables.getACHuffmanTables().length == 2;
+
+        byte[] window = tiffReader.readWindow(tiffTag, 0, 0, width, height);
+        assertPixels(window, 0, 0, width, height);
+
+        byte[] partial = tiffReader.readWindow(tiffTag, 50, 70, 100, 20);
+        assertPixels(partial, 50, 70, 100, 20);
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            tiffReader.readWindow(tiffTag, 0, 0, width, height);
+        }
+        long cost = System.nanoTime() - start;
+        System.out.printf("解码%s个JPEG瓦片，平均每个瓦片耗时：%.3fms%n", ROUNDS * TILES_ACROSS * TILES_DOWN,
+                cost / 1e6 / (ROUNDS * TILES_ACROSS * TILES_DOWN));
+    }
+
+    /**
+     * 构造一个新式JPEG压缩的瓦片TIFF文件，瓦片只保存省略了DQT、DHT的JPEG数据，表存放在JPEGTables中
+     */
+    private static byte[] buildTiledJPEGTIFF() throws IOException {
+        int tileCount = TILES_ACROSS * TILES_DOWN;
+        byte[][] tiles = new byte[tileCount][];
+        byte[] jpegTables = null;
+        for (int tile = 0; tile < tileCount; tile++) {
+            byte[] jpeg = encode(tileImage(tile % TILES_ACROSS * TILE_SIZE, tile / TILES_ACROSS * TILE_SIZE));
+            ByteArrayOutputStream tables = new ByteArrayOutputStream();
+            ByteArrayOutputStream abbreviated = new ByteArrayOutputStream();
+            splitTables(jpeg, tables, abbreviated);
+            tiles[tile] = abbreviated.toByteArray();
+            jpegTables = tables.toByteArray();
+        }
+
+        int tagCount = 10;
+        int ifdByteSize = 2 + tagCount * 12 + 4;
+        int bitsOffset = 8 + ifdByteSize;
+        int offsetsOffset = bitsOffset + 6;
+        int countsOffset = offsetsOffset + tileCount * 4;
+        int tablesOffset = countsOffset + tileCount * 4;
+        int dataOffset = tablesOffset + jpegTables.length;
+        int totalByteSize = dataOffset;
+        for (byte[] tile : tiles) {
+            totalByteSize += tile.length;
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(totalByteSize).order(ByteOrder.LITTLE_ENDIAN);
+        byteBuffer.put((byte) 'I').put((byte) 'I').putShort((short) TIFF.TIFF_IDENTIFIER).putInt(8);
+        byteBuffer.putShort((short) tagCount);
+        putEntry(byteBuffer, TIFF.Tag.IMAGE_WIDTH, TIFF.Type.LONG, 1, TILE_SIZE * TILES_ACROSS);
+        putEntry(byteBuffer, TIFF.Tag.IMAGE_LENGTH, TIFF.Type.LONG, 1, TILE_SIZE * TILES_DOWN);
+        putEntry(byteBuffer, TIFF.Tag.BITS_PER_SAMPLE, TIFF.Type.SHORT, 3, bitsOffset);
+        putEntry(byteBuffer, TIFF.Tag.COMPRESSION, TIFF.Type.SHORT, 1, TIFF.Compression.NEW_JPEG);
+        putEntry(byteBuffer, TIFF.Tag.SAMPLES_PER_PIXEL, TIFF.Type.SHORT, 1, 3);
+        putEntry(byteBuffer, TIFF.Tag.TILE_WIDTH, TIFF.Type.SHORT, 1, TILE_SIZE);
+        putEntry(byteBuffer, TIFF.Tag.TILE_LENGTH, TIFF.Type.SHORT, 1, TILE_SIZE);
+        putEntry(byteBuffer, TIFF.Tag.TILE_OFFSETS, TIFF.Type.LONG, tileCount, offsetsOffset);
+        putEntry(byteBuffer, TIFF.Tag.TILE_COUNTS, TIFF.Type.LONG, tileCount, countsOffset);
+        putEntry(byteBuffer, TIFF.Tag.JPEG_TABLES, TIFF.Type.UNDEFINED, jpegTables.length, tablesOffset);
+        byteBuffer.putInt(0);
+
+        byteBuffer.putShort((short) 8).putShort((short) 8).putShort((short) 8);
+        int position = dataOffset;
+        for (int tile = 0; tile < tileCount; tile++) {
+            byteBuffer.putInt(offsetsOffset + tile * 4, position);
+            byteBuffer.putInt(countsOffset + tile * 4, tiles[tile].length);
+            byteBuffer.put(position, tiles[tile]);
+            position += tiles[tile].length;
+        }
+        byteBuffer.put(tablesOffset, jpegTables);
+
+        return byteBuffer.array();
+    }
+
+    private static void putEntry(ByteBuffer byteBuffer, int tag, int type, int count, int value) {
+        byteBuffer.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == TIFF.Type.SHORT && count == 1) {
+            byteBuffer.putShort((short) value).putShort((short) 0);
+        } else {
+            byteBuffer.putInt(value);
+        }
+    }
+
+    /**
+     * 把完整的JPEG数据拆分为只包含DQT、DHT的表和省略了表的图像数据
+     */
+    private static void splitTables(byte[] jpeg, ByteArrayOutputStream tables, ByteArrayOutputStream abbreviated) {
+        tables.write(0xFF);
+        tables.write(0xD8);
+        abbreviated.write(0xFF);
+        abbreviated.write(0xD8);
+
+        int position = 2;
+        while (true) {
+            int marker = jpeg[position + 1] & 0xFF;
+            if (marker == 0xDA) {
+                // SOS之后是熵编码数据，直到EOI
+                abbreviated.write(jpeg, position, jpeg.length - position);
+                break;
+            }
+
+            int length = ((jpeg[position + 2] & 0xFF) << 8) | (jpeg[position + 3] & 0xFF);
+            if (marker == 0xDB || marker == 0xC4) {
+                tables.write(jpeg, position, length + 2);
+            } else if (marker != 0xE0) {
+                abbreviated.write(jpeg, position, length + 2);
+            }
+            position += length + 2;
+        }
+
+        tables.write(0xFF);
+        tables.write(0xD9);
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assert ImageIO.write(image, "jpeg", outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * 左上角位于(x0, y0)的瓦片，像素值是坐标的平滑函数
+     */
+    private static BufferedImage tileImage(int x0, int y0) {
+        BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < TILE_SIZE; y++) {
+            for (int x = 0; x < TILE_SIZE; x++) {
+                image.setRGB(x, y, (red(x0 + x, y0 + y) << 16) | (green(x0 + x, y0 + y) << 8) |
+                        blue(x0 + x, y0 + y));
+            }
+        }
+        return image;
+    }
+
+    private static void assertPixels(byte[] pixels, int x0, int y0, int width, int height) {
+        assert pixels.length == width * height * 3;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int position = (y * width + x) * 3;
+                assert Math.abs((pixels[position] & 0xFF) - red(x0 + x, y0 + y)) <= TOLERANCE;
+                assert Math.abs((pixels[position + 1] & 0xFF) - green(x0 + x, y0 + y)) <= TOLERANCE;
+                assert Math.abs((pixels[position + 2] & 0xFF) - blue(x0 + x, y0 + y)) <= TOLERANCE;
+            }
+        }
+    }
+
+    private static int red(int x, int y) {
+        return 40 + (x * 160) / (TILE_SIZE * TILES_ACROSS);
+    }
+
+    private static int green(int x, int y) {
+        return 60 + (y * 150) / (TILE_SIZE * TILES_DOWN);
+    }
+
+    private static int blue(int x, int y) {
+        return 120;
+    }
+}
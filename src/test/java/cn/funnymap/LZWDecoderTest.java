@@ -0,0 +1,126 @@
+package cn.funnymap;
+
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.lzw.LZWDecoder;
+import cn.funnymap.compression.lzw.LZWEncoder;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FastByteArrayOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/20 10:12
+ */
+class LZWDecoderTest {
+    private static final int DATA_SIZE = 4 * 1024 * 1024;
+
+    @Test
+    void testDecode() throws IOException {
+        byte[] encoded = new byte[]{-128, 1, -32, 64, -128, 68, 8, 12, 6, -128, -128};
+        byte[] expected = new byte[]{7, 7, 7, 8, 8, 7, 7, 6, 6};
+
+        ByteBuffer target = ByteBuffer.allocate(expected.length);
+        assert new LZWDecoder().decode(ByteBuffer.wrap(encoded), target).getProduced() == expected.length;
+        assert Arrays.equals(target.array(), expected);
+
+        // 兼容原有的输入流接口
+        FastByteArrayOutputStream outputStream = (FastByteArrayOutputStream) new LZWDecoder()
+                .decode(new ByteArrayInputStream(encoded));
+        assert Arrays.equals(outputStream.toByteArray(), expected);
+
+        // 目标Buffer不足时只写入能容纳的部分
+        ByteBuffer shortTarget = ByteBuffer.allocate(4);
+        CodecResult codecResult = new LZWDecoder().decode(ByteBuffer.wrap(encoded), shortTarget);
+        assert codecResult.getProduced() == 4 && codecResult.isOverflow();
+        assert Arrays.equals(shortTarget.array(), Arrays.copyOf(expected, 4));
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        byte[] data = sampleData();
+
+        FastByteArrayOutputStream outputStream = new FastByteArrayOutputStream();
+        new LZWEncoder(outputStream).encode(ByteBuffer.wrap(data));
+        byte[] encoded = outputStream.toByteArray();
+
+        // Buffer接口与输出流接口的编码结果一致，同一个编码器可以重复使用
+        LZWEncoder lzwEncoder = new LZWEncoder();
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer encodedBuffer = ByteBuffer.allocateDirect(encoded.length + 16);
+            CodecResult codecResult = lzwEncoder.encode(ByteBuffer.wrap(data), encodedBuffer);
+            assert codecResult.getConsumed() == DATA_SIZE && codecResult.getProduced() == encoded.length;
+            assert !codecResult.isOverflow();
+            assert encodedBuffer.flip().equals(ByteBuffer.wrap(encoded));
+        }
+
+        for (ByteBuffer target : new ByteBuffer[]{ByteBuffer.allocate(DATA_SIZE), ByteBuffer.allocateDirect(DATA_SIZE)}) {
+            ByteBuffer source = ByteBuffer.wrap(encoded);
+            CodecResult codecResult = new LZWDecoder().decode(source, target);
+            assert codecResult.getProduced() == DATA_SIZE;
+            assert codecResult.getConsumed() == source.position();
+            // 编码结果以EOI_CODE所在的字节结束
+            assert source.remaining() == 0;
+
+            byte[] decoded = new byte[DATA_SIZE];
+            target.flip().get(decoded);
+            assert Arrays.equals(decoded, data);
+        }
+
+        // 预热后统计解码速度
+        byte[] target = new byte[DATA_SIZE];
+        LZWDecoder lzwDecoder = new LZWDecoder();
+        for (int i = 0; i < 5; i++) {
+            lzwDecoder.decode(ByteBuffer.wrap(encoded), ByteBuffer.wrap(target));
+        }
+        long start = System.nanoTime();
+        lzwDecoder.decode(ByteBuffer.wrap(encoded), ByteBuffer.wrap(target));
+        long cost = System.nanoTime() - start;
+        System.out.printf("LZW解码%sMB耗时：%.2fms，%.1fMB/s%n", DATA_SIZE >> 20, cost / 1e6,
+                (DATA_SIZE / 1048576.0) / (cost / 1e9));
+    }
+
+    @Test
+    void testEncodeThroughput() throws IOException {
+        byte[] data = sampleData();
+        ByteBuffer directData = ByteBuffer.allocateDirect(DATA_SIZE);
+        directData.put(data).flip();
+
+        // 直接内存的输入分批编码，结果与堆内存的输入一致
+        LZWEncoder lzwEncoder = new LZWEncoder();
+        ByteBuffer encoded = ByteBuffer.allocate(DATA_SIZE * 2);
+        lzwEncoder.encode(ByteBuffer.wrap(data), encoded);
+        ByteBuffer directEncoded = ByteBuffer.allocate(DATA_SIZE * 2);
+        lzwEncoder.encode(directData, directEncoded);
+        assert encoded.flip().equals(directEncoded.flip());
+
+        // 预热后统计编码速度，编码器在多次编码之间不重新分配内存
+        for (int i = 0; i < 5; i++) {
+            lzwEncoder.encode(ByteBuffer.wrap(data), encoded.clear());
+        }
+        long start = System.nanoTime();
+        lzwEncoder.encode(ByteBuffer.wrap(data), encoded.clear());
+        long cost = System.nanoTime() - start;
+        System.out.printf("LZW编码%sMB耗时：%.2fms，%.1fMB/s，压缩比：%.2f%n", DATA_SIZE >> 20, cost / 1e6,
+                (DATA_SIZE / 1048576.0) / (cost / 1e9), (double) DATA_SIZE / encoded.position());
+    }
+
+    /**
+     * 前半部分为随机数据，字典会多次写满并遇到CLEAR_CODE；后半部分为平滑数据，会产生较长的编码
+     */
+    private static byte[] sampleData() {
+        byte[] data = new byte[DATA_SIZE];
+        Random random = new Random(42);
+        for (int i = 0; i < DATA_SIZE / 2; i++) {
+            data[i] = (byte) random.nextInt(256);
+        }
+        for (int i = DATA_SIZE / 2; i < DATA_SIZE; i++) {
+            data[i] = (byte) ((i / 1024) + random.nextInt(2));
+        }
+        return data;
+    }
+}
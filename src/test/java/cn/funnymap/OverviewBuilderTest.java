@@ -0,0 +1,224 @@
+package cn.funnymap;
+
+import cn.funnymap.model.tiff.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/30 15:40
+ */
+class OverviewBuilderTest {
+    private static final int WIDTH = 1517;
+    private static final int HEIGHT = 1301;
+
+    @Test
+    void testAddOverviews() throws IOException {
+        // 8位RGB，宽高均为奇数
+        byte[] image = new byte[WIDTH * HEIGHT * 3];
+        Random random = new Random(7);
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (i / 3 % WIDTH / 6 + i % 3 * 50 + random.nextInt(8));
+        }
+
+        Path serialPath = Files.createTempFile("overview", ".tif");
+        Path parallelPath = Files.createTempFile("overview", ".tif");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (Path path : new Path[]{serialPath, parallelPath}) {
+                try (TIFFWriter tiffWriter = TIFFWriter.create(path, ByteOrder.LITTLE_ENDIAN, false)) {
+                    tiffWriter.beginImage(new TIFFImageSpec(WIDTH, HEIGHT, 8, 8, 8)
+                            .setCompression(TIFF.Compression.LZW).setPredictor(2)
+                            .setPhotometric(TIFF.Photometric.RGB).setRowsPerStrip(32));
+                    tiffWriter.writeRows(ByteBuffer.wrap(image));
+                    tiffWriter.endImage();
+                }
+            }
+
+            long start = System.nanoTime();
+            int levelCount = OverviewBuilder.addOverviews(serialPath, 0, OverviewBuilder.Resampling.AVERAGE, null);
+            long serialCost = System.nanoTime() - start;
+            start = System.nanoTime();
+            OverviewBuilder.addOverviews(parallelPath, 0, OverviewBuilder.Resampling.AVERAGE, executor);
+            long parallelCost = System.nanoTime() - start;
+            System.out.printf("生成%s级概视图，串行耗时：%.2fms，4线程并行耗时：%.2fms%n", levelCount, serialCost / 1e6,
+                    parallelCost / 1e6);
+            assert levelCount == 3;
+
+            // 并行时各级条带在文件中交错的顺序可能不同，像素数据相同
+            for (Path path : new Path[]{serialPath, parallelPath}) {
+                try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    TIFFReader tiffReader = new TIFFReader(fileChannel);
+                    assert tiffReader.getIFDChain().size() == 4;
+                    assert Arrays.equals(tiffReader.readImage(0), image);
+
+                    byte[] expected = image;
+                    int width = WIDTH;
+                    int height = HEIGHT;
+                    for (int level = 1; level <= levelCount; level++) {
+                        expected = averageRGB(expected, width, height);
+                        width = (width + 1) / 2;
+                        height = (height + 1) / 2;
+
+                        TIFFTag tiffTag = tiffReader.readAttribute(level);
+                        assert tiffTag.getSubfileType() == 1;
+                        assert tiffTag.getWidth() == width && tiffTag.getHeight() == height;
+                        assert tiffTag.getCompression() == TIFF.Compression.LZW && tiffTag.getPredictor() == 2;
+                        assert Arrays.equals(tiffReader.readRaster(tiffTag), expected) : "第" + level + "级";
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+            Files.delete(serialPath);
+            Files.delete(parallelPath);
+        }
+    }
+
+    @Test
+    void testSinglePassWithFullResolution() throws IOException {
+        // 16位有符号分类数据，与全分辨率图像在同一次遍历中写入，字节序与文件不同
+        int width = 6;
+        int height = 3;
+        short[] classes = new short[]{
+                1, 2, 5, 5, -3, 9,
+                1, 3, 5, 6, 7, 8,
+                4, 4, 4, 2, 2, -3};
+        ByteBuffer image = ByteBuffer.allocate(width * height * 2).order(ByteOrder.LITTLE_ENDIAN);
+        image.asShortBuffer().put(classes);
+
+        TIFFImageSpec spec = new TIFFImageSpec(width, height, 16).setSampleFormat(TIFF.SampleFormat.SIGNED)
+                .setCompression(TIFF.Compression.ADOBE_DEFLATE).setTileSize(16, 16);
+        Path path = Files.createTempFile("overview", ".tif");
+        try {
+            for (OverviewBuilder.Resampling resampling : OverviewBuilder.Resampling.values()) {
+                try (TIFFWriter tiffWriter = TIFFWriter.create(path, ByteOrder.BIG_ENDIAN, true)) {
+                    OverviewBuilder overviewBuilder = new OverviewBuilder(spec, 2, resampling);
+                    overviewBuilder.begin(tiffWriter);
+                    tiffWriter.beginImage(spec);
+                    for (int y = 0; y < height; y++) {
+                        ByteBuffer row = image.slice(y * width * 2, width * 2).order(ByteOrder.LITTLE_ENDIAN);
+                        tiffWriter.writeRows(row.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+                        overviewBuilder.addRows(row);
+                    }
+                    tiffWriter.endImage();
+                    for (ImageFileDirectory imageFileDirectory : overviewBuilder.finish()) {
+                        tiffWriter.writeIFD(imageFileDirectory);
+                    }
+                }
+
+                try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    TIFFReader tiffReader = new TIFFReader(fileChannel);
+                    assert tiffReader.getIFDChain().size() == 3;
+                    short[] level1 = readShorts(tiffReader, 1);
+                    short[] level2 = readShorts(tiffReader, 2);
+                    System.out.printf("%s：%s，%s%n", resampling, Arrays.toString(level1), Arrays.toString(level2));
+
+                    switch (resampling) {
+                        case NEAREST:
+                            assert Arrays.equals(level1, new short[]{1, 5, -3, 4, 4, 2});
+                            assert Arrays.equals(level2, new short[]{1, -3});
+                            break;
+                        case AVERAGE:
+                            // (-3 + 9 + 7 + 8) / 4 = 5.25，(4 + 4) / 2 = 4，(2 - 3) / 2 = -0.5
+                            assert Arrays.equals(level1, new short[]{2, 5, 5, 4, 3, 0});
+                            assert Arrays.equals(level2, new short[]{4, 3});
+                            break;
+                        default:
+                            assert Arrays.equals(level1, new short[]{1, 5, -3, 4, 4, 2});
+                            assert Arrays.equals(level2, new short[]{4, -3});
+                    }
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testRejectedSources() throws IOException {
+        // 16位浮点数不能取平均值
+        TIFFImageSpec halfFloat = new TIFFImageSpec(64, 64, 16).setSampleFormat(TIFF.SampleFormat.IEEEFLOAT);
+        boolean isRejected = false;
+        try {
+            new OverviewBuilder(halfFloat, 1, OverviewBuilder.Resampling.AVERAGE);
+        } catch (IllegalArgumentException exception) {
+            isRejected = true;
+        }
+        assert isRejected;
+        new OverviewBuilder(halfFloat, 1, OverviewBuilder.Resampling.NEAREST);
+
+        // 压缩方式不支持编码时在修改文件之前抛出异常
+        Path path = Files.createTempFile("overview", ".tif");
+        try {
+            try (TIFFWriter tiffWriter = TIFFWriter.create(path, ByteOrder.LITTLE_ENDIAN, false)) {
+                tiffWriter.beginImage(new TIFFImageSpec(600, 600, 8, 8, 8).setPhotometric(TIFF.Photometric.RGB));
+                tiffWriter.writeRows(ByteBuffer.allocate(600 * 600 * 3));
+                tiffWriter.endImage();
+            }
+            try (TIFFMetadataEditor editor = TIFFMetadataEditor.open(path)) {
+                editor.setDataEntry(0, DataEntry.ofIntegers(TIFF.Tag.COMPRESSION, TIFF.Type.SHORT,
+                        TIFF.Compression.NEW_JPEG)).commit();
+            }
+            byte[] original = Files.readAllBytes(path);
+
+            isRejected = false;
+            try {
+                OverviewBuilder.addOverviews(path, 0, OverviewBuilder.Resampling.AVERAGE, null);
+            } catch (IllegalArgumentException exception) {
+                System.out.println(exception.getMessage());
+                isRejected = true;
+            }
+            assert isRejected;
+            assert Arrays.equals(Files.readAllBytes(path), original);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static short[] readShorts(TIFFReader tiffReader, int pageIndex) throws IOException {
+        TIFFTag tiffTag = tiffReader.readAttribute(pageIndex);
+        byte[] window = tiffReader.readWindow(tiffTag, 0, 0, (int) tiffTag.getWidth(), (int) tiffTag.getHeight());
+        short[] values = new short[window.length / 2];
+        ByteBuffer.wrap(window).order(tiffReader.getIFH().getByteOrder()).asShortBuffer().get(values);
+
+        return values;
+    }
+
+    /**
+     * 2 x 2个像素取平均值，位于右侧和底部边缘时只使用图像内的像素
+     */
+    private static byte[] averageRGB(byte[] image, int width, int height) {
+        int reducedWidth = (width + 1) / 2;
+        int reducedHeight = (height + 1) / 2;
+        byte[] reduced = new byte[reducedWidth * reducedHeight * 3];
+        for (int y = 0; y < reducedHeight; y++) {
+            for (int x = 0; x < reducedWidth; x++) {
+                for (int band = 0; band < 3; band++) {
+                    int sum = 0;
+                    int n = 0;
+                    for (int dy = 0; dy < 2 && 2 * y + dy < height; dy++) {
+                        for (int dx = 0; dx < 2 && 2 * x + dx < width; dx++) {
+                            sum += image[((2 * y + dy) * width + 2 * x + dx) * 3 + band] & 0xFF;
+                            n++;
+                        }
+                    }
+                    reduced[(y * reducedWidth + x) * 3 + band] = (byte) Math.floorDiv(2 * sum + n, 2 * n);
+                }
+            }
+        }
+
+        return reduced;
+    }
+}
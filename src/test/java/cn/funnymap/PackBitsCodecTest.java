@@ -0,0 +1,109 @@
+package cn.funnymap;
+
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.packbits.PackBitsDecoder;
+import cn.funnymap.compression.packbits.PackBitsEncoder;
+import cn.funnymap.model.tiff.TIFF;
+import cn.funnymap.model.tiff.TIFFReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/24 14:05
+ */
+class PackBitsCodecTest {
+    private static final int ROW_BYTE_SIZE = 2480;
+    private static final int ROWS = 3508;
+
+    @Test
+    void testDecode() {
+        // TIFF 6.0 标准中的示例
+        byte[] encoded = new byte[]{(byte) 0xFE, (byte) 0xAA, 0x02, (byte) 0x80, 0x00, 0x2A, (byte) 0xFD,
+                (byte) 0xAA, 0x03, (byte) 0x80, 0x00, 0x2A, 0x22, (byte) 0xF7, (byte) 0xAA};
+        byte[] expected = new byte[]{(byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0x80, 0x00, 0x2A, (byte) 0xAA,
+                (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0x80, 0x00, 0x2A, 0x22, (byte) 0xAA, (byte) 0xAA,
+                (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA, (byte) 0xAA,
+                (byte) 0xAA};
+
+        for (ByteBuffer target : new ByteBuffer[]{ByteBuffer.allocate(24), ByteBuffer.allocateDirect(24)}) {
+            CodecResult codecResult = new PackBitsDecoder().decode(ByteBuffer.wrap(encoded), target);
+            assert codecResult.getConsumed() == encoded.length && codecResult.getProduced() == expected.length;
+            assert target.flip().equals(ByteBuffer.wrap(expected));
+        }
+
+        // 每次只提供1个字节的编码数据、只接收3个字节的解码结果，跨越多次调用继续未完成的游程
+        PackBitsDecoder packBitsDecoder = new PackBitsDecoder();
+        ByteBuffer source = ByteBuffer.wrap(encoded);
+        byte[] decoded = new byte[expected.length];
+        int produced = 0;
+        for (int i = 0; i < 100 && produced < expected.length; i++) {
+            ByteBuffer chunk = source.slice(source.position(), Math.min(1, source.remaining()));
+            ByteBuffer target = ByteBuffer.wrap(decoded, produced, Math.min(3, expected.length - produced));
+            CodecResult codecResult = packBitsDecoder.decodeStreaming(chunk, target);
+            source.position(source.position() + codecResult.getConsumed());
+            produced += codecResult.getProduced();
+        }
+        assert Arrays.equals(decoded, expected);
+    }
+
+    @Test
+    void testRoundTripByRow() throws IOException {
+        // 模拟扫描文档：大面积白色背景夹杂少量随机的文字像素
+        byte[] page = new byte[ROW_BYTE_SIZE * ROWS];
+        Arrays.fill(page, (byte) 0xFF);
+        Random random = new Random(7);
+        for (int i = 0; i < page.length / 20; i++) {
+            page[random.nextInt(page.length)] = (byte) random.nextInt(256);
+        }
+
+        PackBitsEncoder packBitsEncoder = new PackBitsEncoder(ROW_BYTE_SIZE);
+        ByteBuffer code = ByteBuffer.allocate(PackBitsEncoder.maxEncodedSize(page.length) + ROWS);
+        CodecResult encodeResult = packBitsEncoder.encode(ByteBuffer.wrap(page), code);
+        assert encodeResult.getConsumed() == page.length && !encodeResult.isOverflow();
+        code.flip();
+        System.out.printf("PackBits压缩比：%.2f%n", (double) page.length / code.remaining());
+
+        PackBitsDecoder packBitsDecoder = new PackBitsDecoder();
+        byte[] decoded = new byte[page.length];
+        for (int i = 0; i < 3; i++) {
+            packBitsDecoder.decode(code.duplicate(), ByteBuffer.wrap(decoded));
+        }
+        long start = System.nanoTime();
+        CodecResult decodeResult = packBitsDecoder.decode(code.duplicate(), ByteBuffer.wrap(decoded));
+        System.out.printf("PackBits解码一页耗时：%.2fms%n", (System.nanoTime() - start) / 1e6);
+        assert decodeResult.getProduced() == page.length && !decodeResult.isOverflow();
+        assert Arrays.equals(decoded, page);
+
+        // 只解码前10行
+        byte[] firstRows = new byte[page.length];
+        ByteBuffer source = code.duplicate();
+        CodecResult rowsResult = packBitsDecoder.decodeRows(source, ByteBuffer.wrap(firstRows), ROW_BYTE_SIZE, 10);
+        assert rowsResult.getProduced() == ROW_BYTE_SIZE * 10;
+        assert source.hasRemaining();
+        assert Arrays.equals(firstRows, 0, ROW_BYTE_SIZE * 10, page, 0, ROW_BYTE_SIZE * 10);
+    }
+
+    @Test
+    void testReadData() throws IOException {
+        byte[] data = new byte[]{1, 1, 1, 1, 2, 3, 4, 4, 4, 4, 4, 4};
+        ByteBuffer code = ByteBuffer.allocate(32);
+        new PackBitsEncoder(6).encode(ByteBuffer.wrap(data), code);
+
+        byte[] bytes = new byte[8 + code.position()];
+        bytes[0] = 'I';
+        bytes[1] = 'I';
+        bytes[2] = 42;
+        System.arraycopy(code.array(), 0, bytes, 8, code.position());
+
+        TIFFReader tiffReader = new TIFFReader(ImageFileDirectoryChainTest.bytesSource(bytes, new AtomicInteger()));
+        byte[] decoded = tiffReader.readData(6, 2, new int[]{8}, code.position(), 8, 1, 1,
+                TIFF.Compression.PACKBITS);
+        assert Arrays.equals(decoded, data);
+    }
+}
@@ -0,0 +1,279 @@
+package cn.funnymap;
+
+import cn.funnymap.compression.CodecResult;
+import cn.funnymap.compression.deflate.DeflateDecoder;
+import cn.funnymap.compression.deflate.DeflateEncoder;
+import cn.funnymap.compression.lzw.LZWDecoder;
+import cn.funnymap.compression.lzw.LZWEncoder;
+import cn.funnymap.compression.predictor.PredictingEncoder;
+import cn.funnymap.compression.predictor.Predictor;
+import cn.funnymap.model.tiff.*;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FastByteArrayOutputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/26 10:20
+ */
+class PredictorTest {
+    private static final int WIDTH = 37;
+    private static final int ROWS = 5;
+    private static final int BENCHMARK_SIZE = 16 * 1024 * 1024;
+
+    @Test
+    void testHorizontal() {
+        for (ByteOrder byteOrder : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            for (int bitsPerSample : new int[]{8, 16, 32, 64}) {
+                for (int samples : new int[]{1, 2, 3}) {
+                    byte[] expected = randomData(WIDTH * samples * bitsPerSample / 8 * ROWS, bitsPerSample);
+                    ByteBuffer data = ByteBuffer.wrap(expected.clone()).order(byteOrder);
+                    encodeHorizontal(data, WIDTH * samples * bitsPerSample / 8, bitsPerSample / 8, samples);
+
+                    Predictor.decode(data, WIDTH, ROWS, bitsPerSample, samples, 2);
+                    assert Arrays.equals(data.array(), expected) : byteOrder + "，" + bitsPerSample + "位";
+
+                    // 直接内存
+                    ByteBuffer direct = ByteBuffer.allocateDirect(expected.length).order(byteOrder);
+                    direct.put(expected).flip();
+                    encodeHorizontal(direct, WIDTH * samples * bitsPerSample / 8, bitsPerSample / 8, samples);
+                    Predictor.decode(direct, WIDTH, ROWS, bitsPerSample, samples, 2);
+                    assert direct.equals(ByteBuffer.wrap(expected));
+                }
+            }
+        }
+
+        // 16位的样本需要保留高字节
+        ByteBuffer data = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putShort(0, (short) 1000)
+                .putShort(2, (short) 300);
+        Predictor.decode(data, 2, 1, new int[]{16}, 1, 2);
+        assert data.getShort(0) == 1000 && data.getShort(2) == 1300;
+
+        // 没有PlanarConfiguration TAG时按像素交错处理
+        for (int planarConfig : new int[]{TIFF.PlanarConfiguration.CHUNKY, TIFF.UNDEFINED}) {
+            ByteBuffer rgb = ByteBuffer.wrap(new byte[]{10, 20, 30, 1, 1, 1, 1, 1, 1});
+            Predictor.decode(rgb, 3, 1, new int[]{8, 8, 8}, planarConfig, 2);
+            assert Arrays.equals(rgb.array(), new byte[]{10, 20, 30, 11, 21, 31, 12, 22, 32});
+        }
+    }
+
+    @Test
+    void testMissingPlanarConfiguration() throws IOException {
+        // 多通道、水平差分的文件删除PlanarConfiguration TAG后仍按默认值读取
+        int width = 64;
+        int height = 16;
+        byte[] image = new byte[width * height * 3];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (i / 3 % width * 3 + i % 3 * 50);
+        }
+
+        Path path = Files.createTempFile("predictor", ".tif");
+        try {
+            try (TIFFWriter tiffWriter = TIFFWriter.create(path, ByteOrder.LITTLE_ENDIAN, false)) {
+                tiffWriter.beginImage(new TIFFImageSpec(width, height, 8, 8, 8).setCompression(TIFF.Compression.LZW)
+                        .setPredictor(2).setPhotometric(TIFF.Photometric.RGB));
+                tiffWriter.writeRows(ByteBuffer.wrap(image));
+                tiffWriter.endImage();
+            }
+            try (TIFFMetadataEditor editor = TIFFMetadataEditor.open(path)) {
+                editor.removeDataEntry(0, TIFF.Tag.PLANAR_CONFIGURATION).commit();
+                assert editor.readAttribute(0).getPlanarConfig() == TIFF.UNDEFINED;
+            }
+
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                assert Arrays.equals(new TIFFReader(fileChannel).readImage(0), image);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testFloatingPoint() {
+        for (ByteOrder byteOrder : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            for (int bitsPerSample : new int[]{32, 64}) {
+                int samples = 2;
+                int rowByteSize = WIDTH * samples * bitsPerSample / 8;
+                ByteBuffer expected = ByteBuffer.allocate(rowByteSize * ROWS).order(byteOrder);
+                for (int i = 0; i < WIDTH * samples * ROWS; i++) {
+                    if (bitsPerSample == 32) {
+                        expected.putFloat((float) Math.sin(i / 10.0) * 1000);
+                    } else {
+                        expected.putDouble(Math.cos(i / 10.0) * 1e6);
+                    }
+                }
+
+                ByteBuffer data = ByteBuffer.wrap(expected.array().clone()).order(byteOrder);
+                encodeFloatingPoint(data, rowByteSize, bitsPerSample / 8, samples);
+                assert !data.equals(expected.flip());
+
+                Predictor.decode(data, WIDTH, ROWS, new int[]{bitsPerSample, bitsPerSample}, 1, 3);
+                assert data.equals(expected) : byteOrder + "，" + bitsPerSample + "位";
+            }
+        }
+    }
+
+    @Test
+    void testPartialRows() {
+        byte[] expected = randomData(WIDTH * 2 * ROWS, 16);
+        ByteBuffer data = ByteBuffer.wrap(expected.clone()).order(ByteOrder.LITTLE_ENDIAN);
+        encodeHorizontal(data, WIDTH * 2, 2, 1);
+        byte[] encoded = data.array().clone();
+
+        // 最后一行不完整时保持不变
+        int length = WIDTH * 2 * (ROWS - 1) + 10;
+        Predictor.decode(data.limit(length), WIDTH, ROWS, 16, 1, 2);
+        assert Arrays.equals(Arrays.copyOf(data.array(), length - 10), Arrays.copyOf(expected, length - 10));
+        assert Arrays.equals(Arrays.copyOfRange(data.array(), length - 10, length),
+                Arrays.copyOfRange(encoded, length - 10, length));
+    }
+
+    @Test
+    void testPredictingEncoder() throws IOException {
+        // 平滑的32位浮点高程，使用浮点差分和LZW编码
+        int width = 512;
+        int rows = 64;
+        ByteBuffer elevation = ByteBuffer.allocate(width * rows * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < width; x++) {
+                elevation.putFloat((float) (1200 + 300 * Math.sin(x / 50.0) * Math.cos(y / 30.0)));
+            }
+        }
+        byte[] original = elevation.array().clone();
+
+        ByteBuffer plain = ByteBuffer.allocate(original.length * 2);
+        new LZWEncoder().encode(ByteBuffer.wrap(original), plain);
+
+        ByteBuffer code = ByteBuffer.allocate(original.length * 2);
+        CodecResult codecResult = new PredictingEncoder(new LZWEncoder(), width, 32, 1, 3)
+                .encode(elevation.flip(), code);
+        assert codecResult.getConsumed() == original.length && !codecResult.isOverflow();
+        assert !elevation.hasRemaining() && Arrays.equals(elevation.array(), original);
+        System.out.printf("浮点高程LZW编码：%s字节，浮点差分后：%s字节%n", plain.position(), code.position());
+
+        // 输出流接口的编码结果与Buffer接口一致
+        FastByteArrayOutputStream codeStream = new FastByteArrayOutputStream();
+        new PredictingEncoder(new LZWEncoder(codeStream), width, 32, 1, 3)
+                .encode(ByteBuffer.wrap(original.clone()).order(ByteOrder.LITTLE_ENDIAN));
+        assert Arrays.equals(codeStream.toByteArray(), Arrays.copyOf(code.array(), code.position()));
+
+        ByteBuffer decoded = ByteBuffer.allocate(original.length).order(ByteOrder.LITTLE_ENDIAN);
+        new LZWDecoder().decode(code.flip(), decoded);
+        Predictor.decode(decoded.flip(), width, rows, 32, 1, 3);
+        assert Arrays.equals(decoded.array(), original);
+
+        // 16位大端、多通道的水平差分和Deflate编码，最后一行不完整
+        int samples = 3;
+        byte[] image = new byte[width * samples * 2 * 4 + 100];
+        ByteBuffer imageBuffer = ByteBuffer.wrap(image).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < image.length / 2; i++) {
+            imageBuffer.putShort(i * 2, (short) (i * 7 + i % samples * 1000));
+        }
+
+        try (DeflateEncoder deflateEncoder = new DeflateEncoder(6);
+             DeflateDecoder deflateDecoder = new DeflateDecoder()) {
+            PredictingEncoder predictingEncoder = new PredictingEncoder(deflateEncoder, width, 16, samples, 2);
+            code.clear();
+            predictingEncoder.encode(imageBuffer, code);
+
+            decoded = ByteBuffer.allocate(image.length).order(ByteOrder.BIG_ENDIAN);
+            deflateDecoder.decode(code.flip(), decoded);
+            Predictor.decode(decoded.flip(), width, 5, new int[]{16, 16, 16}, 1, 2);
+            assert Arrays.equals(decoded.array(), image);
+
+            // 目标Buffer不足
+            codecResult = predictingEncoder.encode(ByteBuffer.wrap(image).order(ByteOrder.BIG_ENDIAN),
+                    ByteBuffer.allocate(16));
+            assert codecResult.isOverflow() && codecResult.getProduced() == 16;
+        }
+    }
+
+    @Test
+    void testBenchmark() {
+        int width = 4096;
+        ByteBuffer data = ByteBuffer.allocate(BENCHMARK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        new Random(1).nextBytes(data.array());
+
+        System.out.println("Predictor是否向量化：" + Predictor.isVectorized());
+        // 位深、通道个数、Predictor
+        int[][] cases = new int[][]{{8, 1, 2}, {8, 3, 2}, {16, 1, 2}, {16, 4, 2}, {32, 1, 2}, {32, 1, 3}};
+        for (int[] benchmarkCase : cases) {
+            int bitsPerSample = benchmarkCase[0];
+            int samples = benchmarkCase[1];
+            int predictor = benchmarkCase[2];
+            int rows = BENCHMARK_SIZE / (width * samples * bitsPerSample / 8);
+
+            // 预热
+            for (int i = 0; i < 5; i++) {
+                Predictor.decode(data, width, rows, bitsPerSample, samples, predictor);
+            }
+
+            long start = System.nanoTime();
+            Predictor.decode(data, width, rows, bitsPerSample, samples, predictor);
+            long cost = System.nanoTime() - start;
+            System.out.printf("Predictor%s，%s位%s通道，解码%sMB耗时：%.2fms，%.1fMB/s%n", predictor, bitsPerSample,
+                    samples, BENCHMARK_SIZE >> 20, cost / 1e6, (BENCHMARK_SIZE / 1048576.0) / (cost / 1e9));
+        }
+    }
+
+    private static byte[] randomData(int length, int bitsPerSample) {
+        byte[] bytes = new byte[length];
+        new Random(bitsPerSample).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * 水平差分编码，从每一行的末尾开始减去前一个像素的同一通道的样本
+     */
+    private static void encodeHorizontal(ByteBuffer data, int rowByteSize, int bytesPerSample, int samples) {
+        int stride = bytesPerSample * samples;
+        for (int rowStart = 0; rowStart < data.limit(); rowStart += rowByteSize) {
+            for (int i = rowStart + rowByteSize - bytesPerSample; i >= rowStart + stride; i -= bytesPerSample) {
+                switch (bytesPerSample) {
+                    case 1:
+                        data.put(i, (byte) (data.get(i) - data.get(i - stride)));
+                        break;
+                    case 2:
+                        data.putShort(i, (short) (data.getShort(i) - data.getShort(i - stride)));
+                        break;
+                    case 4:
+                        data.putInt(i, data.getInt(i) - data.getInt(i - stride));
+                        break;
+                    default:
+                        data.putLong(i, data.getLong(i) - data.getLong(i - stride));
+                }
+            }
+        }
+    }
+
+    /**
+     * 浮点差分编码：每一行的样本按照有效位从高到低分组，再以通道个数为步长对字节做水平差分编码
+     */
+    private static void encodeFloatingPoint(ByteBuffer data, int rowByteSize, int bytesPerSample, int samples) {
+        int sampleCount = rowByteSize / bytesPerSample;
+        boolean isBigEndian = data.order() == ByteOrder.BIG_ENDIAN;
+        byte[] row = new byte[rowByteSize];
+
+        for (int rowStart = 0; rowStart < data.limit(); rowStart += rowByteSize) {
+            for (int i = 0; i < sampleCount; i++) {
+                for (int b = 0; b < bytesPerSample; b++) {
+                    int source = isBigEndian ? b : bytesPerSample - 1 - b;
+                    row[b * sampleCount + i] = data.get(rowStart + i * bytesPerSample + source);
+                }
+            }
+            for (int i = rowByteSize - 1; i >= samples; i--) {
+                row[i] -= row[i - samples];
+            }
+            data.put(rowStart, row);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package cn.funnymap;
+
+import cn.funnymap.model.tiff.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/31 11:20
+ */
+class TIFFMetadataEditorTest {
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+
+    @Test
+    void testEditMetadata() throws IOException {
+        byte[] image = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (i % WIDTH + i / WIDTH);
+        }
+        byte[] overview = Arrays.copyOf(image, WIDTH / 2 * HEIGHT / 2);
+        short[] geoKeyDirectory = new short[]{1, 1, 0, 1, 1024, 0, 1, 2};
+
+        for (boolean isBigTIFF : new boolean[]{false, true}) {
+            Path path = Files.createTempFile("metadata", ".tif");
+            try {
+                try (TIFFWriter tiffWriter = TIFFWriter.create(path, ByteOrder.BIG_ENDIAN, isBigTIFF)) {
+                    tiffWriter.beginImage(new TIFFImageSpec(WIDTH, HEIGHT, 8).setCompression(TIFF.Compression.LZW)
+                            .setRowsPerStrip(16).setImageDescription("原始的影像描述信息")
+                            .setModelPixelScale(0.5, 0.5, 0).setGeoKeyDirectory(geoKeyDirectory));
+                    tiffWriter.writeRows(ByteBuffer.wrap(image));
+                    tiffWriter.endImage();
+                    tiffWriter.beginImage(new TIFFImageSpec(WIDTH / 2, HEIGHT / 2, 8).setSubfileType(1));
+                    tiffWriter.writeRows(ByteBuffer.wrap(overview));
+                    tiffWriter.endImage();
+                }
+                long fileSize = Files.size(path);
+
+                // 只替换已有的DE且新值不超过原来的大小，原地写入
+                try (TIFFMetadataEditor editor = TIFFMetadataEditor.open(path)) {
+                    geoKeyDirectory[7] = 1;
+                    int rewrittenCount = editor.setImageDescription(0, "新的描述")
+                            .setGeoKeyDirectory(0, geoKeyDirectory).commit();
+                    assert rewrittenCount == 0;
+                    assert editor.readAttribute(0).getImageDescription().startsWith("新的描述");
+                }
+                assert Files.size(path) == fileSize;
+
+                // 新增TAG、值变大以及修改第二页，追加重写后的IFD
+                try (TIFFMetadataEditor editor = TIFFMetadataEditor.open(path)) {
+                    long start = System.nanoTime();
+                    int rewrittenCount = editor.setNoData(0, "-9999")
+                            .setImageDescription(0, "修改后更长的影像描述信息，超过原来的字节数")
+                            .setImageDescription(1, "概视图").commit();
+                    System.out.printf("重写%s个IFD，耗时：%.2fms%n", rewrittenCount, (System.nanoTime() - start) / 1e6);
+                    assert rewrittenCount == 2;
+                }
+                assert Files.size(path) - fileSize < 1024;
+
+                try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    TIFFReader tiffReader = new TIFFReader(fileChannel);
+                    assert tiffReader.getIFDChain().size() == 2;
+
+                    TIFFTag tiffTag = tiffReader.readAttribute(0);
+                    assert tiffTag.getNoData().startsWith("-9999");
+                    assert tiffTag.getImageDescription().startsWith("修改后更长的影像描述信息");
+                    assert Arrays.equals(tiffTag.getGeoKeyDirectory(), geoKeyDirectory);
+                    assert Arrays.equals(tiffReader.readRaster(tiffTag), image);
+
+                    TIFFTag overviewTag = tiffReader.readAttribute(1);
+                    assert overviewTag.getSubfileType() == 1;
+                    assert overviewTag.getImageDescription().startsWith("概视图");
+                    assert Arrays.equals(tiffReader.readRaster(overviewTag), overview);
+                }
+
+                // 条带的位置不能修改
+                try (TIFFMetadataEditor editor = TIFFMetadataEditor.open(path)) {
+                    editor.removeDataEntry(0, TIFF.Tag.STRIP_OFFSETS);
+                    assert false;
+                } catch (IllegalArgumentException exception) {
+                    System.out.println(exception.getMessage());
+                }
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package cn.funnymap;
+
+import cn.funnymap.io.MappedFileSource;
+import cn.funnymap.model.tiff.TIFFReader;
+import cn.funnymap.model.tiff.TIFFTag;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/14 16:40
+ */
+class TIFFReaderConcurrencyTest {
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 200;
+
+    @Test
+    void testSharedFileChannelReader() throws Exception {
+        try (FileChannel fileChannel = openExample()) {
+            long position = fileChannel.position();
+
+            hammer(new TIFFReader(fileChannel), expectedData(fileChannel));
+
+            // 定位读取不修改FileChannel的position
+            assert fileChannel.position() == position;
+        }
+    }
+
+    @Test
+    void testSharedMappedReader() throws Exception {
+        try (FileChannel fileChannel = openExample()) {
+            hammer(new TIFFReader(new MappedFileSource(fileChannel, 64)), expectedData(fileChannel));
+        }
+    }
+
+    private void hammer(TIFFReader tiffReader, byte[] expectedData) throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch startLatch = new CountDownLatch(1);
+
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executorService.submit(() -> {
+                    startLatch.await();
+
+                    int checked = 0;
+                    for (int j = 0; j < ITERATIONS; j++) {
+                        TIFFTag tiffTag = tiffReader.readAttribute(tiffReader.readIFD());
+                        assert tiffTag.getWidth() == 7 && tiffTag.getHeight() == 9;
+                        assert tiffTag.getXResolution() == 96.0;
+
+                        byte[] data = readFirstStrip(tiffReader, tiffTag);
+                        assert Arrays.equals(data, expectedData);
+                        checked++;
+                    }
+                    return checked;
+                }));
+            }
+
+            startLatch.countDown();
+            for (Future<Integer> future : futures) {
+                assert future.get(60, TimeUnit.SECONDS) == ITERATIONS;
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private byte[] expectedData(FileChannel fileChannel) throws IOException {
+        TIFFReader tiffReader = new TIFFReader(fileChannel);
+        return readFirstStrip(tiffReader, tiffReader.readAttribute(tiffReader.readIFD()));
+    }
+
+    private byte[] readFirstStrip(TIFFReader tiffReader, TIFFTag tiffTag) throws IOException {
+        return tiffReader.readData(tiffTag.getWidth(), tiffTag.getHeight(), tiffTag.getBitsPerSample(),
+                tiffTag.getStripByteCounts()[0], tiffTag.getStripOffsets()[0], tiffTag.getPlanarConfig(),
+                tiffTag.getPredictor());
+    }
+
+    private FileChannel openExample() throws IOException {
+        ClassPathResource resource = new ClassPathResource("files/TIFF.tif");
+        return FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ);
+    }
+}
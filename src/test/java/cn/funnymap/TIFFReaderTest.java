@@ -1,5 +1,8 @@
 package cn.funnymap;
 
+import cn.funnymap.io.ByteSource;
+import cn.funnymap.io.FileChannelSource;
+import cn.funnymap.io.MappedFileSource;
 import cn.funnymap.model.tiff.*;
 import cn.funnymap.utils.TagUtil;
 import org.junit.jupiter.api.Test;
@@ -7,11 +10,17 @@ import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author jiao xn
@@ -66,6 +75,291 @@ class TIFFReaderTest {
         }
     }
 
+    @Test
+    void testMappedFileSource() throws IOException {
+        Resource resource = fromFilename("TIFF.tif");
+
+        try (FileChannel fileChannel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+            TIFFReader channelReader = new TIFFReader(fileChannel);
+            TIFFTag expectedTag = channelReader.readAttribute(channelReader.readIFD());
+            byte[] expectedData = readFirstStrip(channelReader, expectedTag);
+
+            // 使用较小的映射窗口，覆盖跨窗口读取的情况
+            for (int windowSize : new int[]{MappedFileSource.DEFAULT_WINDOW_SIZE, 64, 7}) {
+                TIFFReader mappedReader = new TIFFReader(new MappedFileSource(fileChannel, windowSize));
+                assert mappedReader.getIFH().getFirstIFDOffset() == channelReader.getIFH().getFirstIFDOffset();
+
+                TIFFTag tiffTag = mappedReader.readAttribute(mappedReader.readIFD());
+                assert tiffTag.getWidth() == expectedTag.getWidth();
+                assert tiffTag.getHeight() == expectedTag.getHeight();
+                assert Arrays.equals(tiffTag.getBitsPerSample(), expectedTag.getBitsPerSample());
+                assert Arrays.equals(tiffTag.getStripOffsets(), expectedTag.getStripOffsets());
+                assert tiffTag.getXResolution() == expectedTag.getXResolution();
+
+                assert Arrays.equals(readFirstStrip(mappedReader, tiffTag), expectedData);
+            }
+        }
+    }
+
+    @Test
+    void testBulkIFDRead() throws IOException {
+        Resource resource = fromFilename("TIFF.tif");
+
+        try (FileChannel fileChannel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+            FileChannelSource fileChannelSource = new FileChannelSource(fileChannel);
+            AtomicInteger readCount = new AtomicInteger();
+            ByteSource countingSource = new ByteSource() {
+                @Override
+                public long size() throws IOException {
+                    return fileChannelSource.size();
+                }
+
+                @Override
+                public ByteBuffer read(long position, int length, ByteOrder byteOrder) throws IOException {
+                    readCount.incrementAndGet();
+                    return fileChannelSource.read(position, length, byteOrder);
+                }
+            };
+
+            TIFFReader tiffReader = new TIFFReader(countingSource);
+            List<ImageFileDirectory> ifdList = tiffReader.readIFD();
+            TIFFTag tiffTag = tiffReader.readAttribute(ifdList);
+
+            // 文件头1次，IFD及其偏移量处的DE值1次
+            System.out.println("打开文件的读取次数：" + readCount.get());
+            assert readCount.get() <= 2;
+            assert ifdList.get(0).getDataEntries().size() == 15;
+            assert tiffTag.getXResolution() == 96.0;
+            assert Arrays.equals(tiffTag.getBitsPerSample(), new int[]{8, 8, 8});
+        }
+    }
+
+    @Test
+    void testBigTIFF() throws IOException {
+        long[] stripOffsets = new long[]{5_000_000_000L, 6_000_000_000L, 70_000_000_000L};
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(136).order(ByteOrder.BIG_ENDIAN);
+        // 文件头：字节序、标识、偏移量字节大小、保留字段、第一个IFD的偏移量
+        byteBuffer.put((byte) 'M').put((byte) 'M').putShort((short) TIFF.BIG_TIFF_IDENTIFIER)
+                .putShort((short) 8).putShort((short) 0).putLong(16);
+        // IFD：DE数量为8个字节，每个DE为20个字节
+        byteBuffer.putLong(4);
+        byteBuffer.putShort((short) TIFF.Tag.IMAGE_WIDTH).putShort((short) TIFF.Type.LONG).putLong(1)
+                .putInt(100_000).putInt(0);
+        byteBuffer.putShort((short) TIFF.Tag.BITS_PER_SAMPLE).putShort((short) TIFF.Type.SHORT).putLong(3)
+                .putShort((short) 16).putShort((short) 16).putShort((short) 16).putShort((short) 0);
+        byteBuffer.putShort((short) TIFF.Tag.STRIP_OFFSETS).putShort((short) TIFF.Type.LONG8).putLong(3)
+                .putLong(112);
+        byteBuffer.putShort((short) TIFF.Tag.X_RESOLUTION).putShort((short) TIFF.Type.RATIONAL).putLong(1)
+                .putInt(300).putInt(1);
+        // 下一个IFD的偏移量为8个字节
+        byteBuffer.putLong(0);
+        for (long stripOffset : stripOffsets) {
+            byteBuffer.putLong(stripOffset);
+        }
+
+        TIFFReader tiffReader = new TIFFReader(
+                ImageFileDirectoryChainTest.bytesSource(byteBuffer.array(), new AtomicInteger()));
+        assert tiffReader.isBigTIFF();
+        assert tiffReader.getIFH().getFirstIFDOffset() == 16;
+
+        List<ImageFileDirectory> ifdList = tiffReader.readIFD();
+        assert ifdList.size() == 1;
+        assert ifdList.get(0).getNextIFDOffset() == 0;
+
+        TIFFTag tiffTag = tiffReader.readAttribute(ifdList.get(0));
+        assert tiffTag.getWidth() == 100_000;
+        assert Arrays.equals(tiffTag.getBitsPerSample(), new int[]{16, 16, 16});
+        assert Arrays.equals(tiffTag.getStripOffsets(), stripOffsets);
+        assert tiffTag.getXResolution() == 300.0;
+    }
+
+    @Test
+    void testLazyDataEntryValue() throws IOException {
+        int stripCount = 10_000;
+        int stripOffsetsPosition = 1 << 20;
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(stripOffsetsPosition + stripCount * 4).order(ByteOrder.LITTLE_ENDIAN);
+        byteBuffer.put((byte) 'I').put((byte) 'I').putShort((short) TIFF.TIFF_IDENTIFIER).putInt(8);
+        byteBuffer.putShort((short) 2);
+        byteBuffer.putShort((short) TIFF.Tag.IMAGE_WIDTH).putShort((short) TIFF.Type.LONG).putInt(1).putInt(512);
+        byteBuffer.putShort((short) TIFF.Tag.STRIP_OFFSETS).putShort((short) TIFF.Type.LONG).putInt(stripCount)
+                .putInt(stripOffsetsPosition);
+        byteBuffer.putInt(0);
+        for (int i = 0; i < stripCount; i++) {
+            byteBuffer.putInt(stripOffsetsPosition + i * 4, i * 100);
+        }
+
+        AtomicInteger readCount = new AtomicInteger();
+        TIFFReader tiffReader = new TIFFReader(
+                ImageFileDirectoryChainTest.bytesSource(byteBuffer.array(), readCount));
+        tiffReader.setEagerLoadThreshold(4096);
+
+        // 只读取宽度时，不读取条带偏移量
+        ImageFileDirectory ifd = tiffReader.readIFD().get(0);
+        TIFFTag tiffTag = tiffReader.readAttribute(ifd);
+        assert tiffTag.getWidth() == 512;
+        assert !ifd.getDataEntries().get(1).isDataLoaded();
+        int readCountBeforeAccess = readCount.get();
+
+        // 第一次访问时读取
+        long[] stripOffsets = tiffTag.getStripOffsets();
+        assert stripOffsets.length == stripCount;
+        assert stripOffsets[stripCount - 1] == (stripCount - 1) * 100L;
+        assert readCount.get() == readCountBeforeAccess + 1;
+
+        // 重新解析IFD后，再次访问使用缓存
+        TIFFTag reparsedTag = tiffReader.readAttribute(0);
+        int readCountAfterReparse = readCount.get();
+        assert Arrays.equals(reparsedTag.getStripOffsets(), stripOffsets);
+        assert readCount.get() == readCountAfterReparse;
+    }
+
+    @Test
+    void testReadRaster() throws IOException {
+        Resource resource = fromFilename("TIFF.tif");
+
+        try (FileChannel fileChannel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+            TIFFReader tiffReader = new TIFFReader(fileChannel);
+            TIFFTag tiffTag = tiffReader.readAttribute(0);
+
+            assert Arrays.equals(tiffReader.readImage(0), readFirstStrip(tiffReader, tiffTag));
+        }
+
+        // 宽5、高7、每个条带3行、2个通道分开存放，每个通道的最后一个条带只有1行，但按3行填充存储
+        int width = 5;
+        int height = 7;
+        int rowsPerStrip = 3;
+        int planes = 2;
+        int stripsPerPlane = 3;
+        int stripByteSize = width * rowsPerStrip;
+        int dataOffset = 256;
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(dataOffset + planes * stripsPerPlane * stripByteSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        byteBuffer.put((byte) 'I').put((byte) 'I').putShort((short) TIFF.TIFF_IDENTIFIER).putInt(8);
+        byteBuffer.putShort((short) 9);
+        byteBuffer.putShort((short) TIFF.Tag.IMAGE_WIDTH).putShort((short) TIFF.Type.LONG).putInt(1).putInt(width);
+        byteBuffer.putShort((short) TIFF.Tag.IMAGE_LENGTH).putShort((short) TIFF.Type.LONG).putInt(1).putInt(height);
+        byteBuffer.putShort((short) TIFF.Tag.BITS_PER_SAMPLE).putShort((short) TIFF.Type.SHORT).putInt(2)
+                .putShort((short) 8).putShort((short) 8);
+        byteBuffer.putShort((short) TIFF.Tag.COMPRESSION).putShort((short) TIFF.Type.SHORT).putInt(1).putInt(1);
+        byteBuffer.putShort((short) TIFF.Tag.STRIP_OFFSETS).putShort((short) TIFF.Type.LONG).putInt(6).putInt(200);
+        byteBuffer.putShort((short) TIFF.Tag.SAMPLES_PER_PIXEL).putShort((short) TIFF.Type.SHORT).putInt(1)
+                .putInt(planes);
+        byteBuffer.putShort((short) TIFF.Tag.ROWS_PER_STRIP).putShort((short) TIFF.Type.LONG).putInt(1)
+                .putInt(rowsPerStrip);
+        byteBuffer.putShort((short) TIFF.Tag.STRIP_BYTE_COUNTS).putShort((short) TIFF.Type.LONG).putInt(6)
+                .putInt(224);
+        byteBuffer.putShort((short) TIFF.Tag.PLANAR_CONFIGURATION).putShort((short) TIFF.Type.SHORT).putInt(1)
+                .putInt(TIFF.PlanarConfiguration.PLANAR);
+        byteBuffer.putInt(0);
+
+        byte[] expected = new byte[planes * width * height];
+        for (int strip = 0; strip < planes * stripsPerPlane; strip++) {
+            byteBuffer.putInt(200 + strip * 4, dataOffset + strip * stripByteSize);
+            byteBuffer.putInt(224 + strip * 4, stripByteSize);
+            for (int i = 0; i < stripByteSize; i++) {
+                int plane = strip / stripsPerPlane;
+                int row = (strip % stripsPerPlane) * rowsPerStrip + i / width;
+                byte value = (byte) (plane * 100 + row * 10 + i % width);
+                byteBuffer.put(dataOffset + strip * stripByteSize + i, row < height ? value : (byte) -1);
+                if (row < height) {
+                    expected[plane * width * height + row * width + i % width] = value;
+                }
+            }
+        }
+
+        TIFFReader tiffReader = new TIFFReader(
+                ImageFileDirectoryChainTest.bytesSource(byteBuffer.array(), new AtomicInteger()));
+        TIFFTag tiffTag = tiffReader.readAttribute(0);
+        assert Arrays.equals(tiffReader.readRaster(tiffTag), expected);
+
+        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+        try (ExecutorService virtualExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+            assert Arrays.equals(tiffReader.readRaster(tiffTag, forkJoinPool), expected);
+
+            tiffReader.setDecodeExecutor(virtualExecutor);
+            assert Arrays.equals(tiffReader.readImage(0), expected);
+        } finally {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    @Test
+    void testTiledRandomAccess() throws IOException {
+        // 宽10、高7、瓦片4x4、2个通道交错存放，共3x2个瓦片，边缘瓦片按完整大小填充
+        int width = 10;
+        int height = 7;
+        int tileSize = 4;
+        int samples = 2;
+        int tilesAcross = 3;
+        int tilesDown = 2;
+        int tileByteSize = tileSize * tileSize * samples;
+        int dataOffset = 256;
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(dataOffset + tilesAcross * tilesDown * tileByteSize)
+                .order(ByteOrder.BIG_ENDIAN);
+        byteBuffer.put((byte) 'M').put((byte) 'M').putShort((short) TIFF.TIFF_IDENTIFIER).putInt(8);
+        byteBuffer.putShort((short) 8);
+        byteBuffer.putShort((short) TIFF.Tag.IMAGE_WIDTH).putShort((short) TIFF.Type.LONG).putInt(1).putInt(width);
+        byteBuffer.putShort((short) TIFF.Tag.IMAGE_LENGTH).putShort((short) TIFF.Type.LONG).putInt(1).putInt(height);
+        byteBuffer.putShort((short) TIFF.Tag.BITS_PER_SAMPLE).putShort((short) TIFF.Type.SHORT).putInt(2)
+                .putShort((short) 8).putShort((short) 8);
+        byteBuffer.putShort((short) TIFF.Tag.SAMPLES_PER_PIXEL).putShort((short) TIFF.Type.SHORT).putInt(1)
+                .putShort((short) samples).putShort((short) 0);
+        byteBuffer.putShort((short) TIFF.Tag.TILE_WIDTH).putShort((short) TIFF.Type.SHORT).putInt(1)
+                .putShort((short) tileSize).putShort((short) 0);
+        byteBuffer.putShort((short) TIFF.Tag.TILE_LENGTH).putShort((short) TIFF.Type.SHORT).putInt(1)
+                .putShort((short) tileSize).putShort((short) 0);
+        byteBuffer.putShort((short) TIFF.Tag.TILE_OFFSETS).putShort((short) TIFF.Type.LONG).putInt(6).putInt(200);
+        byteBuffer.putShort((short) TIFF.Tag.TILE_COUNTS).putShort((short) TIFF.Type.LONG).putInt(6).putInt(224);
+        byteBuffer.putInt(0);
+
+        for (int tile = 0; tile < tilesAcross * tilesDown; tile++) {
+            byteBuffer.putInt(200 + tile * 4, dataOffset + tile * tileByteSize);
+            byteBuffer.putInt(224 + tile * 4, tileByteSize);
+            for (int i = 0; i < tileSize * tileSize; i++) {
+                int x = (tile % tilesAcross) * tileSize + i % tileSize;
+                int y = (tile / tilesAcross) * tileSize + i / tileSize;
+                boolean inside = x < width && y < height;
+                int position = dataOffset + tile * tileByteSize + i * samples;
+                byteBuffer.put(position, inside ? (byte) (y * 10 + x) : (byte) -1);
+                byteBuffer.put(position + 1, inside ? (byte) (100 + y * 10 + x) : (byte) -1);
+            }
+        }
+
+        AtomicInteger readCount = new AtomicInteger();
+        TIFFReader tiffReader = new TIFFReader(
+                ImageFileDirectoryChainTest.bytesSource(byteBuffer.array(), readCount));
+        TIFFTag tiffTag = tiffReader.readAttribute(0);
+        assert tiffTag.isTiled();
+
+        TileIndex tileIndex = TileIndex.of(tiffTag);
+        assert tileIndex.getTilesAcross() == tilesAcross && tileIndex.getTilesDown() == tilesDown;
+        assert tileIndex.indexOf(2, 1, 0) == 5;
+
+        // 右下角的边缘瓦片
+        byte[] tile = tiffReader.readTile(tiffTag, 2, 1, 0);
+        assert tile.length == tileByteSize;
+        assert tile[0] == 48 && tile[1] == (byte) 148;
+
+        // 只与一个瓦片相交的窗口只读取一次数据
+        int readCountBeforeWindow = readCount.get();
+        byte[] window = tiffReader.readWindow(tiffTag, 5, 1, 2, 2);
+        assert readCount.get() == readCountBeforeWindow + 1;
+        assert Arrays.equals(window, new byte[]{15, 115, 16, 116, 25, 125, 26, 126});
+
+        // 跨越全部瓦片的窗口
+        byte[] image = tiffReader.readWindow(tiffTag, 0, 0, width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assert image[(y * width + x) * samples] == (byte) (y * 10 + x);
+                assert image[(y * width + x) * samples + 1] == (byte) (100 + y * 10 + x);
+            }
+        }
+    }
+
     @Test
     void testGF1PMS1MSS() {
         String filePath = "D:\\01-Data\\05-GIS数据\\云南原始影像\\GF1_PMS1_E105.4_N24.1_20230417_L1A0007229564\\GF1_PMS1_E105" +
@@ -106,6 +400,12 @@ class TIFFReaderTest {
         }
     }
 
+    byte[] readFirstStrip(TIFFReader tiffReader, TIFFTag tiffTag) throws IOException {
+        return tiffReader.readData(tiffTag.getWidth(), tiffTag.getHeight(), tiffTag.getBitsPerSample(),
+                tiffTag.getStripByteCounts()[0], tiffTag.getStripOffsets()[0], tiffTag.getPlanarConfig(),
+                tiffTag.getPredictor());
+    }
+
     Resource fromFilename(String filename) {
         String tiffFileRelativePath = String.format("files/%s", filename);
         return new ClassPathResource(tiffFileRelativePath);
@@ -0,0 +1,268 @@
+package cn.funnymap;
+
+import cn.funnymap.model.tiff.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author jiao xn
+ * @date 2024/1/28 15:20
+ */
+class TIFFWriterTest {
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 203;
+    private static final short[] GEO_KEY_DIRECTORY = new short[]{1, 1, 0, 3,
+            GeoTIFF.GT_MODEL_TYPE_GEO_KEY, 0, 1, 2,
+            GeoTIFF.GT_RASTER_TYPE_GEO_KEY, 0, 1, 1,
+            GeoTIFF.GT_CITATION_GEO_KEY, (short) TIFF.Tag.GEO_ASCII_PARAMS, 7, 0};
+
+    @Test
+    void testGeoTIFFRoundTrip() throws IOException {
+        // 32位浮点高程，使用LZW压缩和浮点差分，最后一个条带不完整
+        ByteBuffer elevation = ByteBuffer.allocate(WIDTH * HEIGHT * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                elevation.putFloat((float) (800 + 200 * Math.sin(x / 40.0) * Math.cos(y / 25.0)));
+            }
+        }
+
+        Path path = Files.createTempFile("tiff-writer", ".tif");
+        try {
+            TIFFImageSpec spec = new TIFFImageSpec(WIDTH, HEIGHT, 32)
+                    .setCompression(TIFF.Compression.LZW).setPredictor(3).setRowsPerStrip(16)
+                    .setSampleFormat(TIFF.SampleFormat.IEEEFLOAT)
+                    .setModelPixelScale(30, 30, 0)
+                    .setModelTiepoints(0, 0, 0, 116.3, 39.9, 0)
+                    .setGeoKeyDirectory(GEO_KEY_DIRECTORY)
+                    .setGeoAsciiParams("WGS 84|");
+
+            try (TIFFWriter tiffWriter = TIFFWriter.create(path, ByteOrder.LITTLE_ENDIAN, false)) {
+                spec.setImageDescription("高程");
+                tiffWriter.beginImage(spec);
+                // 逐行写入
+                for (int y = 0; y < HEIGHT; y++) {
+                    tiffWriter.writeRows(elevation.slice(y * WIDTH * 4, WIDTH * 4).order(ByteOrder.LITTLE_ENDIAN));
+                }
+                tiffWriter.endImage();
+            }
+
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                GeoTIFFReader tiffReader = new GeoTIFFReader(fileChannel);
+                assert !tiffReader.isBigTIFF();
+                assert tiffReader.getIFDChain().size() == 1;
+
+                TIFFTag tiffTag = tiffReader.readAttribute(0);
+                assert tiffTag.getStripOffsets().length == (HEIGHT + 15) / 16;
+                assert tiffTag.getPredictor() == 3 && tiffTag.getCompression() == TIFF.Compression.LZW;
+                assert Arrays.equals(tiffTag.getModelPixelScale(), new double[]{30, 30, 0});
+                assert Arrays.equals(tiffTag.getModelTiepoints(), new double[]{0, 0, 0, 116.3, 39.9, 0});
+                assert Arrays.equals(tiffTag.getGeoKeyDirectory(), GEO_KEY_DIRECTORY);
+                assert tiffTag.getImageDescription().startsWith("高程");
+                assert Arrays.equals(tiffReader.readRaster(tiffTag), elevation.array());
+
+                tiffReader.readIFD();
+                tiffReader.readAttributeFromGeoKeyDirectory();
+                assert tiffReader.getGeoKeyDirectory().getNumberOfKeys() == 3;
+                Object citation = tiffReader.getGeoKeyDirectory().getGeoKeys().get(2).getActualValue();
+                assert String.valueOf(citation).startsWith("WGS 84");
+
+                // 复制地理参考信息
+                TIFFImageSpec copied = new TIFFImageSpec(1, 1, 8).copyGeoTags(tiffTag);
+                assert copied.getDataEntries().size() == 4;
+            }
+            System.out.printf("写入%sx%s的浮点高程：%s字节%n", WIDTH, HEIGHT, Files.size(path));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testBigTIFFMultiPage() throws IOException {
+        // 16位RGB，写入大端BigTIFF，数据按小端提供
+        int samples = 3;
+        ByteBuffer image = ByteBuffer.allocate(WIDTH * HEIGHT * samples * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < WIDTH * HEIGHT * samples; i++) {
+            image.putShort((short) (i / samples % WIDTH * 100 + i % samples * 7));
+        }
+        byte[] overview = new byte[(WIDTH / 2) * (HEIGHT / 2)];
+        Arrays.fill(overview, (byte) 7);
+
+        Path path = Files.createTempFile("tiff-writer", ".tif");
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            TIFFWriter tiffWriter = new TIFFWriter(fileChannel, ByteOrder.BIG_ENDIAN, true);
+            tiffWriter.beginImage(new TIFFImageSpec(WIDTH, HEIGHT, 16, 16, 16)
+                    .setCompression(TIFF.Compression.ADOBE_DEFLATE).setPredictor(2)
+                    .setPhotometric(TIFF.Photometric.RGB).setRowsPerStrip(10));
+            // 以不对齐行的块写入
+            ByteBuffer source = image.duplicate().order(ByteOrder.LITTLE_ENDIAN).flip();
+            while (source.hasRemaining()) {
+                int length = Math.min(source.remaining(), 1000 * 6);
+                tiffWriter.writeRows(source.slice(source.position(), length).order(ByteOrder.LITTLE_ENDIAN));
+                source.position(source.position() + length);
+            }
+            tiffWriter.endImage();
+
+            // 第二页不压缩，作为缩略图
+            tiffWriter.beginImage(new TIFFImageSpec(WIDTH / 2, HEIGHT / 2, 8).setSubfileType(1));
+            tiffWriter.writeRows(ByteBuffer.wrap(overview));
+            tiffWriter.endImage();
+
+            TIFFReader tiffReader = new TIFFReader(fileChannel);
+            assert tiffReader.isBigTIFF() && tiffReader.getIFH().getByteOrder() == ByteOrder.BIG_ENDIAN;
+            assert tiffReader.getIFDChain().size() == 2;
+
+            // 读取结果为文件字节序
+            byte[] raster = tiffReader.readImage(0);
+            ByteBuffer rasterBuffer = ByteBuffer.wrap(raster).order(ByteOrder.BIG_ENDIAN);
+            for (int i = 0; i < WIDTH * HEIGHT * samples; i++) {
+                assert rasterBuffer.getShort(i * 2) == image.getShort(i * 2);
+            }
+
+            TIFFTag overviewTag = tiffReader.readAttribute(1);
+            assert overviewTag.getSubfileType() == 1;
+            assert Arrays.equals(tiffReader.readRaster(overviewTag), overview);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testParallelWrite() throws IOException {
+        // 8位RGB，LZW压缩和水平差分，并行写入的结果应与串行写入完全一致
+        int width = 2048;
+        int height = 1024;
+        byte[] image = new byte[width * height * 3];
+        Random random = new Random(1);
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (i / 3 % width / 8 + i % 3 * 40 + random.nextInt(4));
+        }
+
+        Path serialPath = Files.createTempFile("tiff-writer", ".tif");
+        Path parallelPath = Files.createTempFile("tiff-writer", ".tif");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            long serialCost = writeRGB(serialPath, image, width, height, null);
+            long parallelCost = writeRGB(parallelPath, image, width, height, executor);
+            assert Files.mismatch(serialPath, parallelPath) == -1;
+            System.out.printf("写入%sMB的RGB影像，串行耗时：%.2fms，4线程并行耗时：%.2fms%n", image.length >> 20,
+                    serialCost / 1e6, parallelCost / 1e6);
+
+            try (FileChannel fileChannel = FileChannel.open(parallelPath, StandardOpenOption.READ)) {
+                assert Arrays.equals(new TIFFReader(fileChannel).readImage(0), image);
+            }
+        } finally {
+            executor.shutdown();
+            Files.delete(serialPath);
+            Files.delete(parallelPath);
+        }
+    }
+
+    @Test
+    void testPackBitsRowBoundaries() throws IOException {
+        // 全0的8位图像，条带和瓦片中的每行独立编码，重复游程不跨越行的边界
+        Path path = Files.createTempFile("tiff-writer", ".tif");
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            TIFFWriter tiffWriter = new TIFFWriter(fileChannel, ByteOrder.LITTLE_ENDIAN, false);
+            tiffWriter.beginImage(new TIFFImageSpec(10, 4, 8).setCompression(TIFF.Compression.PACKBITS)
+                    .setRowsPerStrip(4));
+            tiffWriter.writeRows(ByteBuffer.allocate(10 * 4));
+            tiffWriter.endImage();
+            tiffWriter.beginImage(new TIFFImageSpec(20, 6, 8).setCompression(TIFF.Compression.PACKBITS)
+                    .setTileSize(16, 16));
+            tiffWriter.writeRows(ByteBuffer.allocate(20 * 6));
+            tiffWriter.endImage();
+
+            TIFFReader tiffReader = new TIFFReader(fileChannel);
+            TIFFTag stripTag = tiffReader.readAttribute(0);
+            ByteBuffer strip = ByteBuffer.allocate((int) stripTag.getStripByteCounts()[0]);
+            fileChannel.read(strip, stripTag.getStripOffsets()[0]);
+            assert Arrays.equals(strip.array(), new byte[]{-9, 0, -9, 0, -9, 0, -9, 0}) : Arrays.toString(strip.array());
+            assert Arrays.equals(tiffReader.readRaster(stripTag), new byte[10 * 4]);
+
+            // 每个瓦片16行，每行16个字节
+            TIFFTag tileTag = tiffReader.readAttribute(1);
+            assert Arrays.stream(tileTag.getTileByteCounts()).allMatch(byteCount -> byteCount == 16 * 2);
+            assert Arrays.equals(tiffReader.readWindow(tileTag, 0, 0, 20, 6), new byte[20 * 6]);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testInvalidUsage() throws IOException {
+        Path path = Files.createTempFile("tiff-writer", ".tif");
+        try (TIFFWriter tiffWriter = TIFFWriter.create(path, ByteOrder.LITTLE_ENDIAN, false)) {
+            tiffWriter.beginImage(new TIFFImageSpec(4, 4, 8));
+            tiffWriter.writeRows(ByteBuffer.allocate(12));
+
+            // 数据不完整
+            boolean isRejected = false;
+            try {
+                tiffWriter.endImage();
+            } catch (IllegalStateException exception) {
+                isRejected = true;
+            }
+            assert isRejected;
+
+            // 超出图像大小
+            isRejected = false;
+            try {
+                tiffWriter.writeRows(ByteBuffer.allocate(5));
+            } catch (IllegalArgumentException exception) {
+                isRejected = true;
+            }
+            assert isRejected;
+        } finally {
+            Files.delete(path);
+        }
+
+        // 不压缩时不能使用Predictor
+        boolean isRejected = false;
+        try (FileChannel fileChannel = FileChannel.open(Files.createTempFile("tiff-writer", ".tif"),
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+            new TIFFWriter(fileChannel, ByteOrder.LITTLE_ENDIAN, false)
+                    .beginImage(new TIFFImageSpec(4, 4, 8).setPredictor(2));
+        } catch (IllegalArgumentException exception) {
+            isRejected = true;
+        }
+        assert isRejected;
+
+        // 不支持编码的压缩方式在打开图像时拒绝
+        isRejected = false;
+        try (FileChannel fileChannel = FileChannel.open(Files.createTempFile("tiff-writer", ".tif"),
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+            new TIFFWriter(fileChannel, ByteOrder.LITTLE_ENDIAN, false)
+                    .beginImage(new TIFFImageSpec(4, 4, 8).setCompression(TIFF.Compression.NEW_JPEG));
+        } catch (IllegalArgumentException exception) {
+            isRejected = true;
+        }
+        assert isRejected;
+    }
+
+    private static long writeRGB(Path path, byte[] image, int width, int height, ExecutorService executor)
+            throws IOException {
+        long start = System.nanoTime();
+        try (TIFFWriter tiffWriter = TIFFWriter.create(path, ByteOrder.LITTLE_ENDIAN, false)) {
+            tiffWriter.setEncodeExecutor(executor, 8);
+            tiffWriter.beginImage(new TIFFImageSpec(width, height, 8, 8, 8).setCompression(TIFF.Compression.LZW)
+                    .setPredictor(2).setPhotometric(TIFF.Photometric.RGB).setRowsPerStrip(16));
+            for (int y = 0; y < height; y += 64) {
+                tiffWriter.writeRows(ByteBuffer.wrap(image, y * width * 3, Math.min(64, height - y) * width * 3));
+            }
+            tiffWriter.endImage();
+        }
+
+        return System.nanoTime() - start;
+    }
+}